@@ -21,10 +21,12 @@ import javax.swing.JPanel;
 
 import net.joelbecker.util.pattern.ClassMappingFactory;
 import net.joelbecker.video.processing.BackgroundUpdater;
+import net.joelbecker.video.processing.ForegroundExtractionEffect;
 import net.joelbecker.video.processing.PixelizationDialate8Bit;
 import net.joelbecker.video.processing.RgbThresholdEffect;
 import net.joelbecker.video.processing.RgbVideoEffect;
 import net.joelbecker.video.processing.ui.swing.panel.BackgroundUpdaterPanel;
+import net.joelbecker.video.processing.ui.swing.panel.ForegroundExtractionPanel;
 import net.joelbecker.video.processing.ui.swing.panel.PixelizationDialate8BitPanel;
 import net.joelbecker.video.processing.ui.swing.panel.RgbThresholdPanel;
 
@@ -44,6 +46,7 @@ public class VideoEffectUIFactory extends ClassMappingFactory<RgbVideoEffect, JP
 		registerClass(RgbThresholdEffect.class, RgbThresholdPanel.class);
 		registerClass(BackgroundUpdater.class, BackgroundUpdaterPanel.class);
 		registerClass(PixelizationDialate8Bit.class, PixelizationDialate8BitPanel.class);
+		registerClass(ForegroundExtractionEffect.class, ForegroundExtractionPanel.class);
 	}
 	
 	/**
@@ -0,0 +1,214 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.vector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+import net.joelbecker.video.processing.VectorKernels;
+
+/**
+ * The {@link VectorKernels} on the Vector API, with vectors of the widest size
+ * the hardware has. Components are compared as signed bytes after flipping
+ * their high bits, which orders them as unsigned bytes.
+ */
+public class VectorApiKernels extends VectorKernels {
+
+	/** Bytes, as many as fit in the widest vector. */
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+	
+	/** Ints, as many as fit in the widest vector. */
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	
+	/** Bytes, as many as INTS has ints. */
+	private static final VectorSpecies<Byte> INT_BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.length() * 8));
+	
+	/** Shorts, as many as INTS has ints. */
+	private static final VectorSpecies<Short> INT_SHORTS = VectorSpecies.of(short.class, VectorShape.forBitSize(INTS.length() * 16));
+	
+	/** Flips the high bit of a byte. */
+	private static final byte SIGN = (byte) 0x80;
+	
+	/**
+	 * For each color component, gathers that component of each pixel of three
+	 * vectors of pixels from each of the vectors (in turn, with the masks).
+	 */
+	private static final VectorShuffle<Byte>[] COMPONENTS = newByteShuffles(3);
+	private static final VectorMask<Byte>[] SECOND = newByteMasks(3);
+	private static final VectorMask<Byte>[] THIRD = newByteMasks(3);
+	
+	/** For each of three vectors of components, repeats each pixel's value for its three components. */
+	private static final VectorShuffle<Integer>[] PIXEL_COMPONENTS = newIntShuffles(3);
+	
+	static {
+		int bytes = BYTES.length();
+		for (int c = 0; c < 3; c++) {
+			int[] indexes = new int[bytes];
+			boolean[] second = new boolean[bytes];
+			boolean[] third = new boolean[bytes];
+			for (int j = 0; j < bytes; j++) {
+				int source = j * 3 + c;
+				indexes[j] = source % bytes;
+				second[j] = source / bytes == 1;
+				third[j] = source / bytes == 2;
+			}
+			COMPONENTS[c] = VectorShuffle.fromArray(BYTES, indexes, 0);
+			SECOND[c] = VectorMask.fromArray(BYTES, second, 0);
+			THIRD[c] = VectorMask.fromArray(BYTES, third, 0);
+		}
+		int ints = INTS.length();
+		for (int s = 0; s < 3; s++) {
+			int[] indexes = new int[ints];
+			for (int j = 0; j < ints; j++) {
+				indexes[j] = (ints * s + j) / 3;
+			}
+			PIXEL_COMPONENTS[s] = VectorShuffle.fromArray(INTS, indexes, 0);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static VectorShuffle<Byte>[] newByteShuffles(int length) {
+		return (VectorShuffle<Byte>[]) new VectorShuffle<?>[length];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static VectorShuffle<Integer>[] newIntShuffles(int length) {
+		return (VectorShuffle<Integer>[]) new VectorShuffle<?>[length];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static VectorMask<Byte>[] newByteMasks(int length) {
+		return (VectorMask<Byte>[]) new VectorMask<?>[length];
+	}
+	
+	
+	/**
+	 * Constructor.
+	 * @throws UnsupportedOperationException If the vectors are narrower than 256
+	 * bits, where the shuffles cost more than the effects' own loops.
+	 */
+	public VectorApiKernels() {
+		if (BYTES.vectorBitSize() < 256) {
+			throw new UnsupportedOperationException("Vectors of " + BYTES.vectorBitSize() + " bits");
+		}
+	}
+	
+	public String getDescription() {
+		return "Vector API, " + BYTES.vectorBitSize() + "-bit vectors" + (hasThreshold() ? "" : " (threshold on longs)");
+	}
+	
+	public void absoluteDifferences(ByteBuffer in, byte[] background, byte[] out, int from, int to) {
+		int i = from;
+		ByteVector a, b;
+		for (; i + BYTES.length() <= to; i += BYTES.length()) {
+			a = ByteVector.fromByteBuffer(BYTES, in, i, ByteOrder.nativeOrder()).lanewise(VectorOperators.XOR, SIGN);
+			b = ByteVector.fromArray(BYTES, background, i).lanewise(VectorOperators.XOR, SIGN);
+			a.max(b).sub(a.min(b)).intoArray(out, i);
+		}
+		for (; i < to; i++) {
+			out[i] = (byte) Math.abs((in.get(i) & 0xff) - (background[i] & 0xff));
+		}
+	}
+	
+	/** Gathering the components takes a shuffle of whole vectors of bytes, which pays off from 512 bits. */
+	public boolean hasThreshold() {
+		return BYTES.vectorBitSize() >= 512;
+	}
+	
+	public int threshold(byte[] in, byte[] out, int from, int to, char threshold) {
+		// The char of a byte is over the threshold exactly when the unsigned byte is over this
+		int unsigned = threshold >= 0xff80 ? threshold - 0xff00 : Math.min(threshold, 0x7f);
+		byte signed = (byte) (unsigned ^ 0x80);
+		int count = 0;
+		int p = from;
+		int i;
+		ByteVector first, second, third, largest;
+		VectorMask<Byte> pass;
+		for (; p + BYTES.length() <= to; p += BYTES.length()) {
+			i = p * 3;
+			first = ByteVector.fromArray(BYTES, in, i).lanewise(VectorOperators.XOR, SIGN);
+			second = ByteVector.fromArray(BYTES, in, i + BYTES.length()).lanewise(VectorOperators.XOR, SIGN);
+			third = ByteVector.fromArray(BYTES, in, i + 2 * BYTES.length()).lanewise(VectorOperators.XOR, SIGN);
+			largest = null;
+			for (int c = 0; c < 3; c++) {
+				ByteVector component = first.rearrange(COMPONENTS[c])
+						.blend(second.rearrange(COMPONENTS[c]), SECOND[c])
+						.blend(third.rearrange(COMPONENTS[c]), THIRD[c]);
+				largest = largest == null ? component : largest.max(component);
+			}
+			pass = largest.compare(VectorOperators.GT, signed);
+			pass.toVector().reinterpretAsBytes().intoArray(out, p);
+			count += pass.trueCount();
+		}
+		int largestComponent, passes;
+		for (i = p * 3; p < to; p++, i += 3) {
+			largestComponent = Math.max(Math.max(in[i] & 0xffff, in[i + 1] & 0xffff), in[i + 2] & 0xffff);
+			passes = (threshold - largestComponent) >> 31;
+			out[p] = (byte) passes;
+			count -= passes;
+		}
+		return count;
+	}
+	
+	public void updateBackground(byte[] mask, int maskBase, byte[] frame, char[] accumulator, byte[] background,
+			int rate, int foregroundRate, int rateBits, int from, int to) {
+		int rounding = 1 << (rateBits - 1);
+		IntVector rates = IntVector.broadcast(INTS, rate);
+		IntVector foregroundRates = IntVector.broadcast(INTS, foregroundRate);
+		IntVector pixelRates, r, f, a;
+		int b = from;
+		int p;
+		for (; b + INTS.length() <= to; b += INTS.length()) {
+			// The foreground rate where the mask is on
+			pixelRates = rates.blend(foregroundRates, ((IntVector) ByteVector.fromArray(INT_BYTES, mask, b - maskBase)
+					.convertShape(VectorOperators.B2I, INTS, 0)).compare(VectorOperators.NE, 0));
+			p = b * 3;
+			for (int s = 0; s < 3; s++, p += INTS.length()) {
+				r = pixelRates.rearrange(PIXEL_COMPONENTS[s]);
+				f = ((IntVector) ByteVector.fromArray(INT_BYTES, frame, p).convertShape(VectorOperators.B2I, INTS, 0))
+						.and(0xff).lanewise(VectorOperators.LSHL, 8);
+				a = ((IntVector) ShortVector.fromCharArray(INT_SHORTS, accumulator, p)
+						.convertShape(VectorOperators.S2I, INTS, 0)).and(0xffff);
+				a = a.add(f.sub(a).mul(r).add(rounding).lanewise(VectorOperators.ASHR, rateBits));
+				((ShortVector) a.convertShape(VectorOperators.I2S, INT_SHORTS, 0)).intoCharArray(accumulator, p);
+				((ByteVector) a.add(0x80).lanewise(VectorOperators.ASHR, 8)
+						.convertShape(VectorOperators.I2B, INT_BYTES, 0)).intoArray(background, p);
+			}
+		}
+		int rateDifference = rate ^ foregroundRate;
+		int m, pr, c;
+		for (p = b * 3; b < to; b++) {
+			m = mask[b - maskBase];
+			pr = rate ^ (rateDifference & ((m | -m) >> 31));
+			for (int k = 0; k < 3; k++, p++) {
+				c = accumulator[p];
+				c += ((((frame[p] & 0xff) << 8) - c) * pr + rounding) >> rateBits;
+				accumulator[p] = (char) c;
+				background[p] = (byte) ((c + 0x80) >> 8);
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+/**
+ * A model of the background of a scene, learned from its frames, which effects
+ * compare frames to (e.g. {@link RgbDiffEffect}). The background is given as an
+ * image, like the frames: as bytes, or as packed XRGB pixels while the frames
+ * come as packed pixels.
+ */
+public interface BackgroundModel {
+
+	/**
+	 * Gets the background image, 3 bytes per pixel in the order of the frames.
+	 * @return The background, or null if it is not known yet or is kept as packed pixels.
+	 */
+	byte[] getBackground();
+	
+	/**
+	 * Gets the background image as packed XRGB pixels.
+	 * @return The packed background, or null if it is not known yet or is kept as bytes.
+	 */
+	int[] getPackedBackground();
+	
+	/**
+	 * Forgets the background, so that it is learned again from the next frames.
+	 */
+	void resetBackground();
+}
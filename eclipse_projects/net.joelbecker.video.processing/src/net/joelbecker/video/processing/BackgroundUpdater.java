@@ -17,22 +17,105 @@
 ******************************************************************************/
 package net.joelbecker.video.processing;
 
+import java.nio.ByteBuffer;
+
 import javax.media.format.VideoFormat;
 
-public class BackgroundUpdater extends RgbVideoEffect {
+/**
+ * Keeps the background image: a running average of the frames, where each color
+ * component moves towards the frame by a fraction of the difference (the learning
+ * rate) every frame. Pixels under the mask of moving objects learn at a separate,
+ * usually much lower, rate, so objects that stop are slowly taken into the
+ * background. The average is kept in fixed point, in a 16-bit accumulator per
+ * color component (8 bits of fraction), and is updated in one linear pass
+ * without branches; the background image is its rounded integer part. The
+ * accumulator is saved in checkpoints.
+ */
+public class BackgroundUpdater extends RgbVideoEffect implements BackgroundModel, Checkpointable, RgbVideoEffect.BitMaskInput {
 	private BufferAccessor buffAcc;
 	private long frameNumber = 0;
 	private byte[] background = null;	// until we know the frame dimensions
+	private int[] packedBackground = null;	// instead of background, if frames are packed pixels
 	private static final int BACKGROUND_GRAB_TIME = 1; //30; // frames
 	
+	/** Bits of fraction of the learning rates. */
+	private static final int RATE_BITS = 12;
+	
+	/** Half of the fixed-point one of the learning rates, to round the steps. */
+	private static final int ROUNDING = 1 << (RATE_BITS - 1);
+	
+	/** The running average of each color component, in 8.8 fixed point, in the order of the byte background. */
+	private char[] accumulator = null;
+	
+	/** The learning rate where no moving object is detected. */
+	private float learningRate = 0.05f;
+	
+	/** The learning rate where a moving object is detected. */
+	private float foregroundLearningRate = 0f;
+	
+	/** The learning rates, in fixed point with RATE_BITS of fraction. */
+	private int rate, foregroundRate;
+	
+	/** A row of the mask for each band, unpacked from a bit plane. */
+	private byte[][] maskRows = new byte[0][];
+	
 	public BackgroundUpdater(BufferAccessor feedBufferAccessor) {
 		buffAcc = feedBufferAccessor;
+		setLearningRate(learningRate);
+		setForegroundLearningRate(foregroundLearningRate);
 	}
 	
 	public byte[] getBackground() {
 		return background;
 	}
 	
+	/**
+	 * Gets the background as packed XRGB pixels, which is kept instead of the
+	 * byte background while the frames come as packed pixels.
+	 * @return The packed background, or null if the background is kept as bytes.
+	 */
+	public int[] getPackedBackground() {
+		return packedBackground;
+	}
+	
+	public float getLearningRate() {
+		return learningRate;
+	}
+	
+	/**
+	 * Sets the fraction of the difference from the frame by which the background
+	 * moves each frame, where no moving object is detected. The higher it is, the
+	 * faster the background follows changes of lighting (and objects that stop).
+	 * @param learningRate The rate, from 0 (never) to 1 (the background is the
+	 * last frame). It is kept to a precision of 1/4096.
+	 */
+	public void setLearningRate(float learningRate) {
+		this.rate = toFixedRate(learningRate);
+		this.learningRate = learningRate;
+	}
+	
+	public float getForegroundLearningRate() {
+		return foregroundLearningRate;
+	}
+	
+	/**
+	 * Sets the learning rate where a moving object is detected (see
+	 * <code>setLearningRate()</code>). With 0, the default, the background is not
+	 * updated under moving objects at all.
+	 * @param foregroundLearningRate The rate, from 0 to 1.
+	 */
+	public void setForegroundLearningRate(float foregroundLearningRate) {
+		this.foregroundRate = toFixedRate(foregroundLearningRate);
+		this.foregroundLearningRate = foregroundLearningRate;
+	}
+	
+	private static int toFixedRate(float rate) {
+		if (!(rate >= 0f && rate <= 1f)) {
+			throw new IllegalArgumentException("The learning rate must be from 0 to 1.");
+		}
+		return Math.round(rate * (1 << RATE_BITS));
+	}
+	
 	public String getName() {
 		return "Background Image Updater";
 	}
@@ -47,53 +130,280 @@ public class BackgroundUpdater extends RgbVideoEffect {
 	
 	/**
 	 * Updates the background buffer.
-	 * For now, we just copy the first frame verbatim (ASSUMES there are no moving
-	 * objects in the first frame.
+	 * The first frame is copied verbatim (ASSUMES there are no moving objects in
+	 * the first frame); after that, the background is averaged with each frame
+	 * (a vector of components at a time, if there are {@link VectorKernels}).
 	 * @param bin MUST BE from the output of the BlobDetector or the RgbThresholdEffect.
 	 */
 	@Override
 	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
-		if (background == null) {
-			background = new byte[format.getSize().width * format.getSize().height * 3];
+		updateBackground(bin, null, format);
+		return false;
+	}
+	
+	/** The mask is read from bit planes a row at a time. */
+	@Override
+	public boolean acceptsBitMask(VideoFormat format) {
+		return true;
+	}
+	
+	/** Like <code>processRGB()</code>, with the mask as a bit plane. */
+	@Override
+	public boolean processBitMask(long[] lin, long[] lout, VideoFormat format) {
+		updateBackground(null, lin, format);
+		return false;
+	}
+	
+	/**
+	 * Updates the background from the current frame, where the mask of moving
+	 * objects is given either as bytes or as a bit plane.
+	 * @param mask The mask, one byte per pixel, or null.
+	 * @param bits The mask as a bit plane (of the whole frame), or null.
+	 */
+	private void updateBackground(final byte[] mask, final long[] bits, VideoFormat format) {
+		if (bits != null) {
+			prepareMaskRows(format.getSize().width);
+		}
+		int[] packedFrame = buffAcc.getPackedBuffer(getFrameSequenceNumber());
+		if (packedFrame != null) {
+			updatePackedBackground(mask, bits, packedFrame, format);
+			++frameNumber;
+			return;
+		}
+		int pixels = format.getSize().width * format.getSize().height;
+		if (accumulator == null || accumulator.length != pixels * 3) {
+			accumulator = new char[pixels * 3];
+			frameNumber = Math.min(frameNumber, BACKGROUND_GRAB_TIME - 1);	// nothing learned at this size
 		}
+		if (background == null || background.length != pixels * 3) {
+			// Keep what we have learned (e.g. if frames switched from packed pixels to bytes)
+			releaseBuffer(background);
+			releaseBuffer(packedBackground);
+			packedBackground = null;
+			background = borrowBuffer(pixels * 3);
+			for (int i = 0; i < background.length; i++) {
+				background[i] = (byte) ((accumulator[i] + 0x80) >> 8);
+			}
+		}
+		// The copy of this frame (later frames may be in flight if the chain is pipelined)
+		final byte[] frame = buffAcc.getBuffer(getFrameSequenceNumber());
 		if (frameNumber < BACKGROUND_GRAB_TIME) {
 			System.out.print(frameNumber == 0 ? "Capturing background" : ".");
 			
-			if(buffAcc.getBuffer() != null) {
+			if(frame != null) {
 				System.out.println("Grabbing snapshot for background image");
-				System.arraycopy(buffAcc.getBuffer(), 0, background, 0, bin.length);
+				System.arraycopy(frame, 0, background, 0, background.length);
+				for (int i = 0; i < background.length; i++) {
+					accumulator[i] = (char) ((frame[i] & 0xff) << 8);
+				}
 			} else {
 				--frameNumber;	// we didn't get that frame, so back up and don't count it
 			}
 		} else {
-			//if(buffAcc.getBuffer() != null) {
-				int p = 0;	// background pixel pos
-				int b = 0;	// blob byte pos
-				int comp;	// color component (rgb, 0-2)
-				for (p = 0; p < background.length; p+=3, b++) {
-					if (bin[b] == 0) {	/// Only update pixels where no moving object is detected
-						//background[i] = buffAcc.getBuffer()[i];
-						
-						for (comp = 0; comp < 3; comp++) {
-							int pix = p + comp;
-							if(((int) background[pix] & 0xff) < ((int) (buffAcc.getBuffer()[pix] & 0xff))) {
-								++background[pix];
-							} else if(((int) background[pix] & 0xff) > ((int) buffAcc.getBuffer()[pix] & 0xff)) {
-								--background[pix];
-							}
-						}
+			final byte[] background = this.background;
+			final char[] accumulator = this.accumulator;
+			final int rate = this.rate;
+			final int rateDifference = this.rate ^ foregroundRate;
+			final VectorKernels vectors = VectorKernels.getInstance();
+			forEachSpan(format, new MaskedSpanKernel(mask, bits, format.getSize().width) {
+				protected void update(byte[] mask, int maskBase, int from, int to) {
+					if (vectors != null) {
+						vectors.updateBackground(mask, maskBase, frame, accumulator, background,
+								rate, rate ^ rateDifference, RATE_BITS, from, to);
+						return;
+					}
+					int p = from * 3;	// background component pos
+					int b;	// pixel pos
+					int m, r, a;
+					for (b = from; b < to; b++) {
+						// The foreground rate where the mask is on, without branching
+						m = mask[b - maskBase];
+						r = rate ^ (rateDifference & ((m | -m) >> 31));
 						
+						a = accumulator[p];
+						a += ((((frame[p] & 0xff) << 8) - a) * r + ROUNDING) >> RATE_BITS;
+						accumulator[p] = (char) a;
+						background[p++] = (byte) ((a + 0x80) >> 8);
+						a = accumulator[p];
+						a += ((((frame[p] & 0xff) << 8) - a) * r + ROUNDING) >> RATE_BITS;
+						accumulator[p] = (char) a;
+						background[p++] = (byte) ((a + 0x80) >> 8);
+						a = accumulator[p];
+						a += ((((frame[p] & 0xff) << 8) - a) * r + ROUNDING) >> RATE_BITS;
+						accumulator[p] = (char) a;
+						background[p++] = (byte) ((a + 0x80) >> 8);
 					}
 				}
-			//}
+			});
 		}
 		++frameNumber;
-		return false;
+	}
+	
+	/**
+	 * Like the byte version in <code>processRGB()</code>, for frames given as packed
+	 * pixels: each color component of the background is averaged with the frame.
+	 * The accumulator is the same as for bytes, so it is kept when the frames
+	 * switch between bytes and packed pixels.
+	 * @param mask The mask of moving objects, one byte per pixel, or null.
+	 * @param bits The mask as a bit plane, or null.
+	 * @param frame The frame, as packed pixels.
+	 */
+	private void updatePackedBackground(byte[] mask, long[] bits, final int[] frame, VideoFormat format) {
+		int pixels = format.getSize().width * format.getSize().height;
+		if (accumulator == null || accumulator.length != pixels * 3) {
+			accumulator = new char[pixels * 3];
+			frameNumber = Math.min(frameNumber, BACKGROUND_GRAB_TIME - 1);	// nothing learned at this size
+		}
+		if (packedBackground == null || packedBackground.length != pixels) {
+			// Keep what we have learned (e.g. if frames switched from bytes to packed pixels)
+			releaseBuffer(packedBackground);
+			releaseBuffer(background);
+			background = null;
+			packedBackground = borrowPackedBuffer(pixels);
+			for (int i = 0, p = 0; i < pixels; i++, p += 3) {
+				packedBackground[i] = (((accumulator[p] + 0x80) >> 8) << 16)
+						| (((accumulator[p + 1] + 0x80) >> 8) << 8) | ((accumulator[p + 2] + 0x80) >> 8);
+			}
+		}
+		if (frameNumber < BACKGROUND_GRAB_TIME) {
+			System.arraycopy(frame, 0, packedBackground, 0, packedBackground.length);
+			for (int i = 0, p = 0; i < pixels; i++) {
+				accumulator[p++] = (char) (((frame[i] >> 16) & 0xff) << 8);
+				accumulator[p++] = (char) (((frame[i] >> 8) & 0xff) << 8);
+				accumulator[p++] = (char) ((frame[i] & 0xff) << 8);
+			}
+		} else {
+			final int[] background = packedBackground;
+			final char[] accumulator = this.accumulator;
+			final int rate = this.rate;
+			final int rateDifference = this.rate ^ foregroundRate;
+			forEachSpan(format, new MaskedSpanKernel(mask, bits, format.getSize().width) {
+				protected void update(byte[] mask, int maskBase, int from, int to) {
+					int c = from * 3;	// accumulator pos
+					int m, r, fr;
+					int ar, ag, ab;
+					for (int p = from; p < to; p++) {
+						m = mask[p - maskBase];
+						r = rate ^ (rateDifference & ((m | -m) >> 31));
+						fr = frame[p];
+						
+						ar = accumulator[c];
+						ar += ((((fr >> 8) & 0xff00) - ar) * r + ROUNDING) >> RATE_BITS;
+						ag = accumulator[c + 1];
+						ag += (((fr & 0xff00) - ag) * r + ROUNDING) >> RATE_BITS;
+						ab = accumulator[c + 2];
+						ab += ((((fr << 8) & 0xff00) - ab) * r + ROUNDING) >> RATE_BITS;
+						accumulator[c++] = (char) ar;
+						accumulator[c++] = (char) ag;
+						accumulator[c++] = (char) ab;
+						background[p] = (((ar + 0x80) >> 8) << 16) | (((ag + 0x80) >> 8) << 8) | ((ab + 0x80) >> 8);
+					}
+				}
+			});
+		}
+	}
+	
+	/** Makes a row of the mask for each band, to unpack bit planes into. */
+	private void prepareMaskRows(int width) {
+		if (maskRows.length < getMaxBandCount()) {
+			maskRows = new byte[getMaxBandCount()][];
+		}
+		for (int band = 0; band < maskRows.length; band++) {
+			if (maskRows[band] == null || maskRows[band].length != width) {
+				maskRows[band] = new byte[width];
+			}
+		}
+	}
+	
+	/**
+	 * Runs an update over spans of pixels with the mask as bytes, unpacking it a
+	 * row at a time if it is a bit plane. (Planes are only given with the whole
+	 * frame, so the spans are whole rows.)
+	 */
+	private abstract class MaskedSpanKernel implements RegionOfInterest.SpanKernel {
+		private final byte[] mask;
+		private final long[] bits;
+		private final int width;
+		
+		MaskedSpanKernel(byte[] mask, long[] bits, int width) {
+			this.mask = mask;
+			this.bits = bits;
+			this.width = width;
+		}
+		
+		public void run(int band, int from, int to) {
+			if (bits == null) {
+				update(mask, 0, from, to);
+				return;
+			}
+			byte[] row = maskRows[band];
+			for (int start = from; start < to; start += width) {
+				BitMaskPlane.unpackRow(bits, width, start / width, row, 0);
+				update(row, start, start, start + width);
+			}
+		}
+		
+		/**
+		 * Updates the pixels from one position to another.
+		 * @param mask The mask, of which <code>mask[i - maskBase]</code> is pixel i's.
+		 */
+		protected abstract void update(byte[] mask, int maskBase, int from, int to);
+	}
+	
+	/** The accumulator, if the background has been captured. */
+	public int getCheckpointSize() {
+		return accumulator != null && frameNumber >= BACKGROUND_GRAB_TIME ? 4 + accumulator.length * 2 : 4;
+	}
+	
+	public void writeCheckpoint(ByteBuffer buffer) {
+		if (accumulator != null && frameNumber >= BACKGROUND_GRAB_TIME) {
+			buffer.putInt(accumulator.length);
+			buffer.asCharBuffer().put(accumulator);
+			buffer.position(buffer.position() + accumulator.length * 2);
+		} else {
+			buffer.putInt(0);
+		}
+	}
+	
+	/**
+	 * Restores the accumulator, so the background need not be captured again.
+	 * The background image is made from it with the first frame, unless the
+	 * frames are of another size.
+	 */
+	public boolean readCheckpoint(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length <= 0 || length % 3 != 0 || buffer.remaining() != length * 2) {
+			return false;
+		}
+		char[] restored = new char[length];
+		buffer.asCharBuffer().get(restored);
+		accumulator = restored;
+		releaseBuffer(background);
+		releaseBuffer(packedBackground);
+		background = null;
+		packedBackground = null;
+		frameNumber = BACKGROUND_GRAB_TIME;
+		return true;
+	}
+	
+	/**
+	 * Overridden to update the background only in the dirty tiles, if they are
+	 * tracked (see {@link DirtyTileTracker}), so that the update costs in
+	 * proportion to them. The rest catches up as the tracker refreshes its tiles.
+	 */
+	@Override
+	protected RegionOfInterest.Spans getRegionSpans(VideoFormat format) {
+		RegionOfInterest.Spans dirty = getDirtySpans(format);
+		return dirty != null ? dirty : super.getRegionSpans(format);
 	}
 	
 	@Override
 	protected void updateImage(byte[] bout, VideoFormat vformat) {
-		super.updateImage(background, vformat);	// use background image instead of output
+		if (packedBackground != null) {
+			super.updatePackedImage(packedBackground, vformat);
+		} else {
+			super.updateImage(background, vformat);	// use background image instead of output
+		}
 	}
 	
 }
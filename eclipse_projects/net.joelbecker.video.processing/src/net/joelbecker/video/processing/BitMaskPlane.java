@@ -0,0 +1,113 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+
+/**
+ * <p>A mask of one bit per pixel, in an array of longs: bit <i>x</i> % 64 of
+ * word <i>x</i> / 64 of a row is the pixel in column <i>x</i>, and each row
+ * starts on a new word, so that the masks of 64 pixels can be combined with
+ * shifts and ORs at once, and runs of empty pixels skipped a word at a time.
+ * The bits past the end of each row are 0. The rows are stored bottom-up, as
+ * in the frame.</p>
+ * 
+ * <p>Effects may pass masks to each other as bit planes instead of one byte per
+ * pixel (see {@link RgbVideoEffect.BitMaskOutput}).</p>
+ */
+public final class BitMaskPlane {
+
+	private BitMaskPlane() {
+	}
+	
+	/**
+	 * Gets the number of words of each row of a plane.
+	 * @param width Width of the frame, in pixels.
+	 */
+	public static int getWordsPerRow(int width) {
+		return (width + 63) >>> 6;
+	}
+	
+	/**
+	 * Gets the length of the plane of a frame.
+	 * @param size Size of the frame, in pixels.
+	 * @return The length, in words.
+	 */
+	public static int getLength(Dimension size) {
+		return getWordsPerRow(size.width) * size.height;
+	}
+	
+	/**
+	 * Gets the mask of the bits of a row's last word which are in the frame.
+	 * @param width Width of the frame, in pixels.
+	 */
+	public static long getLastWordMask(int width) {
+		return (width & 63) == 0 ? -1L : (1L << width) - 1;
+	}
+	
+	/**
+	 * Gets whether a pixel is on.
+	 * @param plane The plane.
+	 * @param width Width of the frame, in pixels.
+	 */
+	public static boolean get(long[] plane, int width, int x, int y) {
+		return (plane[y * getWordsPerRow(width) + (x >>> 6)] & (1L << x)) != 0;
+	}
+	
+	/**
+	 * Unpacks a plane into a mask of one byte per pixel: 255 where the pixel is
+	 * on, 0 elsewhere.
+	 * @param plane The plane.
+	 * @param mask The mask, at least width * height bytes long.
+	 * @param size Size of the frame, in pixels.
+	 */
+	public static void unpack(long[] plane, byte[] mask, Dimension size) {
+		for (int y = 0; y < size.height; y++) {
+			unpackRow(plane, size.width, y, mask, y * size.width);
+		}
+	}
+	
+	/**
+	 * Unpacks one row of a plane, like <code>unpack()</code>. Empty words are
+	 * filled at once.
+	 * @param plane The plane.
+	 * @param width Width of the frame, in pixels.
+	 * @param y The row.
+	 * @param mask The mask to write the row to.
+	 * @param offset Position of the row's first pixel in the mask.
+	 */
+	public static void unpackRow(long[] plane, int width, int y, byte[] mask, int offset) {
+		int words = getWordsPerRow(width);
+		int word = y * words;
+		long bits;
+		int x, end, i;
+		for (x = 0; x < width; x += 64) {
+			bits = plane[word++];
+			end = offset + Math.min(x + 64, width);
+			i = offset + x;
+			if (bits == 0) {
+				Arrays.fill(mask, i, end, (byte) 0);
+			} else {
+				for (; i < end; i++, bits >>>= 1) {
+					mask[i] = (byte) -(bits & 1);
+				}
+			}
+		}
+	}
+}
@@ -18,7 +18,10 @@
 package net.joelbecker.video.processing;
 
 import java.awt.Dimension;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+import javax.media.Buffer;
 import javax.media.Format;
 import javax.media.format.RGBFormat;
 import javax.media.format.VideoFormat;
@@ -31,11 +34,26 @@ import javax.media.format.VideoFormat;
  * @author Joel Becker
  * <br>4/18/2009
  */
-public class BufferAccessor extends RgbVideoEffect {
+public class BufferAccessor extends RgbVideoEffect implements RgbVideoEffect.ByteBufferInput, RgbVideoEffect.PackedRgbInput {
 
 	private byte[] buffer;
 	private Dimension size;
 	
+	/** Copy of the latest frame if it was given as packed XRGB pixels (buffer is then null). */
+	private int[] packedBuffer;
+	
+	/** Copies of the most recent frames (see setFramesInFlight()); buffer is one of them. */
+	private byte[][] history = new byte[1][];
+	
+	/** Copies of the most recent frames given as packed pixels, in the same slots as history. */
+	private int[][] packedHistory = new int[1][];
+	
+	/** Sequence number of the frame in each history slot. */
+	private long[] historySequence = new long[] { Buffer.SEQUENCE_UNKNOWN };
+	
+	/** History slot of the latest frame. */
+	private int latest;
+	
 	public BufferAccessor() {
 		supportedIns = new Format[] { new RGBFormat() };
 		supportedOuts = new Format[] { new RGBFormat() };
@@ -45,6 +63,77 @@ public class BufferAccessor extends RgbVideoEffect {
 		return buffer;
 	}
 	
+	/**
+	 * Gets the copy of the frame with the given sequence number, which is needed
+	 * when frames are pipelined, since the latest frame may be a later one.
+	 * @param sequenceNumber The frame's sequence number.
+	 * @return The copy of that frame if it is still kept; otherwise the latest frame.
+	 */
+	public byte[] getBuffer(long sequenceNumber) {
+		int slot = findSlot(sequenceNumber);
+		return slot >= 0 ? history[slot] : buffer;
+	}
+	
+	/**
+	 * Gets the copy of the latest frame, if it was given as packed XRGB pixels.
+	 * @return The copy, or null if the latest frame was given as bytes.
+	 */
+	public int[] getPackedBuffer() {
+		return packedBuffer;
+	}
+	
+	/**
+	 * Gets the copy of the frame with the given sequence number, if it was given
+	 * as packed XRGB pixels (see <code>getBuffer(long)</code>).
+	 * @param sequenceNumber The frame's sequence number.
+	 * @return The copy of that frame if it is still kept; otherwise the latest
+	 * frame. Null if that frame was given as bytes.
+	 */
+	public int[] getPackedBuffer(long sequenceNumber) {
+		int slot = findSlot(sequenceNumber);
+		return slot >= 0 ? packedHistory[slot] : packedBuffer;
+	}
+	
+	/**
+	 * Finds the history slot of the frame with the given sequence number.
+	 * @return The slot, or -1 if the frame is not kept.
+	 */
+	private int findSlot(long sequenceNumber) {
+		if (sequenceNumber != Buffer.SEQUENCE_UNKNOWN) {
+			for (int i = 0; i < history.length; i++) {
+				if (historySequence[i] == sequenceNumber
+						&& (history[i] != null || packedHistory[i] != null)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Keeps a copy of as many frames as may be in flight, so that later effects
+	 * can get the copy of the frame they are processing.
+	 */
+	@Override
+	public void setFramesInFlight(int frames) {
+		if (frames < 1) {
+			throw new IllegalArgumentException("frames must be at least 1");
+		}
+		if (frames != history.length) {
+			for (int i = 0; i < history.length; i++) {
+				releaseBuffer(history[i]);
+				releaseBuffer(packedHistory[i]);
+			}
+			history = new byte[frames][];
+			packedHistory = new int[frames][];
+			historySequence = new long[frames];
+			Arrays.fill(historySequence, Buffer.SEQUENCE_UNKNOWN);
+			latest = 0;
+			buffer = null;
+			packedBuffer = null;
+		}
+	}
+	
 	public Dimension getBufferSize() {
 		return size;
 	}
@@ -59,16 +148,77 @@ public class BufferAccessor extends RgbVideoEffect {
 	 */
 	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
 		size = format.getSize();
-		if (buffer == null) {
-			buffer = new byte[bin.length];
+		if (bin != buffer) {
+			nextBuffer(bin.length);
+			System.arraycopy(bin, 0, buffer, 0, bin.length);
 		}
-		System.arraycopy(bin, 0, buffer, 0, bin.length);
 		return false;
 	}
 	
+	/** Copies the packed pixels, without unpacking them. */
+	@Override
+	public boolean processPackedRGB(int[] iin, int[] iout, VideoFormat format) {
+		size = format.getSize();
+		nextPackedBuffer(iin.length);
+		System.arraycopy(iin, 0, packedBuffer, 0, iin.length);
+		return false;
+	}
+	
+	/**
+	 * Copies a frame given as a {@link ByteBuffer} (e.g. from a memory-mapped
+	 * file) straight into our buffer. The buffer itself is passed on, so later
+	 * effects which are {@link RgbVideoEffect.ByteBufferInput}s read it in place,
+	 * and our copy stays ours.
+	 */
+	public boolean processRGB(ByteBuffer bin, byte[] bout, VideoFormat format) {
+		size = format.getSize();
+		nextBuffer(bin.limit());
+		bin.duplicate().get(buffer);
+		return false;
+	}
+	
+	/**
+	 * Makes the buffer the next history slot, for the frame being processed.
+	 * @param length Length of the frame, in bytes.
+	 */
+	private void nextBuffer(int length) {
+		latest = (latest + 1) % history.length;
+		if (history[latest] == null || history[latest].length != length) {
+			releaseBuffer(history[latest]);
+			history[latest] = borrowBuffer(length);
+		}
+		releaseBuffer(packedHistory[latest]);
+		packedHistory[latest] = null;
+		historySequence[latest] = getFrameSequenceNumber();
+		buffer = history[latest];
+		packedBuffer = null;
+	}
+	
+	/**
+	 * Makes the packed buffer the next history slot, for the frame being processed.
+	 * @param length Length of the frame, in pixels.
+	 */
+	private void nextPackedBuffer(int length) {
+		latest = (latest + 1) % history.length;
+		if (packedHistory[latest] == null || packedHistory[latest].length != length) {
+			releaseBuffer(packedHistory[latest]);
+			packedHistory[latest] = borrowPackedBuffer(length);
+		}
+		releaseBuffer(history[latest]);
+		history[latest] = null;
+		historySequence[latest] = getFrameSequenceNumber();
+		packedBuffer = packedHistory[latest];
+		buffer = null;
+	}
+	
 	
 	@Override
 	protected void updateImage(byte[] bout, VideoFormat vformat) {
 		super.updateImage(buffer, vformat);	// use extracted buffer instead of output
 	}
+	
+	@Override
+	protected void updateByteBufferImage(ByteBuffer data, VideoFormat vformat) {
+		super.updateImage(buffer, vformat);	// use extracted buffer instead of output
+	}
 }
@@ -0,0 +1,53 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * State which is saved in checkpoints, so that processing can carry on where it
+ * left off after a restart (see
+ * {@link net.joelbecker.video.processing.camera.CheckpointFile}): e.g. a learned
+ * background, or the blobs being tracked. The state is written on the processing
+ * thread, between frames, so it is consistent.
+ */
+public interface Checkpointable {
+
+	/**
+	 * Gets the number of bytes <code>writeCheckpoint()</code> writes, for the
+	 * current state.
+	 * @return The number of bytes.
+	 */
+	int getCheckpointSize();
+	
+	/**
+	 * Writes the state.
+	 * @param buffer The buffer to write to, with at least <code>getCheckpointSize()</code>
+	 * bytes remaining.
+	 */
+	void writeCheckpoint(ByteBuffer buffer);
+	
+	/**
+	 * Restores the state written by <code>writeCheckpoint()</code>. Called before
+	 * any frame is processed.
+	 * @param buffer The state, exactly as many bytes as were written.
+	 * @return true if the state was restored; false if it is not usable (e.g.
+	 * written by an incompatible version), in which case the state is left as it was.
+	 */
+	boolean readCheckpoint(ByteBuffer buffer);
+}
@@ -0,0 +1,403 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+
+import javax.media.format.VideoFormat;
+
+/**
+ * <p>Effect which splits frames into square tiles and finds those that changed,
+ * so that the incremental effects after it in the chain process only those (see
+ * <code>RgbVideoEffect.isIncremental()</code>), and reuse their output of the
+ * last frame elsewhere. Frames are passed on as they are.</p>
+ * 
+ * <p>A tile's change signature is a sparse grid of samples, every sampleStep-th
+ * pixel of every sampleStep-th row. A tile changed if any sample differs by more
+ * than the change threshold, in any color component, from when the tile was last
+ * processed (so slow changes add up). The tiles that changed and their neighbors
+ * are dirty: an object moving within one tile is often entering the next. To
+ * bound how stale a clean tile may get (e.g. the background behind it, which is
+ * only updated in the dirty tiles), every refreshInterval-th row of tiles is
+ * dirty in turn, so each tile is processed at least every refreshInterval frames.</p>
+ * 
+ * <p>The tile size must be a multiple of the block size of any block-wise effect
+ * in the chain (e.g. the dilation's pixel size), so that no block is split
+ * between tiles. The whole frame is dirty when the frame size or the region of
+ * interest changes, and whenever frames are pipelined (more than one in flight),
+ * since the effects keep a single output.</p>
+ */
+public class DirtyTileTracker extends RgbVideoEffect implements RgbVideoEffect.PackedRgbInput {
+	
+	/** Width and height of the tiles, in pixels. */
+	private int tileSize = 32;
+	/** Distance between samples, in pixels, both across and down. */
+	private int sampleStep = 4;
+	/** Largest difference of a color component of a sample which is not a change. */
+	private int changeThreshold = 16;
+	/** Number of frames over which every tile is refreshed. */
+	private int refreshInterval = 8;
+	
+	/** Whether the tiles are tracked, i.e. frames are not pipelined. */
+	private boolean tracking = true;
+	
+	private int width = -1;
+	private int height = -1;
+	/** The region of interest the tiles were tracked in (or null). */
+	private RegionOfInterest.Spans regionSpans;
+	private int tilesPerRow;
+	private int tileRows;
+	private int samplesPerRow;
+	private int sampleRows;
+	/** Tile column of each column of samples. */
+	private int[] sampleTileColumn = new int[0];
+	/** Samples of the frame being tracked, as packed XRGB pixels. */
+	private int[] samples = new int[0];
+	/** Samples of each tile as of when it was last processed. */
+	private int[] reference = new int[0];
+	/** Whether each tile changed. */
+	private boolean[] changed = new boolean[0];
+	/** Whether each tile is dirty. */
+	private boolean[] dirty = new boolean[0];
+	/** Spans of the dirty tiles of the frame being processed, or null if the whole frame is. */
+	private RegionOfInterest.Spans dirtySpans;
+	
+	private long frameNumber;
+	/** Total number of tiles tracked, and of those that were dirty, for the dirty ratio. */
+	private long tileCount;
+	private long dirtyTileCount;
+	
+	
+	public String getName() {
+		return "Dirty Tile Tracker";
+	}
+	
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	/**
+	 * Sets the width and height of the tiles.
+	 * @param tileSize The size, in pixels; at least the sample step.
+	 */
+	public void setTileSize(int tileSize) {
+		if (tileSize < sampleStep) {
+			throw new IllegalArgumentException("tileSize must be at least the sample step");
+		}
+		this.tileSize = tileSize;
+		width = -1;
+	}
+	
+	public int getSampleStep() {
+		return sampleStep;
+	}
+	
+	/**
+	 * Sets the distance between the pixels compared, both across and down.
+	 * @param sampleStep The step, in pixels; from 1 to the tile size.
+	 */
+	public void setSampleStep(int sampleStep) {
+		if (sampleStep < 1 || sampleStep > tileSize) {
+			throw new IllegalArgumentException("sampleStep must be from 1 to the tile size");
+		}
+		this.sampleStep = sampleStep;
+		width = -1;
+	}
+	
+	public int getChangeThreshold() {
+		return changeThreshold;
+	}
+	
+	/**
+	 * Sets the largest difference of a color component of a sample (0-255)
+	 * which is still taken as noise rather than change.
+	 */
+	public void setChangeThreshold(int changeThreshold) {
+		this.changeThreshold = changeThreshold;
+	}
+	
+	public int getRefreshInterval() {
+		return refreshInterval;
+	}
+	
+	/**
+	 * Sets the number of frames over which every tile is processed, dirty or not.
+	 * @param refreshInterval The number of frames (at least 1; 1 processes every
+	 * tile of every frame).
+	 */
+	public void setRefreshInterval(int refreshInterval) {
+		if (refreshInterval < 1) {
+			throw new IllegalArgumentException("refreshInterval must be at least 1");
+		}
+		this.refreshInterval = refreshInterval;
+	}
+	
+	/**
+	 * Returns true if tiles are tracked, so that incremental effects may process
+	 * only the dirty ones.
+	 */
+	public boolean isTracking() {
+		return tracking;
+	}
+	
+	/** Tracks tiles only while frames are processed one at a time. */
+	@Override
+	public void setFramesInFlight(int frames) {
+		tracking = frames == 1;
+	}
+	
+	/**
+	 * Gets the spans of the dirty tiles of the frame being processed, within the
+	 * region of interest.
+	 * @param size Size of the frame.
+	 * @return The spans, or null if the whole frame (or region) is dirty.
+	 */
+	public RegionOfInterest.Spans getDirtySpans(Dimension size) {
+		RegionOfInterest.Spans spans = dirtySpans;
+		if (spans == null || spans.getWidth() != size.width || spans.getHeight() != size.height) {
+			return null;
+		}
+		return spans;
+	}
+	
+	/**
+	 * Gets the fraction of the tiles that were dirty, over all frames tracked
+	 * (counting those where all tiles were).
+	 * @return The ratio, from 0 to 1.
+	 */
+	public double getDirtyTileRatio() {
+		return tileCount == 0 ? 1.0 : (double) dirtyTileCount / tileCount;
+	}
+	
+	/** Makes the whole of the next frame dirty. */
+	@Override
+	public void reset() {
+		width = -1;
+	}
+	
+	/** Tracks the tiles of the frame, which is passed on as it is. */
+	@Override
+	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
+		track(bin, null, format);
+		return false;
+	}
+	
+	/** Tracks the tiles of the frame of packed pixels, which is passed on as it is. */
+	@Override
+	public boolean processPackedRGB(int[] iin, int[] iout, VideoFormat format) {
+		track(null, iin, format);
+		return false;
+	}
+	
+	/**
+	 * Finds the dirty tiles of a frame, given either as bytes or as packed pixels.
+	 */
+	private void track(byte[] bin, int[] iin, VideoFormat format) {
+		RegionOfInterest.Spans region = getRegionSpans(format);
+		boolean whole = !tracking || format.getSize().width != width
+				|| format.getSize().height != height || region != regionSpans;
+		if (whole) {
+			resize(format.getSize().width, format.getSize().height);
+			regionSpans = region;
+		}
+		sample(bin, iin);
+		
+		int tiles = tilesPerRow * tileRows;
+		tileCount += tiles;
+		if (whole || refreshInterval == 1) {
+			System.arraycopy(samples, 0, reference, 0, samples.length);
+			dirtySpans = null;
+			dirtyTileCount += tiles;
+			frameNumber++;
+			return;
+		}
+		
+		findChangedTiles();
+		findDirtyTiles();
+		
+		// The dirty tiles are processed now, so compare against this frame from now on
+		int step = sampleStep;
+		int[] tileColumn = sampleTileColumn;
+		for (int sy = 0, i = 0; sy < sampleRows; sy++) {
+			int tileRow = (sy * step + step / 2) / tileSize * tilesPerRow;
+			for (int sx = 0; sx < samplesPerRow; sx++, i++) {
+				if (dirty[tileRow + tileColumn[sx]]) {
+					reference[i] = samples[i];
+				}
+			}
+		}
+		dirtySpans = createSpans(region);
+		frameNumber++;
+	}
+	
+	/** Sizes the tiles and samples for a frame size. */
+	private void resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		tilesPerRow = (width + tileSize - 1) / tileSize;
+		tileRows = (height + tileSize - 1) / tileSize;
+		samplesPerRow = (width - sampleStep / 2 + sampleStep - 1) / sampleStep;
+		sampleRows = (height - sampleStep / 2 + sampleStep - 1) / sampleStep;
+		sampleTileColumn = new int[samplesPerRow];
+		for (int sx = 0; sx < samplesPerRow; sx++) {
+			sampleTileColumn[sx] = (sx * sampleStep + sampleStep / 2) / tileSize;
+		}
+		if (samples.length != samplesPerRow * sampleRows) {
+			samples = new int[samplesPerRow * sampleRows];
+			reference = new int[samples.length];
+		}
+		if (changed.length != tilesPerRow * tileRows) {
+			changed = new boolean[tilesPerRow * tileRows];
+			dirty = new boolean[changed.length];
+		}
+	}
+	
+	/** Takes the samples of a frame. */
+	private void sample(byte[] bin, int[] iin) {
+		int step = sampleStep;
+		for (int sy = 0, i = 0; sy < sampleRows; sy++) {
+			int p = (sy * step + step / 2) * width + step / 2;
+			if (iin != null) {
+				for (int sx = 0; sx < samplesPerRow; sx++, p += step) {
+					samples[i++] = iin[p];
+				}
+			} else {
+				for (int sx = 0, b = p * 3; sx < samplesPerRow; sx++, b += step * 3) {
+					samples[i++] = ((bin[b] & 0xff) << 16) | ((bin[b + 1] & 0xff) << 8) | (bin[b + 2] & 0xff);
+				}
+			}
+		}
+	}
+	
+	/** Finds the tiles with a sample that changed since the tile was last processed. */
+	private void findChangedTiles() {
+		Arrays.fill(changed, false);
+		int step = sampleStep;
+		int threshold = changeThreshold;
+		int[] tileColumn = sampleTileColumn;
+		for (int sy = 0, i = 0; sy < sampleRows; sy++) {
+			int tileRow = (sy * step + step / 2) / tileSize * tilesPerRow;
+			for (int sx = 0; sx < samplesPerRow; sx++, i++) {
+				int a = samples[i];
+				int b = reference[i];
+				if (a != b
+						&& (Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) > threshold
+						|| Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) > threshold
+						|| Math.abs((a & 0xff) - (b & 0xff)) > threshold)) {
+					changed[tileRow + tileColumn[sx]] = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Marks the tiles that changed and their neighbors dirty, and the row of
+	 * tiles due to be refreshed.
+	 */
+	private void findDirtyTiles() {
+		int refreshRow = (int) (frameNumber % refreshInterval);
+		for (int ty = 0, t = 0; ty < tileRows; ty++) {
+			boolean refresh = ty % refreshInterval == refreshRow;
+			for (int tx = 0; tx < tilesPerRow; tx++, t++) {
+				boolean d = refresh;
+				for (int ny = Math.max(ty - 1, 0); !d && ny <= Math.min(ty + 1, tileRows - 1); ny++) {
+					for (int nx = Math.max(tx - 1, 0); nx <= Math.min(tx + 1, tilesPerRow - 1); nx++) {
+						if (changed[ny * tilesPerRow + nx]) {
+							d = true;
+							break;
+						}
+					}
+				}
+				dirty[t] = d;
+				if (d) {
+					dirtyTileCount++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates the spans of the dirty tiles, within the region of interest if any.
+	 * @param region The region's spans, or null
+	 */
+	private RegionOfInterest.Spans createSpans(RegionOfInterest.Spans region) {
+		int[] rowFirstSpan = new int[height + 1];
+		int[] starts = new int[Math.max(16, tileRows * 4)];
+		int[] ends = new int[starts.length];
+		int count = 0;
+		
+		// The runs of dirty tiles of a row of tiles, as columns
+		int[] runFrom = new int[(tilesPerRow + 1) / 2];
+		int[] runTo = new int[runFrom.length];
+		for (int ty = 0; ty < tileRows; ty++) {
+			int runs = 0;
+			for (int tx = 0, t = ty * tilesPerRow; tx < tilesPerRow; tx++, t++) {
+				if (dirty[t] && (tx == 0 || !dirty[t - 1])) {
+					runFrom[runs] = tx * tileSize;
+					runs++;
+				}
+				if (dirty[t]) {
+					runTo[runs - 1] = Math.min((tx + 1) * tileSize, width);
+				}
+			}
+			
+			for (int y = ty * tileSize; y < Math.min((ty + 1) * tileSize, height); y++) {
+				rowFirstSpan[y] = count;
+				int i = y * width;
+				int s = region != null ? region.getFirstSpan(y) : 0;
+				int lastS = region != null ? region.getFirstSpan(y + 1) : 0;
+				for (int r = 0; r < runs; r++) {
+					int from = i + runFrom[r];
+					int to = i + runTo[r];
+					if (region != null) {
+						// Intersect the run with the region's spans on this row
+						while (s < lastS && region.getEnd(s) <= from) {
+							s++;
+						}
+						for (int q = s; q < lastS && region.getStart(q) < to; q++) {
+							if (count + 1 > starts.length) {
+								starts = Arrays.copyOf(starts, count * 2);
+								ends = Arrays.copyOf(ends, count * 2);
+							}
+							starts[count] = Math.max(from, region.getStart(q));
+							ends[count] = Math.min(to, region.getEnd(q));
+							count++;
+						}
+					} else {
+						if (count + 1 > starts.length) {
+							starts = Arrays.copyOf(starts, count * 2);
+							ends = Arrays.copyOf(ends, count * 2);
+						}
+						starts[count] = from;
+						ends[count] = to;
+						count++;
+					}
+				}
+			}
+		}
+		rowFirstSpan[height] = count;
+		return new RegionOfInterest.Spans(width, height, rowFirstSpan,
+				Arrays.copyOf(starts, count), Arrays.copyOf(ends, count));
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%.1f%% of tiles dirty", getDirtyTileRatio() * 100.0);
+	}
+}
@@ -0,0 +1,233 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import javax.media.format.VideoFormat;
+
+/**
+ * Extracts the foreground mask in one pass: the work of {@link RgbDiffEffect},
+ * {@link RgbThresholdEffect} and {@link PixelizationDialate8Bit} fused, without
+ * writing and reading back the difference image and the thresholded mask. For
+ * each pixelSize &times; pixelSize block, the difference of each pixel from the
+ * background is computed until one passes the threshold, and the whole block
+ * of the mask is then set to 255 (otherwise 0).
+ * Input: 24-bit color (or packed pixels)
+ * Output: 8-bit on/off (0/255), the same as the three separate effects
+ */
+public class ForegroundExtractionEffect extends RgbVideoEffect implements RgbVideoEffect.PackedRgbMaskInput {
+
+	private BackgroundModel bgUpdater;
+	
+	/** Threshold of the difference of a color component from the background. */
+	private char threshold = 64;
+	
+	/** Size of the dilation blocks, in pixels. */
+	private int pixelSize = 2;
+	
+	/** Whether each block of the current band of rows is on (255) or not (0). */
+	private byte[] blockOn = new byte[0];
+	
+	/** Whether each color component (or packed pixel) passes (-1) or not (0) in any row of the current band. */
+	private byte[] rowPass = new byte[0];
+	
+	
+	/**
+	 * Constructor.
+	 * @param bgUpdater Gives the background to compare frames to.
+	 */
+	public ForegroundExtractionEffect(BackgroundModel bgUpdater) {
+		this.bgUpdater = bgUpdater;
+	}
+	
+	public String getName() {
+		return "Foreground Extraction (Diff, Threshold, Dialate)";
+	}
+	
+	public void setThreshold(char threshold) {
+		this.threshold = threshold;
+	}
+	
+	public char getThreshold() {
+		return threshold;
+	}
+	
+	public int getPixelSize() {
+		return pixelSize;
+	}
+	
+	public void setPixelSize(int pixelSize) {
+		this.pixelSize = pixelSize;
+	}
+	
+	/**
+	 * Works through the frame a band of pixelSize rows at a time, reading each row
+	 * once. The components passing the threshold are found without branches, and
+	 * or'ed over the rows of the band into a row-sized scratch array, which stays in
+	 * the cache. That is then or'ed into blocks, from which the first row of the
+	 * band's mask is written, and copied to the other rows.
+	 */
+	@Override
+	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
+		int width = format.getSize().width;
+		int height = format.getSize().height;
+		byte[] background = bgUpdater.getBackground();
+		if (background == null || background.length < width * height * 3) {
+			//// No background yet, so no differences
+			Arrays.fill(bout, 0, width * height, (byte) 0);
+			return true;
+		}
+		
+		int size = pixelSize;
+		int limit = getDifferenceLimit();
+		prepareScratch(width, size, width * 3);
+		int rowBytes = width * 3;
+		int x, y, sy, bx;
+		int i, j, end;
+		int d;
+		int on;
+		for (y = 0; y < height; y += size) {
+			int bandHeight = Math.min(size, height - y);
+			Arrays.fill(rowPass, 0, rowBytes, (byte) 0);
+			for (sy = 0; sy < bandHeight; sy++) {
+				i = (y + sy) * rowBytes;
+				for (j = 0; j < rowBytes; j++, i++) {
+					// |d| > limit if limit - d or limit + d is negative
+					d = (bin[i] & 0xff) - (background[i] & 0xff);
+					rowPass[j] |= (byte) (((limit - d) | (limit + d)) >> 31);
+				}
+			}
+			for (x = 0, bx = 0, j = 0; x < width; x += size, bx++) {
+				end = j + Math.min(size, width - x) * 3;
+				on = 0;
+				for (; j < end; j++) {
+					on |= rowPass[j];
+				}
+				blockOn[bx] = (byte) on;
+			}
+			writeBand(bout, width, size, y, bandHeight);
+		}
+		return true;
+	}
+	
+	/** Like <code>processRGB()</code>, for packed pixels and the packed background. */
+	@Override
+	public boolean processPackedRGB(int[] iin, byte[] bout, VideoFormat format) {
+		int width = format.getSize().width;
+		int height = format.getSize().height;
+		int[] background = bgUpdater.getPackedBackground();
+		if (background == null || background.length < width * height) {
+			//// No background yet, so no differences
+			Arrays.fill(bout, 0, width * height, (byte) 0);
+			return true;
+		}
+		
+		int size = pixelSize;
+		int limit = getDifferenceLimit();
+		prepareScratch(width, size, width);
+		int x, y, sy, bx;
+		int p, j, end;
+		int now, before;
+		int dr, dg, db;
+		int on;
+		for (y = 0; y < height; y += size) {
+			int bandHeight = Math.min(size, height - y);
+			Arrays.fill(rowPass, 0, width, (byte) 0);
+			for (sy = 0; sy < bandHeight; sy++) {
+				p = (y + sy) * width;
+				for (j = 0; j < width; j++, p++) {
+					now = iin[p];
+					before = background[p];
+					dr = ((now >> 16) & 0xff) - ((before >> 16) & 0xff);
+					dg = ((now >> 8) & 0xff) - ((before >> 8) & 0xff);
+					db = (now & 0xff) - (before & 0xff);
+					rowPass[j] |= (byte) (((limit - dr) | (limit + dr) | (limit - dg) | (limit + dg)
+							| (limit - db) | (limit + db)) >> 31);
+				}
+			}
+			for (x = 0, bx = 0, j = 0; x < width; x += size, bx++) {
+				end = j + Math.min(size, width - x);
+				on = 0;
+				for (; j < end; j++) {
+					on |= rowPass[j];
+				}
+				blockOn[bx] = (byte) on;
+			}
+			writeBand(bout, width, size, y, bandHeight);
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the largest difference that does not pass the threshold. A difference
+	 * passes like in {@link RgbThresholdEffect}, which compares it as a char of the
+	 * signed byte, so any difference of 128 or more passes.
+	 */
+	private int getDifferenceLimit() {
+		return Math.min(threshold, 127);
+	}
+	
+	/**
+	 * Makes sure there is a block flag for each block in a row, and a pass flag
+	 * for each component in a row.
+	 */
+	private void prepareScratch(int width, int size, int components) {
+		int blocks = (width + size - 1) / size;
+		if (blockOn.length < blocks) {
+			blockOn = new byte[blocks];
+		}
+		if (rowPass.length < components) {
+			rowPass = new byte[components];
+		}
+	}
+	
+	/** Writes a band of rows of the mask from the block flags. */
+	private void writeBand(byte[] bout, int width, int size, int y, int bandHeight) {
+		int rowStart = y * width;
+		int p = rowStart;
+		int x, bx, end;
+		for (x = 0, bx = 0; x < width; x += size, bx++) {
+			end = p + Math.min(size, width - x);
+			byte value = blockOn[bx];
+			while (p < end) {
+				bout[p++] = value;
+			}
+		}
+		for (int sy = 1; sy < bandHeight; sy++) {
+			System.arraycopy(bout, rowStart, bout, rowStart + sy * width, width);
+		}
+	}
+	
+	/** {@inheritDoc} */
+	protected void updateImage(byte[] bout, VideoFormat vformat) {
+		synchronized (displayImage) {
+			//// Copy pixels to image
+			WritableRaster rast = displayImage.getRaster();
+			int[] pixel = new int[] {0, 0, 0, 255};
+			int p = 0;
+			for (int y = vformat.getSize().height - 1; y >= 0; y--) {
+				for (int x = 0; x < vformat.getSize().width; x++) {
+					pixel[0] = pixel[1] = pixel[2] = bout[p++];
+					rast.setPixel(x, y, pixel);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of frame buffers, which effects borrow from and return to instead of
+ * allocating a new array for each frame. Buffers are pooled by frame geometry:
+ * width &times; height &times; bytes per pixel, i.e. the length of the array,
+ * and by type: byte arrays, int arrays of packed XRGB pixels, or long arrays of
+ * bit masks (see {@link BitMaskPlane}).
+ * Once every geometry in use has been seen, processing allocates no buffers.
+ * The pool is thread-safe, so it may be shared by the stages of a pipelined
+ * chain.
+ */
+public class FrameBufferPool {
+
+	/** Default number of free buffers kept per geometry. */
+	public static final int DEFAULT_MAX_PER_GEOMETRY = 8;
+	
+	/** Free buffers of one geometry. */
+	private static class Bucket {
+		final int length;
+		final Class<?> type;
+		final Object[] free;
+		int count;
+		
+		Bucket(int length, Class<?> type, int capacity) {
+			this.length = length;
+			this.type = type;
+			this.free = new Object[capacity];
+		}
+	}
+	
+	private final List<Bucket> buckets = new ArrayList<Bucket>();
+	private final int maxPerGeometry;
+	
+	/** Number of borrows satisfied with a pooled buffer. */
+	private long hits;
+	
+	/** Number of borrows which had to allocate a new buffer. */
+	private long misses;
+	
+	/** Number of released buffers dropped because their bucket was full. */
+	private long discards;
+	
+	
+	public FrameBufferPool() {
+		this(DEFAULT_MAX_PER_GEOMETRY);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param maxPerGeometry Maximum number of free buffers kept per geometry;
+	 * buffers released beyond that are left to the garbage collector.
+	 */
+	public FrameBufferPool(int maxPerGeometry) {
+		if (maxPerGeometry < 1) {
+			throw new IllegalArgumentException("maxPerGeometry must be at least 1");
+		}
+		this.maxPerGeometry = maxPerGeometry;
+	}
+	
+	/**
+	 * Borrows a buffer for a frame of the given size.
+	 * @param size Frame size in pixels.
+	 * @param bytesPerPixel Bytes per pixel (3 for RGB, 1 for masks).
+	 * @return A buffer of exactly width * height * bytesPerPixel bytes. Its
+	 * contents are undefined.
+	 */
+	public byte[] borrow(Dimension size, int bytesPerPixel) {
+		return borrow(size.width * size.height * bytesPerPixel);
+	}
+	
+	/**
+	 * Borrows a buffer of the given length.
+	 * @param length Length of the buffer, in bytes.
+	 * @return A buffer of exactly that length. Its contents are undefined.
+	 */
+	public synchronized byte[] borrow(int length) {
+		byte[] buffer = (byte[]) take(length, byte[].class);
+		return buffer != null ? buffer : new byte[length];
+	}
+	
+	/**
+	 * Borrows a buffer of packed XRGB pixels (one int per pixel).
+	 * @param length Length of the buffer, in pixels.
+	 * @return A buffer of exactly that length. Its contents are undefined.
+	 */
+	public synchronized int[] borrowPacked(int length) {
+		int[] buffer = (int[]) take(length, int[].class);
+		return buffer != null ? buffer : new int[length];
+	}
+	
+	/**
+	 * Borrows a bit mask plane (see {@link BitMaskPlane}).
+	 * @param length Length of the plane, in words.
+	 * @return A plane of exactly that length. Its contents are undefined.
+	 */
+	public synchronized long[] borrowBitMask(int length) {
+		long[] buffer = (long[]) take(length, long[].class);
+		return buffer != null ? buffer : new long[length];
+	}
+	
+	/**
+	 * Returns a buffer to the pool. The caller must not use it afterwards.
+	 * @param buffer The buffer (may be null, which is ignored).
+	 */
+	public synchronized void release(byte[] buffer) {
+		if (buffer != null) {
+			put(buffer, buffer.length, byte[].class);
+		}
+	}
+	
+	/**
+	 * Returns a buffer of packed pixels to the pool. The caller must not use it afterwards.
+	 * @param buffer The buffer (may be null, which is ignored).
+	 */
+	public synchronized void release(int[] buffer) {
+		if (buffer != null) {
+			put(buffer, buffer.length, int[].class);
+		}
+	}
+	
+	/**
+	 * Returns a bit mask plane to the pool. The caller must not use it afterwards.
+	 * @param buffer The plane (may be null, which is ignored).
+	 */
+	public synchronized void release(long[] buffer) {
+		if (buffer != null) {
+			put(buffer, buffer.length, long[].class);
+		}
+	}
+	
+	/** Drops all free buffers (e.g. after the frame geometry changed). */
+	public synchronized void clear() {
+		buckets.clear();
+	}
+	
+	/** Resets the hit, miss and discard counters. */
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+		discards = 0;
+	}
+	
+	/**
+	 * Gets the number of borrows that were satisfied with a pooled buffer.
+	 * @return The number of hits.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+	
+	/**
+	 * Gets the number of borrows that had to allocate a new buffer.
+	 * @return The number of misses.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+	
+	/**
+	 * Gets the number of released buffers that were dropped because the pool
+	 * already held the maximum number of buffers of their geometry.
+	 * @return The number of discarded buffers.
+	 */
+	public synchronized long getDiscardCount() {
+		return discards;
+	}
+	
+	/**
+	 * Gets the number of free buffers in the pool, of all geometries.
+	 * @return The number of free buffers.
+	 */
+	public synchronized int getFreeCount() {
+		int n = 0;
+		for (int i = 0; i < buckets.size(); i++) {
+			n += buckets.get(i).count;
+		}
+		return n;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format("%d hits, %d misses, %d discards, %d free",
+				hits, misses, discards, getFreeCount());
+	}
+	
+	/**
+	 * Takes a free buffer out of the pool, counting a hit or a miss.
+	 * @return The buffer, or null if there is none of that geometry.
+	 */
+	private Object take(int length, Class<?> type) {
+		Bucket bucket = findBucket(length, type);
+		if (bucket != null && bucket.count > 0) {
+			++hits;
+			Object buffer = bucket.free[--bucket.count];
+			bucket.free[bucket.count] = null;
+			return buffer;
+		}
+		++misses;
+		return null;
+	}
+	
+	/** Puts a buffer into its bucket, unless the bucket is full. */
+	private void put(Object buffer, int length, Class<?> type) {
+		Bucket bucket = findBucket(length, type);
+		if (bucket == null) {
+			bucket = new Bucket(length, type, maxPerGeometry);
+			buckets.add(bucket);
+		}
+		if (bucket.count == bucket.free.length) {
+			++discards;
+			return;
+		}
+		for (int i = 0; i < bucket.count; i++) {
+			if (bucket.free[i] == buffer) {
+				throw new IllegalStateException("Buffer released twice");
+			}
+		}
+		bucket.free[bucket.count++] = buffer;
+	}
+	
+	/** Finds the bucket of the given geometry (without allocating an iterator). */
+	private Bucket findBucket(int length, Class<?> type) {
+		for (int i = 0; i < buckets.size(); i++) {
+			Bucket bucket = buckets.get(i);
+			if (bucket.length == length && bucket.type == type) {
+				return bucket;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,423 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.media.format.VideoFormat;
+
+/**
+ * Models the background of each pixel as a mixture of up to K Gaussians, each
+ * with a weight, a mean color and a variance (the same for the three color
+ * components), after Stauffer and Grimson. Each frame, a pixel matches the first
+ * of its Gaussians (kept in order of weight) within varianceThreshold variances,
+ * which is then moved towards the pixel; the pixel is background if the
+ * Gaussians before the match weigh less than the background ratio. Swaying
+ * trees, flickering screens and the like become Gaussians of their own, so
+ * they are not taken for moving objects. A pixel matching none of them
+ * replaces the lightest one.
+ * <p>
+ * The model is kept in flat arrays of floats, K entries per pixel, and is
+ * updated in bands of rows in parallel (see <code>forEachSpan()</code>).
+ * It replaces the difference and threshold effects, and the
+ * {@link BackgroundUpdater}, outputting the mask of moving objects directly.
+ * The mean of each pixel's heaviest Gaussian is kept as the background image.
+ * The model is saved in checkpoints.
+ * </p>
+ * Input: 24-bit color (or packed pixels)
+ * Output: 8-bit on/off (0/255)
+ */
+public class GaussianMixtureBackground extends RgbVideoEffect implements BackgroundModel, Checkpointable, RgbVideoEffect.PackedRgbMaskInput {
+
+	/** Maximum number of Gaussians per pixel. */
+	private int modeCount = 3;
+	
+	/** Fraction by which the weights, and the matched Gaussian, move towards each frame. */
+	private float learningRate = 0.005f;
+	
+	/** Squared distance from a Gaussian's mean, in variances, within which a color matches it. */
+	private float varianceThreshold = 16f;
+	
+	/** Total weight of the Gaussians which are taken as background. */
+	private float backgroundRatio = 0.9f;
+	
+	/** Variance of a new Gaussian, and the limits of the variances. */
+	private float initialVariance = 15f, minVariance = 4f, maxVariance = 75f;
+	
+	/** Weight of each Gaussian of each pixel, modeCount per pixel, heaviest first. */
+	private float[] weights;
+	
+	/** Mean color of each Gaussian, 3 components each, in the order of the weights. */
+	private float[] means;
+	
+	/** Variance of each Gaussian, in the order of the weights. */
+	private float[] variances;
+	
+	/** Number of Gaussians of each pixel, up to modeCount. */
+	private byte[] modes;
+	
+	/** Whether the model is to be forgotten before the next frame. */
+	private volatile boolean resetting;
+	
+	private byte[] background;
+	private int[] packedBackground;
+	
+	
+	public GaussianMixtureBackground() {
+	}
+	
+	public String getName() {
+		return "Gaussian Mixture Background";
+	}
+	
+	public int getModeCount() {
+		return modeCount;
+	}
+	
+	/**
+	 * Sets the maximum number of Gaussians per pixel. The model is learned again
+	 * from the next frame.
+	 * @param modeCount The number of Gaussians, from 1 to 8.
+	 */
+	public void setModeCount(int modeCount) {
+		if (modeCount < 1 || modeCount > 8) {
+			throw new IllegalArgumentException("modeCount must be from 1 to 8");
+		}
+		this.modeCount = modeCount;
+		resetBackground();
+	}
+	
+	public float getLearningRate() {
+		return learningRate;
+	}
+	
+	/**
+	 * Sets the learning rate: about the inverse of the number of frames over
+	 * which the model adapts to a change.
+	 * @param learningRate The rate, greater than 0 and at most 1.
+	 */
+	public void setLearningRate(float learningRate) {
+		if (!(learningRate > 0f && learningRate <= 1f)) {
+			throw new IllegalArgumentException("The learning rate must be greater than 0 and at most 1.");
+		}
+		this.learningRate = learningRate;
+	}
+	
+	public float getVarianceThreshold() {
+		return varianceThreshold;
+	}
+	
+	/**
+	 * Sets how far a color may be from a Gaussian's mean to match it: its squared
+	 * distance (summed over the color components) must be less than this many
+	 * variances of the Gaussian. The default of 16 is 4 standard deviations.
+	 * @param varianceThreshold The threshold.
+	 */
+	public void setVarianceThreshold(float varianceThreshold) {
+		this.varianceThreshold = varianceThreshold;
+	}
+	
+	public float getBackgroundRatio() {
+		return backgroundRatio;
+	}
+	
+	/**
+	 * Sets the total weight of the heaviest Gaussians of a pixel which are taken
+	 * as background. The lower it is, the less often a color must have been seen
+	 * to be background.
+	 * @param backgroundRatio The ratio, from 0 to 1.
+	 */
+	public void setBackgroundRatio(float backgroundRatio) {
+		this.backgroundRatio = backgroundRatio;
+	}
+	
+	/**
+	 * Sets the variance of new Gaussians, and the limits of the variances.
+	 * @param initial The variance of a new Gaussian.
+	 * @param min The smallest variance, so that a still pixel does not become overly sensitive.
+	 * @param max The largest variance.
+	 */
+	public void setVariances(float initial, float min, float max) {
+		if (!(min > 0f && min <= initial && initial <= max)) {
+			throw new IllegalArgumentException("The variances must be 0 < min <= initial <= max.");
+		}
+		this.initialVariance = initial;
+		this.minVariance = min;
+		this.maxVariance = max;
+	}
+	
+	/** {@inheritDoc} */
+	public byte[] getBackground() {
+		return background;
+	}
+	
+	/** {@inheritDoc} */
+	public int[] getPackedBackground() {
+		return packedBackground;
+	}
+	
+	/** {@inheritDoc} */
+	public void resetBackground() {
+		resetting = true;
+	}
+	
+	/** The model, if there is one. */
+	public int getCheckpointSize() {
+		if (modes == null || resetting) {
+			return 8;
+		}
+		return 8 + modes.length + (weights.length + means.length + variances.length) * 4;
+	}
+	
+	public void writeCheckpoint(ByteBuffer buffer) {
+		if (modes == null || resetting) {
+			buffer.putInt(0);
+			buffer.putInt(modeCount);
+			return;
+		}
+		buffer.putInt(modes.length);
+		buffer.putInt(modeCount);
+		buffer.asFloatBuffer().put(weights).put(means).put(variances);
+		buffer.position(buffer.position() + (weights.length + means.length + variances.length) * 4);
+		buffer.put(modes);
+	}
+	
+	/**
+	 * Restores the model, unless it has another number of Gaussians per pixel.
+	 * It is forgotten with the first frame if that is of another size.
+	 */
+	public boolean readCheckpoint(ByteBuffer buffer) {
+		int pixels = buffer.getInt();
+		int count = buffer.getInt();
+		if (pixels <= 0 || count != modeCount
+				|| buffer.remaining() != pixels + (long) pixels * count * 5 * 4) {
+			return false;
+		}
+		modes = new byte[pixels];
+		weights = new float[pixels * count];
+		means = new float[pixels * count * 3];
+		variances = new float[pixels * count];
+		buffer.asFloatBuffer().get(weights).get(means).get(variances);
+		buffer.position(buffer.position() + (weights.length + means.length + variances.length) * 4);
+		buffer.get(modes);
+		resetting = false;
+		return true;
+	}
+	
+	@Override
+	protected boolean processRGB(final byte[] bin, final byte[] bout, VideoFormat format) {
+		prepareModel(format, false);
+		final byte[] background = this.background;
+		final int modeCount = this.modeCount;
+		forEachSpan(format, new RegionOfInterest.SpanKernel() {
+			public void run(int band, int from, int to) {
+				int i = from * 3;
+				int m = from * modeCount * 3;	// means of the pixel's heaviest Gaussian
+				for (int p = from; p < to; p++, i += 3, m += modeCount * 3) {
+					bout[p] = update(p, bin[i] & 0xff, bin[i + 1] & 0xff, bin[i + 2] & 0xff);
+					background[i] = (byte) (int) (means[m] + 0.5f);
+					background[i + 1] = (byte) (int) (means[m + 1] + 0.5f);
+					background[i + 2] = (byte) (int) (means[m + 2] + 0.5f);
+				}
+			}
+		});
+		return true;
+	}
+	
+	/** Like <code>processRGB()</code>, for packed pixels. */
+	@Override
+	public boolean processPackedRGB(final int[] iin, final byte[] bout, VideoFormat format) {
+		prepareModel(format, true);
+		final int[] background = packedBackground;
+		final int modeCount = this.modeCount;
+		forEachSpan(format, new RegionOfInterest.SpanKernel() {
+			public void run(int band, int from, int to) {
+				int v;
+				int m = from * modeCount * 3;
+				for (int p = from; p < to; p++, m += modeCount * 3) {
+					v = iin[p];
+					bout[p] = update(p, (v >> 16) & 0xff, (v >> 8) & 0xff, v & 0xff);
+					background[p] = ((int) (means[m] + 0.5f) << 16)
+							| ((int) (means[m + 1] + 0.5f) << 8) | (int) (means[m + 2] + 0.5f);
+				}
+			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Makes sure the model is for frames of the given size, forgetting it if
+	 * not (or if a reset was requested), and that there is a background image of
+	 * the kind the frames come as.
+	 */
+	private void prepareModel(VideoFormat format, boolean packed) {
+		int pixels = format.getSize().width * format.getSize().height;
+		if (resetting || modes == null || modes.length != pixels || weights.length != pixels * modeCount) {
+			resetting = false;
+			if (modes == null || modes.length != pixels || weights.length != pixels * modeCount) {
+				modes = new byte[pixels];
+				weights = new float[pixels * modeCount];
+				means = new float[pixels * modeCount * 3];
+				variances = new float[pixels * modeCount];
+			} else {
+				Arrays.fill(modes, (byte) 0);
+			}
+		}
+		if (packed) {
+			if (background != null) {
+				releaseBuffer(background);
+				background = null;
+			}
+			if (packedBackground == null || packedBackground.length != pixels) {
+				releaseBuffer(packedBackground);
+				packedBackground = borrowPackedBuffer(pixels);
+			}
+		} else {
+			if (packedBackground != null) {
+				releaseBuffer(packedBackground);
+				packedBackground = null;
+			}
+			if (background == null || background.length != pixels * 3) {
+				releaseBuffer(background);
+				background = borrowBuffer(pixels * 3);
+			}
+		}
+	}
+	
+	/**
+	 * Updates the Gaussians of a pixel with its color in this frame.
+	 * @param p The pixel.
+	 * @return 0 if the pixel is background, 255 if it is foreground.
+	 */
+	private byte update(int p, float c0, float c1, float c2) {
+		final float[] weights = this.weights;
+		final float[] means = this.means;
+		final float[] variances = this.variances;
+		final int first = p * modeCount;	// the pixel's first Gaussian
+		final int count = modes[p];
+		final float alpha = learningRate;
+		final float decay = 1f - alpha;
+		int matched = -1;
+		boolean isBackground = false;
+		float before = 0f;	// weight of the Gaussians before the match
+		float total = 0f;
+		float weight, variance, rho;
+		float d0, d1, d2, distance;
+		int g, k, m;
+		for (k = 0, g = first, m = first * 3; k < count; k++, g++, m += 3) {
+			weight = weights[g];
+			if (matched < 0) {
+				d0 = c0 - means[m];
+				d1 = c1 - means[m + 1];
+				d2 = c2 - means[m + 2];
+				distance = d0 * d0 + d1 * d1 + d2 * d2;
+				variance = variances[g];
+				if (distance < varianceThreshold * variance) {
+					matched = k;
+					isBackground = before < backgroundRatio;
+					weight = weight * decay + alpha;
+					rho = alpha / weight;
+					means[m] += rho * d0;
+					means[m + 1] += rho * d1;
+					means[m + 2] += rho * d2;
+					variance += rho * (distance - variance);
+					variances[g] = Math.min(Math.max(variance, minVariance), maxVariance);
+					weights[g] = weight;
+					total += weight;
+					continue;
+				}
+				before += weight;
+			}
+			weight *= decay;
+			weights[g] = weight;
+			total += weight;
+		}
+		
+		if (matched < 0) {
+			// A new Gaussian, in place of the lightest if there is no room
+			if (count == 0) {
+				weight = 1f;	// the first frame is taken as background
+				isBackground = true;
+			} else {
+				weight = alpha;
+			}
+			if (count < modeCount) {
+				matched = count;
+				modes[p] = (byte) (count + 1);
+			} else {
+				matched = modeCount - 1;
+				total -= weights[first + matched];
+			}
+			g = first + matched;
+			m = g * 3;
+			means[m] = c0;
+			means[m + 1] = c1;
+			means[m + 2] = c2;
+			variances[g] = initialVariance;
+			weights[g] = weight;
+			total += weight;
+			
+			// (A match keeps the weights summing to 1, so they need only be scaled here)
+			float scale = 1f / total;
+			for (g = first, k = first + modes[p]; g < k; g++) {
+				weights[g] *= scale;
+			}
+		}
+		
+		// Keep the Gaussians in order of weight
+		for (g = first + matched; g > first && weights[g] > weights[g - 1]; g--) {
+			swap(g, g - 1);
+		}
+		return isBackground ? 0 : (byte) 255;
+	}
+	
+	/** Swaps two Gaussians. */
+	private void swap(int a, int b) {
+		float t = weights[a];
+		weights[a] = weights[b];
+		weights[b] = t;
+		t = variances[a];
+		variances[a] = variances[b];
+		variances[b] = t;
+		a *= 3;
+		b *= 3;
+		for (int c = 0; c < 3; c++, a++, b++) {
+			t = means[a];
+			means[a] = means[b];
+			means[b] = t;
+		}
+	}
+	
+	/** {@inheritDoc} */
+	protected void updateImage(byte[] bout, VideoFormat vformat) {
+		synchronized (displayImage) {
+			//// Copy pixels to image
+			WritableRaster rast = displayImage.getRaster();
+			int[] pixel = new int[] {0, 0, 0, 255};
+			int p = 0;
+			for (int y = vformat.getSize().height - 1; y >= 0; y--) {
+				for (int x = 0; x < vformat.getSize().width; x++) {
+					pixel[0] = pixel[1] = pixel[2] = bout[p++];
+					rast.setPixel(x, y, pixel);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.util.Arrays;
+
+import javax.media.format.VideoFormat;
+
+/**
+ * <p>Erodes, dilates, opens or closes a mask (one byte per pixel) with a
+ * rectangular kernel, centered on each pixel. The kernel is separable, so each
+ * operation is a pass along the rows and then a pass along the columns.</p>
+ * 
+ * <p>Each pass uses the van Herk/Gil-Werman algorithm: the line is split into
+ * blocks as long as the kernel, and the running maximum (or minimum) of each
+ * block is taken forwards and backwards. Any window of the kernel's length
+ * spans at most two blocks, so its maximum is that of the backward maximum at
+ * its start and the forward maximum at its end. The cost per pixel is three
+ * comparisons for each pass, whatever the size of the kernel.</p>
+ * 
+ * <p>Pixels beyond the edges of the frame do not count, so a blob at the edge
+ * is neither eroded nor dilated by them. Any value works, not only 0 and 255:
+ * each pixel becomes the lowest (eroding) or highest (dilating) value under the
+ * kernel. The whole frame is always processed.</p>
+ */
+public class MorphologyEffect extends RgbVideoEffect {
+
+	/** The operations. */
+	public enum Operation {
+		/** Each pixel becomes the lowest under the kernel: blobs shrink. */
+		ERODE,
+		/** Each pixel becomes the highest under the kernel: blobs grow. */
+		DILATE,
+		/** Erosion then dilation: removes specks and spurs smaller than the kernel. */
+		OPEN,
+		/** Dilation then erosion: fills gaps and holes smaller than the kernel. */
+		CLOSE
+	}
+	
+	/** Value XORed with the pixels to dilate (none) or erode (the complement). */
+	private static final int DILATING = 0;
+	private static final int ERODING = 0xff;
+	
+	private Operation operation;
+	private int kernelWidth;
+	private int kernelHeight;
+	
+	/** Result of the first operation of a composite one. */
+	private byte[] scratch = new byte[0];
+	/**
+	 * Running maxima of the rows, forwards and backwards within each block of
+	 * kernelHeight rows, for the pass along the columns.
+	 */
+	private byte[] forward = new byte[0];
+	private byte[] backward = new byte[0];
+	/** Running maxima of a row, forwards and backwards, for each band. */
+	private int[][] rowForward = new int[0][];
+	private int[][] rowBackward = new int[0][];
+	
+	
+	/**
+	 * Constructor, for an opening with a 3x3 kernel.
+	 */
+	public MorphologyEffect() {
+		this(Operation.OPEN, 3, 3);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param operation The operation.
+	 * @param kernelWidth Width of the kernel, in pixels (at least 1).
+	 * @param kernelHeight Height of the kernel, in pixels (at least 1).
+	 */
+	public MorphologyEffect(Operation operation, int kernelWidth, int kernelHeight) {
+		setOperation(operation);
+		setKernelSize(kernelWidth, kernelHeight);
+	}
+
+	@Override
+	public String getName() {
+		return "Morphology (8-bit)";
+	}
+	
+	public Operation getOperation() {
+		return operation;
+	}
+	
+	public void setOperation(Operation operation) {
+		if (operation == null) {
+			throw new IllegalArgumentException("The operation must not be null.");
+		}
+		this.operation = operation;
+	}
+	
+	public int getKernelWidth() {
+		return kernelWidth;
+	}
+	
+	public int getKernelHeight() {
+		return kernelHeight;
+	}
+	
+	/**
+	 * Sets the size of the kernel. For an even size, the kernel extends one
+	 * pixel further to the left (or below) than to the right (or above).
+	 * @param width Width of the kernel, in pixels (at least 1).
+	 * @param height Height of the kernel, in pixels (at least 1).
+	 */
+	public void setKernelSize(int width, int height) {
+		if (width < 1 || height < 1) {
+			throw new IllegalArgumentException("The kernel must be at least 1x1.");
+		}
+		this.kernelWidth = width;
+		this.kernelHeight = height;
+	}
+	
+	@Override
+	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
+		int pixels = format.getSize().width * format.getSize().height;
+		switch (operation) {
+		case ERODE:
+			filter(bin, bout, format, ERODING);
+			break;
+		case DILATE:
+			filter(bin, bout, format, DILATING);
+			break;
+		case OPEN:
+			filter(bin, getScratch(pixels), format, ERODING);
+			filter(scratch, bout, format, DILATING);
+			break;
+		case CLOSE:
+			filter(bin, getScratch(pixels), format, DILATING);
+			filter(scratch, bout, format, ERODING);
+			break;
+		}
+		return true;
+	}
+	
+	/** Gets the intermediate frame, of at least the given length. */
+	private byte[] getScratch(int length) {
+		if (scratch.length < length) {
+			scratch = new byte[length];
+		}
+		return scratch;
+	}
+	
+	/**
+	 * Dilates a frame, or erodes it as the complement of the dilation of its
+	 * complement.
+	 * @param in The frame.
+	 * @param out The result (not the frame).
+	 * @param invert DILATING or ERODING.
+	 */
+	private void filter(byte[] in, byte[] out, VideoFormat format, int invert) {
+		filterRows(in, out, format, invert);
+		if (kernelHeight > 1) {
+			filterColumns(out, format, invert);
+		}
+	}
+	
+	/**
+	 * The pass along the rows, from the input to the output.
+	 */
+	private void filterRows(final byte[] in, final byte[] out, VideoFormat format, final int invert) {
+		final int width = format.getSize().width;
+		final int kernel = kernelWidth;
+		if (kernel == 1) {
+			System.arraycopy(in, 0, out, 0, width * format.getSize().height);
+			return;
+		}
+		// The row, with the pixels beyond its edges, in whole blocks
+		final int before = kernel / 2;
+		final int length = (width + kernel - 1 + kernel - 1) / kernel * kernel;
+		prepareRows(length);
+		forEachBand(format, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				int[] forward = rowForward[band];
+				int[] backward = rowBackward[band];
+				int i, x, end, max;
+				for (int y = fromRow; y < toRow; y++) {
+					int row = y * width;
+					
+					// The row, with the pixels beyond its edges counting for nothing
+					Arrays.fill(backward, 0, before, 0);
+					for (x = 0; x < width; x++) {
+						backward[before + x] = (in[row + x] & 0xff) ^ invert;
+					}
+					Arrays.fill(backward, before + width, length, 0);
+					for (int start = 0; start < length; start = end) {
+						end = start + kernel;
+						max = 0;
+						for (i = start; i < end; i++) {
+							max = Math.max(max, backward[i]);
+							forward[i] = max;
+						}
+						for (i = end - 2; i >= start; i--) {
+							backward[i] = Math.max(backward[i], backward[i + 1]);
+						}
+					}
+					for (x = 0; x < width; x++) {
+						out[row + x] = (byte) (Math.max(backward[x], forward[x + kernel - 1]) ^ invert);
+					}
+				}
+			}
+		});
+	}
+	
+	/** Makes the running maxima of a row for each band. */
+	private void prepareRows(int length) {
+		int bands = getMaxBandCount();
+		if (rowForward.length < bands) {
+			rowForward = new int[bands][];
+			rowBackward = new int[bands][];
+		}
+		for (int band = 0; band < rowForward.length; band++) {
+			if (rowForward[band] == null || rowForward[band].length < length) {
+				rowForward[band] = new int[length];
+				rowBackward[band] = new int[length];
+			}
+		}
+	}
+	
+	/**
+	 * The pass along the columns, in place. Whole rows are combined at a time,
+	 * so the frame is read in order. The running maxima of the blocks of rows
+	 * are independent, so the blocks are split between the bands.
+	 */
+	private void filterColumns(final byte[] frame, VideoFormat format, final int invert) {
+		final int width = format.getSize().width;
+		final int height = format.getSize().height;
+		final int kernel = kernelHeight;
+		final int before = kernel / 2;
+		final int blocks = (height + kernel - 1 + kernel - 1) / kernel;
+		if (forward.length < blocks * kernel * width) {
+			forward = new byte[blocks * kernel * width];
+			backward = new byte[blocks * kernel * width];
+		}
+		final byte[] forward = this.forward;
+		final byte[] backward = this.backward;
+		RowBandExecutor.Kernel blockKernel = new RowBandExecutor.Kernel() {
+			public void run(int band, int fromBlock, int toBlock) {
+				int r, y, i, x, value;
+				for (int block = fromBlock; block < toBlock; block++) {
+					int start = block * kernel;
+					int end = start + kernel;
+					
+					// Forwards: each row is the maximum of the rows of the block up to it
+					for (r = start; r < end; r++) {
+						y = r - before;
+						i = r * width;
+						if (y < 0 || y >= height) {
+							if (r == start) {
+								Arrays.fill(forward, i, i + width, (byte) 0);
+							} else {
+								System.arraycopy(forward, i - width, forward, i, width);
+							}
+						} else if (r == start) {
+							for (x = 0; x < width; x++) {
+								forward[i + x] = (byte) (frame[y * width + x] ^ invert);
+							}
+						} else {
+							for (x = 0; x < width; x++) {
+								value = (frame[y * width + x] & 0xff) ^ invert;
+								forward[i + x] = (byte) Math.max(forward[i - width + x] & 0xff, value);
+							}
+						}
+					}
+					
+					// Backwards: each row is the maximum of the rows of the block from it
+					for (r = end - 1; r >= start; r--) {
+						y = r - before;
+						i = r * width;
+						if (y < 0 || y >= height) {
+							if (r == end - 1) {
+								Arrays.fill(backward, i, i + width, (byte) 0);
+							} else {
+								System.arraycopy(backward, i + width, backward, i, width);
+							}
+						} else if (r == end - 1) {
+							for (x = 0; x < width; x++) {
+								backward[i + x] = (byte) (frame[y * width + x] ^ invert);
+							}
+						} else {
+							for (x = 0; x < width; x++) {
+								value = (frame[y * width + x] & 0xff) ^ invert;
+								backward[i + x] = (byte) Math.max(backward[i + width + x] & 0xff, value);
+							}
+						}
+					}
+				}
+			}
+		};
+		RowBandExecutor executor = getBandExecutor();
+		if (executor != null) {
+			executor.executeBands(blocks, Math.min(blocks, executor.getBandCount(width, height)), blockKernel);
+		} else {
+			blockKernel.run(0, 0, blocks);
+		}
+		
+		// The window of rows of each output row starts at its row of backward maxima
+		forEachBand(format, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				int offset = (kernel - 1) * width;
+				for (int i = fromRow * width; i < toRow * width; i++) {
+					frame[i] = (byte) (Math.max(backward[i] & 0xff, forward[i + offset] & 0xff) ^ invert);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,258 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.nio.ByteBuffer;
+
+import javax.media.Buffer;
+import javax.media.format.VideoFormat;
+
+/**
+ * <p>Effect which flags frames with nothing new in them as static
+ * (<code>FLAG_STATIC</code>), so that the effects after it in the chain pass
+ * them on without processing them. It goes first in the chain.</p>
+ * 
+ * <p>Only a sparse grid of pixels is compared, every sampleStep-th pixel of every
+ * sampleStep-th row (within the region of interest, if any), so the gate costs
+ * little next to the chain. A frame is static if fewer than minChangedSamples of
+ * its samples differ from those of the last frame passed on for processing by
+ * more than the change threshold, in any color component. Comparing against that
+ * frame, rather than the previous one, lets slow changes add up until they are
+ * processed. Every maxStaticFrames-th frame in a row is processed regardless, so
+ * that the background keeps adapting.</p>
+ * 
+ * <p>Objects smaller than the sample step may move unseen, so the step should be
+ * no larger than the smallest blob of interest.</p>
+ */
+public class MotionGateEffect extends RgbVideoEffect implements RgbVideoEffect.ByteBufferInput, RgbVideoEffect.PackedRgbInput {
+	
+	/** Distance between samples, in pixels, both across and down. */
+	private int sampleStep = 4;
+	/** Largest difference of a color component of a sample which is not a change. */
+	private int changeThreshold = 32;
+	/** Number of changed samples which make a frame not static. */
+	private int minChangedSamples = 2;
+	/** Most frames in a row flagged as static. */
+	private int maxStaticFrames = 30;
+	
+	/** Samples of the last frame passed on for processing, as packed XRGB pixels. */
+	private int[] reference = new int[1024];
+	private int referenceCount = -1;
+	/** Samples of the frame being gated. */
+	private int[] samples = new int[1024];
+	private int sampleCount;
+	
+	/** Number of frames flagged as static since the last frame processed. */
+	private int staticRun;
+	/** Whether the frame being gated is static. */
+	private boolean staticFrame;
+	/** Total number of frames flagged as static. */
+	private long staticFrameCount;
+	
+	
+	public String getName() {
+		return "Motion Gate";
+	}
+	
+	public int getSampleStep() {
+		return sampleStep;
+	}
+	
+	/**
+	 * Sets the distance between the pixels compared, both across and down.
+	 * @param sampleStep The step, in pixels (at least 1).
+	 */
+	public void setSampleStep(int sampleStep) {
+		if (sampleStep < 1) {
+			throw new IllegalArgumentException("sampleStep must be at least 1");
+		}
+		this.sampleStep = sampleStep;
+	}
+	
+	public int getChangeThreshold() {
+		return changeThreshold;
+	}
+	
+	/**
+	 * Sets the largest difference of a color component of a sample (0-255)
+	 * which is still taken as noise rather than change.
+	 */
+	public void setChangeThreshold(int changeThreshold) {
+		this.changeThreshold = changeThreshold;
+	}
+	
+	public int getMinChangedSamples() {
+		return minChangedSamples;
+	}
+	
+	/**
+	 * Sets the number of changed samples which make a frame worth processing.
+	 * @param minChangedSamples The number of samples (at least 1).
+	 */
+	public void setMinChangedSamples(int minChangedSamples) {
+		if (minChangedSamples < 1) {
+			throw new IllegalArgumentException("minChangedSamples must be at least 1");
+		}
+		this.minChangedSamples = minChangedSamples;
+	}
+	
+	public int getMaxStaticFrames() {
+		return maxStaticFrames;
+	}
+	
+	/**
+	 * Sets the most frames in a row which may be flagged as static; the next
+	 * one is processed regardless.
+	 * @param maxStaticFrames The number of frames (0 to flag none).
+	 */
+	public void setMaxStaticFrames(int maxStaticFrames) {
+		this.maxStaticFrames = maxStaticFrames;
+	}
+	
+	/**
+	 * Gets the number of frames flagged as static so far.
+	 * @return The number of frames.
+	 */
+	public long getStaticFrameCount() {
+		return staticFrameCount;
+	}
+	
+	/**
+	 * Makes the next frame be processed, and compared against from then on.
+	 */
+	@Override
+	public void reset() {
+		referenceCount = -1;
+		staticRun = 0;
+	}
+	
+	/** Overridden to flag the output as static, if the frame is. */
+	@Override
+	public int process(Buffer in, Buffer out) {
+		staticFrame = false;
+		int result = super.process(in, out);
+		if (staticFrame) {
+			out.setFlags(out.getFlags() | FLAG_STATIC);
+		}
+		return result;
+	}
+	
+	/** Gates the frame, which is passed on as it is. */
+	@Override
+	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
+		sample(ByteBuffer.wrap(bin), null, format);
+		gate();
+		return false;
+	}
+	
+	/** Gates the frame where it is (e.g. in a memory-mapped file), which is passed on as it is. */
+	public boolean processRGB(ByteBuffer bin, byte[] bout, VideoFormat format) {
+		sample(bin, null, format);
+		gate();
+		return false;
+	}
+	
+	/** Gates the frame of packed pixels, which is passed on as it is. */
+	@Override
+	public boolean processPackedRGB(int[] iin, int[] iout, VideoFormat format) {
+		sample(null, iin, format);
+		gate();
+		return false;
+	}
+	
+	/**
+	 * Takes the samples of a frame, given either as bytes or as packed pixels.
+	 */
+	private void sample(ByteBuffer bin, int[] iin, VideoFormat format) {
+		int width = format.getSize().width;
+		int height = format.getSize().height;
+		int step = sampleStep;
+		RegionOfInterest.Spans spans = getRegionSpans(format);
+		sampleCount = 0;
+		for (int y = step / 2; y < height; y += step) {
+			int i = y * width;
+			if (spans == null) {
+				sampleRow(bin, iin, i + step / 2, i + width);
+			} else {
+				for (int s = spans.getFirstSpan(y); s < spans.getFirstSpan(y + 1); s++) {
+					// Keep to the same columns as without a region
+					int from = spans.getStart(s) - i;
+					from += (step / 2 - from % step + step) % step;
+					sampleRow(bin, iin, i + from, spans.getEnd(s));
+				}
+			}
+		}
+	}
+	
+	/** Takes every sampleStep-th pixel from one pixel index up to (not including) another. */
+	private void sampleRow(ByteBuffer bin, int[] iin, int from, int to) {
+		int step = sampleStep;
+		int needed = sampleCount + (to - from + step - 1) / step;
+		if (needed > samples.length) {
+			int[] grown = new int[Math.max(needed, samples.length * 2)];
+			System.arraycopy(samples, 0, grown, 0, sampleCount);
+			samples = grown;
+		}
+		int n = sampleCount;
+		if (iin != null) {
+			for (int p = from; p < to; p += step) {
+				samples[n++] = iin[p];
+			}
+		} else {
+			for (int p = from; p < to; p += step) {
+				int b = p * 3;
+				samples[n++] = ((bin.get(b) & 0xff) << 16) | ((bin.get(b + 1) & 0xff) << 8) | (bin.get(b + 2) & 0xff);
+			}
+		}
+		sampleCount = n;
+	}
+	
+	/**
+	 * Decides whether the frame sampled is static, and if not, makes its samples
+	 * the reference.
+	 */
+	private void gate() {
+		if (sampleCount == referenceCount && staticRun < maxStaticFrames) {
+			int changed = 0;
+			int threshold = changeThreshold;
+			for (int i = 0; i < sampleCount && changed < minChangedSamples; i++) {
+				int a = samples[i];
+				int b = reference[i];
+				if (a != b
+						&& (Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) > threshold
+						|| Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) > threshold
+						|| Math.abs((a & 0xff) - (b & 0xff)) > threshold)) {
+					++changed;
+				}
+			}
+			if (changed < minChangedSamples) {
+				staticFrame = true;
+				++staticRun;
+				++staticFrameCount;
+				return;
+			}
+		}
+		
+		// Process the frame, and compare the next ones against it
+		int[] previous = reference;
+		reference = samples;
+		samples = previous.length >= reference.length ? previous : new int[reference.length];
+		referenceCount = sampleCount;
+		staticRun = 0;
+	}
+}
@@ -0,0 +1,299 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.media.format.VideoFormat;
+
+/**
+ * Applies a threshold to each pixel of the difference image which adapts to the
+ * pixel's noise: a pixel passes if its largest color component difference
+ * passes both the threshold and k standard deviations of the pixel's noise,
+ * so noisy pixels (e.g. a dark part of the frame, at night) need a larger
+ * difference to pass than clean ones. The noise of each pixel is the running
+ * mean of its squared difference from the background, kept in an array of
+ * floats and updated each frame where the pixel does not pass. (The differences
+ * which do not pass are enough to learn noise which starts out passing the
+ * threshold, since the threshold then rises. Where the pixel passes, the noise
+ * is only updated at the foreground learning rate, 0 by default, since moving
+ * objects would soon make it large.) Until the noise has been learned from
+ * 1 / learningRate frames, it is the mean of all the frames so far, and nothing
+ * passes in the first {@link #MIN_LEARNED_FRAMES}, so that the initial guess
+ * (the threshold as k standard deviations) does not flood the detector with
+ * noise.
+ * Unlike <code>RgbThresholdEffect</code>, differences are compared as unsigned
+ * values, so a difference of 128 or more may not pass in a very noisy pixel.
+ * The noise is saved in checkpoints.
+ * Input: 24-bit color differences (or packed pixels), from {@link RgbDiffEffect}
+ * Output: 8-bit on/off (0/255)
+ */
+public class NoiseAdaptiveThresholdEffect extends RgbThresholdEffect implements Checkpointable {
+
+	/** Number of frames the noise is learned from before any pixel may pass. */
+	public static final int MIN_LEARNED_FRAMES = 10;
+	
+	/** Threshold which no difference passes. */
+	private static final int NOTHING_PASSES = 255;
+
+	/** Number of standard deviations of the noise a difference must pass. */
+	private float deviations = 4f;
+	
+	/** Fraction by which the noise moves towards each frame's squared difference, where the pixel does not pass. */
+	private float learningRate = 0.02f;
+	
+	/** Like learningRate, where the pixel passes. */
+	private float foregroundLearningRate = 0f;
+	
+	/** Running mean of the squared difference of each pixel. */
+	private float[] variance;
+	
+	/** Number of frames the noise has been learned from. */
+	private int learnedFrames;
+	
+	
+	public NoiseAdaptiveThresholdEffect() {
+	}
+	
+	public String getName() {
+		return "Noise-Adaptive Threshold";
+	}
+	
+	/** The kernels which learn the noise write one byte per pixel, so bit planes are not output. */
+	@Override
+	public boolean outputsBitMask(VideoFormat format) {
+		return false;
+	}
+	
+	public float getDeviations() {
+		return deviations;
+	}
+	
+	/**
+	 * Sets k, the number of standard deviations of a pixel's noise which its
+	 * difference must pass (besides the threshold).
+	 * @param deviations k, at least 0.
+	 */
+	public void setDeviations(float deviations) {
+		if (!(deviations >= 0f)) {
+			throw new IllegalArgumentException("deviations must be at least 0");
+		}
+		this.deviations = deviations;
+	}
+	
+	public float getLearningRate() {
+		return learningRate;
+	}
+	
+	/**
+	 * Sets the fraction by which a pixel's noise moves towards its squared
+	 * difference each frame, where the pixel does not pass.
+	 * @param learningRate The rate, from 0 to 1.
+	 */
+	public void setLearningRate(float learningRate) {
+		this.learningRate = checkRate(learningRate);
+	}
+	
+	public float getForegroundLearningRate() {
+		return foregroundLearningRate;
+	}
+	
+	/**
+	 * Sets the learning rate where a pixel passes, which should be low enough
+	 * that the noise does not learn moving objects.
+	 * @param foregroundLearningRate The rate, from 0 to 1.
+	 */
+	public void setForegroundLearningRate(float foregroundLearningRate) {
+		this.foregroundLearningRate = checkRate(foregroundLearningRate);
+	}
+	
+	private static float checkRate(float rate) {
+		if (!(rate >= 0f && rate <= 1f)) {
+			throw new IllegalArgumentException("The learning rate must be from 0 to 1.");
+		}
+		return rate;
+	}
+	
+	/**
+	 * Gets the noise (the standard deviation of the difference) of a pixel.
+	 * @param pixel Index of the pixel in the frame.
+	 * @return The noise, or 0 if nothing has been learned.
+	 */
+	public float getNoise(int pixel) {
+		float[] variance = this.variance;
+		return variance != null && pixel < variance.length ? (float) Math.sqrt(variance[pixel]) : 0f;
+	}
+	
+	/**
+	 * Forgets the noise of all pixels, e.g. after the camera was moved.
+	 */
+	public void resetNoise() {
+		variance = null;
+	}
+	
+	/**
+	 * A pixel passes if its largest component difference passes the threshold
+	 * and k times its noise, and the noise is updated, in one pass.
+	 */
+	@Override
+	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
+		final byte[] in = bin;
+		final byte[] out = bout;
+		final float[] variance = prepareVariance(format);
+		final int threshold = learnedFrames < MIN_LEARNED_FRAMES ? NOTHING_PASSES : this.threshold;
+		final float k2 = deviations * deviations;
+		final float rate = getRate();
+		final float foregroundRate = getForegroundRate();
+		final int[] passCounts = getPassCounts();
+		forEachSpan(format, new RegionOfInterest.SpanKernel() {
+			public void run(int band, int from, int to) {
+				int count = 0;
+				int d, c;
+				float v, d2;
+				for (int p = from, i = from * 3; p < to; p++, i += 3) {
+					d = in[i] & 0xff;
+					c = in[i + 1] & 0xff;
+					d = d > c ? d : c;
+					c = in[i + 2] & 0xff;
+					d = d > c ? d : c;
+					d2 = d * d;
+					v = variance[p];
+					if (d > threshold && d2 > k2 * v) {
+						out[p] = (byte) 255;
+						variance[p] = v + foregroundRate * (d2 - v);
+						count++;
+					} else {
+						out[p] = 0;
+						variance[p] = v + rate * (d2 - v);
+					}
+				}
+				passCounts[band] += count;
+			}
+		});
+		++learnedFrames;
+		passCount = sumPassCounts(passCounts);
+		passRatio = (float) passCount / (float) getProcessedPixelCount(format);
+		return true;
+	}
+	
+	/** Like <code>processRGB()</code>, for packed pixels. */
+	@Override
+	public boolean processPackedRGB(int[] iin, byte[] bout, VideoFormat format) {
+		final int[] in = iin;
+		final byte[] out = bout;
+		final float[] variance = prepareVariance(format);
+		final int threshold = learnedFrames < MIN_LEARNED_FRAMES ? NOTHING_PASSES : this.threshold;
+		final float k2 = deviations * deviations;
+		final float rate = getRate();
+		final float foregroundRate = getForegroundRate();
+		final int[] passCounts = getPassCounts();
+		forEachSpan(format, new RegionOfInterest.SpanKernel() {
+			public void run(int band, int from, int to) {
+				int count = 0;
+				int d, c, pixel;
+				float v, d2;
+				for (int p = from; p < to; p++) {
+					pixel = in[p];
+					d = (pixel >> 16) & 0xff;
+					c = (pixel >> 8) & 0xff;
+					d = d > c ? d : c;
+					c = pixel & 0xff;
+					d = d > c ? d : c;
+					d2 = d * d;
+					v = variance[p];
+					if (d > threshold && d2 > k2 * v) {
+						out[p] = (byte) 255;
+						variance[p] = v + foregroundRate * (d2 - v);
+						count++;
+					} else {
+						out[p] = 0;
+						variance[p] = v + rate * (d2 - v);
+					}
+				}
+				passCounts[band] += count;
+			}
+		});
+		++learnedFrames;
+		passCount = sumPassCounts(passCounts);
+		passRatio = (float) passCount / (float) getProcessedPixelCount(format);
+		return true;
+	}
+	
+	/**
+	 * Gets the learning rate for this frame. Until the noise has been learned
+	 * from 1 / learningRate frames, it is the mean of the frames so far.
+	 */
+	private float getRate() {
+		return Math.max(learningRate, 1f / (learnedFrames + 1));
+	}
+	
+	/** Gets the foreground learning rate for this frame: the learning rate, until the noise has been learned. */
+	private float getForegroundRate() {
+		float rate = getRate();
+		return rate > learningRate ? rate : foregroundLearningRate;
+	}
+	
+	/**
+	 * Gets the noise of each pixel, for frames of the given size. New noise
+	 * starts at the threshold's worth of deviations, so that no pixel passes on
+	 * noise alone while it is learned.
+	 */
+	private float[] prepareVariance(VideoFormat format) {
+		int pixels = format.getSize().width * format.getSize().height;
+		float[] variance = this.variance;
+		if (variance == null || variance.length != pixels) {
+			variance = new float[pixels];
+			float deviation = deviations > 0f ? threshold / deviations : 0f;
+			Arrays.fill(variance, deviation * deviation);
+			this.variance = variance;
+			learnedFrames = 0;
+		}
+		return variance;
+	}
+	
+	/** The noise of each pixel. */
+	public int getCheckpointSize() {
+		float[] variance = this.variance;
+		return 4 + (variance != null ? variance.length * 4 : 0);
+	}
+	
+	public void writeCheckpoint(ByteBuffer buffer) {
+		float[] variance = this.variance;
+		if (variance != null) {
+			buffer.putInt(variance.length);
+			buffer.asFloatBuffer().put(variance);
+			buffer.position(buffer.position() + variance.length * 4);
+		} else {
+			buffer.putInt(0);
+		}
+	}
+	
+	/** Restores the noise; it is learned again if the frames are of another size. */
+	public boolean readCheckpoint(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length <= 0 || buffer.remaining() != length * 4) {
+			return false;
+		}
+		float[] restored = new float[length];
+		buffer.asFloatBuffer().get(restored);
+		variance = restored;
+		learnedFrames = Integer.MAX_VALUE / 2;
+		return true;
+	}
+}
@@ -22,10 +22,13 @@ import java.util.Arrays;
 
 import javax.media.format.VideoFormat;
 
-public class PixelizationDialate8Bit extends RgbVideoEffect {
+public class PixelizationDialate8Bit extends RgbVideoEffect implements RgbVideoEffect.BitMaskInput {
 
 	private int pixelSize = 2;
 	
+	/** Whether each square has an input pixel on, when processing a region of interest. */
+	private boolean[] squareOn = new boolean[0];
+	
 	public PixelizationDialate8Bit() {
 	}
 
@@ -56,24 +59,32 @@ public class PixelizationDialate8Bit extends RgbVideoEffect {
 		int x, y;
 		int sx, sy;
 		int pixOff;
+		int squareWidth, squareHeight;	// less than pixelSize at the right and top edges
+		RegionOfInterest.Spans spans = getRegionSpans(format);
+		if (spans != null) {
+			processRegion(bin, bout, format, spans);
+			return true;
+		}
 		Arrays.fill(bout, 0, bout.length, (byte) 0);
 		for (y = 0; y < format.getSize().height; y += pixelSize) {
 			offset = rowOffset;
+			squareHeight = Math.min(pixelSize, format.getSize().height - y);
 			for (x = 0; x < format.getSize().width; x += pixelSize) {
+				squareWidth = Math.min(pixelSize, format.getSize().width - x);
 				
 				// If any input pixel within the square is on (255), fill the corresponding square in the output.
 				pixOff = offset;
 			inputSearch:
-				for (sy = 0; sy < pixelSize; sy++) {
-					for (sx = 0; sx < pixelSize; sx++) {
+				for (sy = 0; sy < squareHeight; sy++) {
+					for (sx = 0; sx < squareWidth; sx++) {
 						
 						// If we found a non-zero input pixel
 						if (bin[pixOff + sx] != 0) {
 							
 							// Fill the output square
 							pixOff = offset;
-							for (sy = 0; sy < pixelSize; sy++) {
-								for (sx = 0; sx < pixelSize; sx++) {
+							for (sy = 0; sy < squareHeight; sy++) {
+								for (sx = 0; sx < squareWidth; sx++) {
 									bout[pixOff + sx] = (byte) 255;
 								}
 								pixOff += format.getSize().width;
@@ -92,6 +103,119 @@ public class PixelizationDialate8Bit extends RgbVideoEffect {
 				
 		return true;
 	}
+	
+	/**
+	 * Takes the mask as a bit plane if the pixel size is a power of 2 up to 64,
+	 * so that the squares never straddle words.
+	 */
+	@Override
+	public boolean acceptsBitMask(VideoFormat format) {
+		return pixelSize >= 1 && pixelSize <= 64 && (pixelSize & (pixelSize - 1)) == 0;
+	}
+	
+	/**
+	 * Like <code>processRGB()</code>, for a bit plane, 64 pixels at a time: the
+	 * rows of each row of squares are ORed together, and the bits of each square
+	 * are then folded into its first bit, which is spread back over the square.
+	 */
+	@Override
+	public boolean processBitMask(long[] lin, long[] lout, VideoFormat format) {
+		int width = format.getSize().width;
+		int height = format.getSize().height;
+		int words = BitMaskPlane.getWordsPerRow(width);
+		int pixelSize = this.pixelSize;
+		long lastWordMask = BitMaskPlane.getLastWordMask(width);
+		
+		// The first bit of each square
+		long firstBits = 0;
+		for (int bit = 0; bit < 64; bit += pixelSize) {
+			firstBits |= 1L << bit;
+		}
+		
+		int y, k, row, rows, shift;
+		long bits;
+		for (y = 0; y < height; y += pixelSize) {
+			rows = Math.min(pixelSize, height - y);
+			for (k = 0; k < words; k++) {
+				bits = 0;
+				for (row = y * words + k; row < (y + rows) * words; row += words) {
+					bits |= lin[row];
+				}
+				for (shift = 1; shift < pixelSize; shift <<= 1) {
+					bits |= bits >>> shift;
+				}
+				bits &= firstBits;
+				for (shift = 1; shift < pixelSize; shift <<= 1) {
+					bits |= bits << shift;
+				}
+				if (k == words - 1) {
+					bits &= lastWordMask;
+				}
+				for (row = y * words + k; row < (y + rows) * words; row += words) {
+					lout[row] = bits;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Like <code>processRGB()</code>, for the spans of the region of interest only:
+	 * an output pixel in the region is on if any input pixel of its square is on
+	 * and in the region. The squares are the same as for the whole frame.
+	 */
+	private void processRegion(byte[] bin, byte[] bout, VideoFormat format,
+			RegionOfInterest.Spans spans) {
+		int width = format.getSize().width;
+		int pixelSize = this.pixelSize;
+		int squaresPerRow = (width + pixelSize - 1) / pixelSize;
+		int squares = squaresPerRow * ((format.getSize().height + pixelSize - 1) / pixelSize);
+		if (squareOn.length < squares) {
+			squareOn = new boolean[squares];
+		}
+		boolean[] squareOn = this.squareOn;
+		int span, i, end, sq, column, rowStart;
+		
+		// Clear the squares the region touches, then find those with an input pixel on
+		// (column counts the pixels of the span's current square, to step to the next)
+		for (span = 0; span < spans.getSpanCount(); span++) {
+			rowStart = spans.getStart(span) - spans.getStart(span) % width;
+			sq = rowStart / width / pixelSize * squaresPerRow;
+			end = sq + (spans.getEnd(span) - rowStart + pixelSize - 1) / pixelSize;
+			for (sq += (spans.getStart(span) - rowStart) / pixelSize; sq < end; sq++) {
+				squareOn[sq] = false;
+			}
+		}
+		for (span = 0; span < spans.getSpanCount(); span++) {
+			rowStart = spans.getStart(span) - spans.getStart(span) % width;
+			sq = rowStart / width / pixelSize * squaresPerRow + (spans.getStart(span) - rowStart) / pixelSize;
+			column = (spans.getStart(span) - rowStart) % pixelSize;
+			for (i = spans.getStart(span), end = spans.getEnd(span); i < end; i++) {
+				if (bin[i] != 0) {
+					squareOn[sq] = true;
+				}
+				if (++column == pixelSize) {
+					column = 0;
+					sq++;
+				}
+			}
+		}
+		
+		// Fill the squares with an input pixel on
+		for (span = 0; span < spans.getSpanCount(); span++) {
+			rowStart = spans.getStart(span) - spans.getStart(span) % width;
+			sq = rowStart / width / pixelSize * squaresPerRow + (spans.getStart(span) - rowStart) / pixelSize;
+			column = (spans.getStart(span) - rowStart) % pixelSize;
+			for (i = spans.getStart(span), end = spans.getEnd(span); i < end; i++) {
+				bout[i] = squareOn[sq] ? (byte) 255 : 0;
+				if (++column == pixelSize) {
+					column = 0;
+					sq++;
+				}
+			}
+		}
+	}
+	
 	protected void updateImage(byte[] bout, VideoFormat vformat) {
 		synchronized (displayImage) {			
 			//// Copy pixels to image
@@ -106,4 +230,19 @@ public class PixelizationDialate8Bit extends RgbVideoEffect {
 			}
 		}
 	}
+	
+	/**
+	 * Each square depends on its own pixels only, so this is incremental as long
+	 * as the tiles are a multiple of the pixel size.
+	 */
+	@Override
+	protected boolean isIncremental() {
+		return true;
+	}
+	
+	/** The output is one byte per pixel. */
+	@Override
+	protected int getOutputLength(VideoFormat format, int inputLength) {
+		return format.getSize().width * format.getSize().height;
+	}
 }
@@ -0,0 +1,226 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.awt.Dimension;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>The part of the frame to process, as a union of shapes (e.g. rectangles and
+ * polygons) in frame coordinates, where 0,0 is the top-left of the frame. The
+ * region is rasterized once per frame size to a list of spans, runs of pixels
+ * on each row, and the effects iterate only those spans (see
+ * <code>RgbVideoEffect.forEachSpan()</code>), so processing costs in proportion to
+ * the area monitored. A pixel is in the region if its center is in any shape.</p>
+ * 
+ * <p>Effects leave their output outside the region undefined, so all effects of a
+ * chain should be given the same region (see
+ * <code>AbstractProcessingCamera.setRegionOfInterest()</code>).</p>
+ */
+public class RegionOfInterest {
+
+	/**
+	 * Kernel run on each span of the region of interest in a band of rows (or on
+	 * the whole band, if there is no region of interest). Spans of different bands
+	 * run concurrently, as for <code>RowBandExecutor.Kernel</code>.
+	 */
+	public interface SpanKernel {
+		/**
+		 * Processes a span of pixels, all on one row (or a whole band of rows).
+		 * @param band Index of the band, from 0 to the band count - 1.
+		 * @param from Index of the first pixel in the frame (row * width + column)
+		 * @param to Index of the pixel after the last one
+		 */
+		void run(int band, int from, int to);
+	}
+	
+	private final List<Shape> shapes = new ArrayList<Shape>();
+	
+	/** The spans of the last frame size rasterized for. */
+	private Spans spans;
+	
+	/** Creates an empty region; shapes are added with <code>add()</code>. */
+	public RegionOfInterest() {
+	}
+	
+	/**
+	 * Creates a region of one rectangle.
+	 * @param rectangle Rectangle in frame coordinates
+	 */
+	public RegionOfInterest(Rectangle rectangle) {
+		add(rectangle);
+	}
+	
+	/**
+	 * Adds a shape (e.g. a <code>Rectangle</code> or <code>Polygon</code>) to the region.
+	 * @param shape Shape in frame coordinates, 0,0 being the top-left of the frame
+	 */
+	public synchronized void add(Shape shape) {
+		shapes.add(shape);
+		spans = null;
+	}
+	
+	/**
+	 * Adds a polygon to the region.
+	 * @param xs X coordinates of the vertices
+	 * @param ys Y coordinates of the vertices
+	 */
+	public void addPolygon(int[] xs, int[] ys) {
+		add(new Polygon(xs, ys, xs.length));
+	}
+	
+	/** Removes all shapes, leaving the region empty. */
+	public synchronized void clear() {
+		shapes.clear();
+		spans = null;
+	}
+	
+	/**
+	 * Gets the spans of the region for a frame size, rasterizing the region if the
+	 * size changed (or the shapes did).
+	 * @param size Frame size
+	 * @return The spans
+	 */
+	public synchronized Spans getSpans(Dimension size) {
+		if (spans == null || spans.width != size.width || spans.height != size.height) {
+			spans = new Spans(shapes, size.width, size.height);
+		}
+		return spans;
+	}
+	
+	/**
+	 * The region of interest rasterized to spans for one frame size. Like the
+	 * frames, the rows are from the bottom of the frame up. The spans of a row are
+	 * in order, and no two touch.
+	 */
+	public static final class Spans {
+		private final int width;
+		private final int height;
+		/** Index of the first span of each row; the entry after the last row is the span count. */
+		private final int[] rowFirstSpan;
+		/** Index of the first pixel of each span. */
+		private final int[] spanStart;
+		/** Index of the pixel after the last one of each span. */
+		private final int[] spanEnd;
+		private final int pixelCount;
+		
+		Spans(List<Shape> shapes, int width, int height) {
+			this.width = width;
+			this.height = height;
+			rowFirstSpan = new int[height + 1];
+			int[] starts = new int[Math.max(16, height)];
+			int[] ends = new int[starts.length];
+			int count = 0;
+			int pixels = 0;
+			for (int row = 0; row < height; row++) {
+				rowFirstSpan[row] = count;
+				double cy = height - 1 - row + 0.5;
+				int x = 0;
+				while (x < width) {
+					if (contains(shapes, x + 0.5, cy)) {
+						int start = x;
+						do {
+							x++;
+						} while (x < width && contains(shapes, x + 0.5, cy));
+						if (count == starts.length) {
+							starts = Arrays.copyOf(starts, count * 2);
+							ends = Arrays.copyOf(ends, count * 2);
+						}
+						starts[count] = row * width + start;
+						ends[count] = row * width + x;
+						pixels += x - start;
+						count++;
+					} else {
+						x++;
+					}
+				}
+			}
+			rowFirstSpan[height] = count;
+			spanStart = Arrays.copyOf(starts, count);
+			spanEnd = Arrays.copyOf(ends, count);
+			pixelCount = pixels;
+		}
+		
+		/**
+		 * Creates spans from arrays as kept by this class (e.g. the dirty tiles of
+		 * a frame, see <code>DirtyTileTracker</code>).
+		 */
+		Spans(int width, int height, int[] rowFirstSpan, int[] spanStart, int[] spanEnd) {
+			this.width = width;
+			this.height = height;
+			this.rowFirstSpan = rowFirstSpan;
+			this.spanStart = spanStart;
+			this.spanEnd = spanEnd;
+			int pixels = 0;
+			for (int s = 0; s < spanStart.length; s++) {
+				pixels += spanEnd[s] - spanStart[s];
+			}
+			pixelCount = pixels;
+		}
+		
+		private static boolean contains(List<Shape> shapes, double x, double y) {
+			for (Shape shape : shapes) {
+				if (shape.contains(x, y)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		public int getWidth() {
+			return width;
+		}
+		
+		public int getHeight() {
+			return height;
+		}
+		
+		/** Gets the number of spans. */
+		public int getSpanCount() {
+			return spanStart.length;
+		}
+		
+		/**
+		 * Gets the index of the first span on a row.
+		 * @param row Row, from the bottom of the frame; the height gives the span count.
+		 */
+		public int getFirstSpan(int row) {
+			return rowFirstSpan[row];
+		}
+		
+		/** Gets the index of the first pixel of a span in the frame (row * width + column). */
+		public int getStart(int span) {
+			return spanStart[span];
+		}
+		
+		/** Gets the index of the pixel after the last one of a span. */
+		public int getEnd(int span) {
+			return spanEnd[span];
+		}
+		
+		/** Gets the number of pixels in the region. */
+		public int getPixelCount() {
+			return pixelCount;
+		}
+	}
+}
@@ -18,6 +18,7 @@
 package net.joelbecker.video.processing;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.beans.PropertyChangeListener;
@@ -33,11 +34,16 @@ import javax.media.format.VideoFormat;
  * can be notified of each new processed frame/sums by registering a listener
  * through <code>addPropertyChangeListener(PROP_SUMS, listener)</code>. The input
  * image is passed through unchanged to the next processor in the chain.
+ * <p>
+ * Alternatively, the regions may be rectangles (see
+ * <code>setRegionRectangles()</code>), whose sums are looked up in the
+ * summed-area table of a {@link SummedAreaTableEffect} earlier in the chain, in
+ * constant time per region instead of a pass over the frame.
  * 
  * @author Joel
  * @date Sep 23, 2010
  */
-public class RegionSums extends RgbVideoEffect {
+public class RegionSums extends RgbVideoEffect implements RgbVideoEffect.PackedRgbInput {
 
 	/** Pixel value indicating no region index. */ 
 	public static final byte NO_INDEX = (byte) 0xff;
@@ -52,6 +58,15 @@ public class RegionSums extends RgbVideoEffect {
 	/** Image of region indices. An index is 0-254. 255 is a non-index (no region). */
 	private byte regionIndicesImage[];
 	
+	/** Rectangles of the regions, or null to use the region indices image. */
+	private Rectangle regionRectangles[];
+	
+	/** Table of the frame, for the rectangles. */
+	private SummedAreaTableEffect summedAreaTable;
+	
+	/** Sums of each band of rows (see forEachBand()), added up into sums. */
+	private float bandSums[][] = new float[0][];
+	
 	private PropertyChangeSupport propSupport = new PropertyChangeSupport(this);
 	
 
@@ -63,6 +78,40 @@ public class RegionSums extends RgbVideoEffect {
 		regionIndicesImage = image;
 	}
 	
+	public Rectangle[] getRegionRectangles() {
+		return regionRectangles;
+	}
+	
+	/**
+	 * Sets the regions as rectangles, which are summed with the table of
+	 * <code>setSummedAreaTable()</code> instead of the region indices image. The
+	 * sums are of the unsigned values of the pixels (see
+	 * {@link SummedAreaTableEffect}); the sums of the indices image are of the
+	 * signed bytes.
+	 * @param rectangles Up to 255 rectangles, in frame coordinates (0,0 being the
+	 * top-left of the frame), whose sums are indexed as they are; or null to use
+	 * the region indices image.
+	 */
+	public void setRegionRectangles(Rectangle[] rectangles) {
+		if (rectangles != null && rectangles.length > sums.length) {
+			throw new IllegalArgumentException("There may be at most " + sums.length + " regions.");
+		}
+		regionRectangles = rectangles;
+	}
+	
+	public SummedAreaTableEffect getSummedAreaTable() {
+		return summedAreaTable;
+	}
+	
+	/**
+	 * Sets the effect whose table the rectangles are summed with. It must come
+	 * before this effect in the chain.
+	 * @param table The effect building the table.
+	 */
+	public void setSummedAreaTable(SummedAreaTableEffect table) {
+		summedAreaTable = table;
+	}
+	
 	public void addPropertyChangeListener(PropertyChangeListener listener) {
 		propSupport.addPropertyChangeListener(listener);
 	}
@@ -101,19 +150,105 @@ public class RegionSums extends RgbVideoEffect {
 	 * the corresponding byte in the output buffer is set to 100% (255).
 	 * NOTE: Output is a byte-per-pixel format, NOT 3 bytes per pixel.
 	 */
-	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
-		if (regionIndicesImage != null) {
-			if (regionIndicesImage.length != bin.length) {
+	protected boolean processRGB(final byte[] bin, byte[] bout, VideoFormat format) {
+		final byte[] indices = regionIndicesImage;
+		if (regionRectangles != null) {
+			sumRectangles();
+		} else if (indices != null) {
+			if (indices.length != bin.length) {
 				throw new IllegalArgumentException("Region indices image has a different size from the input image.");
 			}
-			Arrays.fill(sums, 0f);
-			for (int i = 0; i < bin.length; i++) {
-				if (regionIndicesImage[i] != NO_INDEX) {
-					sums[ regionIndicesImage[i] ] += (float) bin[i];
+			final float[][] bandSums = clearBandSums();
+			final int rowBytes = format.getSize().width * 3;
+			forEachBand(format, new RowBandExecutor.Kernel() {
+				public void run(int band, int fromRow, int toRow) {
+					float[] partial = bandSums[band];
+					for (int i = fromRow * rowBytes; i < toRow * rowBytes; i++) {
+						if (indices[i] != NO_INDEX) {
+							partial[ indices[i] & 0xff ] += (float) bin[i];
+						}
+					}
 				}
+			});
+			addBandSums();
+		}
+		propSupport.firePropertyChange(PROP_SUMS, null, sums);
+		return false;
+	}
+	
+	/**
+	 * Like <code>processRGB()</code>, for packed pixels, which are taken as they
+	 * are: each color component is still summed into the region of its byte in
+	 * the region indices image.
+	 */
+	@Override
+	public boolean processPackedRGB(final int[] iin, int[] iout, VideoFormat format) {
+		final byte[] indices = regionIndicesImage;
+		if (regionRectangles != null) {
+			sumRectangles();
+		} else if (indices != null) {
+			if (indices.length != iin.length * 3) {
+				throw new IllegalArgumentException("Region indices image has a different size from the input image.");
 			}
+			final float[][] bandSums = clearBandSums();
+			final int width = format.getSize().width;
+			forEachBand(format, new RowBandExecutor.Kernel() {
+				public void run(int band, int fromRow, int toRow) {
+					float[] partial = bandSums[band];
+					for (int p = fromRow * width; p < toRow * width; p++) {
+						int pixel = iin[p];
+						int i = p * 3;
+						if (indices[i] != NO_INDEX) {
+							partial[ indices[i] & 0xff ] += (float) (byte) (pixel >> 16);
+						}
+						if (indices[i + 1] != NO_INDEX) {
+							partial[ indices[i + 1] & 0xff ] += (float) (byte) (pixel >> 8);
+						}
+						if (indices[i + 2] != NO_INDEX) {
+							partial[ indices[i + 2] & 0xff ] += (float) (byte) pixel;
+						}
+					}
+				}
+			});
+			addBandSums();
 		}
 		propSupport.firePropertyChange(PROP_SUMS, null, sums);
 		return false;
 	}
+	
+	/**
+	 * Gets the sums of each band of rows, cleared.
+	 * @return The sums, indexed by band and region.
+	 */
+	private float[][] clearBandSums() {
+		if (bandSums.length != getMaxBandCount()) {
+			bandSums = new float[getMaxBandCount()][sums.length];
+		}
+		for (float[] partial : bandSums) {
+			Arrays.fill(partial, 0f);	// a frame may have fewer bands than that
+		}
+		return bandSums;
+	}
+	
+	/** Adds up the sums of the bands into the sums. */
+	private void addBandSums() {
+		Arrays.fill(sums, 0f);
+		for (float[] partial : bandSums) {
+			for (int r = 0; r < sums.length; r++) {
+				sums[r] += partial[r];
+			}
+		}
+	}
+	
+	/** Looks up the sum of each rectangle. */
+	private void sumRectangles() {
+		Rectangle[] rectangles = regionRectangles;
+		if (summedAreaTable == null) {
+			throw new IllegalStateException("Region rectangles need a summed-area table.");
+		}
+		Arrays.fill(sums, 0f);
+		for (int r = 0; r < rectangles.length; r++) {
+			sums[r] = (float) summedAreaTable.getSum(rectangles[r]);
+		}
+	}
 }
@@ -16,15 +16,26 @@
 *    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
 ******************************************************************************/
 package net.joelbecker.video.processing;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import javax.media.Format;
 import javax.media.format.RGBFormat;
 import javax.media.format.VideoFormat;
 
-public class RgbDiffEffect extends RgbVideoEffect {
+public class RgbDiffEffect extends RgbVideoEffect implements RgbVideoEffect.ByteBufferInput, RgbVideoEffect.PackedRgbInput {
+
+	/** The high bit of each byte of a long. */
+	private static final long HIGH_BITS = 0x8080808080808080L;
 
-	private BackgroundUpdater bgUpdater;
+	private BackgroundModel bgUpdater;
 	
-	public RgbDiffEffect(BackgroundUpdater bgUpdater) {
+	/**
+	 * Constructor.
+	 * @param bgUpdater Gives the background to compare frames to (e.g. a {@link BackgroundUpdater}).
+	 */
+	public RgbDiffEffect(BackgroundModel bgUpdater) {
 		supportedIns = new Format[] { new RGBFormat() };
 		supportedOuts = new Format[] { new RGBFormat() };
 		this.bgUpdater = bgUpdater;
@@ -34,24 +45,100 @@ public class RgbDiffEffect extends RgbVideoEffect {
 		return "RGB-Difference from Background Image";
 	}
 
+	/**
+	 * Calculates the difference of each color component from the background,
+	 * eight components at a time: they are read as longs and subtracted with
+	 * {@link #absoluteDifferences(long, long)}, and only the components left
+	 * over at the end of a span are subtracted one at a time. If there are
+	 * {@link VectorKernels}, they subtract a vector of components at a time instead.
+	 */
 	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
-		if(bgUpdater.getBackground() != null) {	
-			//// Calculate difference between input and background
-			int now, before, diff;
-			//long totalAmt = 0;
-			for(int i = 0; i < bin.length; i++) {
-				now = (int) bin[i] & 0xff;
-				before = (int) bgUpdater.getBackground()[i] & 0xff;
-				diff = Math.abs(now - before);
-				bout[i] = (byte)(diff);
-			}
+		return processRGB(ByteBuffer.wrap(bin), bout, format);
+	}
+	
+	/**
+	 * Like <code>processRGB(byte[], byte[], VideoFormat)</code>, reading the frame
+	 * where it is (e.g. in a memory-mapped file), without copying it.
+	 */
+	public boolean processRGB(ByteBuffer bin, final byte[] bout, VideoFormat format) {
+		final byte[] background = bgUpdater.getBackground();
+		if(background != null) {	
+			// Absolute gets and puts, so the bands can share them
+			final ByteBuffer in = bin.order(ByteOrder.nativeOrder());
+			final ByteBuffer before = ByteBuffer.wrap(background).order(ByteOrder.nativeOrder());
+			final ByteBuffer out = ByteBuffer.wrap(bout).order(ByteOrder.nativeOrder());
+			final VectorKernels vectors = VectorKernels.getInstance();
 			
+			//// Calculate difference between input and background, a band of rows (or region span) at a time
+			forEachSpan(format, new RegionOfInterest.SpanKernel() {
+				public void run(int band, int from, int to) {
+					if (vectors != null) {
+						vectors.absoluteDifferences(in, background, bout, from * 3, to * 3);
+						return;
+					}
+					int i = from * 3;
+					int end = to * 3;
+					for (; i + 8 <= end; i += 8) {
+						out.putLong(i, absoluteDifferences(in.getLong(i), before.getLong(i)));
+					}
+					for (; i < end; i++) {
+						bout[i] = (byte) Math.abs((in.get(i) & 0xff) - (background[i] & 0xff));
+					}
+				}
+			});
+			
+		} else {
+			//// Make output show no differences
+			Arrays.fill(bout, 0, bin.limit(), (byte) 0);
+		}
+		return true;
+	}
+	
+	/**
+	 * Subtracts each of the eight bytes of a long from those of another, as
+	 * unsigned values, without carrying between them.
+	 * @return The absolute differences, in the same bytes.
+	 */
+	private static long absoluteDifferences(long a, long b) {
+		// a - b in each byte, keeping the borrow out of its high bit
+		long difference = ((a | HIGH_BITS) - (b & ~HIGH_BITS)) ^ ((a ^ ~b) & HIGH_BITS);
+		long borrow = (((~a & b) | (~(a ^ b) & difference)) & HIGH_BITS) >>> 7;
+		// Negate the bytes that borrowed (b > a), which are not 0, so adding 1 does not carry
+		return (difference ^ (borrow * 0xff)) + borrow;
+	}
+	
+	/**
+	 * Calculates the difference of each color component from the packed background,
+	 * one pixel per int.
+	 */
+	@Override
+	public boolean processPackedRGB(final int[] iin, final int[] iout, VideoFormat format) {
+		final int[] background = bgUpdater.getPackedBackground();
+		if (background != null && background.length == iin.length) {
+			forEachSpan(format, new RegionOfInterest.SpanKernel() {
+				public void run(int band, int from, int to) {
+					int now, before;
+					int r, g, b;
+					for (int i = from; i < to; i++) {
+						now = iin[i];
+						before = background[i];
+						r = ((now >> 16) & 0xff) - ((before >> 16) & 0xff);
+						g = ((now >> 8) & 0xff) - ((before >> 8) & 0xff);
+						b = (now & 0xff) - (before & 0xff);
+						iout[i] = (Math.abs(r) << 16) | (Math.abs(g) << 8) | Math.abs(b);
+					}
+				}
+			});
 		} else {
 			//// Make output show no differences
-			for(int i = 0; i < bin.length; i++) {
-				bout[i] = 0;
-			}
+			Arrays.fill(iout, 0, iin.length, 0);
 		}
 		return true;
 	}
+	
+	/** The difference of a pixel depends on that pixel only. */
+	@Override
+	protected boolean isIncremental() {
+		return true;
+	}
 }
@@ -18,6 +18,9 @@
 package net.joelbecker.video.processing;
 
 import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import javax.media.format.VideoFormat;
 
@@ -28,7 +31,7 @@ import javax.media.format.VideoFormat;
  * @author Joel R. Becker
  *
  */
-public class RgbThresholdEffect extends RgbVideoEffect {
+public class RgbThresholdEffect extends RgbVideoEffect implements RgbVideoEffect.PackedRgbMaskInput, RgbVideoEffect.BitMaskOutput {
 
 	//private char threshold[] = new char[] {64, 64, 64};
 	protected char threshold = 64;
@@ -36,8 +39,39 @@ public class RgbThresholdEffect extends RgbVideoEffect {
 	/** Number of pixels that passed the threshold. */
 	protected int passCount;
 	
-	/** Ratio of pixels passing to pixels not passing. */
+	/** Ratio of pixels passing to pixels processed (those in the region of interest, if any). */
 	protected float passRatio;
+	
+	/** Number of pixels that passed in each band of the frame (see forEachSpan()). */
+	private int[] passCounts = new int[0];
+	
+	/** Whether the output is a bit plane instead of one byte per pixel. */
+	private boolean bitMaskOutput;
+	
+	/** The low and high bit of each byte of a long. */
+	private static final long LOW_BITS = 0x0101010101010101L, HIGH_BITS = 0x8080808080808080L;
+	
+	/**
+	 * For 12 bits of components, the 4 bits of the pixels: bit j is bit 3j,
+	 * which is set if any component of pixel j passed.
+	 */
+	private static final byte[] PIXEL_BITS = new byte[1 << 12];
+	
+	/** For 8 bits of pixels, the long of their 8 output bytes. */
+	private static final long[] PIXEL_BYTES = new long[1 << 8];
+	
+	static {
+		for (int i = 0; i < PIXEL_BITS.length; i++) {
+			for (int j = 0; j < 4; j++) {
+				PIXEL_BITS[i] |= ((i >> (3 * j)) & 1) << j;
+			}
+		}
+		for (int i = 0; i < PIXEL_BYTES.length; i++) {
+			for (int j = 0; j < 8; j++) {
+				PIXEL_BYTES[i] |= (long) -((i >> j) & 1) & (0xffL << (8 * j));
+			}
+		}
+	}
 
 	
 	public RgbThresholdEffect() {
@@ -54,10 +88,33 @@ public class RgbThresholdEffect extends RgbVideoEffect {
 	public char getThreshold() {
 		return threshold;
 	}
+	
+	public boolean isBitMaskOutput() {
+		return bitMaskOutput;
+	}
+	
+	/**
+	 * Sets whether the output is a {@link BitMaskPlane}, of one bit per pixel,
+	 * instead of one byte per pixel. The bits are only written while the whole
+	 * frame is processed (see {@link RgbVideoEffect.BitMaskOutput}).
+	 * @param bitMaskOutput true to output bit planes.
+	 */
+	public void setBitMaskOutput(boolean bitMaskOutput) {
+		this.bitMaskOutput = bitMaskOutput;
+	}
+	
+	@Override
+	public boolean outputsBitMask(VideoFormat format) {
+		return bitMaskOutput;
+	}
 	/**
 	 * If either the R, G, or B components of a pixel pass the threshold, then
 	 * the corresponding byte in the output buffer is set to 100% (255).
 	 * NOTE: Output is a byte-per-pixel format, NOT 3 bytes per pixel.
+	 * The pixels are compared without branches, so the loop does not stall on
+	 * the unpredictable pixels of a noisy frame: eight at a time, read as three
+	 * longs (see {@link #passBits(long, long)}), or a vector at a time if there
+	 * are {@link VectorKernels} which have a threshold.
 	 */
 	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
 		/*
@@ -68,23 +125,233 @@ public class RgbThresholdEffect extends RgbVideoEffect {
 					LabelColors.REDS, LabelColors.GREENS, LabelColors.BLUES)
 			};
 		}*/
-		passCount = 0;
-		int p = 0;
-		// TODO bin.length / 3 ??
-		for(int i = 0; i < bin.length; i+=3, p++) {
-			if ((char) bin[i] > threshold || (char) bin[i+1] > threshold || (char) bin[i+2] > threshold) {
-				bout[p] = (byte) 255;
-				passCount++;
-			} else {
-				bout[p] = 0;
+		final byte[] in = bin;
+		final byte[] out = bout;
+		final char threshold = this.threshold;
+		final int[] passCounts = getPassCounts();
+		final VectorKernels vectors = VectorKernels.getInstance() != null && VectorKernels.getInstance().hasThreshold()
+				? VectorKernels.getInstance() : null;
+		// Absolute gets and puts, so the bands can share them
+		final ByteBuffer inLongs = ByteBuffer.wrap(bin).order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer outLongs = ByteBuffer.wrap(bout).order(ByteOrder.LITTLE_ENDIAN);
+		forEachSpan(format, new RegionOfInterest.SpanKernel() {
+			public void run(int band, int from, int to) {
+				if (vectors != null) {
+					passCounts[band] += vectors.threshold(in, out, from, to, threshold);
+					return;
+				}
+				int count = 0;
+				int p = from;
+				if (threshold < 0xff80) {
+					// A component passes exactly when it is over this as an unsigned byte
+					final long add = (0x7f - Math.min((int) threshold, 0x7f)) * LOW_BITS;
+					int i, passes;
+					for (; p + 8 <= to; p += 8) {
+						// A bit for each component, then for each pixel
+						i = p * 3;
+						passes = gatherHighBits(passBits(inLongs.getLong(i), add))
+								| gatherHighBits(passBits(inLongs.getLong(i + 8), add)) << 8
+								| gatherHighBits(passBits(inLongs.getLong(i + 16), add)) << 16;
+						passes |= (passes >>> 1) | (passes >>> 2);
+						passes = PIXEL_BITS[passes & 0xfff] | PIXEL_BITS[(passes >>> 12) & 0xfff] << 4;
+						outLongs.putLong(p, PIXEL_BYTES[passes]);
+						count += Integer.bitCount(passes);
+					}
+				}
+				int largest, pass;
+				for (int i = p * 3; p < to; p++, i += 3) {
+					// All ones if the largest component, as a char, passes
+					largest = Math.max(Math.max(in[i] & 0xffff, in[i + 1] & 0xffff), in[i + 2] & 0xffff);
+					pass = (threshold - largest) >> 31;
+					out[p] = (byte) pass;
+					count -= pass;
+				}
+				passCounts[band] += count;
 			}
-		}
-		passRatio = (float) passCount / (float) (format.getSize().width * format.getSize().height);
+		});
+		passCount = sumPassCounts(passCounts);
+		passRatio = (float) passCount / (float) getProcessedPixelCount(format);
 		//System.out.println(String.format("Threshold pass: %.2f", passRatio*100));
 				
 		return true;
 	}
 	
+	/**
+	 * Compares eight unsigned bytes of a long at once.
+	 * @param components The bytes.
+	 * @param add <code>0x7f - t</code> in each byte, for a threshold t below 128.
+	 * @return The high bit of each byte set if that byte is over the threshold.
+	 */
+	private static long passBits(long components, long add) {
+		// The high bit is set already, or carried into by the addition
+		return (components | ((components & ~HIGH_BITS) + add)) & HIGH_BITS;
+	}
+	
+	/**
+	 * Gathers the high bits of the eight bytes of a long into a byte, the
+	 * lowest byte's into the lowest bit.
+	 */
+	private static int gatherHighBits(long highBits) {
+		return (int) (((highBits >>> 7) * 0x0102040810204080L) >>> 56);
+	}
+	
+	/**
+	 * Like <code>processRGB()</code>, for packed pixels: the output byte of a pixel is
+	 * 255 if any of its color components passes the threshold. Below 128, the
+	 * threshold is added to the three components at once, so that the high bit
+	 * of each one that passes is set.
+	 */
+	@Override
+	public boolean processPackedRGB(int[] iin, byte[] bout, VideoFormat format) {
+		final int[] in = iin;
+		final byte[] out = bout;
+		final int threshold = this.threshold;
+		final int[] passCounts = getPassCounts();
+		forEachSpan(format, new RegionOfInterest.SpanKernel() {
+			public void run(int band, int from, int to) {
+				int count = 0;
+				int v, pass;
+				if (threshold < 0x80) {
+					// The high bit of a component is set if it passes (or is 128 or more)
+					final int add = (0x7f - threshold) * 0x010101;
+					for (int p = from; p < to; p++) {
+						v = in[p];
+						pass = -((((v & 0x7f7f7f) + add) | v) & 0x808080) >> 31;
+						out[p] = (byte) pass;
+						count -= pass;
+					}
+				} else {
+					// Compare like processRGB() does, as chars of the signed component bytes
+					for (int p = from; p < to; p++) {
+						v = in[p];
+						pass = (threshold - Math.max(Math.max((v << 8 >> 24) & 0xffff,
+								(v << 16 >> 24) & 0xffff), (v << 24 >> 24) & 0xffff)) >> 31;
+						out[p] = (byte) pass;
+						count -= pass;
+					}
+				}
+				passCounts[band] += count;
+			}
+		});
+		passCount = sumPassCounts(passCounts);
+		passRatio = (float) passCount / (float) getProcessedPixelCount(format);
+		return true;
+	}
+	
+	/**
+	 * Like <code>processRGB()</code>, into a bit plane: 64 pixels are compared
+	 * for each word written.
+	 */
+	@Override
+	public boolean processRGB(byte[] bin, long[] lout, VideoFormat format) {
+		final byte[] in = bin;
+		final long[] out = lout;
+		final int threshold = this.threshold;
+		final int width = format.getSize().width;
+		final int[] passCounts = getPassCounts();
+		forEachBand(format, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				int count = 0;
+				int word = fromRow * BitMaskPlane.getWordsPerRow(width);
+				int i = fromRow * width * 3;
+				int x, end, bit, largest;
+				long bits;
+				for (int y = fromRow; y < toRow; y++) {
+					for (x = 0; x < width; x += 64) {
+						end = Math.min(64, width - x);
+						bits = 0;
+						for (bit = 0; bit < end; bit++, i += 3) {
+							// Shift each pixel's result in from the top, as the sign bit
+							largest = Math.max(Math.max(in[i] & 0xffff, in[i + 1] & 0xffff), in[i + 2] & 0xffff);
+							bits = (bits >>> 1) | ((long) (threshold - largest) & Long.MIN_VALUE);
+						}
+						bits >>>= 64 - end;
+						out[word++] = bits;
+						count += Long.bitCount(bits);
+					}
+				}
+				passCounts[band] += count;
+			}
+		});
+		passCount = sumPassCounts(passCounts);
+		passRatio = (float) passCount / (float) getProcessedPixelCount(format);
+		return true;
+	}
+	
+	/**
+	 * Like <code>processPackedRGB()</code>, into a bit plane.
+	 */
+	@Override
+	public boolean processPackedRGB(int[] iin, long[] lout, VideoFormat format) {
+		final int[] in = iin;
+		final long[] out = lout;
+		final int threshold = this.threshold;
+		final int width = format.getSize().width;
+		final int[] passCounts = getPassCounts();
+		forEachBand(format, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				int count = 0;
+				int word = fromRow * BitMaskPlane.getWordsPerRow(width);
+				int p = fromRow * width;
+				int x, end, bit, v;
+				final int add = (0x7f - threshold) * 0x010101;
+				long bits;
+				for (int y = fromRow; y < toRow; y++) {
+					for (x = 0; x < width; x += 64) {
+						end = Math.min(64, width - x);
+						bits = 0;
+						if (threshold < 0x80) {
+							for (bit = 0; bit < end; bit++) {
+								v = in[p++];
+								bits = (bits >>> 1) | ((long) -((((v & 0x7f7f7f) + add) | v) & 0x808080) & Long.MIN_VALUE);
+							}
+						} else {
+							for (bit = 0; bit < end; bit++) {
+								v = in[p++];
+								bits = (bits >>> 1) | ((long) (threshold - Math.max(Math.max((v << 8 >> 24) & 0xffff,
+										(v << 16 >> 24) & 0xffff), (v << 24 >> 24) & 0xffff)) & Long.MIN_VALUE);
+							}
+						}
+						bits >>>= 64 - end;
+						out[word++] = bits;
+						count += Long.bitCount(bits);
+					}
+				}
+				passCounts[band] += count;
+			}
+		});
+		passCount = sumPassCounts(passCounts);
+		passRatio = (float) passCount / (float) getProcessedPixelCount(format);
+		return true;
+	}
+	
+	/** Gets the (cleared) per-band pass counts, one for each band the frame may be split into. */
+	protected int[] getPassCounts() {
+		if (passCounts.length != getMaxBandCount()) {
+			passCounts = new int[getMaxBandCount()];
+		} else {
+			Arrays.fill(passCounts, 0);
+		}
+		return passCounts;
+	}
+	
+	/** Gets the number of pixels processed: those in the region of interest, or the whole frame. */
+	protected int getProcessedPixelCount(VideoFormat format) {
+		RegionOfInterest.Spans spans = getRegionSpans(format);
+		if (spans != null) {
+			return Math.max(1, spans.getPixelCount());
+		}
+		return format.getSize().width * format.getSize().height;
+	}
+	
+	protected static int sumPassCounts(int[] passCounts) {
+		int sum = 0;
+		for (int count : passCounts) {
+			sum += count;
+		}
+		return sum;
+	}
+	
 	/** Returns the number of pixels that passed in the last frame. */
 	public int getPassCount() {
 		return passCount;
@@ -110,4 +377,16 @@ public class RgbThresholdEffect extends RgbVideoEffect {
 			}
 		}
 	}
+	
+	/** Whether a pixel passes depends on that pixel only. */
+	@Override
+	protected boolean isIncremental() {
+		return true;
+	}
+	
+	/** The output is one byte per pixel. */
+	@Override
+	protected int getOutputLength(VideoFormat format, int inputLength) {
+		return format.getSize().width * format.getSize().height;
+	}
 }
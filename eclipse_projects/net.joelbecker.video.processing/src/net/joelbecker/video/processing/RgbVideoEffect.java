@@ -20,6 +20,7 @@ import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.beans.PropertyChangeSupport;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -39,6 +40,14 @@ public abstract class RgbVideoEffect implements Effect {
 
 	public static final String PROP_VIDEO_SIZE = "videoSize";
 	
+	/**
+	 * Buffer flag of a frame with nothing new to process, as found by a
+	 * {@link MotionGateEffect}. Effects pass such frames on unprocessed (see
+	 * <code>processStaticFrame()</code>). This is JMF's silence flag, which no
+	 * video source sets.
+	 */
+	public static final int FLAG_STATIC = Buffer.FLAG_SILENCE;
+	
 	protected BufferedImage displayImage;
 	
 	private List<VideoFrameListener> frameListenerList;
@@ -63,6 +72,148 @@ public abstract class RgbVideoEffect implements Effect {
 	
 	private PropertyChangeSupport propSupport = new PropertyChangeSupport(this);
 	
+	/** Time stamp of the frame being processed, in nanoseconds (or Buffer.TIME_UNKNOWN). */
+	private long frameTimeStamp = Buffer.TIME_UNKNOWN;
+	
+	/** Sequence number of the frame being processed (or Buffer.SEQUENCE_UNKNOWN). */
+	private long frameSequenceNumber = Buffer.SEQUENCE_UNKNOWN;
+	
+	/** Reusable copy of frames given as a {@link ByteBuffer} without an accessible array. */
+	private byte[] frameCopy;
+	
+	/** Pool to borrow frame buffers from (null to allocate them). */
+	private FrameBufferPool bufferPool;
+	
+	/** Executor to run per-pixel loops on bands of rows in parallel (null to run them sequentially). */
+	private RowBandExecutor bandExecutor;
+	
+	/** Part of the frame to process (null for all of it). */
+	private RegionOfInterest regionOfInterest;
+	
+	/** Tracker of the tiles that changed in each frame (null to process whole frames). */
+	private DirtyTileTracker dirtyTileTracker;
+	
+	/** Output kept from frame to frame, if the effect is incremental (see isIncremental()). */
+	private Object keptOutput;
+	
+	/** Whether the kept output is that of the last frame, so only the dirty tiles need processing. */
+	private boolean keptOutputCurrent;
+	
+	
+	/**
+	 * Effect which reads frames given as a {@link ByteBuffer}, such as a view into
+	 * a memory-mapped file, where they are. Other effects get such frames copied
+	 * into an array (see <code>toByteArray()</code>).
+	 */
+	public interface ByteBufferInput {
+		
+		/**
+		 * Processes a frame given as a {@link ByteBuffer}. Called instead of
+		 * <code>processRGB()</code>, with the same output.
+		 * @param bin Input, 24-bit RGB, from index 0 to its limit. Its position,
+		 * limit and byte order may be changed.
+		 * @param bout Output (at least as long as the input).
+		 * @param format Format of the input.
+		 * @return false if the output was not written (the input is passed on).
+		 */
+		boolean processRGB(ByteBuffer bin, byte[] bout, VideoFormat format);
+	}
+	
+	/**
+	 * Effect which processes frames of packed XRGB pixels (one int per pixel, red
+	 * in bits 16-23) natively, into packed pixels. Such frames are otherwise
+	 * unpacked into 3 bytes per pixel for <code>processRGB()</code>.
+	 */
+	public interface PackedRgbInput {
+		
+		/**
+		 * Processes a frame of packed XRGB pixels into packed pixels. Called
+		 * instead of <code>processRGB()</code>.
+		 * @param iin Input pixels.
+		 * @param iout Output pixels (at least as long as the input).
+		 * @param format Format of the input.
+		 * @return false if the output was not written (the input is passed on).
+		 */
+		boolean processPackedRGB(int[] iin, int[] iout, VideoFormat format);
+	}
+	
+	/**
+	 * Effect which processes frames of packed XRGB pixels natively, into one byte
+	 * per pixel (e.g. a mask). Such frames are otherwise unpacked into 3 bytes per
+	 * pixel for <code>processRGB()</code>.
+	 */
+	public interface PackedRgbMaskInput {
+		
+		/**
+		 * Processes a frame of packed XRGB pixels into one byte per pixel. Called
+		 * instead of <code>processRGB()</code>.
+		 * @param iin Input pixels.
+		 * @param bout Output, one byte per pixel (at least as long as the input).
+		 * @param format Format of the input.
+		 * @return false if the output was not written (the input is passed on).
+		 */
+		boolean processPackedRGB(int[] iin, byte[] bout, VideoFormat format);
+	}
+	
+	/**
+	 * Effect which may output a mask as a bit plane (see {@link BitMaskPlane}),
+	 * instead of one byte per pixel. Planes are only passed while the whole frame
+	 * is processed (there is no region of interest or tracker of dirty tiles).
+	 */
+	public interface BitMaskOutput {
+		
+		/**
+		 * Returns true if the effect outputs a bit plane for this frame: then the
+		 * <code>long[]</code> versions of <code>processRGB()</code> and
+		 * <code>processPackedRGB()</code> are called.
+		 * @param format Format of the frame.
+		 * @return true if the effect outputs a bit plane.
+		 */
+		boolean outputsBitMask(VideoFormat format);
+		
+		/**
+		 * Processes a frame into a bit plane.
+		 * @param bin Input, 24-bit RGB.
+		 * @param lout Output plane, cleared or not (at least <code>BitMaskPlane.getLength()</code> long).
+		 * @param format Format of the input.
+		 * @return false if the output was not written (the input is passed on).
+		 */
+		boolean processRGB(byte[] bin, long[] lout, VideoFormat format);
+		
+		/**
+		 * Processes a frame of packed XRGB pixels into a bit plane. Only called if
+		 * the effect is also a {@link PackedRgbMaskInput}.
+		 * @param iin Input pixels.
+		 * @param lout Output plane, cleared or not.
+		 * @param format Format of the input.
+		 * @return false if the output was not written (the input is passed on).
+		 */
+		boolean processPackedRGB(int[] iin, long[] lout, VideoFormat format);
+	}
+	
+	/**
+	 * Effect which may take a mask as a bit plane. Otherwise a plane is unpacked
+	 * into one byte per pixel (0 or 255) for <code>processRGB()</code>.
+	 */
+	public interface BitMaskInput {
+		
+		/**
+		 * Returns true if <code>processBitMask()</code> can take this frame's mask
+		 * as a bit plane.
+		 * @param format Format of the frame.
+		 * @return true if the effect takes the bit plane.
+		 */
+		boolean acceptsBitMask(VideoFormat format);
+		
+		/**
+		 * Processes a mask given as a bit plane.
+		 * @param lin Input plane.
+		 * @param lout Output plane (at least as long as the input), cleared or not.
+		 * @param format Format of the frame.
+		 * @return false if the output was not written (the input is passed on).
+		 */
+		boolean processBitMask(long[] lin, long[] lout, VideoFormat format);
+	}
 	
 	public RgbVideoEffect() {
 		active = true;
@@ -76,52 +227,133 @@ public abstract class RgbVideoEffect implements Effect {
 	
 	public int process(Buffer in, Buffer out) {
 
+		if ((in.getFlags() & FLAG_STATIC) != 0 && in.getFormat() instanceof VideoFormat
+				&& in.getData() != null) {
+			//// Nothing changed since the last frame processed: pass the frame on as it is
+			frameTimeStamp = in.getTimeStamp();
+			frameSequenceNumber = in.getSequenceNumber();
+			processStaticFrame((VideoFormat) in.getFormat());
+			Object data = in.getData();
+			in.setData(out.getData());
+			out.setData(data);
+			out.setFlags(out.getFlags() | FLAG_STATIC);
+			return BUFFER_PROCESSED_OK;
+		}
+		out.setFlags(out.getFlags() & ~FLAG_STATIC);
+		
 		if (in.getFormat() instanceof VideoFormat && in.getData() != null) {
-			byte[] bin;
-			byte[] bout;
-			if (in.getData() instanceof byte[]) {
-				bin = (byte[]) in.getData();
-			} else if (in.getData() instanceof int[]) {
-				int[] iin = (int[]) in.getData();
-				bin = new byte[iin.length * 3];
-				int bi, ii;
-				for (bi = 0, ii = 0; bi < bin.length; bi += 3, ii++) {
-					int v = iin[ii];
-					bin[bi + 2] = (byte) (v & 0xff);
-					bin[bi + 1] = (byte) ((v >> 8) & 0xff);
-					bin[bi] = (byte) ((v >> 16) & 0xff);
+			VideoFormat vformat = (VideoFormat) in.getFormat();
+			byte[] bin = null;
+			byte[] bout = null;
+			int[] iin = null;
+			long[] lin = null;
+			ByteBuffer bbin = null;
+			byte[] converted = null;	// borrowed for this call only
+			boolean packedOut = this instanceof PackedRgbInput;
+			boolean bitsOut = false;
+			if (in.getData() instanceof long[] && isWholeFrame() && this instanceof BitMaskInput
+					&& ((BitMaskInput) this).acceptsBitMask(vformat)) {
+				//// Bit mask path: the effect takes the mask's bits as they are
+				lin = (long[]) in.getData();
+				if (!(out.getData() instanceof long[]) || ((long[]) out.getData()).length < lin.length) {
+					out.setData(borrowBitMask(lin.length));
+				}
+			} else if (in.getData() instanceof int[] && (packedOut || this instanceof PackedRgbMaskInput)) {
+				//// Native packed path: the effect takes the int[] pixels as they are
+				iin = (int[]) in.getData();
+				if (packedOut) {
+					if (!(out.getData() instanceof int[]) || ((int[]) out.getData()).length < iin.length) {
+						out.setData(borrowPackedBuffer(iin.length));
+					}
+				} else if (isBitMaskOutput(vformat)) {
+					bitsOut = true;
+					setBitMaskOutput(out, vformat);
+				} else if (!(out.getData() instanceof byte[]) || ((byte[]) out.getData()).length < iin.length) {
+					out.setData(borrowBuffer(iin.length));
 				}
 			} else {
-				return PlugIn.BUFFER_PROCESSED_FAILED;
-			}
-//			byte[] bin = (byte[]) in.getData();
-//			byte[] bout;
-			if (!(out.getData() instanceof byte[]) || ((byte[])out.getData()).length < bin.length) {
-				bout = new byte[bin.length];
-				out.setData(bout);
-			} else {
-				bout = (byte[]) out.getData();
+				if (in.getData() instanceof byte[]) {
+					bin = (byte[]) in.getData();
+				} else if (in.getData() instanceof long[]) {
+					//// A bit mask, for an effect which takes one byte per pixel
+					bin = converted = borrowBuffer(vformat.getSize().width * vformat.getSize().height);
+					BitMaskPlane.unpack((long[]) in.getData(), bin, vformat.getSize());
+				} else if (in.getData() instanceof int[]) {
+					int[] pixels = (int[]) in.getData();
+					bin = converted = borrowBuffer(pixels.length * 3);
+					int bi, ii;
+					for (bi = 0, ii = 0; bi < bin.length; bi += 3, ii++) {
+						int v = pixels[ii];
+						bin[bi + 2] = (byte) (v & 0xff);
+						bin[bi + 1] = (byte) ((v >> 8) & 0xff);
+						bin[bi] = (byte) ((v >> 16) & 0xff);
+					}
+				} else if (in.getData() instanceof ByteBuffer && this instanceof ByteBufferInput) {
+					bbin = ((ByteBuffer) in.getData()).slice();
+				} else if (in.getData() instanceof ByteBuffer) {
+					bin = toByteArray((ByteBuffer) in.getData());
+				} else {
+					return PlugIn.BUFFER_PROCESSED_FAILED;
+				}
+//				byte[] bin = (byte[]) in.getData();
+//				byte[] bout;
+				int inLength = bin != null ? bin.length : bbin.limit();
+				if (bin != null && isBitMaskOutput(vformat)) {
+					bitsOut = true;
+					setBitMaskOutput(out, vformat);
+				} else if (!(out.getData() instanceof byte[]) || ((byte[])out.getData()).length < inLength) {
+					bout = borrowBuffer(inLength);
+					out.setData(bout);
+				} else {
+					bout = (byte[]) out.getData();
+				}
 			}
 
-			VideoFormat vformat = (VideoFormat) in.getFormat();
 			if (vformat.getSize().width != videoSize.width
 					|| vformat.getSize().height != videoSize.height) {
 				videoSize = vformat.getSize();
 				propSupport.firePropertyChange(PROP_VIDEO_SIZE, null, videoSize);
 			}
 			
-			//// Assure output buffer is large enough
-			if(bout == null || bout.length < bin.length) {
-			}
-			
-			byte[] buffToDraw = bout;
+			Object dataToDraw = out.getData();
 			boolean processed = false;
+			frameTimeStamp = in.getTimeStamp();
+			frameSequenceNumber = in.getSequenceNumber();
 			if (active) {
 				long startTime = System.nanoTime();
-				processed = processRGB(bin, bout, vformat);
+				
+				// An effect processing only the dirty tiles writes to the output it keeps, which is then copied
+				boolean keep = isIncremental() && isTrackingTiles();
+				int length = keep ? getOutputLength(vformat, iin != null ? iin.length
+						: bin != null ? bin.length : bbin.limit()) : 0;
+				Object target = out.getData();
+				if (keep) {
+					target = getKeptOutput(target, length);
+				} else if (keptOutput != null) {
+					releaseKeptOutput();
+				}
+				if (lin != null) {
+					processed = ((BitMaskInput) this).processBitMask(lin, (long[]) target, vformat);
+				} else if (bbin != null) {
+					processed = ((ByteBufferInput) this).processRGB(bbin, (byte[]) target, vformat);
+				} else if (iin == null) {
+					processed = bitsOut ? ((BitMaskOutput) this).processRGB(bin, (long[]) target, vformat)
+							: processRGB(bin, (byte[]) target, vformat);
+				} else if (packedOut) {
+					processed = ((PackedRgbInput) this).processPackedRGB(iin, (int[]) target, vformat);
+				} else {
+					processed = bitsOut ? ((BitMaskOutput) this).processPackedRGB(iin, (long[]) target, vformat)
+							: ((PackedRgbMaskInput) this).processPackedRGB(iin, (byte[]) target, vformat);
+				}
+				if (keep && processed) {
+					System.arraycopy(target, 0, out.getData(), 0, length);
+				}
+				keptOutputCurrent = keep && processed;
 				long stopTime = System.nanoTime();
 				totalTime += (stopTime - startTime) / 1.0e9;
 				++nCalls;
+			} else {
+				keptOutputCurrent = false;
 			}
 			
 			if(!processed) {
@@ -129,7 +361,7 @@ public abstract class RgbVideoEffect implements Effect {
 				Object data = in.getData();
 				in.setData(out.getData());
 				out.setData(data);
-				buffToDraw = bin;
+				dataToDraw = (iin != null ? iin : lin != null ? lin : bbin != null ? bbin : bin);
 			}
 			
 			//// Update frame image available to UI
@@ -141,9 +373,21 @@ public abstract class RgbVideoEffect implements Effect {
 							BufferedImage.TYPE_INT_RGB);
 				}
 				
-				updateImage(buffToDraw, vformat);
+				if (dataToDraw instanceof int[]) {
+					updatePackedImage((int[]) dataToDraw, vformat);
+				} else if (dataToDraw instanceof long[]) {
+					updateBitMaskImage((long[]) dataToDraw, vformat);
+				} else if (dataToDraw instanceof ByteBuffer) {
+					updateByteBufferImage((ByteBuffer) dataToDraw, vformat);
+				} else {
+					updateImage((byte[]) dataToDraw, vformat);
+				}
 				notifyVideoFrameListeners();
 			}
+			
+			if (converted != null) {
+				releaseBuffer(converted);
+			}
 		}
 		
 		// Copy the input attributes to the output
@@ -156,6 +400,338 @@ public abstract class RgbVideoEffect implements Effect {
 
 	protected abstract boolean processRGB(byte[] bin, byte[] bout, VideoFormat format);
 	
+	/**
+	 * Called instead of processing a frame flagged <code>FLAG_STATIC</code>, which
+	 * is passed on as it is (and not shown). Effects that keep state over time may
+	 * update it here; the frame's time stamp and sequence number are valid. No op
+	 * by default.
+	 * @param format Format of the frame.
+	 */
+	protected void processStaticFrame(VideoFormat format) {
+	}
+	
+	/** Gets whether the whole frame is processed, so bit planes may be passed. */
+	private boolean isWholeFrame() {
+		return regionOfInterest == null && !isTrackingTiles();
+	}
+	
+	/** Gets whether the effect outputs this frame's mask as a bit plane. */
+	private boolean isBitMaskOutput(VideoFormat format) {
+		return isWholeFrame() && this instanceof BitMaskOutput
+				&& ((BitMaskOutput) this).outputsBitMask(format);
+	}
+	
+	/** Makes the output data a bit plane for the frame. */
+	private void setBitMaskOutput(Buffer out, VideoFormat format) {
+		int length = BitMaskPlane.getLength(format.getSize());
+		if (!(out.getData() instanceof long[]) || ((long[]) out.getData()).length < length) {
+			out.setData(borrowBitMask(length));
+		}
+	}
+	
+	/**
+	 * Gets the bytes of a frame given as a {@link ByteBuffer}, such as a view into
+	 * a memory-mapped file, for an effect which is not a {@link ByteBufferInput}.
+	 * If the buffer is backed by an accessible array holding exactly the frame,
+	 * that array is used as-is. Otherwise the frame is bulk-copied into an array
+	 * owned by this effect, which is reused from frame to frame. The buffer's
+	 * position is not changed.
+	 * @param data The frame data (from its position to its limit).
+	 * @return The frame as a byte array.
+	 */
+	protected byte[] toByteArray(ByteBuffer data) {
+		if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+				&& data.remaining() == data.array().length) {
+			return data.array();
+		}
+		if (frameCopy == null || frameCopy.length != data.remaining()) {
+			releaseBuffer(frameCopy);
+			frameCopy = borrowBuffer(data.remaining());
+		}
+		data.duplicate().get(frameCopy);
+		return frameCopy;
+	}
+	
+	/**
+	 * Borrows a frame buffer from the pool given to this effect, or allocates one
+	 * if there is no pool. Effects should use this for any frame-sized buffer they
+	 * (re)allocate, and give it back with <code>releaseBuffer()</code>.
+	 * @param length Length of the buffer, in bytes.
+	 * @return A buffer of exactly that length. Its contents are undefined.
+	 */
+	protected byte[] borrowBuffer(int length) {
+		return bufferPool != null ? bufferPool.borrow(length) : new byte[length];
+	}
+	
+	/**
+	 * Borrows a buffer of packed XRGB pixels, like <code>borrowBuffer()</code>.
+	 * @param length Length of the buffer, in pixels.
+	 * @return A buffer of exactly that length. Its contents are undefined.
+	 */
+	protected int[] borrowPackedBuffer(int length) {
+		return bufferPool != null ? bufferPool.borrowPacked(length) : new int[length];
+	}
+	
+	/**
+	 * Borrows a bit mask plane, like <code>borrowBuffer()</code>.
+	 * @param length Length of the plane, in words.
+	 * @return A plane of exactly that length. Its contents are undefined.
+	 */
+	protected long[] borrowBitMask(int length) {
+		return bufferPool != null ? bufferPool.borrowBitMask(length) : new long[length];
+	}
+	
+	/**
+	 * Gives a plane from <code>borrowBitMask()</code> back to the pool.
+	 * @param buffer The plane (may be null, which is ignored).
+	 */
+	protected void releaseBuffer(long[] buffer) {
+		if (bufferPool != null) {
+			bufferPool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Gives a buffer from <code>borrowPackedBuffer()</code> back to the pool.
+	 * @param buffer The buffer (may be null, which is ignored).
+	 */
+	protected void releaseBuffer(int[] buffer) {
+		if (bufferPool != null) {
+			bufferPool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Gives a buffer from <code>borrowBuffer()</code> back to the pool.
+	 * @param buffer The buffer (may be null, which is ignored).
+	 */
+	protected void releaseBuffer(byte[] buffer) {
+		if (bufferPool != null) {
+			bufferPool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Gets the pool this effect borrows its frame buffers from.
+	 * @return The pool, or null if the effect allocates its buffers.
+	 */
+	public FrameBufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * Sets the pool this effect borrows its frame buffers from. The camera gives
+	 * every effect in its chain the same pool.
+	 * @param pool The pool, or null to allocate buffers.
+	 */
+	public void setBufferPool(FrameBufferPool pool) {
+		this.bufferPool = pool;
+	}
+	
+	/**
+	 * Gets the executor which runs the per-pixel loops of this effect on bands of
+	 * rows in parallel.
+	 * @return The executor, or null if the loops run sequentially.
+	 */
+	public RowBandExecutor getBandExecutor() {
+		return bandExecutor;
+	}
+	
+	/**
+	 * Sets the executor which runs the per-pixel loops of this effect on bands of
+	 * rows in parallel. The camera gives every effect in its chain the same executor.
+	 * @param executor The executor, or null to run the loops sequentially.
+	 */
+	public void setBandExecutor(RowBandExecutor executor) {
+		this.bandExecutor = executor;
+	}
+	
+	/**
+	 * Runs a kernel over all rows of the frame, split into bands which run in
+	 * parallel if there is a band executor. Otherwise the kernel is run once, on
+	 * all rows.
+	 * @param format Format of the frame.
+	 * @param kernel The kernel.
+	 */
+	protected void forEachBand(VideoFormat format, RowBandExecutor.Kernel kernel) {
+		RowBandExecutor executor = bandExecutor;
+		if (executor != null) {
+			executor.execute(format.getSize().width, format.getSize().height, kernel);
+		} else {
+			kernel.run(0, 0, format.getSize().height);
+		}
+	}
+	
+	/**
+	 * Runs a kernel over the spans of the region of interest, in bands of rows as
+	 * <code>forEachBand()</code> does. If there is no region of interest, the kernel
+	 * is run once on each band, as one span.
+	 * @param format Format of the frame.
+	 * @param kernel The kernel.
+	 */
+	protected void forEachSpan(VideoFormat format, final RegionOfInterest.SpanKernel kernel) {
+		final int width = format.getSize().width;
+		final RegionOfInterest.Spans spans = getRegionSpans(format);
+		if (spans == null) {
+			forEachBand(format, new RowBandExecutor.Kernel() {
+				public void run(int band, int fromRow, int toRow) {
+					kernel.run(band, fromRow * width, toRow * width);
+				}
+			});
+		} else {
+			forEachBand(format, new RowBandExecutor.Kernel() {
+				public void run(int band, int fromRow, int toRow) {
+					int last = spans.getFirstSpan(toRow);
+					for (int s = spans.getFirstSpan(fromRow); s < last; s++) {
+						kernel.run(band, spans.getStart(s), spans.getEnd(s));
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Gets the region of interest rasterized for the frame size; for an
+	 * incremental effect, only the dirty tiles of the frame within it, if that is
+	 * all that needs processing (see <code>getDirtySpans()</code>).
+	 * @param format Format of the frame.
+	 * @return The spans, or null if there is no region of interest.
+	 */
+	protected RegionOfInterest.Spans getRegionSpans(VideoFormat format) {
+		if (isIncremental()) {
+			RegionOfInterest.Spans dirty = getDirtySpans(format);
+			if (dirty != null) {
+				return dirty;
+			}
+		}
+		RegionOfInterest region = regionOfInterest;
+		return region != null ? region.getSpans(format.getSize()) : null;
+	}
+	
+	/**
+	 * Gets the part of the frame this effect processes.
+	 * @return The region, or null if the whole frame is processed.
+	 */
+	public RegionOfInterest getRegionOfInterest() {
+		return regionOfInterest;
+	}
+	
+	/**
+	 * Sets the part of the frame this effect processes, for effects which support
+	 * it; the output outside it is undefined. The camera gives every effect in
+	 * its chain the same region.
+	 * @param region The region, or null to process the whole frame.
+	 */
+	public void setRegionOfInterest(RegionOfInterest region) {
+		this.regionOfInterest = region;
+	}
+	
+	/**
+	 * Gets the tracker of the tiles that changed in each frame.
+	 * @return The tracker, or null if whole frames are processed.
+	 */
+	public DirtyTileTracker getDirtyTileTracker() {
+		return dirtyTileTracker;
+	}
+	
+	/**
+	 * Sets the tracker of the tiles that changed in each frame, which must come
+	 * before this effect in the chain. Incremental effects then process only the
+	 * dirty tiles (see <code>isIncremental()</code>). The camera gives every effect
+	 * in its chain the tracker in the chain, if any.
+	 * @param tracker The tracker, or null to process whole frames.
+	 */
+	public void setDirtyTileTracker(DirtyTileTracker tracker) {
+		this.dirtyTileTracker = tracker;
+	}
+	
+	/**
+	 * Returns true if the effect may process only the dirty tiles of a frame,
+	 * given a {@link DirtyTileTracker}: <code>getRegionSpans()</code> then gives
+	 * the spans of the dirty tiles, and the output is written to a buffer kept by
+	 * the effect, so that elsewhere it stays the last frame's. (The kept buffer is
+	 * copied to the output.) Effects whose output within a tile depends only on
+	 * their input within it, and which write all of their output within the spans
+	 * they are given, may return true. False by default.
+	 * @return true if the effect is incremental.
+	 */
+	protected boolean isIncremental() {
+		return false;
+	}
+	
+	/**
+	 * Gets the length of the output an incremental effect writes, which is what
+	 * is copied from the output it keeps.
+	 * @param format Format of the frame.
+	 * @param inputLength Length of the input (bytes, or packed pixels).
+	 * @return The length of the output; by default the length of the input.
+	 */
+	protected int getOutputLength(VideoFormat format, int inputLength) {
+		return inputLength;
+	}
+	
+	/**
+	 * Gets the spans of the tiles of the frame that changed since the last frame
+	 * (and of their neighbors), within the region of interest. Effects which keep
+	 * state of their own from frame to frame may use this to update only the dirty
+	 * tiles.
+	 * @param format Format of the frame.
+	 * @return The spans, or null if the whole region must be processed: there is
+	 * no tracker, the tracker refreshes the whole frame, or this effect is
+	 * incremental and its kept output is not the last frame's.
+	 */
+	protected RegionOfInterest.Spans getDirtySpans(VideoFormat format) {
+		DirtyTileTracker tracker = dirtyTileTracker;
+		if (!isTrackingTiles() || (isIncremental() && !keptOutputCurrent)) {
+			return null;
+		}
+		return tracker.getDirtySpans(format.getSize());
+	}
+	
+	private boolean isTrackingTiles() {
+		DirtyTileTracker tracker = dirtyTileTracker;
+		return tracker != null && tracker.isTracking();
+	}
+	
+	/**
+	 * Gets the output this effect keeps from frame to frame, (re)allocating it if
+	 * it is not of the type and length of the output.
+	 * @param output The output data, for its type.
+	 * @param length Length of the output.
+	 */
+	private Object getKeptOutput(Object output, int length) {
+		if (output instanceof int[]) {
+			if (!(keptOutput instanceof int[]) || ((int[]) keptOutput).length != length) {
+				releaseKeptOutput();
+				keptOutput = borrowPackedBuffer(length);
+			}
+		} else if (!(keptOutput instanceof byte[]) || ((byte[]) keptOutput).length != length) {
+			releaseKeptOutput();
+			keptOutput = borrowBuffer(length);
+		}
+		return keptOutput;
+	}
+	
+	private void releaseKeptOutput() {
+		if (keptOutput instanceof int[]) {
+			releaseBuffer((int[]) keptOutput);
+		} else if (keptOutput instanceof byte[]) {
+			releaseBuffer((byte[]) keptOutput);
+		}
+		keptOutput = null;
+		keptOutputCurrent = false;
+	}
+	
+	/**
+	 * Gets the most bands <code>forEachBand()</code> may split a frame into, for
+	 * kernels which keep data per band.
+	 * @return An upper bound of the band indices, plus one.
+	 */
+	protected int getMaxBandCount() {
+		RowBandExecutor executor = bandExecutor;
+		return executor != null ? executor.getParallelism() : 1;
+	}
+	
 	protected void updateImage(byte[] bout, VideoFormat vformat) {
 		synchronized (displayImage) {
 			WritableRaster rast = displayImage.getRaster();
@@ -172,6 +748,54 @@ public abstract class RgbVideoEffect implements Effect {
 		}
 	}
 	
+	/**
+	 * Draws a frame given as a {@link ByteBuffer} (passed on by a
+	 * {@link ByteBufferInput}) into the display image. By default the frame is
+	 * copied into an array (see <code>toByteArray()</code>) for
+	 * <code>updateImage(byte[], VideoFormat)</code>.
+	 * @param data The frame.
+	 * @param vformat Format of the frame.
+	 */
+	protected void updateByteBufferImage(ByteBuffer data, VideoFormat vformat) {
+		updateImage(toByteArray(data), vformat);
+	}
+	
+	/**
+	 * Draws a frame of packed XRGB pixels (stored bottom-up) into the display image.
+	 * @param iout The pixels.
+	 * @param vformat Format of the frame.
+	 */
+	protected void updatePackedImage(int[] iout, VideoFormat vformat) {
+		synchronized (displayImage) {
+			int width = vformat.getSize().width;
+			int p = 0;
+			for (int y = vformat.getSize().height - 1; y >= 0; y--) {
+				displayImage.setRGB(0, y, width, 1, iout, p, width);
+				p += width;
+			}
+		}
+	}
+	
+	/**
+	 * Draws a bit mask plane (stored bottom-up) into the display image, white
+	 * where the mask is on.
+	 * @param lout The plane.
+	 * @param vformat Format of the frame.
+	 */
+	protected void updateBitMaskImage(long[] lout, VideoFormat vformat) {
+		synchronized (displayImage) {
+			int width = vformat.getSize().width;
+			int height = vformat.getSize().height;
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					row[x] = BitMaskPlane.get(lout, width, x, y) ? 0xffffff : 0;
+				}
+				displayImage.setRGB(0, height - 1 - y, width, 1, row, 0, width);
+			}
+		}
+	}
+	
 	/*
 	public void setDisplayImage(BufferedImage image) {
 		displayImage = image;
@@ -201,7 +825,52 @@ public abstract class RgbVideoEffect implements Effect {
 	 * @return Average time in seconds.
 	 */
 	public double getAvgProcessingTime() {
-		return totalTime == 0.0 ? 0.0 : (double) nCalls / totalTime;
+		return nCalls == 0 ? 0.0 : totalTime / (double) nCalls;
+	}
+	
+	/**
+	 * Gets the total time this effect has spent processing frames, in seconds.
+	 * @return Total time in seconds.
+	 */
+	public double getTotalProcessingTime() {
+		return totalTime;
+	}
+	
+	/**
+	 * Gets the number of frames this effect has processed (while active).
+	 * @return The number of frames processed.
+	 */
+	public long getProcessedFrameCount() {
+		return nCalls;
+	}
+	
+	/**
+	 * Gets the sequence number of the frame being processed, as given by its buffer.
+	 * Only valid during <code>processRGB()</code>.
+	 * @return The sequence number, or <code>Buffer.SEQUENCE_UNKNOWN</code>.
+	 */
+	protected long getFrameSequenceNumber() {
+		return frameSequenceNumber;
+	}
+	
+	/**
+	 * Tells the effect how many frames may be in flight in the chain at once
+	 * (more than 1 if the chain is pipelined, see
+	 * {@link net.joelbecker.video.processing.camera.PipelinedChainExecutor}).
+	 * Effects that publish per-frame data for later effects in the chain must
+	 * keep it for that many frames. No op by default.
+	 * @param frames The number of frames in flight.
+	 */
+	public void setFramesInFlight(int frames) {
+	}
+	
+	/**
+	 * Gets the time stamp of the frame being processed, as given by its buffer.
+	 * Only valid during <code>processRGB()</code>.
+	 * @return The time stamp in nanoseconds, or <code>Buffer.TIME_UNKNOWN</code>.
+	 */
+	protected long getFrameTimeStamp() {
+		return frameTimeStamp;
 	}
 	
 	public Object[] getControls() {
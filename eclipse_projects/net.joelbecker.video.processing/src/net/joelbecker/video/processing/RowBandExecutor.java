@@ -0,0 +1,189 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a per-pixel kernel over a frame in parallel, split into bands of whole
+ * rows (tiles as wide as the frame, so each band is one contiguous range of the
+ * frame buffer). The bands are run on a {@link ForkJoinPool}. A frame is split
+ * into at most as many bands as the parallelism, and no band has fewer pixels
+ * than the minimum band size, so small frames are processed on the calling
+ * thread without any overhead.
+ * Effects opt in by running their loops through
+ * <code>RgbVideoEffect.forEachBand()</code>.
+ */
+public class RowBandExecutor {
+
+	/** Default minimum number of pixels per band. */
+	public static final int DEFAULT_MIN_BAND_PIXELS = 64 * 1024;
+	
+	/**
+	 * Kernel run on each band of a frame. Bands of the same frame run
+	 * concurrently, so a kernel must only write to its own rows, or to data of
+	 * its own band (see the band index).
+	 */
+	public interface Kernel {
+		/**
+		 * Processes a band of rows.
+		 * @param band Index of the band, from 0 to the band count - 1.
+		 * @param fromRow First row of the band.
+		 * @param toRow Row after the last row of the band.
+		 */
+		void run(int band, int fromRow, int toRow);
+	}
+	
+	private final ForkJoinPool pool;
+	private final int parallelism;
+	private volatile int minBandPixels;
+	
+	
+	/**
+	 * Constructor, for as many threads as there are processors.
+	 */
+	public RowBandExecutor() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MIN_BAND_PIXELS);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param parallelism Maximum number of bands a frame is split into (and threads running them).
+	 * @param minBandPixels Minimum number of pixels in a band.
+	 */
+	public RowBandExecutor(int parallelism, int minBandPixels) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		setMinBandPixels(minBandPixels);
+		pool = (parallelism > 1 ? new ForkJoinPool(parallelism) : null);
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	public int getMinBandPixels() {
+		return minBandPixels;
+	}
+	
+	/**
+	 * Sets the minimum number of pixels in a band, below which splitting a frame
+	 * further costs more than it gains.
+	 * @param minBandPixels The minimum number of pixels.
+	 */
+	public void setMinBandPixels(int minBandPixels) {
+		if (minBandPixels < 1) {
+			throw new IllegalArgumentException("minBandPixels must be at least 1");
+		}
+		this.minBandPixels = minBandPixels;
+	}
+	
+	/**
+	 * Gets the number of bands a frame of the given size is split into, so that
+	 * kernels can keep data per band (e.g. partial sums).
+	 * @param width Frame width in pixels.
+	 * @param height Frame height in pixels.
+	 * @return The number of bands, at least 1.
+	 */
+	public int getBandCount(int width, int height) {
+		long pixels = (long) width * height;
+		long bands = Math.min(parallelism, Math.min(height, pixels / minBandPixels));
+		return (int) Math.max(1, bands);
+	}
+	
+	/**
+	 * Runs the kernel on all bands of a frame, and waits for it to finish. If the
+	 * frame is not split, the kernel is run on the calling thread.
+	 * @param width Frame width in pixels.
+	 * @param height Frame height in pixels.
+	 * @param kernel The kernel.
+	 */
+	public void execute(int width, int height, Kernel kernel) {
+		executeBands(height, getBandCount(width, height), kernel);
+	}
+	
+	/**
+	 * Runs the kernel on the given number of bands of a frame, and waits for it to
+	 * finish. For kernels whose passes must see the same bands (see
+	 * <code>getBandCount()</code>).
+	 * @param height Frame height in pixels.
+	 * @param bands Number of bands, from 1 to the height (which may exceed the parallelism).
+	 * @param kernel The kernel.
+	 */
+	public void executeBands(int height, int bands, Kernel kernel) {
+		if (bands == 1 || pool == null) {
+			for (int band = 0; band < bands; band++) {
+				kernel.run(band, getBandStart(band, bands, height), getBandStart(band + 1, bands, height));
+			}
+		} else {
+			pool.invoke(new BandTask(kernel, height, bands, 0, bands));
+		}
+	}
+	
+	/**
+	 * Gets the first row of a band; bands differ in height by at most one row.
+	 * @param band Index of the band (or the band count, for the row after the last band).
+	 * @param bands Number of bands.
+	 * @param height Frame height in pixels.
+	 * @return The first row of the band.
+	 */
+	public static int getBandStart(int band, int bands, int height) {
+		return (int) ((long) band * height / bands);
+	}
+	
+	/** Stops the threads. The executor must not be used afterwards. */
+	public void shutdown() {
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+	
+	/** Runs a range of bands, splitting it in halves until each half is one band. */
+	private static class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Kernel kernel;
+		private final int height;
+		private final int bands;
+		private final int fromBand;
+		private final int toBand;
+		
+		BandTask(Kernel kernel, int height, int bands, int fromBand, int toBand) {
+			this.kernel = kernel;
+			this.height = height;
+			this.bands = bands;
+			this.fromBand = fromBand;
+			this.toBand = toBand;
+		}
+		
+		@Override
+		protected void compute() {
+			if (toBand - fromBand == 1) {
+				kernel.run(fromBand, getBandStart(fromBand, bands, height),
+						getBandStart(toBand, bands, height));
+			} else {
+				int middle = (fromBand + toBand) >>> 1;
+				invokeAll(new BandTask(kernel, height, bands, fromBand, middle),
+						new BandTask(kernel, height, bands, middle, toBand));
+			}
+		}
+	}
+}
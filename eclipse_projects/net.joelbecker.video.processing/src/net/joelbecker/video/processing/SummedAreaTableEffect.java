@@ -0,0 +1,236 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.awt.Rectangle;
+
+import javax.media.format.VideoFormat;
+
+/**
+ * <p>Builds the summed-area table (integral image) of each frame, so that the
+ * sum of the pixels of any rectangle is four lookups, whatever its size. Effects
+ * later in the chain query it for region sums (see
+ * <code>RegionSums.setRegionRectangles()</code>) and box filters. The frame is
+ * passed on unchanged.</p>
+ * 
+ * <p>The value of a pixel is the sum of its color components, or its byte in
+ * a mask of one byte per pixel (see <code>setMaskInput()</code>). The table has a row and a column of zeros
+ * before the frame's: entry <code>(row + 1) * (width + 1) + column + 1</code>
+ * is the sum of the pixels of the rows up to <code>row</code> and the columns
+ * up to <code>column</code>, in the order of the frame (rows from the bottom up).
+ * The entries are ints, which wrap around for large frames; the difference of
+ * four of them is still exact as an unsigned int, so the sum of any rectangle
+ * of up to 5.6 million pixels (2^32 / 765) is exact.</p>
+ * 
+ * <p>The bands of rows (see <code>forEachBand()</code>) are summed in parallel,
+ * each from its first row, and the sums of the bands before each band are then
+ * added to it. The whole frame is always processed. The table is that of the
+ * frame last processed, so in a pipelined chain it should be queried by effects
+ * of the same stage.</p>
+ */
+public class SummedAreaTableEffect extends RgbVideoEffect implements RgbVideoEffect.PackedRgbInput {
+
+	private int[] table = new int[0];
+	private int width;
+	private int height;
+	
+	/** Whether the input is a mask of one byte per pixel instead of 24-bit pixels. */
+	private boolean maskInput;
+	
+	@Override
+	public String getName() {
+		return "Summed-Area Table";
+	}
+	
+	public boolean isMaskInput() {
+		return maskInput;
+	}
+	
+	/**
+	 * Sets whether the input is a mask of one byte per pixel (e.g. from a
+	 * {@link RgbThresholdEffect}), instead of 24-bit pixels. Neither the format
+	 * nor the length of the input tells: the effects before pass the frame's
+	 * format on, and a mask may be in a buffer as long as the frame's.
+	 * @param maskInput true if the input is a mask.
+	 */
+	public void setMaskInput(boolean maskInput) {
+		this.maskInput = maskInput;
+	}
+	
+	/**
+	 * Gets the table of the last frame (see the class description).
+	 * @return The table, of <code>(getWidth() + 1) * (getHeight() + 1)</code> entries.
+	 */
+	public int[] getTable() {
+		return table;
+	}
+	
+	/** Gets the width of the last frame. */
+	public int getWidth() {
+		return width;
+	}
+	
+	/** Gets the height of the last frame. */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Gets the sum of the pixels of a rectangle of the last frame.
+	 * @param rectangle Rectangle in frame coordinates, 0,0 being the top-left of
+	 * the frame, as for <code>RegionOfInterest</code>. It is clipped to the frame.
+	 * @return The sum, or 0 if the rectangle is outside the frame.
+	 */
+	public long getSum(Rectangle rectangle) {
+		return getSum(rectangle.x, rectangle.y, rectangle.width, rectangle.height);
+	}
+	
+	/**
+	 * Gets the sum of the pixels of a rectangle of the last frame.
+	 * @param x Left column, in frame coordinates (0,0 being the top-left)
+	 * @param y Top row, in frame coordinates
+	 * @param width Width, in pixels
+	 * @param height Height, in pixels
+	 * @return The sum, or 0 if the rectangle is outside the frame.
+	 */
+	public long getSum(int x, int y, int width, int height) {
+		int left = Math.max(x, 0);
+		int right = Math.min(x + width, this.width);
+		// The frame's rows are from the bottom up
+		int bottom = Math.max(this.height - y - height, 0);
+		int top = Math.min(this.height - y, this.height);
+		if (left >= right || bottom >= top) {
+			return 0;
+		}
+		int tableWidth = this.width + 1;
+		return (table[top * tableWidth + right] - table[top * tableWidth + left]
+				- table[bottom * tableWidth + right] + table[bottom * tableWidth + left]) & 0xffffffffL;
+	}
+	
+	/** Builds the table of the frame, which is passed on. */
+	@Override
+	protected boolean processRGB(final byte[] bin, byte[] bout, VideoFormat format) {
+		final int width = prepareTable(format);
+		final int[] table = this.table;
+		final int pixelBytes = maskInput ? 1 : 3;
+		buildTable(format, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				int tableWidth = width + 1;
+				int i = fromRow * width * pixelBytes;
+				int t, sum, x;
+				for (int y = fromRow; y < toRow; y++) {
+					t = (y + 1) * tableWidth + 1;
+					sum = 0;
+					if (pixelBytes == 3) {
+						for (x = 0; x < width; x++, i += 3) {
+							sum += (bin[i] & 0xff) + (bin[i + 1] & 0xff) + (bin[i + 2] & 0xff);
+							table[t + x] = sum + (y > fromRow ? table[t + x - tableWidth] : 0);
+						}
+					} else {
+						for (x = 0; x < width; x++, i++) {
+							sum += bin[i] & 0xff;
+							table[t + x] = sum + (y > fromRow ? table[t + x - tableWidth] : 0);
+						}
+					}
+				}
+			}
+		});
+		return false;
+	}
+	
+	/** Builds the table of the frame of packed pixels, which is passed on. */
+	@Override
+	public boolean processPackedRGB(final int[] iin, int[] iout, VideoFormat format) {
+		final int width = prepareTable(format);
+		final int[] table = this.table;
+		buildTable(format, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				int tableWidth = width + 1;
+				int p = fromRow * width;
+				int t, sum, x, v;
+				for (int y = fromRow; y < toRow; y++) {
+					t = (y + 1) * tableWidth + 1;
+					sum = 0;
+					for (x = 0; x < width; x++) {
+						v = iin[p++];
+						sum += ((v >> 16) & 0xff) + ((v >> 8) & 0xff) + (v & 0xff);
+						table[t + x] = sum + (y > fromRow ? table[t + x - tableWidth] : 0);
+					}
+				}
+			}
+		});
+		return false;
+	}
+	
+	/**
+	 * Sizes the table for the frame, with its first row of zeros.
+	 * @return The width of the frame.
+	 */
+	private int prepareTable(VideoFormat format) {
+		width = format.getSize().width;
+		height = format.getSize().height;
+		int length = (width + 1) * (height + 1);
+		if (table.length != length) {
+			table = new int[length];	// the first row and column stay 0
+		}
+		return width;
+	}
+	
+	/**
+	 * Runs a kernel summing each band of rows from its first row, then adds the
+	 * sums of the bands before each band to its rows.
+	 * @param kernel The kernel; the rows of each band are summed as if the rows
+	 * before it were 0.
+	 */
+	private void buildTable(VideoFormat format, RowBandExecutor.Kernel kernel) {
+		RowBandExecutor executor = getBandExecutor();
+		final int bands = executor != null ? executor.getBandCount(width, height) : 1;
+		if (bands == 1) {
+			kernel.run(0, 0, height);
+			return;
+		}
+		executor.executeBands(height, bands, kernel);
+		
+		// The last row of each band, in turn, from the last row of the band before
+		final int tableWidth = width + 1;
+		final int[] table = this.table;
+		for (int band = 1; band < bands; band++) {
+			int from = RowBandExecutor.getBandStart(band, bands, height) * tableWidth;
+			int to = RowBandExecutor.getBandStart(band + 1, bands, height) * tableWidth;
+			for (int x = 1; x < tableWidth; x++) {
+				table[to + x] += table[from + x];
+			}
+		}
+		
+		// The other rows of each band, from the last row of the band before
+		executor.executeBands(height, bands, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				if (band == 0) {
+					return;
+				}
+				int carry = fromRow * tableWidth;
+				for (int y = fromRow + 1; y < toRow; y++) {
+					int t = y * tableWidth;
+					for (int x = 1; x < tableWidth; x++) {
+						table[t + x] += table[carry + x];
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,139 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>The hottest per-pixel kernels of the chain on SIMD instructions, through
+ * the Vector API (the incubating module <code>jdk.incubator.vector</code> of
+ * Java 16 and later), which processes 16 to 64 components per instruction.</p>
+ * 
+ * <p>The implementation is in the <code>net.joelbecker.video.processing.vector</code>
+ * fragment, which is compiled on its own since it needs the module. It is used
+ * if the fragment is on the class path, the JVM was started with
+ * <code>--add-modules jdk.incubator.vector</code>, and the hardware has vectors
+ * of at least 256 bits; otherwise there is no instance, and the effects run
+ * their own loops. Setting the system property <code>PROP_ENABLED</code> to
+ * false keeps the effects on their own loops regardless.</p>
+ * 
+ * <p>Every kernel gives exactly the results of the loops of the effects. The
+ * kernels are much slower than those loops until the JIT has compiled them,
+ * which takes the first few dozen frames.</p>
+ */
+public abstract class VectorKernels {
+
+	/** System property which, set to "false", disables the vector kernels. */
+	public static final String PROP_ENABLED = "net.joelbecker.video.processing.vector";
+	
+	/** The implementation, in the fragment. */
+	private static final String IMPLEMENTATION = "net.joelbecker.video.processing.vector.VectorApiKernels";
+	
+	private static final VectorKernels instance = load();
+	
+	
+	/**
+	 * Gets the vector kernels, if they can be used.
+	 * @return The kernels, or null if the effects must run their own loops.
+	 */
+	public static VectorKernels getInstance() {
+		return instance;
+	}
+	
+	/** Loads the implementation, if the fragment, the module and the hardware allow. */
+	private static VectorKernels load() {
+		if ("false".equalsIgnoreCase(System.getProperty(PROP_ENABLED))) {
+			return null;
+		}
+		try {
+			Class<?> implementation = Class.forName(IMPLEMENTATION, true, VectorKernels.class.getClassLoader());
+			return (VectorKernels) implementation.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;	// no fragment
+		} catch (LinkageError e) {
+			return null;	// no module
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof UnsupportedOperationException) {
+				return null;	// vectors too narrow to pay off
+			}
+			System.err.println("Could not load the vector kernels: " + e.getCause());
+			return null;
+		} catch (Exception e) {
+			System.err.println("Could not load the vector kernels: " + e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets a description of the kernels, e.g. their vector size.
+	 * @return The description.
+	 */
+	public abstract String getDescription();
+	
+	/**
+	 * Subtracts the components of the background from those of a frame, as
+	 * unsigned bytes, as {@link RgbDiffEffect} does.
+	 * @param in The frame, from index 0 (heap or direct, in any byte order).
+	 * @param background The background.
+	 * @param out The absolute differences.
+	 * @param from Index of the first component.
+	 * @param to Index after the last component.
+	 */
+	public abstract void absoluteDifferences(ByteBuffer in, byte[] background, byte[] out, int from, int to);
+	
+	/**
+	 * Tells whether <code>threshold()</code> is faster than the effect's own
+	 * loop, which it is not if the vectors are too narrow to gather the
+	 * components of the pixels cheaply.
+	 * @return true if the effect should use <code>threshold()</code>.
+	 */
+	public abstract boolean hasThreshold();
+	
+	/**
+	 * Thresholds 24-bit pixels into one byte per pixel, as {@link RgbThresholdEffect}
+	 * does: a pixel is on (255) if any of its components, as a char, is greater
+	 * than the threshold.
+	 * @param in The pixels, 3 bytes each.
+	 * @param out The mask.
+	 * @param from Index of the first pixel.
+	 * @param to Index after the last pixel.
+	 * @param threshold The threshold.
+	 * @return The number of pixels on.
+	 */
+	public abstract int threshold(byte[] in, byte[] out, int from, int to, char threshold);
+	
+	/**
+	 * Moves the running average of each component towards a frame, and rounds it
+	 * into the background, as {@link BackgroundUpdater} does: by
+	 * <code>((frame &lt;&lt; 8) - average) * rate</code> with the rate in fixed
+	 * point, rounded, where the rate is that of the foreground where the mask is on.
+	 * @param mask The mask, of which <code>mask[i - maskBase]</code> is pixel i's.
+	 * @param maskBase Index of the pixel of the first byte of the mask.
+	 * @param frame The frame, 3 bytes per pixel.
+	 * @param accumulator The running average of each component, in 8.8 fixed point.
+	 * @param background The background.
+	 * @param rate The rate where the mask is off, with <code>rateBits</code> of fraction.
+	 * @param foregroundRate The rate where the mask is on.
+	 * @param rateBits Bits of fraction of the rates.
+	 * @param from Index of the first pixel.
+	 * @param to Index after the last pixel.
+	 */
+	public abstract void updateBackground(byte[] mask, int maskBase, byte[] frame, char[] accumulator,
+			byte[] background, int rate, int foregroundRate, int rateBits, int from, int to);
+}
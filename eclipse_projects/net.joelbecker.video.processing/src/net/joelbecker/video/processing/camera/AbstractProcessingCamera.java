@@ -18,7 +18,10 @@
 package net.joelbecker.video.processing.camera;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.media.Codec;
 import javax.media.ConfigureCompleteEvent;
 import javax.media.ControllerEvent;
 import javax.media.ControllerListener;
@@ -37,7 +40,12 @@ import javax.media.format.VideoFormat;
 
 import net.joelbecker.video.processing.BackgroundUpdater;
 import net.joelbecker.video.processing.BufferAccessor;
+import net.joelbecker.video.processing.Checkpointable;
+import net.joelbecker.video.processing.DirtyTileTracker;
+import net.joelbecker.video.processing.FrameBufferPool;
+import net.joelbecker.video.processing.RegionOfInterest;
 import net.joelbecker.video.processing.RgbVideoEffect;
+import net.joelbecker.video.processing.RowBandExecutor;
 
 /**
  * <p>
@@ -54,6 +62,37 @@ public abstract class AbstractProcessingCamera implements IProcessingCamera, Con
 	private Object waitSync = new Object();
 	private boolean stateTransitionOK = true;
 	private RgbVideoEffect effectChain[];
+	
+	/** Whether to restart the media when its end is reached. */
+	private boolean loopAtEndOfMedia = true;
+	
+	/** Whether the end of media was reached (and the media was not restarted). */
+	private boolean endOfMedia;
+	private Object endOfMediaSync = new Object();
+	
+	/** Frame buffers shared by the effects in the chain. */
+	private FrameBufferPool bufferPool = new FrameBufferPool();
+	
+	/** Runs the per-pixel loops of the effects in the chain on bands of rows in parallel, or null. */
+	private RowBandExecutor bandExecutor;
+	
+	/** Whether the camera creates its own band executor, using all processors, when opened. */
+	private boolean defaultBandExecutor = true;
+	
+	/** Whether bandExecutor was created by the camera, which then shuts it down. */
+	private boolean ownBandExecutor;
+	
+	/** Part of the frame the effects in the chain process (null for all of it). */
+	private RegionOfInterest regionOfInterest;
+	
+	/** Drops frames before they enter the chain when it falls behind, or null to process every frame. */
+	private FrameDropGovernor frameGovernor;
+	
+	/** File the state of the chain is checkpointed to, or null. */
+	private CheckpointFile checkpointFile;
+	
+	/** The parts of the state saved in checkpoints, while open with a checkpoint file. */
+	private List<Checkpointable> checkpointParts;
 
 	protected BufferAccessor bufferAccessor;
 	protected BackgroundUpdater backgroundUpdater;	
@@ -115,10 +154,26 @@ public abstract class AbstractProcessingCamera implements IProcessingCamera, Con
 		System.err.println("Video format: " + videoTrack.getFormat());
 
 		// Create the video codec chain.
-		effectChain = createEffectChain();
+		initEffectChain();
+		restoreCheckpoint();
+		setEndOfMedia(false);
+		List<Codec> codecChain = new ArrayList<Codec>();
+		if (frameGovernor != null) {
+			frameGovernor.reset();
+			codecChain.add(new GovernorGate(frameGovernor, true));
+		}
+		for (RgbVideoEffect effect : effectChain) {
+			codecChain.add(effect);
+		}
+		if (frameGovernor != null) {
+			codecChain.add(new GovernorGate(frameGovernor, false));
+		}
+		if (checkpointParts != null) {
+			codecChain.add(new CheckpointGate(checkpointFile, checkpointParts));
+		}
 		
 		try {
-			videoTrack.setCodecChain(effectChain);
+			videoTrack.setCodecChain(codecChain.toArray(new Codec[codecChain.size()]));
 		} catch (UnsupportedPlugInException e) {
 			System.err.println("The process does not support effects.");
 		}
@@ -149,13 +204,216 @@ public abstract class AbstractProcessingCamera implements IProcessingCamera, Con
 	}
 	
 	protected abstract RgbVideoEffect[] createEffectChain();
+	
+	/**
+	 * Creates the effect chain (see <code>createEffectChain()</code>) and makes it
+	 * the processing chain of this camera. The effects borrow their frame buffers
+	 * from this camera's pool, and are given the {@link DirtyTileTracker} in the
+	 * chain, if any.
+	 * @return The new effect chain.
+	 */
+	protected RgbVideoEffect[] initEffectChain() {
+		effectChain = createEffectChain();
+		if (bandExecutor == null && defaultBandExecutor) {
+			bandExecutor = new RowBandExecutor();
+			ownBandExecutor = true;
+		}
+		DirtyTileTracker tracker = null;
+		for (RgbVideoEffect effect : effectChain) {
+			if (effect instanceof DirtyTileTracker) {
+				tracker = (DirtyTileTracker) effect;
+			}
+		}
+		for (RgbVideoEffect effect : effectChain) {
+			effect.setBufferPool(bufferPool);
+			effect.setBandExecutor(bandExecutor);
+			effect.setRegionOfInterest(regionOfInterest);
+			effect.setDirtyTileTracker(tracker);
+		}
+		return effectChain;
+	}
+	
+	/**
+	 * Gets the executor which runs the per-pixel loops of the effects in the chain
+	 * on bands of rows in parallel. By default it uses all processors, and is
+	 * created when the camera is opened and shut down when it is closed.
+	 * @return The executor, or null if the loops run sequentially (or the
+	 * default one is not created yet).
+	 */
+	public RowBandExecutor getBandExecutor() {
+		return bandExecutor;
+	}
+	
+	/**
+	 * Sets the executor which runs the per-pixel loops of the effects in the chain
+	 * on bands of rows in parallel, e.g. to set the parallelism or the minimum band
+	 * size. Should be set before the camera is opened. The executor is not shut
+	 * down by the camera, but one the camera created is, when replaced.
+	 * @param executor The executor, or null to run the loops sequentially.
+	 */
+	public void setBandExecutor(RowBandExecutor executor) {
+		if (executor != bandExecutor) {
+			closeBandExecutor();
+		}
+		this.bandExecutor = executor;
+		defaultBandExecutor = false;
+		if (effectChain != null) {
+			for (RgbVideoEffect effect : effectChain) {
+				effect.setBandExecutor(executor);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the part of the frame the effects in the chain process.
+	 * @return The region, or null if the whole frame is processed.
+	 */
+	public RegionOfInterest getRegionOfInterest() {
+		return regionOfInterest;
+	}
+	
+	/**
+	 * Sets the part of the frame the effects in the chain process, e.g. a driveway
+	 * or a doorway. The difference, threshold, dilation and background effects
+	 * and the blob detector iterate only the region's spans, so their cost is in
+	 * proportion to its area; nothing is detected outside it.
+	 * @param region The region, or null to process the whole frame.
+	 */
+	public void setRegionOfInterest(RegionOfInterest region) {
+		this.regionOfInterest = region;
+		if (effectChain != null) {
+			for (RgbVideoEffect effect : effectChain) {
+				effect.setRegionOfInterest(region);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the governor which drops frames before they enter the chain when it
+	 * falls behind, with its counters of processed, dropped and queued frames.
+	 * @return The governor, or null if every frame is processed.
+	 */
+	public FrameDropGovernor getFrameGovernor() {
+		return frameGovernor;
+	}
+	
+	/**
+	 * Sets the governor which drops frames before they enter the chain when it
+	 * falls behind a live source, bounding the latency (see
+	 * {@link FrameDropGovernor}). By default every frame is processed, however
+	 * late. Takes effect when the camera is next opened, which resets the
+	 * governor.
+	 * @param governor The governor, or null to process every frame.
+	 */
+	public void setFrameGovernor(FrameDropGovernor governor) {
+		this.frameGovernor = governor;
+	}
+	
+	/**
+	 * Gets the file the state of the chain is checkpointed to.
+	 * @return The checkpoint file, or null if no checkpoints are taken.
+	 */
+	public CheckpointFile getCheckpointFile() {
+		return checkpointFile;
+	}
+	
+	/**
+	 * Sets the file the state of the chain (see <code>getCheckpointables()</code>)
+	 * is checkpointed to, periodically and when the camera is closed. When the
+	 * camera is opened, the state is restored from it, so that processing carries
+	 * on where it left off. Takes effect when the camera is next opened.
+	 * @param checkpointFile The checkpoint file, or null to take no checkpoints.
+	 */
+	public void setCheckpointFile(CheckpointFile checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+	
+	/**
+	 * Gets the parts of the state of the chain which are saved in checkpoints: by
+	 * default, the effects in the chain which are {@link Checkpointable}.
+	 * Subclasses may add their own state.
+	 * @return The parts of the state.
+	 */
+	protected List<Checkpointable> getCheckpointables() {
+		List<Checkpointable> parts = new ArrayList<Checkpointable>();
+		for (RgbVideoEffect effect : effectChain) {
+			if (effect instanceof Checkpointable) {
+				parts.add((Checkpointable) effect);
+			}
+		}
+		return parts;
+	}
+	
+	/**
+	 * Restores the state of the chain from the checkpoint file, if any. Called
+	 * when the camera is opened, after the effect chain is created.
+	 */
+	protected void restoreCheckpoint() {
+		if (checkpointFile == null) {
+			checkpointParts = null;
+			return;
+		}
+		checkpointParts = getCheckpointables();
+		int restored = checkpointFile.restore(checkpointParts);
+		if (restored > 0) {
+			System.err.println("Restored " + restored + " of " + checkpointParts.size()
+					+ " parts of the state from " + checkpointFile.getFile());
+		}
+	}
+	
+	/**
+	 * Takes a checkpoint of the state of the chain if one is due. Called on the
+	 * processing thread, after a frame went through the chain.
+	 */
+	protected void checkpointIfDue() {
+		if (checkpointParts != null) {
+			checkpointFile.checkpointIfDue(checkpointParts);
+		}
+	}
+	
+	/**
+	 * Writes a last checkpoint of the state of the chain, and releases the
+	 * checkpoint file. Called when the camera is closed, after processing stopped.
+	 */
+	protected void closeCheckpoint() {
+		if (checkpointParts != null) {
+			checkpointFile.checkpoint(checkpointParts);
+			checkpointFile.close();
+			checkpointParts = null;
+		}
+	}
+	
+	/**
+	 * Gets the pool of frame buffers which the effects in the chain borrow from.
+	 * Its hit and miss counts show whether processing allocates any buffers.
+	 * @return The buffer pool.
+	 */
+	public FrameBufferPool getBufferPool() {
+		return bufferPool;
+	}
 
 	/* (non-Javadoc)
 	 * @see net.joelbecker.video.processing.camera.IProcessingCamera#close()
 	 */
 	public void close() {
-		processor.close();
-		processor = null;
+		if (processor != null) {
+			processor.close();
+			processor = null;
+			closeCheckpoint();
+			closeBandExecutor();
+		}
+	}
+	
+	/**
+	 * Shuts the band executor down if the camera created it (see
+	 * <code>getBandExecutor()</code>), once the chain is done with it.
+	 */
+	protected void closeBandExecutor() {
+		if (ownBandExecutor) {
+			bandExecutor.shutdown();
+			bandExecutor = null;
+			ownBandExecutor = false;
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -177,6 +435,57 @@ public abstract class AbstractProcessingCamera implements IProcessingCamera, Con
 		return null;
 	}
 	
+	/**
+	 * Returns true if the media is restarted when its end is reached (the default).
+	 * @return true if the media is looped.
+	 */
+	public boolean isLoopAtEndOfMedia() {
+		return loopAtEndOfMedia;
+	}
+	
+	/**
+	 * Sets whether the media is restarted when its end is reached. If not, the
+	 * processor is stopped, and <code>waitForEndOfMedia()</code> returns.
+	 * @param loop true to restart the media at its end.
+	 */
+	public void setLoopAtEndOfMedia(boolean loop) {
+		this.loopAtEndOfMedia = loop;
+	}
+	
+	/**
+	 * Returns true if the end of the media was reached (and it was not restarted).
+	 * @return true if the end of media was reached.
+	 */
+	public boolean isEndOfMedia() {
+		synchronized (endOfMediaSync) {
+			return endOfMedia;
+		}
+	}
+	
+	/**
+	 * Blocks until the end of the media is reached (and it is not restarted), or
+	 * the calling thread is interrupted.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void waitForEndOfMedia() throws InterruptedException {
+		synchronized (endOfMediaSync) {
+			while (!endOfMedia) {
+				endOfMediaSync.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Sets whether the end of media was reached, waking up any threads waiting for it.
+	 * @param endOfMedia true if the end of media was reached.
+	 */
+	protected void setEndOfMedia(boolean endOfMedia) {
+		synchronized (endOfMediaSync) {
+			this.endOfMedia = endOfMedia;
+			endOfMediaSync.notifyAll();
+		}
+	}
+	
 	/**
 	 * Block until the processor has transitioned to the given state. Return
 	 * false if the transition failed.
@@ -229,8 +538,13 @@ public abstract class AbstractProcessingCamera implements IProcessingCamera, Con
 				waitSync.notifyAll();
 			}
 		} else if (evt instanceof EndOfMediaEvent) {
-			processor.setMediaTime(Processor.RESET);
-			processor.start();
+			if (loopAtEndOfMedia) {
+				processor.setMediaTime(Processor.RESET);
+				processor.start();
+			} else {
+				processor.stop();
+				setEndOfMedia(true);
+			}
 			//processor.close();
 			//System.exit(0);
 		}
@@ -0,0 +1,155 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.media.Buffer;
+import javax.media.PlugIn;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.RgbVideoEffect;
+
+/**
+ * A frame on its way through an effect chain: the buffers linking the effects,
+ * where links[i] is the input of effect i, and links[i + 1] is its output. Each
+ * frame in flight needs its own links, since effects swap their input and
+ * output data.
+ */
+class ChainFrame {
+
+	private Buffer links[];
+	
+	/** Whether this frame marks the end of media (it carries no data). */
+	private boolean endOfMedia;
+	
+	
+	/**
+	 * Constructor.
+	 * @param chainLength Number of effects in the chain.
+	 * @param format Initial format of the buffers.
+	 */
+	ChainFrame(int chainLength, VideoFormat format) {
+		links = new Buffer[chainLength + 1];
+		for (int i = 0; i < links.length; i++) {
+			links[i] = new Buffer();
+			links[i].setFormat(format);
+		}
+	}
+	
+	/**
+	 * Gets the time stamp of the frame last read.
+	 * @return The time stamp in nanoseconds, or <code>Buffer.TIME_UNKNOWN</code>.
+	 */
+	long getTimeStamp() {
+		return links[0].getTimeStamp();
+	}
+	
+	boolean isEndOfMedia() {
+		return endOfMedia;
+	}
+	
+	void setEndOfMedia(boolean endOfMedia) {
+		this.endOfMedia = endOfMedia;
+	}
+	
+	/**
+	 * Reads the next frame from the source into the first link.
+	 * @param source The source of frames.
+	 * @return false at the end of media.
+	 * @throws IOException If the source failed to read the frame.
+	 */
+	boolean read(FrameSource source) throws IOException {
+		Buffer frame = links[0];
+		Object previousData = frame.getData();
+		frame.setFlags(0);	// not discarded, nor anything else the last frame was
+		if (!source.readFrame(frame) || frame.isEOM()) {
+			endOfMedia = true;
+			return false;
+		}
+		endOfMedia = false;
+		
+		// A source may hand out the same array every frame, which may still be
+		// linked further down the chain (effects swap their input and output).
+		// Give that link the array the source displaced, so that no array is ever
+		// both the input and the output of an effect. Likewise for the link of an
+		// earlier frame's ByteBuffer view, which effects passed on: it would
+		// otherwise leave the effect writing there without an output array.
+		if (frame.getData() != previousData) {
+			for (int i = 1; i < links.length; i++) {
+				Object data = links[i].getData();
+				if (data == frame.getData() || data instanceof ByteBuffer) {
+					links[i].setData(previousData);
+					break;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Pushes the frame through a range of effects in the chain.
+	 * @param chain The effect chain.
+	 * @param from Index of the first effect.
+	 * @param to Index after the last effect.
+	 * @return false if an effect failed to process the frame (which should then be dropped).
+	 */
+	boolean process(RgbVideoEffect chain[], int from, int to) {
+		for (int i = from; i < to; i++) {
+			Buffer in = links[i];
+			Buffer out = links[i + 1];
+			
+			// Like the codec chain, carry the frame attributes through to the output
+			out.setFormat(in.getFormat());
+			out.setLength(in.getLength());
+			out.setOffset(in.getOffset());
+			out.setTimeStamp(in.getTimeStamp());
+			out.setSequenceNumber(in.getSequenceNumber());
+			out.setFlags(in.getFlags());
+			
+			if ((chain[i].process(in, out) & PlugIn.BUFFER_PROCESSED_FAILED) != 0) {
+				System.err.println(chain[i].getName() + " failed to process frame "
+						+ in.getSequenceNumber());
+				// Mark the frame as discarded, so later stages skip it
+				discard(to);
+				return false;
+			}
+		}
+		links[to].setDiscard(false);
+		return true;
+	}
+	
+	/**
+	 * Marks the frame as dropped for the effects from the given one on, e.g. by
+	 * a stage which skipped it since it was dropped before that stage. Each
+	 * stage's output link must be marked, or it keeps the mark of the last frame.
+	 * @param stage Index of the first effect which is to skip the frame.
+	 */
+	void discard(int stage) {
+		links[stage].setDiscard(true);
+	}
+	
+	/**
+	 * Returns true if the frame was dropped by a stage before the given one.
+	 * @param stage Index of the effect about to process the frame.
+	 */
+	boolean isDiscarded(int stage) {
+		return links[stage].isDiscard();
+	}
+}
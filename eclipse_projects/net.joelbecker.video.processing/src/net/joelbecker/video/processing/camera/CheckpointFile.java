@@ -0,0 +1,528 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import net.joelbecker.video.processing.Checkpointable;
+
+/**
+ * <p>
+ * A memory-mapped file holding a checkpoint of the state of a processing chain
+ * (see {@link Checkpointable}): e.g. the learned background and the blobs being
+ * tracked, so that after a restart the camera is productive from the first
+ * frame, instead of capturing the background again and losing its tracks.
+ * </p>
+ * 
+ * <p>
+ * A camera given a checkpoint file restores it when it is opened, checkpoints
+ * periodically while running, and once more when it is closed. Each checkpoint
+ * is taken on the processing thread, between frames, by copying the state into
+ * a buffer; the buffer is then written to the file on a thread of its own, so
+ * the processing thread never waits for the disk. (A checkpoint falling due
+ * while the last one is still being written is skipped.)
+ * </p>
+ * 
+ * <p>
+ * The file holds two slots, which checkpoints are written to in turn, so that
+ * the last complete checkpoint is never overwritten by the next. Each slot has
+ * a header, with a generation number (one more than that of the checkpoint
+ * before it), the position and length of its payload, and the CRC of both.
+ * The payload is written where it does not overlap that of the other slot,
+ * and is on the disk before the header is written. On restore, the slot of
+ * the highest generation which passes its CRC is used, so a checkpoint which
+ * was only partly written falls back to the one before it.
+ * </p>
+ * 
+ * <p>
+ * The payload holds a section for each part of the state, named by the part's
+ * class. On restore, each section is given to the first part of that class
+ * which has none yet, and sections with no such part are skipped.
+ * </p>
+ */
+public class CheckpointFile {
+
+	/** Default time between checkpoints, in seconds. */
+	public static final double DEFAULT_INTERVAL = 10.0;
+	
+	/** "JMTC" */
+	private static final int MAGIC = 0x4a4d5443;
+	private static final int VERSION = 1;
+	
+	/**
+	 * Magic, version, part count, payload length, generation (a long), payload
+	 * position, reserved, and the CRC of the header before it and the payload (a long).
+	 */
+	private static final int HEADER_SIZE = 40;
+	
+	/** Bytes of a header which its CRC covers. */
+	private static final int HEADER_CRC_OFFSET = 32;
+	
+	/** Start of the payloads, after the headers of both slots. */
+	private static final int PAYLOADS_START = 2 * HEADER_SIZE;
+	
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+	
+	private final File file;
+	
+	/** Time between checkpoints, in nanoseconds. */
+	private volatile long interval;
+	
+	/** Time (System.nanoTime()) of the last checkpoint, or 0 if none was taken since opening. */
+	private long lastCheckpointTime;
+	
+	/** The state copied for the writer; only touched by the processing thread while not writing. */
+	private ByteBuffer snapshot;
+	
+	/** Number of sections in the snapshot. */
+	private int sectionCount;
+	
+	/** Whether the snapshot is being written to the file. */
+	private final AtomicBoolean writing = new AtomicBoolean();
+	
+	/** Writes snapshots to the file, or null until the first one. */
+	private ExecutorService writer;
+	
+	/** The last snapshot handed to the writer. */
+	private volatile Future<?> pendingWrite;
+	
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer mapped;
+	
+	/** The slot of the newest complete checkpoint in the mapped file, or null if there is none. */
+	private Slot newest;
+	
+	/** Number of checkpoints written. */
+	private volatile long checkpointCount;
+	
+	
+	/**
+	 * Constructor, for a checkpoint every <code>DEFAULT_INTERVAL</code> seconds.
+	 * @param file The file. It is created with the first checkpoint, if it does not exist.
+	 */
+	public CheckpointFile(File file) {
+		this(file, DEFAULT_INTERVAL);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param file The file. It is created with the first checkpoint, if it does not exist.
+	 * @param interval Time between checkpoints, in seconds.
+	 */
+	public CheckpointFile(File file, double interval) {
+		if (file == null) {
+			throw new NullPointerException("file");
+		}
+		this.file = file;
+		setInterval(interval);
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Gets the time between checkpoints.
+	 * @return The time, in seconds.
+	 */
+	public double getInterval() {
+		return interval / 1e9;
+	}
+	
+	/**
+	 * Sets the time between checkpoints. The shorter it is, the less is lost when
+	 * the process dies, and the more often the state is copied.
+	 * @param interval The time, in seconds.
+	 */
+	public void setInterval(double interval) {
+		if (!(interval > 0.0)) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		this.interval = (long) (interval * 1e9);
+	}
+	
+	/**
+	 * Gets the number of checkpoints written since this object was created.
+	 * @return The number of checkpoints.
+	 */
+	public long getCheckpointCount() {
+		return checkpointCount;
+	}
+	
+	/**
+	 * Restores the state of the given parts from the file, if it holds a
+	 * complete checkpoint.
+	 * @param parts The parts of the state.
+	 * @return The number of parts restored (0 if there is no checkpoint, or it is not usable).
+	 */
+	public int restore(List<Checkpointable> parts) {
+		if (!file.isFile()) {
+			return 0;
+		}
+		ByteBuffer buffer;
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read the checkpoint " + file + ": " + e);
+			return 0;
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		Slot slot = findNewestSlot(buffer);
+		if (slot == null) {
+			System.err.println("The checkpoint " + file + " is not usable.");
+			return 0;
+		}
+		int sections = slot.sections;
+		buffer.position(slot.offset);
+		buffer.limit(slot.offset + slot.length);
+		ByteBuffer payload = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		
+		boolean restored[] = new boolean[parts.size()];
+		int count = 0;
+		try {
+			for (int s = 0; s < sections; s++) {
+				byte name[] = new byte[payload.getInt()];
+				payload.get(name);
+				align(payload);
+				int size = payload.getInt();
+				payload.getInt();	// reserved
+				int end = payload.position() + size;
+				String className = new String(name, NAME_CHARSET);
+				for (int p = 0; p < restored.length; p++) {
+					Checkpointable part = parts.get(p);
+					if (!restored[p] && part.getClass().getName().equals(className)) {
+						ByteBuffer state = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+						state.limit(end);
+						restored[p] = true;
+						if (part.readCheckpoint(state.slice().order(ByteOrder.LITTLE_ENDIAN))) {
+							++count;
+						} else {
+							System.err.println("Could not restore " + className + " from the checkpoint.");
+						}
+						break;
+					}
+				}
+				payload.position(end);
+				align(payload);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("The checkpoint " + file + " is corrupt: " + e);
+		}
+		return count;
+	}
+	
+	/**
+	 * Takes a checkpoint if the interval has passed since the last one, handing
+	 * it to the writer thread. Called on the processing thread between frames.
+	 * @param parts The parts of the state.
+	 */
+	public void checkpointIfDue(List<Checkpointable> parts) {
+		long now = System.nanoTime();
+		if (lastCheckpointTime == 0) {
+			lastCheckpointTime = now;	// the first is due an interval after opening
+		} else if (now - lastCheckpointTime >= interval && writing.compareAndSet(false, true)) {
+			lastCheckpointTime = now;
+			snapshot(parts);
+			if (writer == null) {
+				writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Checkpoint writer (" + file.getName() + ")");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			pendingWrite = writer.submit(new Runnable() {
+				public void run() {
+					try {
+						write();
+					} finally {
+						writing.set(false);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Takes a checkpoint and writes it, waiting until it is on the disk. Called
+	 * when nothing is being processed, e.g. when the camera is closed.
+	 * @param parts The parts of the state.
+	 */
+	public void checkpoint(List<Checkpointable> parts) {
+		awaitWrite();
+		writing.set(true);
+		try {
+			snapshot(parts);
+			write();
+		} finally {
+			writing.set(false);
+		}
+		lastCheckpointTime = 0;
+	}
+	
+	/**
+	 * Waits for the checkpoint being written, if any, and releases the file.
+	 * Checkpoints may be taken again afterwards.
+	 */
+	public void close() {
+		// Not while holding the lock, which the writer's write() takes
+		awaitWrite();
+		synchronized (this) {
+			if (writer != null) {
+				writer.shutdown();
+				writer = null;
+			}
+			mapped = null;
+			newest = null;
+			if (randomAccessFile != null) {
+				try {
+					randomAccessFile.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close the checkpoint " + file + ": " + e);
+				}
+				randomAccessFile = null;
+			}
+		}
+	}
+	
+	/** Waits for the snapshot handed to the writer to be written. */
+	private void awaitWrite() {
+		Future<?> pending = pendingWrite;
+		if (pending != null) {
+			try {
+				pending.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				System.err.println("Failed to write the checkpoint " + file + ": " + e.getCause());
+			}
+			pendingWrite = null;
+		}
+	}
+	
+	/** Copies the state of the parts into the snapshot, as the payload of the file. */
+	private void snapshot(List<Checkpointable> parts) {
+		byte names[][] = new byte[parts.size()][];
+		int sizes[] = new int[parts.size()];
+		long total = 0;
+		for (int p = 0; p < names.length; p++) {
+			names[p] = parts.get(p).getClass().getName().getBytes(NAME_CHARSET);
+			sizes[p] = parts.get(p).getCheckpointSize();
+			total += aligned(4 + names[p].length) + 8 + aligned(sizes[p]);
+		}
+		if (total > Integer.MAX_VALUE - PAYLOADS_START) {
+			throw new IllegalStateException("The checkpoint is too large.");
+		}
+		if (snapshot == null || snapshot.capacity() < total) {
+			snapshot = ByteBuffer.allocate((int) Math.min(total + total / 4, Integer.MAX_VALUE - PAYLOADS_START));
+		}
+		snapshot.clear();
+		snapshot.order(ByteOrder.LITTLE_ENDIAN);
+		for (int p = 0; p < names.length; p++) {
+			snapshot.putInt(names[p].length);
+			snapshot.put(names[p]);
+			align(snapshot);
+			snapshot.putInt(sizes[p]);
+			snapshot.putInt(0);	// reserved
+			int end = snapshot.position() + sizes[p];
+			ByteBuffer state = snapshot.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			state.limit(end);
+			parts.get(p).writeCheckpoint(state.slice().order(ByteOrder.LITTLE_ENDIAN));
+			snapshot.position(end);
+			align(snapshot);
+		}
+		snapshot.flip();
+		sectionCount = names.length;
+	}
+	
+	/**
+	 * Writes the snapshot to the file, into the slot which does not hold the
+	 * newest checkpoint.
+	 */
+	private synchronized void write() {
+		ByteBuffer payload = snapshot;
+		int length = payload.limit();
+		try {
+			if (mapped == null) {
+				if (randomAccessFile == null) {
+					randomAccessFile = new RandomAccessFile(file, "rw");
+				}
+				if (randomAccessFile.length() > 0) {
+					map(randomAccessFile.length());
+					newest = findNewestSlot(mapped);
+				}
+			}
+			
+			// Keep clear of the newest checkpoint's payload (and of both headers)
+			Slot slot = new Slot();
+			slot.index = (newest != null ? 1 - newest.index : 0);
+			slot.generation = (newest != null ? newest.generation + 1 : 1);
+			slot.sections = sectionCount;
+			slot.length = length;
+			if (newest == null || PAYLOADS_START + (long) length <= newest.offset) {
+				slot.offset = PAYLOADS_START;
+			} else {
+				slot.offset = (int) aligned((long) newest.offset + newest.length);
+			}
+			long end = (long) slot.offset + length;
+			if (end > Integer.MAX_VALUE) {
+				throw new IOException("The checkpoint is too large.");
+			}
+			if (mapped == null || mapped.capacity() < end) {
+				long size = Math.min(end + length / 4, Integer.MAX_VALUE);
+				randomAccessFile.setLength(Math.max(size, randomAccessFile.length()));
+				map(randomAccessFile.length());
+			}
+			
+			ByteBuffer out = mapped.duplicate();
+			out.position(slot.offset);
+			out.put(payload.array(), payload.arrayOffset(), length);
+			mapped.force();	// the payload is on the disk before the header refers to it
+			
+			int header = slot.index * HEADER_SIZE;
+			mapped.putInt(header + 4, VERSION);
+			mapped.putInt(header + 8, slot.sections);
+			mapped.putInt(header + 12, slot.length);
+			mapped.putLong(header + 16, slot.generation);
+			mapped.putInt(header + 24, slot.offset);
+			mapped.putInt(header + 28, 0);	// reserved
+			mapped.putInt(header, MAGIC);
+			mapped.putLong(header + HEADER_CRC_OFFSET, crc(mapped, header, payload));
+			mapped.force();
+			newest = slot;
+			++checkpointCount;
+		} catch (IOException e) {
+			System.err.println("Failed to write the checkpoint " + file + ": " + e);
+		}
+	}
+	
+	/** Maps the file, of the given size, for writing. */
+	private void map(long size) throws IOException {
+		mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		mapped.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Finds the slot of the newest complete checkpoint in a file.
+	 * @param buffer The file, in little-endian order.
+	 * @return The slot, or null if neither slot holds a complete checkpoint.
+	 */
+	private static Slot findNewestSlot(ByteBuffer buffer) {
+		Slot newest = null;
+		for (int index = 0; index < 2; index++) {
+			int header = index * HEADER_SIZE;
+			if (buffer.capacity() < header + HEADER_SIZE || buffer.getInt(header) != MAGIC
+					|| buffer.getInt(header + 4) != VERSION) {
+				continue;
+			}
+			Slot slot = new Slot();
+			slot.index = index;
+			slot.sections = buffer.getInt(header + 8);
+			slot.length = buffer.getInt(header + 12);
+			slot.generation = buffer.getLong(header + 16);
+			slot.offset = buffer.getInt(header + 24);
+			if (slot.sections < 0 || slot.length < 0 || slot.offset < PAYLOADS_START
+					|| slot.offset > buffer.capacity() - slot.length) {
+				continue;
+			}
+			ByteBuffer payload = buffer.duplicate();
+			payload.limit(slot.offset + slot.length);
+			payload.position(slot.offset);
+			if (crc(buffer, header, payload) == buffer.getLong(header + HEADER_CRC_OFFSET)
+					&& (newest == null || slot.generation > newest.generation)) {
+				newest = slot;
+			}
+		}
+		return newest;
+	}
+	
+	/**
+	 * Gets the CRC of a slot: of its header, up to the CRC, and then of its payload.
+	 * @param buffer The file.
+	 * @param header Position of the header in the file.
+	 * @param payload The payload, from its position to its limit.
+	 */
+	private static long crc(ByteBuffer buffer, int header, ByteBuffer payload) {
+		CRC32 crc = new CRC32();
+		byte fields[] = new byte[HEADER_CRC_OFFSET];
+		ByteBuffer in = buffer.duplicate();
+		in.position(header);
+		in.get(fields);
+		crc.update(fields);
+		update(crc, payload);
+		return crc.getValue();
+	}
+	
+	/** Adds the bytes of a buffer, from its position to its limit, to a CRC. */
+	private static void update(CRC32 crc, ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		} else {
+			byte chunk[] = new byte[64 * 1024];
+			ByteBuffer in = buffer.duplicate();
+			while (in.hasRemaining()) {
+				int n = Math.min(chunk.length, in.remaining());
+				in.get(chunk, 0, n);
+				crc.update(chunk, 0, n);
+			}
+		}
+	}
+	
+	/** Rounds up to a multiple of 8, so the state of each part starts aligned. */
+	private static long aligned(long length) {
+		return (length + 7) & ~7L;
+	}
+	
+	private static void align(ByteBuffer buffer) {
+		buffer.position((int) aligned(buffer.position()));
+	}
+	
+	/** Where a checkpoint is in the file. */
+	private static class Slot {
+		/** Which slot (0 or 1), and so which header. */
+		int index;
+		long generation;
+		int sections;
+		/** Position of the payload in the file. */
+		int offset;
+		/** Length of the payload. */
+		int length;
+	}
+}
@@ -0,0 +1,72 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.util.List;
+
+import javax.media.Buffer;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.Checkpointable;
+import net.joelbecker.video.processing.RgbVideoEffect;
+
+/**
+ * Passes frames through unchanged at the end of a JMF codec chain, taking a
+ * checkpoint of the state of the chain when one is due (see
+ * {@link CheckpointFile}). (The headless chain is checkpointed by the camera
+ * itself.)
+ */
+class CheckpointGate extends RgbVideoEffect {
+
+	private final CheckpointFile checkpointFile;
+	
+	/** The parts of the state saved in checkpoints. */
+	private final List<Checkpointable> parts;
+	
+	
+	/**
+	 * Constructor.
+	 * @param checkpointFile The checkpoint file.
+	 * @param parts The parts of the state saved in checkpoints.
+	 */
+	CheckpointGate(CheckpointFile checkpointFile, List<Checkpointable> parts) {
+		this.checkpointFile = checkpointFile;
+		this.parts = parts;
+	}
+	
+	public String getName() {
+		return "Checkpoint";
+	}
+	
+	@Override
+	public int process(Buffer in, Buffer out) {
+		checkpointFile.checkpointIfDue(parts);
+		
+		// Swap the data between the input & output, as an effect that leaves the frame as it is
+		Object data = in.getData();
+		in.setData(out.getData());
+		out.setData(data);
+		out.setDiscard(false);
+		return BUFFER_PROCESSED_OK;
+	}
+	
+	@Override
+	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
+		return false;
+	}
+}
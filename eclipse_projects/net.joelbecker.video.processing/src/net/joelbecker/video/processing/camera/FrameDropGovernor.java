@@ -0,0 +1,305 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.util.Arrays;
+
+import javax.media.Buffer;
+
+/**
+ * <p>
+ * Decides which frames enter an effect chain, so that the chain never falls
+ * further behind a live source than a given latency. It measures the frame
+ * interval (by the frames' time stamps, or their arrival), the time the chain
+ * takes per frame, and how late each frame arrives compared to the most punctual
+ * frame so far (a backlog in the source or the capture driver).
+ * </p>
+ * 
+ * <p>
+ * A frame is dropped before it enters the chain if it is already later than the
+ * maximum latency, or if the frames still in the chain would keep it from
+ * finishing in time. While the chain takes longer per frame than the frame
+ * interval, the frames are also thinned out evenly to the rate the chain keeps up
+ * with, rather than in bursts. The newest frame always wins: frames are dropped
+ * on arrival, and never wait in a queue to be processed late.
+ * </p>
+ * 
+ * <p>
+ * The camera calls <code>admit()</code> as each frame arrives, and
+ * <code>finished()</code> as each admitted frame leaves the chain (frames leave
+ * in the order they entered).
+ * </p>
+ */
+public class FrameDropGovernor {
+
+	/** Default maximum latency, in seconds. */
+	public static final double DEFAULT_MAX_LATENCY = 0.25;
+	
+	/** Weight of the newest sample in the moving averages. */
+	private static final double SMOOTHING = 0.1;
+	
+	/** Maximum latency, in nanoseconds. */
+	private volatile long maxLatency;
+	
+	/** Moving averages of the frame interval and the chain's time per frame, in nanoseconds (0 until measured). */
+	private double avgInterval;
+	private double avgProcessingTime;
+	
+	/** Chain time earned by the frames that arrived, and not yet spent on admitted frames, in nanoseconds. */
+	private double credit;
+	
+	private long lastTimeStamp = Buffer.TIME_UNKNOWN;
+	private long lastArrival = -1;
+	
+	/** Arrival and time stamp of the most punctual frame, which later frames' lateness is measured from. */
+	private boolean hasOrigin;
+	private long originArrival;
+	private long originTimeStamp;
+	
+	/** Time each frame in the chain was admitted, oldest first, in a ring. */
+	private long admitted[] = new long[16];
+	private int oldest;
+	private volatile int queued;
+	
+	/** Time the last frame left the chain, or -1. */
+	private long lastFinish = -1;
+	
+	private volatile long processedCount;
+	private volatile long droppedCount;
+	
+	
+	/**
+	 * Constructor, with the default maximum latency.
+	 */
+	public FrameDropGovernor() {
+		this(DEFAULT_MAX_LATENCY);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param maxLatency Maximum latency from a frame's arrival (or capture, if it
+	 * is late) to leaving the chain, in seconds.
+	 */
+	public FrameDropGovernor(double maxLatency) {
+		setMaxLatency(maxLatency);
+	}
+	
+	public double getMaxLatency() {
+		return maxLatency / 1.0e9;
+	}
+	
+	/**
+	 * Sets the maximum latency from a frame's arrival (or capture, if it is late)
+	 * to leaving the chain.
+	 * @param maxLatency The maximum latency in seconds.
+	 */
+	public void setMaxLatency(double maxLatency) {
+		if (maxLatency <= 0.0) {
+			throw new IllegalArgumentException("maxLatency must be positive");
+		}
+		this.maxLatency = (long) (maxLatency * 1.0e9);
+	}
+	
+	/**
+	 * Decides whether a frame that just arrived enters the chain. If it does,
+	 * <code>finished()</code> must be called when it leaves the chain.
+	 * @param timeStamp Time stamp of the frame in nanoseconds, or <code>Buffer.TIME_UNKNOWN</code>.
+	 * @return true if the frame is to be processed, false if it is dropped.
+	 */
+	public synchronized boolean admit(long timeStamp) {
+		long now = System.nanoTime();
+		long lateness = arrive(timeStamp, now);
+		
+		boolean admit;
+		if (avgProcessingTime == 0.0) {
+			admit = true;	// nothing measured yet
+		} else if (lateness > maxLatency) {
+			admit = false;	// stale
+		} else if (queued > 0 && lateness + (queued + 1) * avgProcessingTime > maxLatency) {
+			admit = false;	// the frames in the chain would make it late
+		} else {
+			admit = credit >= avgProcessingTime;
+		}
+		
+		if (!admit) {
+			++droppedCount;
+			return false;
+		}
+		credit -= avgProcessingTime;
+		if (queued == admitted.length) {
+			// Unroll the ring into a larger one
+			long grown[] = new long[queued * 2];
+			for (int i = 0; i < queued; i++) {
+				grown[i] = admitted[(oldest + i) % queued];
+			}
+			admitted = grown;
+			oldest = 0;
+		}
+		admitted[(oldest + queued) % admitted.length] = now;
+		++queued;
+		return true;
+	}
+	
+	/**
+	 * Counts a frame which arrived while the chain could not take any frame at
+	 * all (e.g. all frames of a pipeline are in flight), so it was dropped.
+	 * @param timeStamp Time stamp of the frame in nanoseconds, or <code>Buffer.TIME_UNKNOWN</code>.
+	 */
+	public synchronized void drop(long timeStamp) {
+		arrive(timeStamp, System.nanoTime());
+		++droppedCount;
+	}
+	
+	/**
+	 * Tells the governor that the oldest frame in the chain left it.
+	 */
+	public synchronized void finished() {
+		if (queued == 0) {
+			throw new IllegalStateException("No frame is in the chain.");
+		}
+		long now = System.nanoTime();
+		long start = admitted[oldest];
+		oldest = (oldest + 1) % admitted.length;
+		--queued;
+		
+		// If the chain was still busy with the previous frame when this one entered
+		// (a pipeline), its time per frame is the time between frames leaving it
+		long time = now - start;
+		if (lastFinish > start) {
+			time = Math.min(time, now - lastFinish);
+		}
+		avgProcessingTime = average(avgProcessingTime, time);
+		lastFinish = now;
+		++processedCount;
+	}
+	
+	/**
+	 * Updates the frame interval and lateness with a frame that just arrived, and
+	 * earns the chain time for it.
+	 * @return How late the frame is, in nanoseconds.
+	 */
+	private long arrive(long timeStamp, long now) {
+		long interval = -1;
+		if (timeStamp != Buffer.TIME_UNKNOWN && lastTimeStamp != Buffer.TIME_UNKNOWN) {
+			interval = timeStamp - lastTimeStamp;
+			if (interval < 0) {
+				hasOrigin = false;	// the media was restarted, or seeked back
+			}
+		} else if (timeStamp == Buffer.TIME_UNKNOWN && lastArrival >= 0) {
+			interval = now - lastArrival;
+		}
+		lastTimeStamp = timeStamp;
+		lastArrival = now;
+		if (interval > 0) {
+			avgInterval = average(avgInterval, interval);
+			credit = Math.min(credit + avgInterval, avgProcessingTime);
+		} else if (interval < 0) {
+			credit = avgProcessingTime;
+		}
+		
+		if (timeStamp == Buffer.TIME_UNKNOWN) {
+			return 0;
+		}
+		long lateness = (now - originArrival) - (timeStamp - originTimeStamp);
+		if (!hasOrigin || lateness < 0) {
+			hasOrigin = true;
+			originArrival = now;
+			originTimeStamp = timeStamp;
+			lateness = 0;
+		}
+		return lateness;
+	}
+	
+	private static double average(double average, long sample) {
+		return average == 0.0 ? sample : average + SMOOTHING * (sample - average);
+	}
+	
+	/**
+	 * Forgets all measurements and frames in the chain, and resets the counters,
+	 * e.g. when the camera is opened again.
+	 */
+	public synchronized void reset() {
+		avgInterval = 0.0;
+		avgProcessingTime = 0.0;
+		credit = 0.0;
+		lastTimeStamp = Buffer.TIME_UNKNOWN;
+		lastArrival = -1;
+		hasOrigin = false;
+		Arrays.fill(admitted, 0);
+		oldest = 0;
+		queued = 0;
+		lastFinish = -1;
+		processedCount = 0;
+		droppedCount = 0;
+	}
+	
+	/**
+	 * Gets the number of frames that went through the chain.
+	 * @return The number of frames.
+	 */
+	public long getProcessedFrameCount() {
+		return processedCount;
+	}
+	
+	/**
+	 * Gets the number of frames dropped before entering the chain.
+	 * @return The number of frames.
+	 */
+	public long getDroppedFrameCount() {
+		return droppedCount;
+	}
+	
+	/**
+	 * Gets the number of frames in the chain: admitted, but not finished.
+	 * @return The number of frames.
+	 */
+	public int getQueuedFrameCount() {
+		return queued;
+	}
+	
+	/**
+	 * Gets the average interval between frames, in seconds.
+	 * @return The interval, or 0 if not measured yet.
+	 */
+	public synchronized double getAvgFrameInterval() {
+		return avgInterval / 1.0e9;
+	}
+	
+	/**
+	 * Gets the average time the chain takes per frame, in seconds.
+	 * @return The time, or 0 if not measured yet.
+	 */
+	public synchronized double getAvgProcessingTime() {
+		return avgProcessingTime / 1.0e9;
+	}
+	
+	/**
+	 * Returns true if the chain takes longer per frame than the frame interval,
+	 * so that frames are being thinned out.
+	 * @return true if the chain is saturated.
+	 */
+	public synchronized boolean isSaturated() {
+		return avgInterval > 0.0 && avgProcessingTime > avgInterval;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format("%d processed, %d dropped, %d queued (%.1f ms/frame, %.1f ms interval)",
+				processedCount, droppedCount, queued, avgProcessingTime / 1.0e6, avgInterval / 1.0e6);
+	}
+}
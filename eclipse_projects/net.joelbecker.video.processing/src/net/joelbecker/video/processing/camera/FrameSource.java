@@ -0,0 +1,58 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.io.IOException;
+
+import javax.media.Buffer;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.RgbVideoEffect;
+
+/**
+ * <p>
+ * A source of raw video frames that can be pushed through an effect chain
+ * without a JMF {@link javax.media.Processor} (see {@link HeadlessProcessingCamera}).
+ * Only the JMF data classes ({@link Buffer}, {@link VideoFormat}) are used, so no
+ * codec stack or native libraries are needed.
+ * </p>
+ */
+public interface FrameSource {
+
+	/**
+	 * Gets the format of the frames produced by this source.
+	 * @return The video format. The frame data must be something that
+	 * {@link RgbVideoEffect#process(Buffer, Buffer)} understands (24-bit RGB
+	 * <code>byte[]</code>, or packed <code>int[]</code>).
+	 */
+	VideoFormat getFormat();
+
+	/**
+	 * Reads the next frame into the given buffer. The source may either fill the
+	 * buffer's existing data array, or replace it with its own.
+	 * @param buffer The buffer to receive the frame, including its format and time stamp.
+	 * @return false if there are no more frames (end of media).
+	 * @throws IOException If the frame could not be read.
+	 */
+	boolean readFrame(Buffer buffer) throws IOException;
+
+	/**
+	 * Closes the source, releasing any resources.
+	 */
+	void close();
+}
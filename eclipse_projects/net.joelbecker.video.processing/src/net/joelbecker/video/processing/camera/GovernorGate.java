@@ -0,0 +1,76 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import javax.media.Buffer;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.RgbVideoEffect;
+
+/**
+ * Passes frames through unchanged at either end of a JMF codec chain, telling a
+ * {@link FrameDropGovernor} when they enter and leave it. The entry gate drops
+ * the frames the governor does not admit, so the rest of the chain never sees
+ * them. (Frames given to the headless chain are admitted by the camera itself.)
+ */
+class GovernorGate extends RgbVideoEffect {
+
+	private final FrameDropGovernor governor;
+	
+	/** Whether this gate is at the start of the chain, rather than its end. */
+	private final boolean entry;
+	
+	
+	/**
+	 * Constructor.
+	 * @param governor The governor.
+	 * @param entry true for the gate at the start of the chain, false for the one at its end.
+	 */
+	GovernorGate(FrameDropGovernor governor, boolean entry) {
+		this.governor = governor;
+		this.entry = entry;
+	}
+	
+	public String getName() {
+		return entry ? "Frame Drop Governor (entry)" : "Frame Drop Governor (exit)";
+	}
+	
+	@Override
+	public int process(Buffer in, Buffer out) {
+		if (entry) {
+			if (!governor.admit(in.getTimeStamp())) {
+				out.setDiscard(true);
+				return BUFFER_PROCESSED_OK;
+			}
+		} else {
+			governor.finished();
+		}
+		
+		// Swap the data between the input & output, as an effect that leaves the frame as it is
+		Object data = in.getData();
+		in.setData(out.getData());
+		out.setData(data);
+		out.setDiscard(false);
+		return BUFFER_PROCESSED_OK;
+	}
+	
+	@Override
+	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
+		return false;
+	}
+}
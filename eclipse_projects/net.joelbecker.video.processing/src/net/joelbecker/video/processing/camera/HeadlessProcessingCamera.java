@@ -0,0 +1,301 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.io.IOException;
+
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.RgbVideoEffect;
+
+/**
+ * <p>
+ * An {@link AbstractProcessingCamera} which, besides being opened on a JMF
+ * {@link javax.media.MediaLocator}, can be fed by a {@link FrameSource}. In that
+ * case no JMF {@link javax.media.Processor} is created; each frame is pushed
+ * through the chain from <code>createEffectChain()</code> directly, passing the
+ * buffers from one effect to the next just like the processor's codec chain does.
+ * </p>
+ * 
+ * <p>
+ * This allows the effect chain to run on a 64-bit JVM, and lets tests and
+ * benchmarks drive the chain without any codec stack. Frames are processed as
+ * fast as the source delivers them; a live source paces the chain itself. A
+ * frame source is never looped: at its end, the end of media is signaled (see
+ * <code>waitForEndOfMedia()</code>).
+ * </p>
+ * 
+ * <p>
+ * When opened with its own thread, the chain may also be run as a pipeline, with
+ * a thread per group of effects (see <code>setPipelineMode()</code>). Checkpoints
+ * (see <code>setCheckpointFile()</code>) are then taken on the last stage's
+ * thread, so the effects of earlier stages are saved as of a later frame, or
+ * part way through one.
+ * </p>
+ */
+public abstract class HeadlessProcessingCamera extends AbstractProcessingCamera {
+
+	/** The source of frames, or null if not opened on a frame source. */
+	private FrameSource frameSource;
+	
+	/** The frame pushed through the chain, when not pipelined. */
+	private ChainFrame frame;
+	
+	/** Thread pushing frames through the chain, or null if stepped by the client. */
+	private Thread pumpThread;
+	
+	/** The pipeline running the chain, or null if not pipelined. */
+	private PipelinedChainExecutor pipeline;
+	
+	/** Pipeline mode, or null to run the chain on a single thread. */
+	private PipelinedChainExecutor.Mode pipelineMode;
+	
+	/** Index of the first effect of each pipeline stage, or null for one stage per effect. */
+	private int stageStarts[];
+	
+	/** Whether the frame source is still delivering frames. */
+	private volatile boolean running;
+	
+	/** Number of frames pushed through the chain since opening. */
+	private long frameCount;
+	
+	
+	public HeadlessProcessingCamera() {
+	}
+	
+	/**
+	 * Gets the pipeline mode.
+	 * @return The pipeline mode, or null if the chain is run on a single thread.
+	 */
+	public PipelinedChainExecutor.Mode getPipelineMode() {
+		return pipelineMode;
+	}
+	
+	/**
+	 * Sets whether the effect chain is run as a pipeline (see
+	 * {@link PipelinedChainExecutor}) when a frame source is opened with its own
+	 * thread. Takes effect on the next <code>open()</code>.
+	 * @param mode The pipeline mode, or null to run the chain on a single thread.
+	 */
+	public void setPipelineMode(PipelinedChainExecutor.Mode mode) {
+		this.pipelineMode = mode;
+	}
+	
+	/**
+	 * Sets how the effect chain is split into pipeline stages, each run on its
+	 * own thread. Takes effect on the next <code>open()</code>.
+	 * @param stageStarts Index of the first effect of each stage, in increasing
+	 * order, starting with 0; or null for one stage per effect.
+	 */
+	public void setPipelineStages(int stageStarts[]) {
+		this.stageStarts = (stageStarts == null ? null : stageStarts.clone());
+	}
+	
+	/**
+	 * Opens the given frame source, and starts pushing its frames through the
+	 * effect chain on a new thread (or threads, if pipelined).
+	 * @param source The source of frames.
+	 * @return true if successful.
+	 */
+	public boolean open(FrameSource source) {
+		return open(source, true);
+	}
+	
+	/**
+	 * Opens the given frame source. A source which reached its end of media is
+	 * closed first, as by <code>close()</code>.
+	 * @param source The source of frames.
+	 * @param threaded If true, frames are pushed through the effect chain on a new
+	 * thread (or threads, if pipelined) until the end of media. If false, the
+	 * client must push each frame by calling <code>processNextFrame()</code>.
+	 * @return true if successful.
+	 */
+	public boolean open(FrameSource source, boolean threaded) {
+		if (source == null) {
+			throw new NullPointerException("source");
+		}
+		if (isOpen()) {
+			throw new IllegalStateException("The camera is already open.");
+		}
+		if (frameSource != null) {
+			// The last source reached its end, but is still to be torn down
+			close();
+		}
+		
+		VideoFormat format = source.getFormat();
+		if (format == null) {
+			System.err.println("The frame source has no video format.");
+			return false;
+		}
+		System.err.println("Video format: " + format);
+
+		// Create the video codec chain
+		RgbVideoEffect chain[] = initEffectChain();
+		for (RgbVideoEffect effect : chain) {
+			effect.setInputFormat(format);
+			effect.setOutputFormat(format);
+			effect.open();
+		}
+		restoreCheckpoint();
+		
+		frameSource = source;
+		frameCount = 0;
+		running = true;
+		setEndOfMedia(false);
+		FrameDropGovernor governor = getFrameGovernor();
+		if (governor != null) {
+			governor.reset();
+		}
+		
+		if (threaded && pipelineMode != null) {
+			pipeline = new PipelinedChainExecutor(chain, stageStarts, pipelineMode);
+			pipeline.setFrameGovernor(governor);
+			if (getCheckpointFile() != null) {
+				pipeline.setFrameListener(new Runnable() {
+					public void run() {
+						checkpointIfDue();
+					}
+				});
+			}
+			pipeline.start(source, format, new Runnable() {
+				public void run() {
+					running = false;
+					setEndOfMedia(true);
+				}
+			});
+		} else {
+			frame = new ChainFrame(chain.length, format);
+			for (RgbVideoEffect effect : chain) {
+				effect.setFramesInFlight(1);
+			}
+			if (threaded) {
+				pumpThread = new Thread(new Runnable() {
+					public void run() {
+						while (running && processNextFrame())
+							;
+						running = false;
+					}
+				}, getClass().getSimpleName() + " frame pump");
+				pumpThread.setDaemon(true);
+				pumpThread.start();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads the next frame from the frame source and pushes it through the effect
+	 * chain, unless the frame governor drops it. Must only be called by the client
+	 * if the camera was not opened with its own thread.
+	 * @return false if the end of media was reached (or the frame source failed);
+	 * true otherwise.
+	 */
+	public boolean processNextFrame() {
+		if (frame == null) {
+			throw new IllegalStateException("The camera is not open on a frame source, or is pipelined.");
+		}
+		
+		try {
+			if (!frame.read(frameSource)) {
+				running = false;
+				setEndOfMedia(true);
+				return false;
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read a frame from the frame source: " + e);
+			running = false;
+			setEndOfMedia(true);
+			return false;
+		}
+		
+		FrameDropGovernor governor = getFrameGovernor();
+		if (governor != null && !governor.admit(frame.getTimeStamp())) {
+			return true;
+		}
+		
+		// (If an effect fails, the frame is dropped, as the codec chain would.)
+		frame.process(getProcessingChain(), 0, getProcessingChain().length);
+		++frameCount;
+		if (governor != null) {
+			governor.finished();
+		}
+		checkpointIfDue();
+		return true;
+	}
+	
+	/**
+	 * Gets the number of frames pushed through the effect chain since the frame
+	 * source was opened.
+	 * @return The number of frames.
+	 */
+	public long getFrameCount() {
+		return pipeline != null ? pipeline.getFrameCount() : frameCount;
+	}
+	
+	/**
+	 * Returns true if the camera is open on a frame source.
+	 * @return true if the camera is open on a frame source.
+	 */
+	public boolean isHeadless() {
+		return frameSource != null;
+	}
+	
+	/**
+	 * {@inheritDoc} On a frame source, the camera is open until the end of media
+	 * is reached or it is closed, whether its frames are pushed by its own
+	 * threads or by <code>processNextFrame()</code>.
+	 */
+	@Override
+	public boolean isOpen() {
+		if (frameSource != null) {
+			return running;
+		}
+		return super.isOpen();
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public void close() {
+		if (frameSource != null) {
+			running = false;
+			if (pipeline != null) {
+				pipeline.stop();
+				pipeline = null;
+			}
+			if (pumpThread != null && pumpThread != Thread.currentThread()) {
+				try {
+					pumpThread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			pumpThread = null;
+			frame = null;
+			closeCheckpoint();
+			frameSource.close();
+			frameSource = null;
+			
+			for (RgbVideoEffect effect : getProcessingChain()) {
+				effect.close();
+			}
+			closeBandExecutor();
+		} else {
+			super.close();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.media.Buffer;
+import javax.media.format.VideoFormat;
+
+/**
+ * <p>
+ * Base class for {@link FrameSource}s that read uncompressed frames from a file
+ * through <code>FileChannel.map()</code>, instead of decoding them through JMF.
+ * The file is mapped in windows of at most <code>MAX_WINDOW_SIZE</code> bytes,
+ * so captures larger than the 2 GB limit of a single mapping can be streamed.
+ * </p>
+ * 
+ * <p>
+ * Sub-classes locate each frame in the file (see <code>readFrameData()</code>);
+ * this class maps it and stamps the buffer with the format, frame number and
+ * time stamp (derived from the frame rate).
+ * </p>
+ */
+public abstract class MappedFileSource implements FrameSource {
+
+	/** Largest region of the file mapped at once, in bytes. */
+	public static final long MAX_WINDOW_SIZE = 256L * 1024 * 1024;
+	
+	private RandomAccessFile file;
+	private FileChannel channel;
+	
+	/** The currently mapped region of the file. */
+	private MappedByteBuffer window;
+	
+	/** File position of the start of the window. */
+	private long windowStart;
+	
+	/** Number of the next frame to be read. */
+	private long frameNumber;
+	
+	
+	protected MappedFileSource(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+	}
+	
+	/**
+	 * Reads the data of the next frame into the given buffer (setting its data,
+	 * offset and length).
+	 * @param buffer The buffer to receive the frame.
+	 * @return false if there are no more frames.
+	 * @throws IOException If the frame could not be read.
+	 */
+	protected abstract boolean readFrameData(Buffer buffer) throws IOException;
+	
+	/** {@inheritDoc} */
+	public boolean readFrame(Buffer buffer) throws IOException {
+		if (channel == null) {
+			throw new IOException("The source is closed.");
+		}
+		if (!readFrameData(buffer)) {
+			buffer.setEOM(true);
+			buffer.setLength(0);
+			return false;
+		}
+		VideoFormat format = getFormat();
+		buffer.setFormat(format);
+		buffer.setEOM(false);
+		buffer.setSequenceNumber(frameNumber);
+		if (format.getFrameRate() > 0f) {
+			buffer.setTimeStamp((long) (frameNumber * 1.0e9 / format.getFrameRate()));
+		} else {
+			buffer.setTimeStamp(Buffer.TIME_UNKNOWN);
+		}
+		++frameNumber;
+		return true;
+	}
+	
+	/**
+	 * Gets the number of the next frame to be read (the first is 0).
+	 * @return The number of the next frame to be read.
+	 */
+	public long getFrameNumber() {
+		return frameNumber;
+	}
+	
+	/**
+	 * Gets the size of the file, in bytes.
+	 * @return The size of the file, in bytes.
+	 * @throws IOException If the size could not be determined.
+	 */
+	protected long getFileSize() throws IOException {
+		return channel.size();
+	}
+	
+	/**
+	 * Gets a read-only view of a region of the file, mapping a new window if
+	 * the region is not inside the current one. No data is copied.
+	 * @param position File position of the region.
+	 * @param length Length of the region, in bytes.
+	 * @return A buffer whose position is 0 and whose limit is the length.
+	 * @throws IOException If the file could not be mapped, or the region is past its end.
+	 */
+	protected ByteBuffer map(long position, int length) throws IOException {
+		if (position < 0 || position + length > channel.size()) {
+			throw new IOException("Region at " + position + " of " + length
+					+ " bytes is outside the file.");
+		}
+		if (window == null || position < windowStart
+				|| position + length > windowStart + window.capacity()) {
+			long size = Math.min(Math.max(MAX_WINDOW_SIZE, length), channel.size() - position);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			windowStart = position;
+		}
+		ByteBuffer view = window.duplicate();
+		view.position((int) (position - windowStart));
+		view.limit(view.position() + length);
+		return view.slice();
+	}
+	
+	/** {@inheritDoc} */
+	public void close() {
+		window = null;
+		channel = null;
+		try {
+			file.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close the frame file: " + e);
+		}
+	}
+}
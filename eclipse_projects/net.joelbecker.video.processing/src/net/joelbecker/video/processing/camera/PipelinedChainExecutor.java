@@ -0,0 +1,375 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.RgbVideoEffect;
+
+/**
+ * <p>
+ * Runs an effect chain as a pipeline: the chain is split into groups of
+ * consecutive effects (stages), each run on its own thread, so that different
+ * frames are in different stages at the same time. Throughput then approaches
+ * that of the slowest stage, rather than the sum of all stages.
+ * </p>
+ * 
+ * <p>
+ * A fixed set of frames circulates through the pipeline: from the source thread,
+ * through each stage, and back to the source thread. Stages hand frames to each
+ * other through bounded, lock-free single-producer/single-consumer ring buffers.
+ * Each frame carries its own buffers linking the effects, so frames in flight
+ * never share data. Effects that publish per-frame data to later effects are told
+ * how many frames may be in flight (see <code>RgbVideoEffect.setFramesInFlight()</code>).
+ * </p>
+ * 
+ * <p>
+ * Note that data fed back to earlier stages, such as the background image used by
+ * the difference stage, may lag behind by up to the number of frames in flight.
+ * </p>
+ */
+public class PipelinedChainExecutor {
+
+	/** Trade-off between the latency and the throughput of the pipeline. */
+	public enum Mode {
+		/**
+		 * Few frames in flight (one per stage), and idle stages spin for the next
+		 * frame. Lowest latency, but every stage keeps a core busy.
+		 */
+		LATENCY,
+		
+		/**
+		 * Frames queue up between stages to absorb jitter, and idle stages sleep.
+		 * Highest throughput per core.
+		 */
+		THROUGHPUT
+	}
+	
+	/** Number of times an idle stage spins before sleeping (in THROUGHPUT mode). */
+	private static final int SPIN_COUNT = 100;
+	
+	/** Time an idle stage sleeps between checks for a frame (in THROUGHPUT mode). */
+	private static final long PARK_NANOS = 50000;
+	
+	private RgbVideoEffect chain[];
+	
+	/** Index of the first effect of each stage. */
+	private int stageStarts[];
+	
+	private Mode mode;
+	
+	/**
+	 * queues[0] returns free frames to the source thread; queues[s + 1] holds the
+	 * frames waiting for stage s.
+	 */
+	private SpscRingBuffer<ChainFrame> queues[];
+	
+	private Thread threads[];
+	private volatile boolean running;
+	
+	/** Number of frames that went through the whole pipeline. */
+	private volatile long frameCount;
+	
+	/** Number of frames circulating through the pipeline. */
+	private int framesInFlight;
+	
+	/** Drops frames before they enter the pipeline when it falls behind, or null. */
+	private FrameDropGovernor governor;
+	
+	/** Run after each frame went through the pipeline, or null. */
+	private Runnable frameListener;
+	
+	
+	/**
+	 * Constructor.
+	 * @param chain The effect chain.
+	 * @param stageStarts Index of the first effect of each stage, in increasing
+	 * order, starting with 0. If null, each effect is a stage of its own.
+	 * @param mode Latency or throughput mode.
+	 */
+	public PipelinedChainExecutor(RgbVideoEffect chain[], int stageStarts[], Mode mode) {
+		if (chain == null || chain.length == 0) {
+			throw new IllegalArgumentException("The effect chain is empty.");
+		}
+		if (stageStarts == null) {
+			stageStarts = new int[chain.length];
+			for (int i = 0; i < chain.length; i++) {
+				stageStarts[i] = i;
+			}
+		}
+		if (stageStarts.length == 0 || stageStarts[0] != 0) {
+			throw new IllegalArgumentException("The first stage must start at effect 0.");
+		}
+		for (int s = 1; s < stageStarts.length; s++) {
+			if (stageStarts[s] <= stageStarts[s - 1] || stageStarts[s] >= chain.length) {
+				throw new IllegalArgumentException("Stage starts must be increasing indices into the chain.");
+			}
+		}
+		this.chain = chain;
+		this.stageStarts = stageStarts.clone();
+		this.mode = (mode == null ? Mode.THROUGHPUT : mode);
+	}
+	
+	/**
+	 * Sets the governor which drops frames before they enter the pipeline when it
+	 * falls behind. While all frames are in flight, the source is still read, and
+	 * its frames are dropped rather than left to back up, so the newest frame
+	 * enters the pipeline as soon as one is free. Must be set before
+	 * <code>start()</code>.
+	 * @param governor The governor, or null to process every frame.
+	 */
+	public void setFrameGovernor(FrameDropGovernor governor) {
+		this.governor = governor;
+	}
+	
+	/**
+	 * Sets a listener which is run on the last stage's thread after each frame
+	 * went through the pipeline (e.g. to take checkpoints). Must be set before
+	 * <code>start()</code>.
+	 * @param listener The listener, or null.
+	 */
+	public void setFrameListener(Runnable listener) {
+		this.frameListener = listener;
+	}
+	
+	/**
+	 * Starts pushing the frames of the given source through the pipeline.
+	 * @param source The source of frames.
+	 * @param format The format of the frames.
+	 * @param endOfMediaCallback Run (on the last stage's thread) after the last
+	 * frame went through the pipeline. May be null.
+	 */
+	public void start(final FrameSource source, VideoFormat format, final Runnable endOfMediaCallback) {
+		if (running) {
+			throw new IllegalStateException("The pipeline is already running.");
+		}
+		final int nStages = stageStarts.length;
+		framesInFlight = (mode == Mode.LATENCY ? nStages + 1 : 2 * nStages + 2);
+		for (RgbVideoEffect effect : chain) {
+			effect.setFramesInFlight(framesInFlight);
+		}
+		
+		queues = newQueues(nStages + 1);
+		for (int q = 0; q < queues.length; q++) {
+			queues[q] = new SpscRingBuffer<ChainFrame>(framesInFlight);
+		}
+		for (int f = 0; f < framesInFlight; f++) {
+			queues[0].offer(new ChainFrame(chain.length, format));
+		}
+		frameCount = 0;
+		running = true;
+		final FrameDropGovernor governor = this.governor;
+		final Runnable frameListener = this.frameListener;
+		final ChainFrame scratch = (governor != null ? new ChainFrame(chain.length, format) : null);
+		
+		threads = new Thread[nStages + 1];
+		threads[0] = new Thread(new Runnable() {
+			public void run() {
+				boolean more = true;
+				ChainFrame frame = null;	// a free frame, kept if its last frame was dropped
+				while (more) {
+					if (frame == null) {
+						frame = (governor == null ? take(queues[0]) : queues[0].poll());
+					}
+					if (!running) {
+						break;	// stopped
+					}
+					
+					// While all frames are in flight, the frame is read only to be dropped
+					ChainFrame target = (frame != null ? frame : scratch);
+					try {
+						more = target.read(source);
+					} catch (IOException e) {
+						System.err.println("Failed to read a frame from the frame source: " + e);
+						more = false;
+					}
+					if (!more) {
+						if (frame == null && (frame = take(queues[0])) == null) {
+							break;	// stopped
+						}
+						frame.setEndOfMedia(true);
+						put(queues[1], frame);
+					} else if (frame == null) {
+						governor.drop(scratch.getTimeStamp());
+					} else if (governor == null || governor.admit(frame.getTimeStamp())) {
+						put(queues[1], frame);
+						frame = null;
+					}
+				}
+			}
+		}, "Pipeline source");
+		
+		for (int s = 0; s < nStages; s++) {
+			final int stage = s;
+			final int from = stageStarts[s];
+			final int to = (s + 1 < nStages ? stageStarts[s + 1] : chain.length);
+			threads[s + 1] = new Thread(new Runnable() {
+				public void run() {
+					boolean last = (stage == nStages - 1);
+					while (true) {
+						ChainFrame frame = take(queues[stage + 1]);
+						if (frame == null) {
+							break;	// stopped
+						}
+						if (frame.isEndOfMedia()) {
+							if (last) {
+								running = false;
+								if (endOfMediaCallback != null) {
+									endOfMediaCallback.run();
+								}
+							} else {
+								put(queues[stage + 2], frame);
+							}
+							break;
+						}
+						
+						if (frame.isDiscarded(from)) {
+							frame.discard(to);	// so the stages after this one skip it too
+						} else {
+							frame.process(chain, from, to);
+						}
+						if (last) {
+							if (governor != null) {
+								governor.finished();
+							}
+							++frameCount;	// only written by this thread
+							if (frameListener != null) {
+								frameListener.run();
+							}
+							put(queues[0], frame);
+						} else {
+							put(queues[stage + 2], frame);
+						}
+					}
+				}
+			}, "Pipeline stage " + (s + 1) + " (" + chain[from].getName() + ")");
+		}
+		
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Stops the pipeline, waiting for its threads to finish their current frame.
+	 * Frames still in the pipeline are not processed.
+	 */
+	public void stop() {
+		running = false;
+		if (threads != null) {
+			for (Thread thread : threads) {
+				if (thread != Thread.currentThread()) {
+					try {
+						thread.join();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if the pipeline is running (it stops at the end of media).
+	 * @return true if running.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Gets the number of frames that went through the whole pipeline.
+	 * @return The number of frames.
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+	
+	/**
+	 * Gets the number of frames circulating through the pipeline (which bounds
+	 * the number of frames queued between stages).
+	 * @return The number of frames in flight.
+	 */
+	public int getFramesInFlight() {
+		return framesInFlight;
+	}
+	
+	/**
+	 * Gets the number of stages (threads processing effects).
+	 * @return The number of stages.
+	 */
+	public int getStageCount() {
+		return stageStarts.length;
+	}
+	
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Creates an array of frame queues. Arrays of a generic type can only be
+	 * created raw, which is safe here since the array never leaves this class.
+	 * @param length Length of the array.
+	 * @return An array of null queues.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SpscRingBuffer<ChainFrame>[] newQueues(int length) {
+		return (SpscRingBuffer<ChainFrame>[]) new SpscRingBuffer<?>[length];
+	}
+	
+	/**
+	 * Takes the next frame from the queue, waiting until there is one.
+	 * @return The frame, or null if the pipeline was stopped.
+	 */
+	private ChainFrame take(SpscRingBuffer<ChainFrame> queue) {
+		ChainFrame frame;
+		int idleCount = 0;
+		while ((frame = queue.poll()) == null) {
+			if (!running) {
+				return null;
+			}
+			idle(++idleCount);
+		}
+		return frame;
+	}
+	
+	/**
+	 * Puts a frame into the queue, waiting until there is room. (There always
+	 * is, since each queue can hold all frames in flight.)
+	 */
+	private void put(SpscRingBuffer<ChainFrame> queue, ChainFrame frame) {
+		int idleCount = 0;
+		while (!queue.offer(frame)) {
+			idle(++idleCount);
+		}
+	}
+	
+	/** Waits a bit, while a stage is idle. */
+	private void idle(int idleCount) {
+		if (mode == Mode.LATENCY || idleCount < SPIN_COUNT) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.RGBFormat;
+import javax.media.format.VideoFormat;
+
+/**
+ * <p>
+ * Reads frames from a file of raw, headerless 24-bit RGB frames, one after the
+ * other. Each frame is given to the effect chain as a zero-copy view into the
+ * memory-mapped file, so frames are not decoded or copied by the source.
+ * </p>
+ * 
+ * <p>
+ * Like the RGB frames JMF delivers, the rows of each frame must be stored
+ * bottom-up, with the bytes of each pixel in R, G, B order. E.g. with ffmpeg:
+ * <code>ffmpeg -i in.avi -vf vflip -pix_fmt rgb24 -f rawvideo out.rgb</code>
+ * </p>
+ */
+public class RawRgbFileSource extends MappedFileSource {
+
+	private VideoFormat format;
+	
+	/** Size of each frame, in bytes. */
+	private int frameSize;
+	
+	/** Number of frames in the file. */
+	private long frameCount;
+	
+	
+	/**
+	 * Constructor.
+	 * @param file The raw RGB file.
+	 * @param size The size of the frames.
+	 * @param frameRate The frame rate, in frames per second.
+	 * @throws IOException If the file could not be opened.
+	 */
+	public RawRgbFileSource(File file, Dimension size, float frameRate) throws IOException {
+		super(file);
+		frameSize = size.width * size.height * 3;
+		frameCount = getFileSize() / frameSize;
+		format = new RGBFormat(size, frameSize, Format.byteArray, frameRate, 24,
+				1, 2, 3, 3, size.width * 3, RGBFormat.TRUE, Format.NOT_SPECIFIED);
+	}
+	
+	/** {@inheritDoc} */
+	public VideoFormat getFormat() {
+		return format;
+	}
+	
+	/**
+	 * Gets the number of (whole) frames in the file.
+	 * @return The number of frames in the file.
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	protected boolean readFrameData(Buffer buffer) throws IOException {
+		if (getFrameNumber() >= frameCount) {
+			return false;
+		}
+		ByteBuffer frame = map(getFrameNumber() * frameSize, frameSize);
+		buffer.setData(frame);
+		buffer.setOffset(0);
+		buffer.setLength(frameSize);
+		return true;
+	}
+}
@@ -0,0 +1,96 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Bounded, lock-free queue for exactly one producer thread and one consumer
+ * thread. Elements are stored in a ring whose size is a power of two; the
+ * producer only writes the tail counter, and the consumer only writes the head
+ * counter, so neither needs to lock or compare-and-swap.
+ * </p>
+ * 
+ * @param <E> The type of the elements.
+ */
+class SpscRingBuffer<E> {
+
+	private final Object elements[];
+	private final int mask;
+	
+	/** Number of elements ever taken (written only by the consumer). */
+	private final AtomicLong head = new AtomicLong();
+	
+	/** Number of elements ever added (written only by the producer). */
+	private final AtomicLong tail = new AtomicLong();
+	
+	
+	/**
+	 * Constructor.
+	 * @param capacity Minimum capacity; rounded up to a power of two.
+	 */
+	SpscRingBuffer(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		elements = new Object[size];
+		mask = size - 1;
+	}
+	
+	/**
+	 * Adds an element. Must only be called by the producer thread.
+	 * @param e The element (not null).
+	 * @return false if the queue is full.
+	 */
+	boolean offer(E e) {
+		long t = tail.get();
+		if (t - head.get() == elements.length) {
+			return false;
+		}
+		elements[(int) t & mask] = e;
+		tail.lazySet(t + 1);	// publishes the element
+		return true;
+	}
+	
+	/**
+	 * Takes the oldest element. Must only be called by the consumer thread.
+	 * @return The element, or null if the queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		long h = head.get();
+		if (h == tail.get()) {
+			return null;
+		}
+		int index = (int) h & mask;
+		E e = (E) elements[index];
+		elements[index] = null;
+		head.lazySet(h + 1);	// frees the slot
+		return e;
+	}
+	
+	/**
+	 * Gets the number of elements in the queue (may be stale).
+	 * @return The number of elements.
+	 */
+	int size() {
+		return (int) (tail.get() - head.get());
+	}
+}
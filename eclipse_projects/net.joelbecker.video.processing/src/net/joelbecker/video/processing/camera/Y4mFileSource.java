@@ -0,0 +1,269 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.video.processing.camera;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.RGBFormat;
+import javax.media.format.VideoFormat;
+
+/**
+ * <p>
+ * Reads frames from a YUV4MPEG2 (.y4m) file, as written by e.g. ffmpeg or
+ * mjpegtools. The planes of each frame are read straight from the memory-mapped
+ * file and converted (BT.601) into a 24-bit RGB frame, stored bottom-up like the
+ * RGB frames JMF delivers. The frame is converted into the array of the buffer
+ * it is read into, so no memory is allocated per frame once the chain's
+ * buffers are set up. Optionally, frames are delivered as packed XRGB pixels
+ * (one int per pixel), like some JMF capture devices deliver them, which
+ * effects with a packed path process without unpacking.
+ * </p>
+ * 
+ * <p>
+ * Supported color spaces are 4:2:0 (all siting variants), 4:2:2, 4:4:4 and
+ * monochrome, with 8 bits per sample.
+ * </p>
+ */
+public class Y4mFileSource extends MappedFileSource {
+
+	private static final String SIGNATURE = "YUV4MPEG2";
+	private static final String FRAME_TAG = "FRAME";
+	
+	/** Longest header line we accept, in bytes. */
+	private static final int MAX_HEADER_LENGTH = 1024;
+	
+	private VideoFormat format;
+	private int width;
+	private int height;
+	
+	/** Horizontal and vertical chroma subsampling, as shifts (0 = none). Chroma is absent if negative. */
+	private int chromaShiftX;
+	private int chromaShiftY;
+	
+	private int chromaWidth;
+	private int chromaHeight;
+	
+	/** Size of the planes of a frame, in bytes (without the frame header). */
+	private int frameDataSize;
+	
+	/** File position of the next frame header. */
+	private long nextFramePos;
+	
+	/** Size of a converted (RGB) frame, in bytes (or in pixels if packed). */
+	private int frameSize;
+	
+	/** Whether frames are delivered as packed XRGB pixels instead of 24-bit RGB. */
+	private boolean packed;
+	
+	
+	/**
+	 * Constructor. Reads the stream header.
+	 * @param file The Y4M file.
+	 * @throws IOException If the file could not be opened, or is not a supported Y4M file.
+	 */
+	public Y4mFileSource(File file) throws IOException {
+		this(file, false);
+	}
+	
+	/**
+	 * Constructor. Reads the stream header.
+	 * @param file The Y4M file.
+	 * @param packed true to deliver frames as packed XRGB pixels (int[]) instead of 24-bit RGB (byte[]).
+	 * @throws IOException If the file could not be opened, or is not a supported Y4M file.
+	 */
+	public Y4mFileSource(File file, boolean packed) throws IOException {
+		super(file);
+		this.packed = packed;
+		float frameRate = Format.NOT_SPECIFIED;
+		String colorSpace = "420";
+		
+		String header = readLine(0);
+		String tokens[] = header.split(" ");
+		if (!tokens[0].equals(SIGNATURE)) {
+			throw new IOException("Not a YUV4MPEG2 file: " + file);
+		}
+		for (int i = 1; i < tokens.length; i++) {
+			String token = tokens[i];
+			if (token.length() < 2) {
+				continue;
+			}
+			String value = token.substring(1);
+			switch (token.charAt(0)) {
+			case 'W':
+				width = Integer.parseInt(value);
+				break;
+			case 'H':
+				height = Integer.parseInt(value);
+				break;
+			case 'F':
+				String ratio[] = value.split(":");
+				frameRate = Float.parseFloat(ratio[0]) / Float.parseFloat(ratio[1]);
+				break;
+			case 'C':
+				colorSpace = value;
+				break;
+			}
+		}
+		if (width <= 0 || height <= 0) {
+			throw new IOException("The Y4M header has no frame size: " + header);
+		}
+		
+		if (colorSpace.startsWith("420")) {
+			chromaShiftX = chromaShiftY = 1;
+		} else if (colorSpace.equals("422")) {
+			chromaShiftX = 1;
+			chromaShiftY = 0;
+		} else if (colorSpace.equals("444")) {
+			chromaShiftX = chromaShiftY = 0;
+		} else if (colorSpace.equals("mono")) {
+			chromaShiftX = chromaShiftY = -1;
+		} else {
+			throw new IOException("Unsupported Y4M color space: " + colorSpace);
+		}
+		if (chromaShiftX >= 0) {
+			chromaWidth = (width + (1 << chromaShiftX) - 1) >> chromaShiftX;
+			chromaHeight = (height + (1 << chromaShiftY) - 1) >> chromaShiftY;
+		}
+		frameDataSize = width * height + 2 * chromaWidth * chromaHeight;
+		nextFramePos = header.length() + 1;
+		
+		if (packed) {
+			frameSize = width * height;
+			format = new RGBFormat(new Dimension(width, height), frameSize, Format.intArray,
+					frameRate, 32, 0xff0000, 0xff00, 0xff, 1, width, RGBFormat.TRUE, Format.NOT_SPECIFIED);
+		} else {
+			frameSize = width * height * 3;
+			format = new RGBFormat(new Dimension(width, height), frameSize, Format.byteArray,
+					frameRate, 24, 1, 2, 3, 3, width * 3, RGBFormat.TRUE, Format.NOT_SPECIFIED);
+		}
+	}
+	
+	/** {@inheritDoc} */
+	public VideoFormat getFormat() {
+		return format;
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	protected boolean readFrameData(Buffer buffer) throws IOException {
+		if (nextFramePos >= getFileSize()) {
+			return false;
+		}
+		String frameHeader = readLine(nextFramePos);
+		if (!frameHeader.startsWith(FRAME_TAG)) {
+			throw new IOException("Bad Y4M frame header at " + nextFramePos + ": " + frameHeader);
+		}
+		long dataPos = nextFramePos + frameHeader.length() + 1;
+		if (dataPos + frameDataSize > getFileSize()) {
+			return false;	// truncated last frame
+		}
+		ByteBuffer planes = map(dataPos, frameDataSize);
+		nextFramePos = dataPos + frameDataSize;
+		
+		// Convert into the buffer's own array if it has one, so that each frame in
+		// flight in a pipelined chain keeps its own data
+		byte[] rgb = null;
+		int[] xrgb = null;
+		if (packed) {
+			if (buffer.getData() instanceof int[] && ((int[]) buffer.getData()).length == frameSize) {
+				xrgb = (int[]) buffer.getData();
+			} else {
+				xrgb = new int[frameSize];
+			}
+			buffer.setData(xrgb);
+		} else {
+			if (buffer.getData() instanceof byte[] && ((byte[]) buffer.getData()).length == frameSize) {
+				rgb = (byte[]) buffer.getData();
+			} else {
+				rgb = new byte[frameSize];
+			}
+			buffer.setData(rgb);
+		}
+		convertToRgb(planes, rgb, xrgb);
+		buffer.setOffset(0);
+		buffer.setLength(frameSize);
+		return true;
+	}
+	
+	/**
+	 * Converts the Y, U and V planes of a frame into a bottom-up RGB frame.
+	 * @param planes The planes, one after the other.
+	 * @param rgb The 24-bit RGB frame (null if packed).
+	 * @param xrgb The packed frame (null if not packed).
+	 */
+	private void convertToRgb(ByteBuffer planes, byte[] rgb, int[] xrgb) {
+		int uPlane = width * height;
+		int vPlane = uPlane + chromaWidth * chromaHeight;
+		int x, y;
+		int yy, d, e;
+		int r, g, b;
+		for (y = 0; y < height; y++) {
+			int lumaRow = y * width;
+			int chromaRow = (chromaShiftY < 0 ? 0 : (y >> chromaShiftY) * chromaWidth);
+			int p = (height - 1 - y) * width * (packed ? 1 : 3);	// rows are stored bottom-up
+			for (x = 0; x < width; x++) {
+				yy = 298 * (((int) planes.get(lumaRow + x) & 0xff) - 16) + 128;
+				if (chromaShiftX < 0) {
+					d = e = 0;
+				} else {
+					int c = chromaRow + (x >> chromaShiftX);
+					d = ((int) planes.get(uPlane + c) & 0xff) - 128;
+					e = ((int) planes.get(vPlane + c) & 0xff) - 128;
+				}
+				r = (yy + 409 * e) >> 8;
+				g = (yy - 100 * d - 208 * e) >> 8;
+				b = (yy + 516 * d) >> 8;
+				r = (r < 0 ? 0 : (r > 255 ? 255 : r));
+				g = (g < 0 ? 0 : (g > 255 ? 255 : g));
+				b = (b < 0 ? 0 : (b > 255 ? 255 : b));
+				if (packed) {
+					xrgb[p++] = (r << 16) | (g << 8) | b;
+				} else {
+					rgb[p++] = (byte) r;
+					rgb[p++] = (byte) g;
+					rgb[p++] = (byte) b;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads a header line (which ends with a line feed) at the given file position.
+	 * @param position File position of the line.
+	 * @return The line, without the line feed.
+	 * @throws IOException If no line feed was found.
+	 */
+	private String readLine(long position) throws IOException {
+		int length = (int) Math.min(MAX_HEADER_LENGTH, getFileSize() - position);
+		ByteBuffer bytes = map(position, length);
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			char c = (char) bytes.get(i);
+			if (c == '\n') {
+				return line.toString();
+			}
+			line.append(c);
+		}
+		throw new IOException("Y4M header line at " + position + " is too long or truncated.");
+	}
+}
@@ -0,0 +1,137 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.test;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.media.MediaLocator;
+
+import net.joelbecker.video.processing.MorphologyEffect;
+import net.joelbecker.video.processing.RowBandExecutor;
+import net.joelbecker.video.processing.camera.CheckpointFile;
+import net.joelbecker.video.processing.camera.FrameDropGovernor;
+import net.joelbecker.video.processing.camera.FrameSource;
+import net.joelbecker.video.processing.camera.PipelinedChainExecutor;
+import net.joelbecker.video.processing.camera.RawRgbFileSource;
+import net.joelbecker.video.processing.camera.Y4mFileSource;
+import net.joelbecker.vision.blob.BatchBlobTracker;
+
+/**
+ * Tracks the blobs in a recording as fast as possible, without a UI, and
+ * prints the throughput report.
+ * 
+ * <pre>
+ * java BlobBatchTest [-pipeline[=latency|throughput]] [-packed] [-fused] [-singlepass] [-coarse] [-motiongate] [-tiles] [-mixture] [-adaptive] [-bits] [-morphology=&lt;op&gt;:&lt;size&gt;] [-checkpoint=&lt;file&gt;] [-bands=&lt;n&gt;] [-governor=&lt;ms&gt;] &lt;file.y4m&gt;
+ * java BlobBatchTest [-pipeline[=latency|throughput]] &lt;file.rgb&gt; &lt;width&gt;x&lt;height&gt; &lt;fps&gt;
+ * java BlobBatchTest &lt;url&gt;
+ * </pre>
+ * 
+ * With -packed, Y4M frames are delivered as packed XRGB pixels (int[]). With
+ * -fused, the foreground is extracted by one fused effect. With -singlepass, the
+ * blobs are created from statistics gathered while labeling. With -coarse, the
+ * detector labels the dilated mask's blocks before its pixels. With -motiongate,
+ * frames in which nothing changed are not processed. With -tiles, only the tiles
+ * of each frame that changed are processed. With -mixture, the foreground is
+ * found with a Gaussian mixture model of the background. With -adaptive, the
+ * threshold of each pixel adapts to its noise. With -bits, the mask is passed
+ * between the effects as a bit plane. With -morphology, the mask is cleaned
+ * before the blobs are detected by erode, dilate, open or close with a square
+ * kernel of the given size. With -checkpoint, the
+ * state is restored from the file, if it exists, and saved to it. With -bands, the
+ * per-pixel loops run on n threads (0 to run them on the calling thread). With
+ * -governor, frames are dropped when the chain falls more than the given number
+ * of milliseconds behind the frames' time stamps.
+ */
+public class BlobBatchTest {
+
+	/**
+	 * Main program
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		BatchBlobTracker tracker = new BatchBlobTracker();
+		boolean packed = false;
+		while (args.length > 0 && args[0].startsWith("-")) {
+			if (args[0].startsWith("-pipeline")) {
+				tracker.getCamera().setPipelineMode(args[0].endsWith("=latency")
+						? PipelinedChainExecutor.Mode.LATENCY : PipelinedChainExecutor.Mode.THROUGHPUT);
+			} else if (args[0].equals("-packed")) {
+				packed = true;
+			} else if (args[0].equals("-fused")) {
+				tracker.getCamera().setFusedForegroundExtraction(true);
+			} else if (args[0].equals("-singlepass")) {
+				tracker.getCamera().setSinglePassBlobDetection(true);
+			} else if (args[0].equals("-coarse")) {
+				tracker.getCamera().setCoarseToFineBlobDetection(true);
+			} else if (args[0].equals("-motiongate")) {
+				tracker.getCamera().setMotionGating(true);
+			} else if (args[0].equals("-tiles")) {
+				tracker.getCamera().setDirtyTileProcessing(true);
+			} else if (args[0].equals("-mixture")) {
+				tracker.getCamera().setGaussianMixtureBackground(true);
+			} else if (args[0].equals("-adaptive")) {
+				tracker.getCamera().setNoiseAdaptiveThreshold(true);
+			} else if (args[0].equals("-bits")) {
+				tracker.getCamera().setBitMaskPlane(true);
+			} else if (args[0].startsWith("-morphology=")) {
+				String morphology[] = args[0].substring("-morphology=".length()).split(":");
+				tracker.getCamera().setMaskMorphology(MorphologyEffect.Operation.valueOf(morphology[0].toUpperCase()),
+						morphology.length > 1 ? Integer.parseInt(morphology[1]) : 3);
+			} else if (args[0].startsWith("-checkpoint=")) {
+				tracker.getCamera().setCheckpointFile(new CheckpointFile(new File(args[0].substring("-checkpoint=".length()))));
+			} else if (args[0].startsWith("-bands=")) {
+				int threads = Integer.parseInt(args[0].substring("-bands=".length()));
+				tracker.getCamera().setBandExecutor(threads > 0 ? new RowBandExecutor(threads,
+						RowBandExecutor.DEFAULT_MIN_BAND_PIXELS) : null);
+			} else if (args[0].startsWith("-governor=")) {
+				double maxLatency = Double.parseDouble(args[0].substring("-governor=".length())) / 1000.0;
+				tracker.getCamera().setFrameGovernor(new FrameDropGovernor(maxLatency));
+			} else {
+				break;
+			}
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		if (args.length == 0) {
+			System.err.println("Usage: java BlobBatchTest [-pipeline[=latency|throughput]] [-packed] [-fused] [-singlepass] [-coarse] [-motiongate] [-tiles] [-mixture] [-adaptive] [-bits] [-morphology=<op>:<size>] [-checkpoint=<file>] [-bands=<n>] [-governor=<ms>]"
+					+ " <file.y4m> | <file.rgb> <width>x<height> <fps> | <url>");
+			System.exit(1);
+		}
+		
+		boolean success;
+		if (args[0].toLowerCase().endsWith(".y4m")) {
+			success = tracker.run(new Y4mFileSource(new File(args[0]), packed));
+		} else if (args.length >= 3) {
+			String size[] = args[1].toLowerCase().split("x");
+			FrameSource source = new RawRgbFileSource(new File(args[0]),
+					new Dimension(Integer.parseInt(size[0]), Integer.parseInt(size[1])),
+					Float.parseFloat(args[2]));
+			success = tracker.run(source);
+		} else {
+			success = tracker.run(new MediaLocator(args[0]));
+		}
+		
+		if (!success) {
+			System.out.println("Could not open " + args[0]);
+			System.exit(2);
+		}
+		tracker.printReport(System.out);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,200 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.test;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.RGBFormat;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.VectorKernels;
+import net.joelbecker.video.processing.camera.FrameSource;
+import net.joelbecker.vision.blob.BatchBlobTracker;
+
+/**
+ * Times the per-pixel kernels of the chain (the difference from the background,
+ * the threshold and the background update, among the others) on synthetic
+ * frames: a still background with Gaussian noise, which defeats branch
+ * prediction like a dark or grainy camera does, and a square moving across it.
+ * The time per frame of each effect is printed as by {@link BlobBatchTest}.
+ * 
+ * <pre>
+ * java KernelBenchmark [-packed] [-noise=&lt;sigma&gt;] [-warmup=&lt;frames&gt;] [&lt;width&gt;x&lt;height&gt;] [&lt;frames&gt;]
+ * </pre>
+ * 
+ * The default is 300 frames of 1280x720, with a noise of 16 levels. The
+ * {@link VectorKernels} are used if the JVM is started with
+ * <code>--add-modules jdk.incubator.vector</code> (and the fragment is on the
+ * class path); which kernels ran is printed first. Since they are slow until
+ * they are compiled, the warm-up frames (100 by default) are run through
+ * another tracker first, and not timed.
+ */
+public class KernelBenchmark {
+
+	/**
+	 * Main program
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		boolean packed = false;
+		double noise = 16.0;
+		Dimension size = new Dimension(1280, 720);
+		int frames = 300;
+		int warmupFrames = 100;
+		for (String arg : args) {
+			if (arg.equals("-packed")) {
+				packed = true;
+			} else if (arg.startsWith("-noise=")) {
+				noise = Double.parseDouble(arg.substring("-noise=".length()));
+			} else if (arg.startsWith("-warmup=")) {
+				warmupFrames = Integer.parseInt(arg.substring("-warmup=".length()));
+			} else if (arg.toLowerCase().indexOf('x') > 0) {
+				String dimensions[] = arg.toLowerCase().split("x");
+				size = new Dimension(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+			} else {
+				try {
+					frames = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					System.err.println("Usage: java KernelBenchmark [-packed] [-noise=<sigma>] [-warmup=<frames>] [<width>x<height>] [<frames>]");
+					System.exit(1);
+				}
+			}
+		}
+		
+		VectorKernels vectors = VectorKernels.getInstance();
+		System.out.println("Kernels: " + (vectors != null ? vectors.getDescription() : "scalar"));
+		
+		if (warmupFrames > 0 && !new BatchBlobTracker().run(new SyntheticFrameSource(size, warmupFrames, noise, packed))) {
+			System.out.println("Could not open the synthetic source");
+			System.exit(2);
+		}
+		BatchBlobTracker tracker = new BatchBlobTracker();
+		if (!tracker.run(new SyntheticFrameSource(size, frames, noise, packed))) {
+			System.out.println("Could not open the synthetic source");
+			System.exit(2);
+		}
+		tracker.printReport(System.out);
+		System.exit(0);
+	}
+	
+	/**
+	 * Makes frames of a still background (a gradient) with Gaussian noise and a
+	 * moving square. A few frames of noise are made up front and repeated, so the
+	 * frames cost little to make.
+	 */
+	private static class SyntheticFrameSource implements FrameSource {
+		
+		private static final int NOISE_FRAMES = 16;
+		
+		private VideoFormat format;
+		private int frameCount;
+		private int frameNumber;
+		private boolean packed;
+		
+		/** The frames of noise, as packed pixels. */
+		private int[][] noisyFrames = new int[NOISE_FRAMES][];
+		
+		
+		public SyntheticFrameSource(Dimension size, int frameCount, double noise, boolean packed) {
+			this.frameCount = frameCount;
+			this.packed = packed;
+			int pixels = size.width * size.height;
+			if (packed) {
+				format = new RGBFormat(size, pixels, Format.intArray, 30f, 32,
+						0xff0000, 0xff00, 0xff, 1, size.width, RGBFormat.TRUE, Format.NOT_SPECIFIED);
+			} else {
+				format = new RGBFormat(size, pixels * 3, Format.byteArray, 30f, 24,
+						1, 2, 3, 3, size.width * 3, RGBFormat.TRUE, Format.NOT_SPECIFIED);
+			}
+			Random random = new Random(1);
+			for (int f = 0; f < NOISE_FRAMES; f++) {
+				int[] frame = noisyFrames[f] = new int[pixels];
+				for (int p = 0; p < pixels; p++) {
+					int x = p % size.width;
+					int y = p / size.width;
+					int r = noisy(x * 255 / size.width, noise, random);
+					int g = noisy(y * 255 / size.height, noise, random);
+					int b = noisy(128, noise, random);
+					frame[p] = (r << 16) | (g << 8) | b;
+				}
+			}
+		}
+		
+		private static int noisy(int level, double noise, Random random) {
+			return Math.max(0, Math.min(255, level + (int) Math.round(random.nextGaussian() * noise)));
+		}
+		
+		/** {@inheritDoc} */
+		public VideoFormat getFormat() {
+			return format;
+		}
+		
+		/** {@inheritDoc} */
+		public boolean readFrame(Buffer buffer) {
+			if (frameNumber >= frameCount) {
+				return false;
+			}
+			int[] pixels = noisyFrames[frameNumber % NOISE_FRAMES];
+			Dimension size = format.getSize();
+			int side = size.height / 4;
+			int left = frameNumber * 4 % Math.max(1, size.width - side);
+			int top = (size.height - side) / 2;
+			if (packed) {
+				int[] data = buffer.getData() instanceof int[] ? (int[]) buffer.getData() : null;
+				if (data == null || data.length != pixels.length) {
+					data = new int[pixels.length];
+				}
+				System.arraycopy(pixels, 0, data, 0, pixels.length);
+				for (int y = top; y < top + side; y++) {
+					Arrays.fill(data, y * size.width + left, y * size.width + left + side, 0xffffff);
+				}
+				buffer.setData(data);
+				buffer.setLength(data.length);
+			} else {
+				byte[] data = buffer.getData() instanceof byte[] ? (byte[]) buffer.getData() : null;
+				if (data == null || data.length != pixels.length * 3) {
+					data = new byte[pixels.length * 3];
+				}
+				for (int p = 0, i = 0; p < pixels.length; p++) {
+					data[i++] = (byte) (pixels[p] >> 16);
+					data[i++] = (byte) (pixels[p] >> 8);
+					data[i++] = (byte) pixels[p];
+				}
+				for (int y = top; y < top + side; y++) {
+					Arrays.fill(data, (y * size.width + left) * 3, (y * size.width + left + side) * 3, (byte) 255);
+				}
+				buffer.setData(data);
+				buffer.setLength(data.length);
+			}
+			buffer.setOffset(0);
+			buffer.setFormat(format);
+			buffer.setSequenceNumber(frameNumber);
+			buffer.setTimeStamp((long) (frameNumber * 1.0e9 / format.getFrameRate()));
+			buffer.setFlags(0);
+			++frameNumber;
+			return true;
+		}
+		
+		/** {@inheritDoc} */
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.test;
+
+import java.awt.Dimension;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.RGBFormat;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.BackgroundModel;
+import net.joelbecker.video.processing.BackgroundUpdater;
+import net.joelbecker.video.processing.BufferAccessor;
+import net.joelbecker.video.processing.RgbDiffEffect;
+import net.joelbecker.video.processing.RgbThresholdEffect;
+import net.joelbecker.video.processing.RgbVideoEffect;
+import net.joelbecker.video.processing.RowBandExecutor;
+import net.joelbecker.video.processing.VectorKernels;
+
+/**
+ * Checks the kernels of the difference from the background, the threshold and
+ * the background update against plain loops of one component at a time: the
+ * difference with every pair of bytes, and the threshold with every byte
+ * against thresholds up to the largest char. Frame sizes which leave part of
+ * a vector or long over at the end of a row are included, as are frames split
+ * into bands.
+ * 
+ * <pre>
+ * java [--add-modules jdk.incubator.vector] KernelCheck
+ * </pre>
+ * 
+ * The kernels which are checked are those {@link VectorKernels} picks; with
+ * <code>-Dnet.joelbecker.video.processing.vector=false</code>, the effects'
+ * own loops are.
+ */
+public class KernelCheck {
+
+	private static final Dimension[] SIZES = new Dimension[] {
+		new Dimension(256, 256), new Dimension(37, 23), new Dimension(1, 1), new Dimension(643, 5)
+	};
+	
+	private static int failures;
+	private static int checks;
+	
+	/**
+	 * Main program
+	 */
+	public static void main(String[] args) {
+		VectorKernels vectors = VectorKernels.getInstance();
+		System.out.println("Kernels: " + (vectors != null ? vectors.getDescription() : "scalar"));
+		
+		Random random = new Random(1);
+		for (RowBandExecutor executor : new RowBandExecutor[] { null, new RowBandExecutor(3, 16) }) {
+			for (Dimension size : SIZES) {
+				checkDifferences(size, executor, random);
+				checkThreshold(size, executor, random);
+				checkBackgroundUpdate(size, executor, random);
+			}
+		}
+		System.out.println(checks + " checks, " + failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/** Checks the difference of every pair of bytes (as many as fit in the frame). */
+	private static void checkDifferences(Dimension size, RowBandExecutor executor, Random random) {
+		final byte[] background = new byte[size.width * size.height * 3];
+		byte[] frame = new byte[background.length];
+		random.nextBytes(background);
+		random.nextBytes(frame);
+		for (int i = 0; i < Math.min(frame.length, 0x10000); i++) {
+			frame[i] = (byte) (i >> 8);
+			background[i] = (byte) i;
+		}
+		byte[] expected = new byte[frame.length];
+		for (int i = 0; i < frame.length; i++) {
+			expected[i] = (byte) Math.abs((frame[i] & 0xff) - (background[i] & 0xff));
+		}
+		
+		RgbDiffEffect diff = new RgbDiffEffect(new BackgroundModel() {
+			public byte[] getBackground() {
+				return background;
+			}
+			public int[] getPackedBackground() {
+				return null;
+			}
+			public void resetBackground() {
+			}
+		});
+		diff.setBandExecutor(executor);
+		check("difference " + size.width + "x" + size.height, expected, process(diff, frame, size));
+		
+		// In place, as from a memory-mapped file
+		ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+		direct.put(frame).clear();
+		check("difference of a ByteBuffer " + size.width + "x" + size.height, expected, process(diff, direct, size));
+	}
+	
+	/** Checks thresholds from 0 to the largest char, comparing the components as chars. */
+	private static void checkThreshold(Dimension size, RowBandExecutor executor, Random random) {
+		byte[] frame = new byte[size.width * size.height * 3];
+		RgbThresholdEffect threshold = new RgbThresholdEffect();
+		threshold.setBandExecutor(executor);
+		for (int t = 0; t <= Character.MAX_VALUE; t += t < 0x100 || t >= 0xff70 ? 1 : 0x3f1) {
+			if (t % 2 == 0) {
+				random.nextBytes(frame);
+			} else {
+				// Mostly small, like differences from the background
+				for (int i = 0; i < frame.length; i++) {
+					frame[i] = (byte) Math.min(255, Math.abs(random.nextGaussian() * 24));
+				}
+			}
+			byte[] expected = new byte[size.width * size.height];
+			int passes = 0;
+			for (int p = 0, i = 0; p < expected.length; p++, i += 3) {
+				if ((char) frame[i] > t || (char) frame[i + 1] > t || (char) frame[i + 2] > t) {
+					expected[p] = (byte) 255;
+					passes++;
+				}
+			}
+			threshold.setThreshold((char) t);
+			String name = "threshold " + t + " " + size.width + "x" + size.height;
+			check(name, expected, process(threshold, frame, size));
+			check(name + " count", passes, threshold.getPassCount());
+		}
+	}
+	
+	/** Checks the background learned from a few frames with a moving mask. */
+	private static void checkBackgroundUpdate(Dimension size, RowBandExecutor executor, Random random) {
+		int pixels = size.width * size.height;
+		int rate = Math.round(0.05f * 4096);
+		int foregroundRate = Math.round(0.01f * 4096);
+		BufferAccessor accessor = new BufferAccessor();
+		BackgroundUpdater updater = new BackgroundUpdater(accessor);
+		updater.setLearningRate(0.05f);
+		updater.setForegroundLearningRate(0.01f);
+		updater.setBandExecutor(executor);
+		
+		char[] accumulator = new char[pixels * 3];
+		byte[] expected = new byte[pixels * 3];
+		for (int f = 0; f < 6; f++) {
+			byte[] frame = new byte[pixels * 3];
+			byte[] mask = new byte[pixels];
+			random.nextBytes(frame);
+			for (int p = 0; p < pixels; p++) {
+				mask[p] = (byte) (random.nextInt(4) == 0 ? 255 : 0);
+			}
+			for (int i = 0; i < frame.length; i++) {
+				int a = accumulator[i];
+				if (f == 0) {
+					a = (frame[i] & 0xff) << 8;
+				} else {
+					int r = mask[i / 3] != 0 ? foregroundRate : rate;
+					a += ((((frame[i] & 0xff) << 8) - a) * r + 2048) >> 12;
+				}
+				accumulator[i] = (char) a;
+				expected[i] = (byte) ((a + 0x80) >> 8);
+			}
+			process(accessor, frame, size);
+			process(updater, mask, size);
+		}
+		check("background " + size.width + "x" + size.height, expected, updater.getBackground());
+	}
+	
+	/**
+	 * Processes a frame of 24-bit pixels, or a mask of one byte per pixel, with an effect.
+	 * @return The output, or the input if the effect passed it on.
+	 */
+	private static Object process(RgbVideoEffect effect, Object data, Dimension size) {
+		int pixels = size.width * size.height;
+		Buffer in = new Buffer();
+		Buffer out = new Buffer();
+		in.setData(data);
+		in.setLength(data instanceof ByteBuffer ? ((ByteBuffer) data).limit() : ((byte[]) data).length);
+		in.setFormat(new RGBFormat(size, pixels * 3, Format.byteArray, 30f, 24,
+				1, 2, 3, 3, size.width * 3, VideoFormat.TRUE, Format.NOT_SPECIFIED));
+		effect.process(in, out);
+		return out.getData();
+	}
+	
+	private static void check(String name, byte[] expected, Object actual) {
+		++checks;
+		byte[] bytes = (byte[]) actual;
+		for (int i = 0; i < expected.length; i++) {
+			if (bytes == null || bytes[i] != expected[i]) {
+				fail(name + ": byte " + i + " is " + (bytes != null ? bytes[i] & 0xff : "missing")
+						+ " instead of " + (expected[i] & 0xff));
+				return;
+			}
+		}
+	}
+	
+	private static void check(String name, int expected, int actual) {
+		++checks;
+		if (actual != expected) {
+			fail(name + ": " + actual + " instead of " + expected);
+		}
+	}
+	
+	private static void fail(String message) {
+		if (++failures <= 10) {
+			System.out.println("FAILED " + message);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.test;
+
+import java.awt.Dimension;
+import java.util.Random;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.RGBFormat;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.MorphologyEffect;
+import net.joelbecker.video.processing.RowBandExecutor;
+
+/**
+ * Checks {@link MorphologyEffect} against taking the lowest or highest value
+ * under the kernel at each pixel, for every operation, with kernels from one
+ * pixel to larger than the frame, on frames split into bands and not.
+ * 
+ * <pre>
+ * java MorphologyCheck
+ * </pre>
+ */
+public class MorphologyCheck {
+
+	private static final Dimension[] SIZES = new Dimension[] {
+		new Dimension(37, 23), new Dimension(64, 64), new Dimension(5, 90), new Dimension(1, 1), new Dimension(200, 3)
+	};
+	
+	private static final int[] KERNEL_WIDTHS = new int[] { 1, 2, 3, 4, 7, 12, 40 };
+	private static final int[] KERNEL_HEIGHTS = new int[] { 1, 2, 3, 5, 8, 31 };
+	
+	/**
+	 * Main program
+	 */
+	public static void main(String[] args) {
+		Random random = new Random(2);
+		int checks = 0;
+		int failures = 0;
+		for (RowBandExecutor executor : new RowBandExecutor[] { null, new RowBandExecutor(3, 16) }) {
+			for (Dimension size : SIZES) {
+				// Mostly 0 and 255, like a mask, with other values too
+				byte[] mask = new byte[size.width * size.height];
+				for (int i = 0; i < mask.length; i++) {
+					mask[i] = (byte) (random.nextInt(4) == 0 ? 255 : random.nextInt(3) == 0 ? random.nextInt(256) : 0);
+				}
+				for (int kernelWidth : KERNEL_WIDTHS) {
+					for (int kernelHeight : KERNEL_HEIGHTS) {
+						for (MorphologyEffect.Operation operation : MorphologyEffect.Operation.values()) {
+							MorphologyEffect morphology = new MorphologyEffect(operation, kernelWidth, kernelHeight);
+							morphology.setBandExecutor(executor);
+							byte[] expected;
+							switch (operation) {
+							case ERODE:
+								expected = filter(mask, size, kernelWidth, kernelHeight, false);
+								break;
+							case DILATE:
+								expected = filter(mask, size, kernelWidth, kernelHeight, true);
+								break;
+							case OPEN:
+								expected = filter(filter(mask, size, kernelWidth, kernelHeight, false),
+										size, kernelWidth, kernelHeight, true);
+								break;
+							default:
+								expected = filter(filter(mask, size, kernelWidth, kernelHeight, true),
+										size, kernelWidth, kernelHeight, false);
+							}
+							byte[] actual = process(morphology, mask, size);
+							++checks;
+							for (int i = 0; i < expected.length; i++) {
+								if (actual[i] != expected[i]) {
+									if (++failures <= 10) {
+										System.out.println("FAILED " + operation + " " + kernelWidth + "x" + kernelHeight
+												+ " of " + size.width + "x" + size.height + ": byte " + i + " is "
+												+ (actual[i] & 0xff) + " instead of " + (expected[i] & 0xff));
+									}
+									break;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		System.out.println(checks + " checks, " + failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Takes the lowest or highest value under the kernel, centered like the
+	 * effect's, of each pixel, leaving out those beyond the edges.
+	 */
+	private static byte[] filter(byte[] mask, Dimension size, int kernelWidth, int kernelHeight, boolean dilate) {
+		byte[] out = new byte[mask.length];
+		for (int y = 0; y < size.height; y++) {
+			for (int x = 0; x < size.width; x++) {
+				int value = dilate ? 0 : 255;
+				for (int ky = y - kernelHeight / 2; ky < y - kernelHeight / 2 + kernelHeight; ky++) {
+					for (int kx = x - kernelWidth / 2; kx < x - kernelWidth / 2 + kernelWidth; kx++) {
+						if (ky >= 0 && ky < size.height && kx >= 0 && kx < size.width) {
+							int pixel = mask[ky * size.width + kx] & 0xff;
+							value = dilate ? Math.max(value, pixel) : Math.min(value, pixel);
+						}
+					}
+				}
+				out[y * size.width + x] = (byte) value;
+			}
+		}
+		return out;
+	}
+	
+	/** Processes a mask of one byte per pixel with the effect. */
+	private static byte[] process(MorphologyEffect morphology, byte[] mask, Dimension size) {
+		Buffer in = new Buffer();
+		Buffer out = new Buffer();
+		in.setData(mask);
+		in.setLength(mask.length);
+		in.setFormat(new RGBFormat(size, mask.length, Format.byteArray, 30f, 8,
+				1, 1, 1, 1, size.width, VideoFormat.TRUE, Format.NOT_SPECIFIED));
+		morphology.process(in, out);
+		return (byte[]) out.getData();
+	}
+}
@@ -0,0 +1,183 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.test;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.media.Buffer;
+import javax.media.Format;
+import javax.media.format.RGBFormat;
+import javax.media.format.VideoFormat;
+
+import net.joelbecker.video.processing.RgbThresholdEffect;
+import net.joelbecker.video.processing.RgbVideoEffect;
+import net.joelbecker.video.processing.RowBandExecutor;
+import net.joelbecker.video.processing.SummedAreaTableEffect;
+
+/**
+ * Checks the sums of rectangles of {@link SummedAreaTableEffect} against adding
+ * up their pixels, for frames of 24-bit pixels, packed pixels and masks of one
+ * byte per pixel, split into bands and not. The masks are also given as the
+ * output of an {@link RgbThresholdEffect}, as in a chain, whose buffer is as
+ * long as a frame's. A frame of 255s large enough to wrap the table's ints
+ * around is checked too.
+ * 
+ * <pre>
+ * java SummedAreaTableCheck
+ * </pre>
+ */
+public class SummedAreaTableCheck {
+
+	private static final Dimension[] SIZES = new Dimension[] {
+		new Dimension(37, 23), new Dimension(640, 480), new Dimension(1, 1), new Dimension(5, 200)
+	};
+	
+	private static final int RECTANGLES = 300;
+	
+	private static int failures;
+	private static int checks;
+	
+	/**
+	 * Main program
+	 */
+	public static void main(String[] args) {
+		Random random = new Random(5);
+		for (RowBandExecutor executor : new RowBandExecutor[] { null, new RowBandExecutor(3, 16), new RowBandExecutor(7, 1) }) {
+			for (Dimension size : SIZES) {
+				int pixels = size.width * size.height;
+				SummedAreaTableEffect table = new SummedAreaTableEffect();
+				table.setBandExecutor(executor);
+				String name = " " + size.width + "x" + size.height;
+				
+				byte[] frame = new byte[pixels * 3];
+				random.nextBytes(frame);
+				process(table, frame, size);
+				checkSums("frame" + name, table, values(frame, 3), size, random);
+				
+				int[] packed = new int[pixels];
+				for (int p = 0; p < pixels; p++) {
+					packed[p] = random.nextInt();
+				}
+				process(table, packed, size);
+				int[] packedValues = new int[pixels];
+				for (int p = 0; p < pixels; p++) {
+					packedValues[p] = ((packed[p] >> 16) & 0xff) + ((packed[p] >> 8) & 0xff) + (packed[p] & 0xff);
+				}
+				checkSums("packed frame" + name, table, packedValues, size, random);
+				
+				byte[] mask = new byte[pixels];
+				random.nextBytes(mask);
+				table.setMaskInput(true);
+				process(table, mask, size);
+				checkSums("mask" + name, table, values(mask, 1), size, random);
+				
+				// The threshold's output, in a buffer as long as the frame
+				RgbThresholdEffect threshold = new RgbThresholdEffect();
+				threshold.setBandExecutor(executor);
+				byte[] thresholded = process(threshold, frame, size);
+				process(table, thresholded, size);
+				checkSums("thresholded mask" + name, table, values(Arrays.copyOf(thresholded, pixels), 1), size, random);
+			}
+		}
+		
+		// A mask of all 255s, through the chain
+		Dimension size = new Dimension(40, 30);
+		byte[] frame = new byte[size.width * size.height * 3];
+		Arrays.fill(frame, (byte) 255);
+		SummedAreaTableEffect table = new SummedAreaTableEffect();
+		table.setMaskInput(true);
+		process(table, process(new RgbThresholdEffect(), frame, size), size);
+		check("all-255 mask of 40x30", 255L * 40 * 30, table.getSum(0, 0, 40, 30));
+		
+		// Sums beyond an int
+		size = new Dimension(3000, 2000);
+		frame = new byte[size.width * size.height * 3];
+		Arrays.fill(frame, (byte) 255);
+		table = new SummedAreaTableEffect();
+		table.setBandExecutor(new RowBandExecutor(3, 16));
+		process(table, frame, size);
+		check("wrapped 2000x2000 of 3000x2000", 765L * 2000 * 2000, table.getSum(500, 0, 2000, 2000));
+		
+		System.out.println(checks + " checks, " + failures + " failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/** Gets the value of each pixel: the sum of its bytes. */
+	private static int[] values(byte[] data, int pixelBytes) {
+		int[] values = new int[data.length / pixelBytes];
+		for (int i = 0; i < data.length; i++) {
+			values[i / pixelBytes] += data[i] & 0xff;
+		}
+		return values;
+	}
+	
+	/** Checks the sums of random rectangles, partly outside the frame. */
+	private static void checkSums(String name, SummedAreaTableEffect table, int[] values, Dimension size, Random random) {
+		for (int r = 0; r < RECTANGLES; r++) {
+			Rectangle rectangle = new Rectangle(random.nextInt(size.width + 10) - 5, random.nextInt(size.height + 10) - 5,
+					random.nextInt(size.width + 5), random.nextInt(size.height + 5));
+			long expected = 0;
+			for (int y = Math.max(rectangle.y, 0); y < Math.min(rectangle.y + rectangle.height, size.height); y++) {
+				for (int x = Math.max(rectangle.x, 0); x < Math.min(rectangle.x + rectangle.width, size.width); x++) {
+					// The frame's rows are from the bottom up
+					expected += values[(size.height - 1 - y) * size.width + x];
+				}
+			}
+			if (!check(name + " " + rectangle, expected, table.getSum(rectangle))) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Processes a frame (24-bit pixels, or packed pixels) or a mask with an effect,
+	 * in the frame's format as the chain passes it on.
+	 * @return The output bytes, or null if the output is not bytes.
+	 */
+	private static byte[] process(RgbVideoEffect effect, Object data, Dimension size) {
+		int pixels = size.width * size.height;
+		Buffer in = new Buffer();
+		Buffer out = new Buffer();
+		in.setData(data);
+		if (data instanceof int[]) {
+			in.setLength(pixels);
+			in.setFormat(new RGBFormat(size, pixels, Format.intArray, 30f, 32,
+					0xff0000, 0xff00, 0xff, 1, size.width, VideoFormat.TRUE, Format.NOT_SPECIFIED));
+		} else {
+			in.setLength(((byte[]) data).length);
+			in.setFormat(new RGBFormat(size, pixels * 3, Format.byteArray, 30f, 24,
+					1, 2, 3, 3, size.width * 3, VideoFormat.TRUE, Format.NOT_SPECIFIED));
+		}
+		effect.process(in, out);
+		return out.getData() instanceof byte[] ? (byte[]) out.getData() : null;
+	}
+	
+	private static boolean check(String name, long expected, long actual) {
+		++checks;
+		if (actual != expected) {
+			if (++failures <= 10) {
+				System.out.println("FAILED " + name + ": " + actual + " instead of " + expected);
+			}
+			return false;
+		}
+		return true;
+	}
+}
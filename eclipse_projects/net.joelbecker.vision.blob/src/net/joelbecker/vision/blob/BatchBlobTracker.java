@@ -0,0 +1,176 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob;
+
+import java.io.PrintStream;
+
+import javax.media.MediaLocator;
+
+import net.joelbecker.video.processing.DirtyTileTracker;
+import net.joelbecker.video.processing.MotionGateEffect;
+import net.joelbecker.video.processing.RgbVideoEffect;
+import net.joelbecker.video.processing.camera.FrameSource;
+
+/**
+ * <p>
+ * Runs a recording through the processing chain of a {@link BlobPublishingCamera}
+ * as fast as the CPU allows, stopping at the end of media, and reports the
+ * throughput (frames per second, time per stage, and total blobs tracked).
+ * </p>
+ * 
+ * <p>
+ * Since frames are processed faster than real time, blobs are timed by the media
+ * time of their frames (see <code>BlobManager.setUseMediaTime()</code>), so
+ * blob ages and missing times are the same as when playing in real time.
+ * </p>
+ */
+public class BatchBlobTracker {
+
+	private BlobPublishingCamera camera;
+	
+	/** Wall-clock time of the last run, in seconds. */
+	private double elapsedTime;
+	
+	/** Number of frames processed in the last run. */
+	private long frameCount;
+	
+	
+	public BatchBlobTracker() {
+		this(new BlobPublishingCamera());
+	}
+	
+	public BatchBlobTracker(BlobPublishingCamera camera) {
+		if (camera == null) {
+			throw new NullPointerException("camera");
+		}
+		this.camera = camera;
+		camera.getBlobManager().setUseMediaTime(true);
+	}
+	
+	/**
+	 * Gets the camera whose processing chain is run.
+	 * @return The camera.
+	 */
+	public BlobPublishingCamera getCamera() {
+		return camera;
+	}
+	
+	/**
+	 * Processes all frames of the given source: on the calling thread, or as a
+	 * pipeline if the camera has a pipeline mode (see
+	 * <code>HeadlessProcessingCamera.setPipelineMode()</code>).
+	 * @param source The source of frames, which is closed afterwards.
+	 * @return true if successful.
+	 * @throws InterruptedException If interrupted while waiting for the pipeline.
+	 */
+	public boolean run(FrameSource source) throws InterruptedException {
+		boolean pipelined = (camera.getPipelineMode() != null);
+		long startTime = System.nanoTime();
+		if (!camera.open(source, pipelined)) {
+			return false;
+		}
+		if (pipelined) {
+			camera.waitForEndOfMedia();
+		} else {
+			while (camera.processNextFrame())
+				;
+		}
+		elapsedTime = (System.nanoTime() - startTime) / 1.0e9;
+		frameCount = camera.getFrameCount();
+		camera.close();
+		return true;
+	}
+	
+	/**
+	 * Processes all frames of the given media through JMF, until its end. Note
+	 * that a JMF processor paces playback, so this is not faster than real time.
+	 * @param ml The location of the media.
+	 * @return true if successful.
+	 * @throws InterruptedException If interrupted while waiting for the end of media.
+	 */
+	public boolean run(MediaLocator ml) throws InterruptedException {
+		camera.setLoopAtEndOfMedia(false);
+		long startTime = System.nanoTime();
+		if (!camera.open(ml)) {
+			return false;
+		}
+		camera.waitForEndOfMedia();
+		elapsedTime = (System.nanoTime() - startTime) / 1.0e9;
+		frameCount = camera.getProcessingChain()[0].getProcessedFrameCount();
+		camera.close();
+		return true;
+	}
+	
+	/**
+	 * Gets the number of frames processed in the last run.
+	 * @return The number of frames.
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+	
+	/**
+	 * Gets the wall-clock time of the last run, in seconds.
+	 * @return The time in seconds.
+	 */
+	public double getElapsedTime() {
+		return elapsedTime;
+	}
+	
+	/**
+	 * Gets the throughput of the last run.
+	 * @return The number of frames processed per second.
+	 */
+	public double getFramesPerSecond() {
+		return elapsedTime == 0.0 ? 0.0 : frameCount / elapsedTime;
+	}
+	
+	/**
+	 * Prints the throughput report of the last run.
+	 * @param out The stream to print to.
+	 */
+	public void printReport(PrintStream out) {
+		out.println(String.format("Processed %d frames in %.2f s (%.1f frames/s)",
+				frameCount, elapsedTime, getFramesPerSecond()));
+		
+		double totalStageTime = 0.0;
+		for (RgbVideoEffect effect : camera.getProcessingChain()) {
+			totalStageTime += effect.getTotalProcessingTime();
+		}
+		for (RgbVideoEffect effect : camera.getProcessingChain()) {
+			out.println(String.format("  %-40s %9.3f ms/frame %6.1f%%",
+					effect.getName(),
+					effect.getAvgProcessingTime() * 1000.0,
+					totalStageTime == 0.0 ? 0.0 : 100.0 * effect.getTotalProcessingTime() / totalStageTime));
+		}
+		for (RgbVideoEffect effect : camera.getProcessingChain()) {
+			if (effect instanceof MotionGateEffect) {
+				out.println(String.format("Motion gate: %d of %d frames static",
+						((MotionGateEffect) effect).getStaticFrameCount(), frameCount));
+			}
+			if (effect instanceof DirtyTileTracker) {
+				out.println("Dirty tile tracker: " + effect);
+			}
+		}
+		out.println("Frame buffer pool: " + camera.getBufferPool());
+		if (camera.getFrameGovernor() != null) {
+			out.println("Frame governor: " + camera.getFrameGovernor());
+		}
+		out.println(String.format("Blobs tracked: %d", camera.getBlobManager().getTrackCount()));
+	}
+}
@@ -33,6 +33,7 @@ public class Blob {
 	public double timeLastUpdated;			// age in seconds
 	public double timeMissing;	// total time that the blob has been missing (0 if not missing)
 	public Point2D.Double velocity;	// pixels per second
+	public Point2D.Double centroid;	// mean pixel position (0,0 = top-left), or null if the detector doesn't find it
 	
 	/**
 	 * Constructor for a new Blob that is not correlated with a previous one.
@@ -40,12 +41,22 @@ public class Blob {
 	 * @param bounds
 	 */
 	public Blob(int frameLabel, Rectangle bounds) {
+		this(frameLabel, bounds, (double) System.nanoTime() / 1000000000.0);
+	}
+	
+	/**
+	 * Constructor for a new Blob that is not correlated with a previous one.
+	 * @param label
+	 * @param bounds
+	 * @param time Time the blob was detected, in seconds.
+	 */
+	public Blob(int frameLabel, Rectangle bounds, double time) {
 		this.label = NOT_CORRELATED;
 		this.frameLabel = frameLabel;
 		this.bounds = bounds;
 		//this.pixelCount = pixelCount;
 		this.velocity = new Point2D.Double(0.0, 0.0);
-		this.timeCreated = (double) System.nanoTime() / 1000000000.0;
+		this.timeCreated = time;
 		this.timeLastUpdated = this.timeCreated;
 		this.timeMissing = 0.0;
 	}
@@ -19,11 +19,15 @@ package net.joelbecker.vision.blob;
 
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 
+import net.joelbecker.video.processing.Checkpointable;
 import net.joelbecker.vision.blob.correlator.BlobCorrelator;
 import net.joelbecker.vision.blob.correlator.WeightedBlobCorrelator;
 
@@ -34,10 +38,16 @@ import net.joelbecker.vision.blob.correlator.WeightedBlobCorrelator;
  * filtering takes place automatically.
  * </p>
  * 
+ * <p>
+ * The correlated blobs, and the correlator's state, are saved in checkpoints.
+ * Restored blobs are moved in time to the first update after restoring, as if
+ * that frame followed the last one before the checkpoint.
+ * </p>
+ * 
  * @author Joel R. Becker <br>
  *         8/10/09
  */
-public class BlobManager {
+public class BlobManager implements Checkpointable {
 	private List<Blob> uncorrelatedBlobList;
 	private List<Blob> correlatedBlobList;
 	private Dimension videoSize;
@@ -46,6 +56,24 @@ public class BlobManager {
 	private BlobCorrelator correlator;
 	private List<BlobManagerListener> listeners;
 	
+	/** Whether the detector should time blobs by the frames' media time, instead of the clock. */
+	private boolean useMediaTime;
+	
+	/** Time of the last update, in seconds. */
+	private double lastUpdateTime;
+	
+	/** Highest correlated blob label seen so far. */
+	private int highestLabel;
+	
+	/** Total number of correlated blobs (tracks) seen so far. */
+	private long trackCount;
+	
+	/** Whether the blobs were restored from a checkpoint, and are yet to be moved to the time of the next update. */
+	private boolean restored;
+	
+	/** Bytes of each blob in a checkpoint: 9 ints and 7 doubles. */
+	private static final int CHECKPOINT_BLOB_SIZE = 9 * 4 + 7 * 8;
+	
 	public BlobManager() {
 		correlator = new WeightedBlobCorrelator();
 		uncorrelatedBlobList = new ArrayList<Blob>();
@@ -63,7 +91,7 @@ public class BlobManager {
 	public List<Blob> getBlobList()
 	{
 		//return new ArrayList<Blob>(correlatedBlobList);
-		double now = System.nanoTime() / 1.0e9;
+		double now = useMediaTime ? lastUpdateTime : System.nanoTime() / 1.0e9;
 		ArrayList<Blob> list = new ArrayList<Blob>();
 		Iterator<Blob> iter = correlatedBlobList.iterator();
 		while (iter.hasNext()) {
@@ -98,9 +126,22 @@ public class BlobManager {
 	 * new blobs to the previous ones, and also filtering blobs.
 	 */
 	public void updateBlobs(List<Blob> blobUpdates) {
+		updateBlobs(blobUpdates, System.nanoTime() / 1.0e9);
+	}
+	
+	/**
+	 * Updates the blobs with the given newly-detected blobs, correlating the
+	 * new blobs to the previous ones, and also filtering blobs.
+	 * @param blobUpdates The newly-detected blobs.
+	 * @param time The time of the frame the blobs were detected in, in seconds.
+	 */
+	public void updateBlobs(List<Blob> blobUpdates, double time) {
 		
+		rebaseRestoredBlobs(time);
+		lastUpdateTime = time;
 		uncorrelatedBlobList = blobUpdates;
-		correlatedBlobList = correlator.correlate(blobUpdates, correlatedBlobList);
+		correlatedBlobList = correlator.correlate(blobUpdates, correlatedBlobList, time);
+		countNewTracks();
 		// TODO notify listeners of new blobs
 		removeOldBlobs();
 		
@@ -109,6 +150,24 @@ public class BlobManager {
 			l.blobsUpdated();
 	}
 	
+	/**
+	 * Ages the blobs by a frame which was not processed since nothing changed in
+	 * it (see {@link net.joelbecker.video.processing.MotionGateEffect}): the blobs
+	 * are kept as they are, and those that were missing may now be lost.
+	 * @param time The time of the frame, in seconds.
+	 */
+	public void ageBlobs(double time) {
+		
+		rebaseRestoredBlobs(time);
+		lastUpdateTime = time;
+		correlator.age(correlatedBlobList, time);
+		removeOldBlobs();
+		
+		//// Notify listeners of update
+		for (BlobManagerListener l : listeners)
+			l.blobsUpdated();
+	}
+	
 	/**
 	 * @return the blobAgeOfAcceptance
 	 */
@@ -137,6 +196,136 @@ public class BlobManager {
 		this.maxBlobMissingTime = maxBlobMissingTime;
 	}
 
+	/**
+	 * Returns true if blobs are timed by the media time of the frames they were
+	 * detected in, rather than by the clock.
+	 * @return true if media time is used.
+	 */
+	public boolean isUseMediaTime() {
+		return useMediaTime;
+	}
+
+	/**
+	 * Sets whether blobs are timed by the media time of the frames they were
+	 * detected in (e.g. when processing a recording faster than real time), or
+	 * by the clock (the default, for live video).
+	 * @param useMediaTime true to use media time.
+	 */
+	public void setUseMediaTime(boolean useMediaTime) {
+		this.useMediaTime = useMediaTime;
+	}
+	
+	/**
+	 * Gets the total number of correlated blobs (tracks) that have been labeled
+	 * since this manager was created.
+	 * @return The number of tracks.
+	 */
+	public long getTrackCount() {
+		return trackCount;
+	}
+
+	public int getCheckpointSize() {
+		int size = 8 + 4 + 8 + 4 + correlatedBlobList.size() * CHECKPOINT_BLOB_SIZE + 4;
+		if (correlator instanceof Checkpointable) {
+			size += ((Checkpointable) correlator).getCheckpointSize();
+		}
+		return size;
+	}
+	
+	public void writeCheckpoint(ByteBuffer buffer) {
+		buffer.putDouble(lastUpdateTime);
+		buffer.putInt(highestLabel);
+		buffer.putLong(trackCount);
+		buffer.putInt(correlatedBlobList.size());
+		for (Blob blob : correlatedBlobList) {
+			buffer.putInt(blob.label);
+			buffer.putInt(blob.frameLabel);
+			buffer.putInt(blob.frameNumber);
+			buffer.putInt(blob.pixelCount);
+			buffer.putInt(blob.bounds.x);
+			buffer.putInt(blob.bounds.y);
+			buffer.putInt(blob.bounds.width);
+			buffer.putInt(blob.bounds.height);
+			buffer.putInt(blob.centroid != null ? 1 : 0);
+			buffer.putDouble(blob.timeCreated);
+			buffer.putDouble(blob.timeLastUpdated);
+			buffer.putDouble(blob.timeMissing);
+			buffer.putDouble(blob.velocity.x);
+			buffer.putDouble(blob.velocity.y);
+			buffer.putDouble(blob.centroid != null ? blob.centroid.x : 0.0);
+			buffer.putDouble(blob.centroid != null ? blob.centroid.y : 0.0);
+		}
+		if (correlator instanceof Checkpointable) {
+			Checkpointable state = (Checkpointable) correlator;
+			buffer.putInt(state.getCheckpointSize());
+			state.writeCheckpoint(buffer);
+		} else {
+			buffer.putInt(0);
+		}
+	}
+	
+	public boolean readCheckpoint(ByteBuffer buffer) {
+		double time = buffer.getDouble();
+		int highest = buffer.getInt();
+		long tracks = buffer.getLong();
+		int count = buffer.getInt();
+		if (count < 0 || count > (buffer.remaining() - 4) / CHECKPOINT_BLOB_SIZE) {
+			return false;
+		}
+		List<Blob> blobs = new ArrayList<Blob>(count);
+		for (int b = 0; b < count; b++) {
+			int label = buffer.getInt();
+			int frameLabel = buffer.getInt();
+			int frameNumber = buffer.getInt();
+			int pixelCount = buffer.getInt();
+			Rectangle bounds = new Rectangle(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+			boolean hasCentroid = buffer.getInt() != 0;
+			Blob blob = new Blob(frameLabel, bounds, buffer.getDouble());
+			blob.label = label;
+			blob.frameNumber = frameNumber;
+			blob.pixelCount = pixelCount;
+			blob.timeLastUpdated = buffer.getDouble();
+			blob.timeMissing = buffer.getDouble();
+			blob.velocity = new Point2D.Double(buffer.getDouble(), buffer.getDouble());
+			Point2D.Double centroid = new Point2D.Double(buffer.getDouble(), buffer.getDouble());
+			blob.centroid = hasCentroid ? centroid : null;
+			blobs.add(blob);
+		}
+		int correlatorSize = buffer.getInt();
+		if (correlatorSize > 0 && correlator instanceof Checkpointable) {
+			ByteBuffer state = buffer.slice().order(buffer.order());
+			state.limit(correlatorSize);
+			if (!((Checkpointable) correlator).readCheckpoint(state)) {
+				return false;
+			}
+		}
+		lastUpdateTime = time;
+		highestLabel = highest;
+		trackCount = tracks;
+		correlatedBlobList = blobs;
+		uncorrelatedBlobList = new ArrayList<Blob>();
+		restored = true;
+		return true;
+	}
+	
+	/**
+	 * Moves the restored blobs in time, if they were just restored, so that the
+	 * given time follows the last update before the checkpoint: the blobs keep
+	 * their age, and the time the process was down is not counted as missing.
+	 * @param time The time of the update, in seconds.
+	 */
+	private void rebaseRestoredBlobs(double time) {
+		if (restored) {
+			restored = false;
+			double offset = time - lastUpdateTime;
+			for (Blob blob : correlatedBlobList) {
+				blob.timeCreated += offset;
+				blob.timeLastUpdated += offset;
+			}
+			lastUpdateTime = time;
+		}
+	}
+	
 	public void addListener(BlobManagerListener listener) {
 		listeners.add(listener);
 	}
@@ -145,6 +334,23 @@ public class BlobManager {
 		listeners.remove(listener);
 	}
 	
+	/**
+	 * Counts the correlated blobs that were given a new label in the last update.
+	 * (Labels are assigned in increasing order.)
+	 */
+	private void countNewTracks() {
+		int highest = highestLabel;
+		for (Blob blob : correlatedBlobList) {
+			if (blob.label > highestLabel) {
+				++trackCount;
+				if (blob.label > highest) {
+					highest = blob.label;
+				}
+			}
+		}
+		highestLabel = highest;
+	}
+	
 	private void removeOldBlobs() {
 		Iterator<Blob> iter = correlatedBlobList.iterator();
 		while (iter.hasNext()) {
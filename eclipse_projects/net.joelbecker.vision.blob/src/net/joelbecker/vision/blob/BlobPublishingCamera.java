@@ -17,30 +17,59 @@
 ******************************************************************************/
 package net.joelbecker.vision.blob;
 
+import java.util.List;
+
 import net.joelbecker.video.processing.BackgroundUpdater;
 import net.joelbecker.video.processing.BufferAccessor;
+import net.joelbecker.video.processing.Checkpointable;
+import net.joelbecker.video.processing.DirtyTileTracker;
+import net.joelbecker.video.processing.ForegroundExtractionEffect;
+import net.joelbecker.video.processing.GaussianMixtureBackground;
+import net.joelbecker.video.processing.MorphologyEffect;
+import net.joelbecker.video.processing.MotionGateEffect;
+import net.joelbecker.video.processing.NoiseAdaptiveThresholdEffect;
 import net.joelbecker.video.processing.PixelizationDialate8Bit;
 import net.joelbecker.video.processing.RgbDiffEffect;
 import net.joelbecker.video.processing.RgbThresholdEffect;
 import net.joelbecker.video.processing.RgbVideoEffect;
-import net.joelbecker.video.processing.camera.AbstractProcessingCamera;
+import net.joelbecker.video.processing.camera.FrameSource;
+import net.joelbecker.video.processing.camera.HeadlessProcessingCamera;
 import net.joelbecker.vision.blob.detector.FourNeighborBlobDetector;
 
 /**
  * Panel that streams video from a given source through a video processing
- * chain.
- * 
- * TODO Use noise-based threshold (higher threshold for noisier pixels)
+ * chain. The source may be a JMF media locator, or a {@link FrameSource}.
  * 
  * @author Joel Becker
  */
-public class BlobPublishingCamera extends AbstractProcessingCamera {
+public class BlobPublishingCamera extends HeadlessProcessingCamera {
 
 	protected BlobManager blobManager;
 
 	protected BufferAccessor bufferAccessor;
 	protected BackgroundUpdater backgroundUpdater;	
 	
+	/** Whether to extract the foreground with one fused effect instead of three. */
+	private boolean fusedForegroundExtraction;
+	/** Whether the blob detector creates the blobs from statistics gathered while labeling. */
+	private boolean singlePassBlobDetection;
+	/** Whether the blob detector labels the dilation's blocks before the pixels. */
+	private boolean coarseToFineBlobDetection;
+	/** Whether frames in which nothing changed skip the rest of the chain. */
+	private boolean motionGating;
+	/** Whether the effects process only the tiles of each frame that changed. */
+	private boolean dirtyTileProcessing;
+	/** Whether the foreground is found with a Gaussian mixture model of the background. */
+	private boolean gaussianMixtureBackground;
+	/** Whether the threshold of each pixel adapts to its noise. */
+	private boolean noiseAdaptiveThreshold;
+	/** Whether the mask is passed between the effects as a bit plane. */
+	private boolean bitMaskPlane;
+	/** Operation which cleans the mask before the blobs are detected, or null for none. */
+	private MorphologyEffect.Operation maskMorphology;
+	/** Width and height of the kernel of the mask's cleaning. */
+	private int maskMorphologySize = 3;
+	
 	
 	public BlobPublishingCamera() {
 		this.blobManager = new BlobManager();
@@ -49,18 +78,299 @@ public class BlobPublishingCamera extends AbstractProcessingCamera {
 	
 	
 	protected RgbVideoEffect[] createEffectChain() {
+		RgbVideoEffect[] chain = createDetectionChain();
+		if (maskMorphology != null) {
+			chain = insertBeforeDetector(new MorphologyEffect(maskMorphology,
+					maskMorphologySize, maskMorphologySize), chain);
+		}
+		if (dirtyTileProcessing) {
+			chain = prepend(new DirtyTileTracker(), chain);
+		}
+		if (motionGating) {
+			chain = prepend(new MotionGateEffect(), chain);
+		}
+		return chain;
+	}
+	
+	private static RgbVideoEffect[] prepend(RgbVideoEffect effect, RgbVideoEffect[] chain) {
+		RgbVideoEffect[] longer = new RgbVideoEffect[chain.length + 1];
+		longer[0] = effect;
+		System.arraycopy(chain, 0, longer, 1, chain.length);
+		return longer;
+	}
+	
+	private static RgbVideoEffect[] insertBeforeDetector(RgbVideoEffect effect, RgbVideoEffect[] chain) {
+		RgbVideoEffect[] longer = new RgbVideoEffect[chain.length + 1];
+		System.arraycopy(chain, 0, longer, 0, chain.length - 1);
+		longer[chain.length - 1] = effect;
+		longer[chain.length] = chain[chain.length - 1];
+		return longer;
+	}
+	
+	/**
+	 * Gets whether the detector labels the mask's blocks first: the mask is then
+	 * constant over the blocks, unless it is cleaned.
+	 */
+	private boolean isCoarseToFineApplicable() {
+		return coarseToFineBlobDetection && maskMorphology == null;
+	}
+	
+	/** Adds the blob manager's blobs to the state saved in checkpoints. */
+	@Override
+	protected List<Checkpointable> getCheckpointables() {
+		List<Checkpointable> parts = super.getCheckpointables();
+		parts.add(blobManager);
+		return parts;
+	}
+	
+	/**
+	 * Creates the effects which detect the blobs.
+	 */
+	private RgbVideoEffect[] createDetectionChain() {
+		FourNeighborBlobDetector detector = new FourNeighborBlobDetector(blobManager, 254, 256, 640*480);
+		detector.setSinglePassLabeling(singlePassBlobDetection);
+		if (gaussianMixtureBackground) {
+			bufferAccessor = null;
+			backgroundUpdater = null;
+			PixelizationDialate8Bit dilation = new PixelizationDialate8Bit();
+			if (isCoarseToFineApplicable()) {
+				detector.setCoarseBlockSize(dilation.getPixelSize());
+			}
+			return new RgbVideoEffect[] {
+					new GaussianMixtureBackground(),
+					dilation,
+					detector
+			};
+		}
 		bufferAccessor = new BufferAccessor();
 		backgroundUpdater = new BackgroundUpdater(bufferAccessor);
+		if (fusedForegroundExtraction) {
+			ForegroundExtractionEffect extraction = new ForegroundExtractionEffect(backgroundUpdater);
+			if (isCoarseToFineApplicable()) {
+				detector.setCoarseBlockSize(extraction.getPixelSize());
+			}
+			return new RgbVideoEffect[] {
+					bufferAccessor,
+					extraction,
+					backgroundUpdater,
+					detector
+			};
+		}
+		PixelizationDialate8Bit dilation = new PixelizationDialate8Bit();
+		if (isCoarseToFineApplicable()) {
+			detector.setCoarseBlockSize(dilation.getPixelSize());
+		}
+		RgbThresholdEffect threshold;
+		if (noiseAdaptiveThreshold) {
+			threshold = new NoiseAdaptiveThresholdEffect();
+		} else {
+			threshold = new RgbThresholdEffect();
+			threshold.setBitMaskOutput(bitMaskPlane);
+		}
 		return new RgbVideoEffect[] {
 				bufferAccessor,
 				new RgbDiffEffect(backgroundUpdater),
-				new RgbThresholdEffect(),
-				new PixelizationDialate8Bit(),
+				threshold,
+				dilation,
 				backgroundUpdater,
-				new FourNeighborBlobDetector(blobManager, 254, 256, 640*480)
+				detector
 		};
 	}
 
+	/**
+	 * Returns true if the foreground is extracted by a {@link ForegroundExtractionEffect},
+	 * instead of the separate difference, threshold and dilation effects.
+	 * @return true if the fused effect is used.
+	 */
+	public boolean isFusedForegroundExtraction() {
+		return fusedForegroundExtraction;
+	}
+	
+	/**
+	 * Sets whether to extract the foreground with a {@link ForegroundExtractionEffect},
+	 * which produces the same mask as the separate difference, threshold and
+	 * dilation effects in one pass. Takes effect when the camera is next opened.
+	 * @param fused true to use the fused effect.
+	 */
+	public void setFusedForegroundExtraction(boolean fused) {
+		this.fusedForegroundExtraction = fused;
+	}
+	
+	/**
+	 * Returns true if the blob detector creates the blobs from statistics
+	 * gathered while labeling (see {@link FourNeighborBlobDetector#setSinglePassLabeling(boolean)}).
+	 * @return true if single-pass detection is used.
+	 */
+	public boolean isSinglePassBlobDetection() {
+		return singlePassBlobDetection;
+	}
+	
+	/**
+	 * Sets whether the blob detector creates the blobs from statistics gathered
+	 * while labeling, painting its label image only on request. Takes effect when
+	 * the camera is next opened.
+	 * @param singlePass true to use single-pass detection.
+	 */
+	public void setSinglePassBlobDetection(boolean singlePass) {
+		this.singlePassBlobDetection = singlePass;
+	}
+	
+	/**
+	 * Returns true if the blob detector labels the blocks of the dilated mask
+	 * before its pixels (see {@link FourNeighborBlobDetector#setCoarseBlockSize(int)}).
+	 * @return true if coarse-to-fine detection is used.
+	 */
+	public boolean isCoarseToFineBlobDetection() {
+		return coarseToFineBlobDetection;
+	}
+	
+	/**
+	 * Sets whether the blob detector labels the blocks of the dilated mask, one
+	 * per pixelSize &times; pixelSize square, and refines the blobs at full
+	 * resolution within their blocks only. Takes effect when the camera is next
+	 * opened.
+	 * @param coarseToFine true to use coarse-to-fine detection.
+	 */
+	public void setCoarseToFineBlobDetection(boolean coarseToFine) {
+		this.coarseToFineBlobDetection = coarseToFine;
+	}
+	
+	/**
+	 * Returns true if frames in which nothing changed skip the rest of the chain
+	 * (see {@link MotionGateEffect}).
+	 * @return true if motion gating is used.
+	 */
+	public boolean isMotionGating() {
+		return motionGating;
+	}
+	
+	/**
+	 * Sets whether a {@link MotionGateEffect} goes first in the chain, so that
+	 * frames in which nothing changed are not processed: the blob manager only
+	 * ages its blobs, and the displays keep showing the last frame processed.
+	 * Takes effect when the camera is next opened.
+	 * @param motionGating true to use motion gating.
+	 */
+	public void setMotionGating(boolean motionGating) {
+		this.motionGating = motionGating;
+	}
+	
+	/**
+	 * Returns true if the effects process only the tiles of each frame that
+	 * changed (see {@link DirtyTileTracker}).
+	 * @return true if dirty-tile processing is used.
+	 */
+	public boolean isDirtyTileProcessing() {
+		return dirtyTileProcessing;
+	}
+	
+	/**
+	 * Sets whether a {@link DirtyTileTracker} goes first in the chain, so that the
+	 * difference, threshold and dilation effects, the background update and the
+	 * blob detector's run labeling process only the tiles that changed (and their
+	 * neighbors), and reuse the last frame's results elsewhere. Only while frames
+	 * are not pipelined. Takes effect when the camera is next opened.
+	 * @param dirtyTileProcessing true to use dirty-tile processing.
+	 */
+	public void setDirtyTileProcessing(boolean dirtyTileProcessing) {
+		this.dirtyTileProcessing = dirtyTileProcessing;
+	}
+	
+	/**
+	 * Returns true if the foreground is found with a {@link GaussianMixtureBackground}.
+	 * @return true if the Gaussian mixture model is used.
+	 */
+	public boolean isGaussianMixtureBackground() {
+		return gaussianMixtureBackground;
+	}
+	
+	/**
+	 * Sets whether the foreground is found with a {@link GaussianMixtureBackground},
+	 * which copes with backgrounds that move in place (swaying trees, flickering
+	 * screens), instead of the difference from a single background image and a
+	 * threshold. The fused foreground extraction is then not used. Takes effect
+	 * when the camera is next opened.
+	 * @param gaussianMixture true to use the Gaussian mixture model.
+	 */
+	public void setGaussianMixtureBackground(boolean gaussianMixture) {
+		this.gaussianMixtureBackground = gaussianMixture;
+	}
+	
+	/**
+	 * Returns true if the threshold of each pixel adapts to its noise (see
+	 * {@link NoiseAdaptiveThresholdEffect}).
+	 * @return true if the noise-adaptive threshold is used.
+	 */
+	public boolean isNoiseAdaptiveThreshold() {
+		return noiseAdaptiveThreshold;
+	}
+	
+	/**
+	 * Sets whether the threshold of each pixel adapts to its noise, so that
+	 * noisy pixels (e.g. at night) need a larger difference to pass, instead of
+	 * flooding the blob detector with tiny blobs. Only applies to the separate
+	 * difference and threshold effects, not to the fused foreground extraction
+	 * or the Gaussian mixture model (which adapts to noise by itself). Takes
+	 * effect when the camera is next opened.
+	 * @param noiseAdaptive true to use the noise-adaptive threshold.
+	 */
+	public void setNoiseAdaptiveThreshold(boolean noiseAdaptive) {
+		this.noiseAdaptiveThreshold = noiseAdaptive;
+	}
+	
+	/**
+	 * Returns true if the mask is passed from the threshold to the dilation,
+	 * background update and blob detector as a bit plane.
+	 * @return true if bit planes are used.
+	 */
+	public boolean isBitMaskPlane() {
+		return bitMaskPlane;
+	}
+	
+	/**
+	 * Sets whether the mask is passed from the threshold on as a bit plane (see
+	 * {@link net.joelbecker.video.processing.BitMaskPlane}), a 64th of the memory
+	 * of one byte per pixel, which the effects after it scan a word at a time.
+	 * Only applies to the separate difference and threshold effects, without the
+	 * noise-adaptive threshold; bytes are still used for frames processed within
+	 * a region of interest or by dirty tiles. Takes effect when the camera is
+	 * next opened.
+	 * @param bitMaskPlane true to pass bit planes.
+	 */
+	public void setBitMaskPlane(boolean bitMaskPlane) {
+		this.bitMaskPlane = bitMaskPlane;
+	}
+	
+	/**
+	 * Gets the operation which cleans the mask before the blobs are detected.
+	 * @return The operation, or null if the mask is not cleaned.
+	 */
+	public MorphologyEffect.Operation getMaskMorphology() {
+		return maskMorphology;
+	}
+	
+	public int getMaskMorphologySize() {
+		return maskMorphologySize;
+	}
+	
+	/**
+	 * Sets an operation which cleans the mask just before the blobs are detected
+	 * (see {@link MorphologyEffect}), e.g. an opening to remove specks of noise,
+	 * or a closing to join the parts of a blob. Its cost does not depend on the
+	 * size of the kernel. Coarse-to-fine detection is not used with it, since
+	 * the cleaned mask is no longer constant over the dilation's blocks. Takes
+	 * effect when the camera is next opened.
+	 * @param operation The operation, or null not to clean the mask.
+	 * @param size Width and height of the kernel, in pixels.
+	 */
+	public void setMaskMorphology(MorphologyEffect.Operation operation, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("The kernel must be at least 1x1.");
+		}
+		this.maskMorphology = operation;
+		this.maskMorphologySize = size;
+	}
+	
 	/**
 	 * Gets the {@link BlobManager} for this camera.
 	 * @return the {@link BlobManager} for this camera.
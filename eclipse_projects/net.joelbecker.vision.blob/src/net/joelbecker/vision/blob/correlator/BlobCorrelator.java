@@ -39,7 +39,17 @@ public interface BlobCorrelator {
 	 * Correlates the new blobs with the previous blobs.
 	 * @param newBlobs The new Blobs
 	 * @param previousBlobs The previous Blobs to correlate the new ones with.
+	 * @param time The time of the frame the new Blobs were detected in, in seconds.
 	 * @return The correlated list of Blobs.
 	 */
-	List<Blob> correlate(List<Blob> newBlobs, List<Blob> previousBlobs);
+	List<Blob> correlate(List<Blob> newBlobs, List<Blob> previousBlobs, double time);
+	
+	/**
+	 * Ages the blobs by a frame in which nothing changed (so nothing was
+	 * detected): the blobs stay where they are, and those that were missing
+	 * stay missing for longer.
+	 * @param blobs The blobs, as returned by the last correlation.
+	 * @param time The time of the frame, in seconds.
+	 */
+	void age(List<Blob> blobs, double time);
 }
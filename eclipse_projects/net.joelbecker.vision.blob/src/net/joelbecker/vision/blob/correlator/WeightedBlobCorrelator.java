@@ -18,12 +18,14 @@
 package net.joelbecker.vision.blob.correlator;
 
 import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.joelbecker.video.processing.Checkpointable;
 import net.joelbecker.vision.blob.Blob;
 
-public class WeightedBlobCorrelator implements BlobCorrelator {
+public class WeightedBlobCorrelator implements BlobCorrelator, Checkpointable {
 
 	private static final double NO_CONFIDENCE = -Double.MAX_VALUE;
 	private double minCorrelationConfidence = NO_CONFIDENCE;
@@ -54,11 +56,11 @@ public class WeightedBlobCorrelator implements BlobCorrelator {
 	
 	/** {@inheritDoc} */
 	@Override
-	public List<Blob> correlate(List<Blob> newBlobs, List<Blob> oldBlobs) {
+	public List<Blob> correlate(List<Blob> newBlobs, List<Blob> oldBlobs, double now) {
 		List<Blob> correlated;
-		double now = (double) System.nanoTime() / 1000000000.0;
 		double timeSinceLastUpdate = prevNow == 0.0 ? 0.0 : now - prevNow;
 		confidence = new double[newBlobs.size()][oldBlobs.size()];
+		boolean oldCorrelated[] = new boolean[oldBlobs.size()];
 		
 		//// Set new blobs' update time to now, since we're "updating" them, and so we can have a consistent timestamp for all of them.
 		for (Blob newBlob : newBlobs) {
@@ -66,7 +68,7 @@ public class WeightedBlobCorrelator implements BlobCorrelator {
 		}
 		
 		//// Calculate the confidence of correlation between each pair of new/old blobs.
-		calcAllConfidences(newBlobs, oldBlobs);
+		calcAllConfidences(newBlobs, oldBlobs, timeSinceLastUpdate);
 		
 		//// Find best correlations
 		int maxCorrelations = Math.max(newBlobs.size(), oldBlobs.size());
@@ -86,9 +88,10 @@ public class WeightedBlobCorrelator implements BlobCorrelator {
 			if (highestConfidence > minCorrelationConfidence) {
 				
 				//// Correlate them
-				Blob correlatedBlob = correlate(newBlobs.get(hcNew), oldBlobs.get(hcOld));
+				Blob correlatedBlob = correlate(newBlobs.get(hcNew), oldBlobs.get(hcOld), timeSinceLastUpdate);
 				int index = newBlobs.size() > oldBlobs.size() ? hcNew : hcOld;
 				correlated.set(index, correlatedBlob);
+				oldCorrelated[hcOld] = true;
 				++nCorrelations;
 				
 				//// Clear their confidence mappings (so the next-highest confidence may be found, without repeating any blobs
@@ -104,9 +107,10 @@ public class WeightedBlobCorrelator implements BlobCorrelator {
 		if (oldBlobs.size() > newBlobs.size()) {
 			
 			//// For each of the blobs that didn't have a corresponding new one, update its missing time 
-			for (Blob blob : correlated) {
-				if (blob.timeLastUpdated != now) {
-					blob.timeMissing += timeSinceLastUpdate;
+			//// (by the time since the last update, however many frames were skipped)
+			for (int o = 0; o < correlated.size(); o++) {
+				if (!oldCorrelated[o]) {
+					correlated.get(o).timeMissing += timeSinceLastUpdate;
 				}
 			}
 		} else {
@@ -123,6 +127,47 @@ public class WeightedBlobCorrelator implements BlobCorrelator {
 		return correlated;
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public void age(List<Blob> blobs, double now) {
+		double timeSinceLastUpdate = prevNow == 0.0 ? 0.0 : now - prevNow;
+		if (timeSinceLastUpdate < 0.0) {
+			return;
+		}
+		for (Blob blob : blobs) {
+			if (blob.timeMissing > 0.0) {
+				blob.timeMissing += timeSinceLastUpdate;
+			} else {
+				//// Seen in the last frame, and nothing has moved since
+				blob.velocity = new Point2D.Double(0.0, 0.0);
+			}
+		}
+		prevNow = now;
+	}
+
+	/** The next label, so that restored and new blobs are labeled uniquely. */
+	public int getCheckpointSize() {
+		return 4;
+	}
+	
+	public void writeCheckpoint(ByteBuffer buffer) {
+		buffer.putInt(nextLabel);
+	}
+	
+	/**
+	 * Restores the next label. The time of the last update is not restored, so
+	 * the first correlation after restoring predicts no movement.
+	 */
+	public boolean readCheckpoint(ByteBuffer buffer) {
+		int label = buffer.getInt();
+		if (label < 1) {
+			return false;
+		}
+		nextLabel = label;
+		prevNow = 0.0;
+		return true;
+	}
+
 	private double findHighestConfidence(List<Blob> newBlobs,
 			List<Blob> oldBlobs) {
 		double highestConfidence;
@@ -139,31 +184,41 @@ public class WeightedBlobCorrelator implements BlobCorrelator {
 		return highestConfidence;
 	}
 
-	private void calcAllConfidences(List<Blob> newBlobs, List<Blob> oldBlobs) {
+	private void calcAllConfidences(List<Blob> newBlobs, List<Blob> oldBlobs, double timeSinceLastUpdate) {
 		int n = 0;
 		for (Blob newBlob : newBlobs) {
 			int o = 0;
 			for (Blob oldBlob : oldBlobs) {
-				confidence[n][o] = calculateConfidence(newBlob, oldBlob);
+				confidence[n][o] = calculateConfidence(newBlob, oldBlob, timeSinceLastUpdate);
 				++o;
 			}
 			++n;
 		}
 	}
 
-	private Blob correlate(Blob newBlob, Blob oldBlob) {
+	/**
+	 * Updates an old blob with the new blob correlated to it.
+	 * @param timeSinceLastUpdate Time since the last update, in seconds.
+	 */
+	private Blob correlate(Blob newBlob, Blob oldBlob, double timeSinceLastUpdate) {
+		//// Velocity in pixels per second, over the time since the old blob was last seen (frames may have been skipped)
+		double timeSinceSeen = timeSinceLastUpdate + oldBlob.timeMissing;
+		if (timeSinceSeen > 0.0) {
+			oldBlob.velocity = new Point2D.Double(
+					(newBlob.bounds.getCenterX() - oldBlob.bounds.getCenterX()) / timeSinceSeen,
+					(newBlob.bounds.getCenterY() - oldBlob.bounds.getCenterY()) / timeSinceSeen);
+		}
 		oldBlob.bounds = newBlob.bounds;
-		oldBlob.velocity = new Point2D.Double(
-				newBlob.bounds.getCenterX() - oldBlob.bounds.getCenterX(),
-				newBlob.bounds.getCenterY() - oldBlob.bounds.getCenterY());
+		oldBlob.centroid = newBlob.centroid;
 		oldBlob.timeMissing = 0.0;
 		oldBlob.frameLabel = newBlob.frameLabel;
 		return oldBlob;
 	}
 	
-	private double calculateConfidence(Blob newBlob, Blob oldBlob) {
-		double predictedX = oldBlob.bounds.getCenterX() + oldBlob.velocity.x;
-		double predictedY = oldBlob.bounds.getCenterY() + oldBlob.velocity.y;
+	private double calculateConfidence(Blob newBlob, Blob oldBlob, double timeSinceLastUpdate) {
+		double timeSinceSeen = timeSinceLastUpdate + oldBlob.timeMissing;
+		double predictedX = oldBlob.bounds.getCenterX() + oldBlob.velocity.x * timeSinceSeen;
+		double predictedY = oldBlob.bounds.getCenterY() + oldBlob.velocity.y * timeSinceSeen;
 			// TODO make Y fraction of importance of X (since objects tend to move more horizontally in camera's view typically)
 		double dx = newBlob.bounds.getCenterX() - predictedX;
 		double dy = newBlob.bounds.getCenterY() - predictedY;
@@ -0,0 +1,157 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.detector;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import net.joelbecker.vision.blob.Blob;
+
+/**
+ * Label equivalences which also accumulate the statistics of each blob: its
+ * bounds, pixel count and coordinate sums. They are kept in primitive arrays by
+ * the blob's root label and merged when blobs are joined, so the blobs can be
+ * created straight from the labels, without another pass over the frame.
+ */
+class BlobStatistics extends LabelEquivalences {
+
+	private int[] minX;
+	private int[] maxX;
+	private int[] minY;
+	private int[] maxY;
+	private int[] pixels;
+	private long[] sumX;
+	private long[] sumY;
+	
+	/**
+	 * @param capacity Initial number of labels to make room for.
+	 */
+	public BlobStatistics(int capacity) {
+		super(capacity);
+		int length = getCapacity() + 1;
+		minX = new int[length];
+		maxX = new int[length];
+		minY = new int[length];
+		maxY = new int[length];
+		pixels = new int[length];
+		sumX = new long[length];
+		sumY = new long[length];
+	}
+	
+	@Override
+	public void ensureCapacity(int labels) {
+		super.ensureCapacity(labels);
+		int length = getCapacity() + 1;
+		if (minX.length < length) {
+			minX = Arrays.copyOf(minX, length);
+			maxX = Arrays.copyOf(maxX, length);
+			minY = Arrays.copyOf(minY, length);
+			maxY = Arrays.copyOf(maxY, length);
+			pixels = Arrays.copyOf(pixels, length);
+			sumX = Arrays.copyOf(sumX, length);
+			sumY = Arrays.copyOf(sumY, length);
+		}
+	}
+	
+	@Override
+	public int newLabel() {
+		int label = super.newLabel();
+		minX[label] = Integer.MAX_VALUE;
+		maxX[label] = -1;
+		minY[label] = Integer.MAX_VALUE;
+		maxY[label] = -1;
+		pixels[label] = 0;
+		sumX[label] = 0;
+		sumY[label] = 0;
+		return label;
+	}
+	
+	/**
+	 * Adds a run of pixels on one row to a label's blob.
+	 * @param label A label.
+	 * @param y Row of the run
+	 * @param start First column of the run
+	 * @param end Last column of the run
+	 */
+	public void addRun(int label, int y, int start, int end) {
+		int root = find(label);
+		int n = end - start + 1;
+		if (start < minX[root])
+			minX[root] = start;
+		if (end > maxX[root])
+			maxX[root] = end;
+		if (y < minY[root])
+			minY[root] = y;
+		if (y > maxY[root])
+			maxY[root] = y;
+		pixels[root] += n;
+		sumX[root] += (long) (start + end) * n / 2;
+		sumY[root] += (long) y * n;
+	}
+	
+	@Override
+	protected void merged(int root, int child) {
+		if (minX[child] < minX[root])
+			minX[root] = minX[child];
+		if (maxX[child] > maxX[root])
+			maxX[root] = maxX[child];
+		if (minY[child] < minY[root])
+			minY[root] = minY[child];
+		if (maxY[child] > maxY[root])
+			maxY[root] = maxY[child];
+		pixels[root] += pixels[child];
+		sumX[root] += sumX[child];
+		sumY[root] += sumY[child];
+	}
+	
+	/**
+	 * Creates the blobs, in order of their final labels, after
+	 * <code>flatten()</code>. Like the blobs found from the label image, the
+	 * bounds' width and height are one less than the pixel extents.
+	 * @param height Frame height; rows are counted from the bottom, and are
+	 * flipped so that 0,0 is the top-left of the frame.
+	 * @param time Time of the frame, in seconds
+	 * @param minPixels Smallest blob to create, in pixels
+	 * @param maxPixels Largest blob to create, in pixels
+	 * @return The blobs
+	 */
+	public List<Blob> createBlobs(int height, double time, int minPixels, int maxPixels) {
+		List<Blob> blobs = new Vector<Blob>();
+		int[] finalLabels = getFinalLabels();
+		for (int label = 1; label <= getCount(); label++) {
+			if (finalLabels[label] == label) {
+				int root = find(label);
+				int n = pixels[root];
+				if (n >= minPixels && n <= maxPixels) {
+					Blob blob = new Blob(label,
+							new Rectangle(minX[root], height - 1 - maxY[root],
+									maxX[root] - minX[root], maxY[root] - minY[root]),
+							time);
+					blob.pixelCount = n;
+					blob.centroid = new Point2D.Double((double) sumX[root] / n,
+							height - 1 - (double) sumY[root] / n);
+					blobs.add(blob);
+				}
+			}
+		}
+		return blobs;
+	}
+}
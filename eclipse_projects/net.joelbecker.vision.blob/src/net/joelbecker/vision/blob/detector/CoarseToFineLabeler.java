@@ -0,0 +1,193 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.detector;
+
+import java.util.Arrays;
+
+/**
+ * <p>Labels the blobs of a threshold image that is constant over square blocks,
+ * as output by <code>PixelizationDialate8Bit</code> or
+ * <code>ForegroundExtractionEffect</code> with the same pixel size. One pixel of
+ * each block is sampled into a grid a block-size squared times smaller, and the
+ * grid is labeled by runs. The blobs' statistics are then gathered at full
+ * resolution, but only within the blocks of the coarse blobs, so the cost is in
+ * proportion to the grid plus the foreground blocks rather than the image.</p>
+ * 
+ * <p>The blobs are the same as those of the pixel scan (blocks touching at a
+ * corner touch at a pixel), except that the labels are numbered in the order of
+ * the blocks. As with the pixel scan, the first row and the first and last columns
+ * are never labeled.</p>
+ */
+class CoarseToFineLabeler {
+
+	private int blockSize;
+	private int width = -1;
+	private int height = -1;
+	/** Grid of blocks, with a border of empty blocks on the first row and either side. */
+	private byte[] grid = new byte[0];
+	private int gridWidth;
+	private int gridHeight;
+	private final RunLengthLabeler gridLabeler = new RunLengthLabeler();
+	/** Number of pixel runs. */
+	private int runCount;
+	/** Row of each pixel run. */
+	private int[] runRow = new int[1024];
+	/** First column of each pixel run. */
+	private int[] runStart = new int[1024];
+	/** Last column of each pixel run. */
+	private int[] runEnd = new int[1024];
+	/** Final label of each pixel run. */
+	private int[] runLabel = new int[1024];
+	
+	/** Gets the width of the last frame labeled, or -1 if none. */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * Labels the blocks of a threshold image, and accumulates the statistics of
+	 * their pixels (see <code>BlobStatistics.createBlobs()</code>).
+	 * @param bin Threshold image, 8 bits per pixel, the same over each block; foreground pixels are 255.
+	 * @param width Image width
+	 * @param height Image height
+	 * @param blockSize Width and height of the blocks, starting at the first pixel
+	 * @param statistics Labels and statistics; must be cleared. They are
+	 * flattened afterwards, so their final labels apply.
+	 * @return The total number of labels used, which is also the highest label value used.
+	 */
+	public int label(byte[] bin, int width, int height, int blockSize, BlobStatistics statistics) {
+		this.width = width;
+		this.height = height;
+		this.blockSize = blockSize;
+		sampleBlocks(bin);
+		// The blocks are only labeled; the statistics are of the pixels
+		int nLabels = gridLabeler.label(grid, gridWidth, gridHeight, null, (LabelEquivalences) statistics);
+		
+		// Find the runs of pixels within each run of blocks, which all have the block run's label
+		runCount = 0;
+		for (int gy = 1; gy < gridHeight; gy++) {
+			int fromY = Math.max((gy - 1) * blockSize, 1);
+			int toY = Math.min(gy * blockSize, height);
+			for (int r = gridLabeler.getFirstRun(gy); r < gridLabeler.getFirstRun(gy + 1); r++) {
+				int label = gridLabeler.getRunLabel(r);
+				int fromX = Math.max((gridLabeler.getRunStart(r) - 1) * blockSize, 1);
+				int toX = Math.min(gridLabeler.getRunEnd(r) * blockSize, width - 1);
+				for (int y = fromY; y < toY; y++) {
+					findRuns(bin, y, fromX, toX, label, statistics);
+				}
+			}
+		}
+		return nLabels;
+	}
+	
+	/**
+	 * Samples a pixel of each block into the grid. A block is empty if none of
+	 * its pixels are ever labeled (a one-pixel block on the first row, or the first
+	 * or last column).
+	 */
+	private void sampleBlocks(byte[] bin) {
+		int blocksPerRow = (width + blockSize - 1) / blockSize;
+		int blockRows = (height + blockSize - 1) / blockSize;
+		gridWidth = blocksPerRow + 2;
+		gridHeight = blockRows + 1;
+		if (grid.length != gridWidth * gridHeight) {
+			grid = new byte[gridWidth * gridHeight];
+		}
+		for (int by = 0; by < blockRows; by++) {
+			int y = Math.max(by * blockSize, 1);
+			int g = (by + 1) * gridWidth + 1;
+			if (y >= Math.min((by + 1) * blockSize, height)) {
+				Arrays.fill(grid, g, g + blocksPerRow, (byte) 0);
+				continue;
+			}
+			int i = y * width;
+			for (int bx = 0, x = 0; bx < blocksPerRow; bx++, x += blockSize) {
+				grid[g + bx] = bin[i + x];
+			}
+			
+			// The first and last blocks are sampled within the columns that are labeled
+			grid[g] = sampleColumns(bin, i, 0);
+			grid[g + blocksPerRow - 1] = sampleColumns(bin, i, (blocksPerRow - 1) * blockSize);
+		}
+	}
+	
+	/** Samples a block of a row within the columns that are labeled, or returns 0 if it has none. */
+	private byte sampleColumns(byte[] bin, int i, int x) {
+		int from = Math.max(x, 1);
+		if (from >= Math.min(x + blockSize, width - 1)) {
+			return 0;
+		}
+		return bin[i + from];
+	}
+	
+	/** Finds the runs of foreground pixels between two columns of a row, and adds them to a blob. */
+	private void findRuns(byte[] bin, int y, int fromX, int toX, int label, BlobStatistics statistics) {
+		int i = y * width;
+		int x = fromX;
+		while (x < toX) {
+			if (bin[i + x] == (byte) 255) {
+				int start = x;
+				do {
+					x++;
+				} while (x < toX && bin[i + x] == (byte) 255);
+				statistics.addRun(label, y, start, x - 1);
+				addRun(y, start, x - 1, label);
+			} else {
+				x++;
+			}
+		}
+	}
+	
+	private void addRun(int y, int start, int end, int label) {
+		if (runCount == runStart.length) {
+			int capacity = runCount * 2;
+			runRow = Arrays.copyOf(runRow, capacity);
+			runStart = Arrays.copyOf(runStart, capacity);
+			runEnd = Arrays.copyOf(runEnd, capacity);
+			runLabel = Arrays.copyOf(runLabel, capacity);
+		}
+		runRow[runCount] = y;
+		runStart[runCount] = start;
+		runEnd[runCount] = end;
+		runLabel[runCount] = label;
+		runCount++;
+	}
+	
+	/**
+	 * Writes the final labels of the pixel runs to a label image.
+	 * @param labelImage Label image, cleared except for the runs of an earlier frame (see <code>clear()</code>)
+	 */
+	public void paint(int[] labelImage) {
+		for (int r = 0; r < runCount; r++) {
+			int i = runRow[r] * width;
+			Arrays.fill(labelImage, i + runStart[r], i + runEnd[r] + 1, runLabel[r]);
+		}
+	}
+	
+	/**
+	 * Clears the runs of the last frame labeled from a label image painted by
+	 * <code>paint()</code>, which leaves it all 0.
+	 * @param labelImage Label image
+	 */
+	public void clear(int[] labelImage) {
+		for (int r = 0; r < runCount; r++) {
+			int i = runRow[r] * width;
+			Arrays.fill(labelImage, i + runStart[r], i + runEnd[r] + 1, 0);
+		}
+	}
+}
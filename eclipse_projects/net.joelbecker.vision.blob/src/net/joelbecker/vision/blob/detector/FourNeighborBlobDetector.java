@@ -21,14 +21,19 @@ package net.joelbecker.vision.blob.detector;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 
+import javax.media.Buffer;
 import javax.media.format.VideoFormat;
 
+import net.joelbecker.video.processing.Checkpointable;
+import net.joelbecker.video.processing.RegionOfInterest;
 import net.joelbecker.video.processing.RgbVideoEffect;
+import net.joelbecker.video.processing.RowBandExecutor;
 import net.joelbecker.vision.blob.Blob;
 import net.joelbecker.vision.blob.BlobManager;
 
@@ -42,20 +47,42 @@ import net.joelbecker.vision.blob.BlobManager;
  * <p>The actual video output is RGB, which each label colored a different color (but
  * after a certain number of labels, the colors repeat). The label image may be
  * obtained via getLastLableImage().</p>
+ * 
+ * <p>The blob size limits are saved in checkpoints.</p>
  */
-public class FourNeighborBlobDetector extends RgbVideoEffect {
+public class FourNeighborBlobDetector extends RgbVideoEffect implements Checkpointable, RgbVideoEffect.BitMaskInput {
 
-	public static final int MAX_LABELS = 320 * 240 / 4;
-	
 	private BlobManager blobManager;
 	private int minBlobSize = 16;
 	private int maxBlobSize = Integer.MAX_VALUE;
 	//private int[] blobPixelCount = new int[MAX_LABELS + 1];
-	private int[] changeLabel = new int[MAX_LABELS + 1];
+	private LabelEquivalences equivalences = new LabelEquivalences(1024);
 	private int[] labelImage = new int[0];
 	private VideoFormat format;
 	private int frameNumber = -1;
 	
+	/** Whether to label horizontal strips of the frame in parallel, when the band executor splits it. */
+	private boolean parallelLabeling = true;
+	/** Whether to label runs of foreground pixels rather than pixels. */
+	private boolean runLengthLabeling = true;
+	private RunLengthLabeler runLabeler = new RunLengthLabeler();
+	/** Whether the label image was painted from the runs of runLabeler (so only those need clearing). */
+	private boolean labelImageFromRuns = false;
+	/** Whether to accumulate the blob statistics while labeling the runs, and create the blobs from them. */
+	private boolean singlePassLabeling = false;
+	private BlobStatistics statistics = new BlobStatistics(1024);
+	/** Whether the label image is yet to be painted from the runs, on request. It is clear until then. */
+	private boolean labelImagePending = false;
+	/** Size of the blocks the input is constant over, to label before the pixels; 0 or 1 to label the pixels only. */
+	private int coarseBlockSize = 0;
+	private CoarseToFineLabeler coarseLabeler = new CoarseToFineLabeler();
+	/** Whether the label image is painted from (or pending for) the runs of coarseLabeler instead of runLabeler. */
+	private boolean labelImageFromBlocks = false;
+	/** Whether runLabeler holds the runs of the last frame, so the next one may be relabeled in its dirty tiles only. */
+	private boolean runsCurrent = false;
+	/** Per-strip labeling state of the parallel labeling. */
+	private LabelStrip[] strips = new LabelStrip[0];
+	
 	public FourNeighborBlobDetector(BlobManager mgr, int maxLabels, int minBlobSize, int maxBlobSize) {
 		blobManager = mgr;
 	}
@@ -80,6 +107,101 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 		this.maxBlobSize = maxBlobSize;
 	}
 	
+	public int getCheckpointSize() {
+		return 8;
+	}
+	
+	public void writeCheckpoint(ByteBuffer buffer) {
+		buffer.putInt(minBlobSize);
+		buffer.putInt(maxBlobSize);
+	}
+	
+	public boolean readCheckpoint(ByteBuffer buffer) {
+		int min = buffer.getInt();
+		int max = buffer.getInt();
+		if (min < 0 || max < min) {
+			return false;
+		}
+		minBlobSize = min;
+		maxBlobSize = max;
+		return true;
+	}
+	
+	public boolean isRunLengthLabeling() {
+		return runLengthLabeling;
+	}
+	
+	/**
+	 * Sets whether to label the blobs by runs of foreground pixels (see
+	 * <code>RunLengthLabeler</code>), which costs in proportion to the foreground
+	 * rather than the image area. Otherwise every pixel is labeled, in parallel
+	 * strips if enabled. The label image and blobs are the same either way.
+	 * Runs are always labeled within a region of interest. Given a
+	 * <code>DirtyTileTracker</code>, runs are only looked for in the dirty tiles,
+	 * and the last frame's runs are kept elsewhere.
+	 */
+	public void setRunLengthLabeling(boolean runLengthLabeling) {
+		this.runLengthLabeling = runLengthLabeling;
+	}
+	
+	public boolean isSinglePassLabeling() {
+		return singlePassLabeling;
+	}
+	
+	/**
+	 * <p>Sets whether to accumulate each blob's bounds, pixel count and centroid
+	 * while labeling the runs of foreground pixels, and create the blobs straight
+	 * from them. Neither the label image nor the output frame are written while
+	 * processing; the label image is painted from the runs when it is requested
+	 * (by <code>getLastLabelImage()</code>, or for display), and the output frame is
+	 * left as it is.</p>
+	 * 
+	 * <p>The labels are the same as in the other modes, but the bounds are the exact
+	 * extents of the blobs, whereas the label image scan (and the run-length
+	 * labeling) may report a blob narrower than it is if it extends further left on
+	 * lower rows. Only this mode sets the blobs' centroids.</p>
+	 */
+	public void setSinglePassLabeling(boolean singlePassLabeling) {
+		this.singlePassLabeling = singlePassLabeling;
+	}
+	
+	public int getCoarseBlockSize() {
+		return coarseBlockSize;
+	}
+	
+	/**
+	 * <p>Sets the size of the square blocks the input is constant over, starting
+	 * at the first pixel, to label the blocks before the pixels: the output of a
+	 * <code>PixelizationDialate8Bit</code> or <code>ForegroundExtractionEffect</code>
+	 * with this pixel size. The blocks are labeled on a grid sampled from the
+	 * input, and the blobs' bounds, pixel counts and centroids are then found at
+	 * full resolution within the blobs' blocks only (see
+	 * <code>CoarseToFineLabeler</code>).</p>
+	 * 
+	 * <p>As with single-pass labeling, the label image is painted only on request,
+	 * the output frame is left as it is, and the bounds are exact. The blobs are
+	 * the same as in the other modes, but the labels are numbered in the order of
+	 * the blocks. The pixels are labeled as usual within a region of interest.</p>
+	 * @param blockSize The block size, or 0 or 1 to label the pixels only.
+	 */
+	public void setCoarseBlockSize(int blockSize) {
+		this.coarseBlockSize = blockSize;
+	}
+	
+	public boolean isParallelLabeling() {
+		return parallelLabeling;
+	}
+	
+	/**
+	 * Sets whether to label horizontal strips of the frame in parallel, on the
+	 * band executor's threads. The label image and blobs are the same either way.
+	 * Has no effect when there is no band executor, or it does not split the frame,
+	 * or when labeling runs (including single-pass labeling).
+	 */
+	public void setParallelLabeling(boolean parallelLabeling) {
+		this.parallelLabeling = parallelLabeling;
+	}
+	
 	/**
 	 * <p>Do the processing of the video frame, labeling each pixel of the blobs
 	 * of the threshold input. A blob is a set of pixels all of which neighbor
@@ -126,96 +248,215 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 	protected boolean processRGB(byte[] bin, byte[] bout, VideoFormat format) {
 		List<Blob> blobs;
 		int nLabels;
+		double time = getFrameTime();
 
 		//System.out.println("\n######## FourNeighborBlobDetector ########\n");
 		int size = initFrame(format);
 		
-		// Label the input buffer pixels
-		nLabels = doLabeling(bin, format, size);
+		RegionOfInterest.Spans spans = getRegionSpans(format);
+		if (coarseBlockSize > 1 && spans == null) {
+			coarseLabeler.label(bin, format.getSize().width, format.getSize().height, coarseBlockSize, statistics);
+			labelImageFromRuns = false;
+			labelImageFromBlocks = true;
+			labelImagePending = true;
+			runsCurrent = false;
+			blobs = statistics.createBlobs(format.getSize().height, time, minBlobSize, maxBlobSize);
+			blobManager.updateBlobs(blobs, time);
+			return true;
+		}
+		labelImageFromBlocks = false;
+		
+		// If only some tiles changed (see DirtyTileTracker), the runs of the last frame are kept elsewhere
+		RegionOfInterest.Spans dirty = runsCurrent ? getDirtySpans(format) : null;
+		if (singlePassLabeling) {
+			if (dirty != null) {
+				runLabeler.relabel(bin, dirty, statistics);
+			} else {
+				runLabeler.label(bin, format.getSize().width, format.getSize().height, spans, statistics);
+			}
+			runsCurrent = true;
+			labelImageFromRuns = true;
+			labelImagePending = true;
+			blobs = statistics.createBlobs(format.getSize().height, time, minBlobSize, maxBlobSize);
+			blobManager.updateBlobs(blobs, time);
+			return true;
+		}
+		
+		// Label the foreground runs (always, within a region of interest), or the input
+		// buffer pixels, in parallel strips if possible (both also resolve the label image)
+		boolean labelRuns = runLengthLabeling || spans != null;
+		RowBandExecutor executor = getBandExecutor();
+		int stripCount = 1;
+		if (parallelLabeling && executor != null && !labelRuns) {
+			stripCount = executor.getBandCount(format.getSize().width, format.getSize().height);
+		}
+		boolean resolved = labelRuns || stripCount > 1;
+		if (labelRuns) {
+			if (dirty != null) {
+				nLabels = runLabeler.relabel(bin, dirty, equivalences);
+			} else {
+				nLabels = runLabeler.label(bin, format.getSize().width, format.getSize().height, spans, equivalences);
+			}
+			runLabeler.paint(labelImage, bout);
+		} else if (resolved) {
+			nLabels = doParallelLabeling(bin, bout, format, executor, stripCount);
+		} else {
+			nLabels = doLabeling(bin, format, size);
+		}
+		labelImageFromRuns = labelRuns;
+		runsCurrent = labelRuns;
 		
 		if (nLabels > 0) {
-			// Make label equivalences point directly to final equivalent (single level of indirection)
-			compressLabelEquivalences(nLabels);
-			
-			// Make the labels contiguous (no skipped label values)
-			//nLabels = makeLabelsContiguous(nLabels);
-			
-			resolveLabelEquivalences(bout, format, nLabels);
+			if (!resolved) {
+				// Make label equivalences point directly to final equivalent (single level of indirection)
+				compressLabelEquivalences(nLabels);
+				
+				resolveLabelEquivalences(bout, format, nLabels);
+			}
 	
-			blobs = createBlobList(format, size, nLabels);
+			if (labelRuns) {
+				blobs = createBlobListFromRuns(format, nLabels, time);
+			} else {
+				blobs = createBlobList(format, size, nLabels, time);
+			}
 			blobs = filterBlobsBySize(blobs);	// TODO: move to BlobManager delegate filter?
 		} else {
 			blobs = new ArrayList<Blob>(0);
 		}
-		blobManager.updateBlobs(blobs);
+		blobManager.updateBlobs(blobs, time);
 		return true;
 	}
+	
+	/**
+	 * Takes bit planes when the runs are labeled from the pixels of the whole
+	 * mask (not its coarse blocks).
+	 */
+	@Override
+	public boolean acceptsBitMask(VideoFormat format) {
+		return coarseBlockSize <= 1 && (runLengthLabeling || singlePassLabeling);
+	}
+	
+	/**
+	 * Labels the runs of a mask given as a bit plane, as <code>processRGB()</code>
+	 * does with run-length or single-pass labeling. The labels are kept in the
+	 * label image only; the plane is passed on.
+	 */
+	@Override
+	public boolean processBitMask(long[] lin, long[] lout, VideoFormat format) {
+		List<Blob> blobs;
+		double time = getFrameTime();
+		initFrame(format);
+		int width = format.getSize().width;
+		int height = format.getSize().height;
+		labelImageFromBlocks = false;
+		labelImageFromRuns = true;
+		runsCurrent = true;
+		if (singlePassLabeling) {
+			runLabeler.label(lin, width, height, statistics);
+			labelImagePending = true;
+			blobs = statistics.createBlobs(height, time, minBlobSize, maxBlobSize);
+		} else {
+			int nLabels = runLabeler.label(lin, width, height, equivalences);
+			runLabeler.paint(labelImage, null);
+			if (nLabels > 0) {
+				blobs = filterBlobsBySize(createBlobListFromRuns(format, nLabels, time));
+			} else {
+				blobs = new ArrayList<Blob>(0);
+			}
+		}
+		blobManager.updateBlobs(blobs, time);
+		return false;
+	}
+	
+	/**
+	 * Ages the blobs, as nothing has changed since the last frame processed.
+	 */
+	@Override
+	protected void processStaticFrame(VideoFormat format) {
+		blobManager.ageBlobs(getFrameTime());
+	}
+	
+	/**
+	 * Gets the time of the current frame, in seconds: its media time if the blob
+	 * manager uses media time (and the frame has a time stamp), otherwise the
+	 * current time.
+	 */
+	private double getFrameTime() {
+		if (blobManager.isUseMediaTime() && getFrameTimeStamp() != Buffer.TIME_UNKNOWN) {
+			return getFrameTimeStamp() / 1.0e9;
+		}
+		return System.nanoTime() / 1.0e9;
+	}
 
 	/**
 	 * @param format
 	 * @return
 	 */
 	private int initFrame(VideoFormat format) {
-		int i;
 		frameNumber++;
 		
 		this.format = format;
 		blobManager.setVideoSize(format.getSize());
 		
 		//// Initialize
-		for (i = 1; i <= MAX_LABELS; i++) {
-			// Set equivalence array to have each label assigned to itself (no re-mappings yet)
-			changeLabel[i] = i;
-			
-			// Reset label pixel count
-			//blobPixelCount[i] = 0;
-		}
+		// No labels yet; each label is reset as it is created
+		equivalences.clear();
+		statistics.clear();
 		
 		// Make sure the label image is the same size as the video
 		int size = format.getSize().width * format.getSize().height;
+		if (size != labelImage.length || runLabeler.getWidth() != format.getSize().width) {
+			runsCurrent = false;
+		}
 		if (size != labelImage.length) {
 			labelImage = new int[size];
+			
+			// Make room for the labels of a typical frame; noisy frames grow it as needed
+			equivalences = new LabelEquivalences(size / 64);
+			statistics = new BlobStatistics(size / 64);
+		} else if (labelImagePending) {
+			// The last frame's runs were never painted
+		} else if (labelImageFromBlocks && coarseLabeler.getWidth() == format.getSize().width) {
+			// Only the last frame's pixel runs within its blocks are labeled
+			coarseLabeler.clear(labelImage);
+		} else if (labelImageFromRuns && runLabeler.getWidth() == format.getSize().width) {
+			// Only the last frame's runs are labeled
+			runLabeler.clear(labelImage);
+		} else {
+			Arrays.fill(labelImage, 0);
 		}
-		Arrays.fill(labelImage, 0);
+		labelImagePending = false;
 		return size;
 	}
+	
+	/** Paints the label image from the runs, if single-pass or coarse-to-fine labeling left it pending. */
+	private void materializeLabelImage() {
+		if (labelImagePending) {
+			if (labelImageFromBlocks) {
+				coarseLabeler.paint(labelImage);
+			} else {
+				runLabeler.paint(labelImage, null);
+			}
+			labelImagePending = false;
+		}
+	}
 
 	/**
 	 * Creates the final list of detected blobs. The labels must be contiguous.
 	 * @param format
 	 * @param size
 	 * @param maxLabel
+	 * @param time Time of the frame, in seconds
 	 * @return
 	 */
 	private List<Blob> createBlobList(VideoFormat format, int size,
-			int maxLabel) {
+			int maxLabel, double time) {
 		List<Blob> blobs;
 		int i;
 		int x;
 		int y;
 		
-		//// Create blobs list.
-		/* blobs[0] is label 1, blobs[1] is label 2, etc. */
-		// blobs =  new ArrayList<Blob>(maxLabel);
-		blobs = Arrays.asList(new Blob[maxLabel + 1]);
-		for(i = 1; i <= maxLabel; i++) {
-			int lbl = changeLabel[i];
-			if (blobs.get(lbl - 1) == null) {
-				blobs.set(lbl - 1, new Blob(lbl, 
-						new Rectangle(
-								format.getSize().width, format.getSize().height, -1, -1))
-						//blobPixelCount[lbl])
-				);
-			}
-			/*
-			blobs.add(new Blob(	i + 1, 
-								new Rectangle(
-										format.getSize().width, format.getSize().height, -1, -1),
-								blobPixelCount[i])
-			);
-			*/
-		}
-		//assert(blobs.size() == maxLabel);
+		blobs = newBlobList(format, maxLabel, time);
 
 		// Find the rectangular boundaries of each blob
 		i = format.getSize().width;
@@ -244,13 +485,66 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 		}
 		//assert(i == size);
 		
+		flipBlobs(format, blobs);
+		return blobs;
+	}
+	
+	/**
+	 * Creates the final list of detected blobs from the runs of the run-length
+	 * labeling, without scanning the label image.
+	 * @param format
+	 * @param maxLabel
+	 * @param time Time of the frame, in seconds
+	 */
+	private List<Blob> createBlobListFromRuns(VideoFormat format, int maxLabel, double time) {
+		List<Blob> blobs = newBlobList(format, maxLabel, time);
+		runLabeler.addBounds(blobs);
+		flipBlobs(format, blobs);
+		return blobs;
+	}
+	
+	/**
+	 * Creates a list with an empty blob for each final label, at the index one
+	 * less than the label, and nulls elsewhere.
+	 */
+	private List<Blob> newBlobList(VideoFormat format, int maxLabel, double time) {
+		List<Blob> blobs;
+		int i;
+		
+		//// Create blobs list.
+		/* blobs[0] is label 1, blobs[1] is label 2, etc. */
+		// blobs =  new ArrayList<Blob>(maxLabel);
+		blobs = Arrays.asList(new Blob[maxLabel + 1]);
+		int[] finalLabels = equivalences.getFinalLabels();
+		for(i = 1; i <= maxLabel; i++) {
+			int lbl = finalLabels[i];
+			if (blobs.get(lbl - 1) == null) {
+				blobs.set(lbl - 1, new Blob(lbl, 
+						new Rectangle(
+								format.getSize().width, format.getSize().height, -1, -1),
+						time)
+						//blobPixelCount[lbl])
+				);
+			}
+			/*
+			blobs.add(new Blob(	i + 1, 
+								new Rectangle(
+										format.getSize().width, format.getSize().height, -1, -1),
+								blobPixelCount[i])
+			);
+			*/
+		}
+		//assert(blobs.size() == maxLabel);
+		return blobs;
+	}
+	
+	private void flipBlobs(VideoFormat format, List<Blob> blobs) {
 		//// Flip blobs vertically to correct pixel coordinates of frame image ( 0,0 = top-left)
 		for (Blob b : blobs) {
 			if (b != null) {
 				b.bounds.y = format.getSize().height-1 - (b.bounds.y + b.bounds.height);
 			}
 		}
-		return blobs;
 	}
 
 	/**
@@ -264,13 +558,14 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 		int i;
 		int x;
 		int y;
+		int[] finalLabels = equivalences.getFinalLabels();
 		/* Now scan and resolve the labels in the label image accordingly. */
 		i = format.getSize().width;
 		for(y = 1; y < format.getSize().height; y++) {
 			i++; // skip first pixel in row
 			for(x = 1; x < format.getSize().width - 1; x++, i++) {
 				if (labelImage[i] != 0) {
-					labelImage[i] = changeLabel[labelImage[i]];
+					labelImage[i] = finalLabels[labelImage[i]];
 					
 					// FIXME no need to duplicate to labelImage and bout both. (except to show output)
 					if (labelImage[i] <= 255) {
@@ -322,50 +617,8 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 	 * @param maxLabel
 	 */
 	private void compressLabelEquivalences(int maxLabel) {
-		int i;
-		int j;
-		
-		/*
-		i = format.getSize().width;
-		int highest = -1;
-		for(int y = 1; y < format.getSize().height; y++) {
-			i++; // skip first pixel in row
-			for(int x = 1; x < format.getSize().width - 1; x++, i++) {
-				if (labelImage[i] > highest) {
-					highest = labelImage[i];
-				}
-			}
-			i++; // skip last pixel in row
-		}
-		assert(highest == maxLabel);*/
-		
-		/*
-		if (highest > maxLabel) {
-			System.out.println("" + highest + " > " + maxLabel + " !!");
-		}*/
-
-		/* First, 
-		 */
-		for (i = maxLabel; i > 0; i--) {
-			
-			j = i;
-			//System.out.print("Label " + j);
-			while (changeLabel[j] != j) {
-				j = changeLabel[j];
-				//System.out.print(" to " + j);
-			}
-			//System.out.print("\n");
-			
-			if (j != i) {
-				//System.out.println(String.format("\tLabel %d --> %d", i, j));
-				changeLabel[i] = j;
-			
-				// Transfer old label's count onto the one it is being changed to
-				//blobPixelCount[j] += blobPixelCount[i];
-				//blobPixelCount[i] = 0;
-				
-			}
-		}
+		assert(maxLabel == equivalences.getCount());
+		equivalences.flatten();
 	}
 
 	/**
@@ -378,7 +631,6 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 		int i;
 		int x;
 		int y;
-		int curLabel = 1;
 		//// Label!
 		// Do everything in the output array
 		//System.arraycopy(bin, 0, bout, 0, bin.length);	// TODO Necessary ???
@@ -428,13 +680,8 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 						
 					//// Otherwise, use new label
 					} else {
-						labelImage[i] = curLabel;
+						labelImage[i] = equivalences.newLabel();
 						//++blobPixelCount[curLabel];
-						curLabel++;						// Change next label to use
-						if (curLabel > MAX_LABELS) {
-							y = Integer.MAX_VALUE - 1;	// break out of both x AND Y loops. (I know, it's messy; need to refactor...)
-							break;
-						}
 					}
 				} else {
 					labelImage[i] = 0;
@@ -443,59 +690,21 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 			i++; // skip last pixel in row
 		} // next y
 		assert(i == size);
-		return curLabel - 1;
-	}
-
-	/**
-	 * Change mapping to map labels into a contiguous label sequence (without
-	 * skipping any label values).
-	 * 
-	 * @param maxLabel
-	 * @return The total number of labels, which is also the highest label value.
-	 */
-	private int makeLabelsContiguous(int maxLabel) {
-		int i;
-		int curLabel;
-		curLabel = 1;
-		for (i = 1; i <= maxLabel; i++) {
-			if (changeLabel[i] != 0) {
-				if (changeLabel[i] == i) {
-					changeLabel[i] = curLabel;
-					curLabel++;	// use next label next time
-				} else {
-					//// Change this mapping to use the mapped-to label's new value.
-					// Note: since labels are always mapped to lower label
-					// values, we can safely assume that changeLabel[i] < i, and
-					// thus that changeLabel[i] has already been made part of
-					// the contiguous labels.
-					assert(changeLabel[i] < i);
-					changeLabel[i] = changeLabel[changeLabel[i]];
-				}
-			}
-		}
-		return curLabel - 1;
+		return equivalences.getCount();
 	}
 
 	private void updateNeighbor(int neighborIndex, int lowestLabel) {
 		int neighbor = labelImage[neighborIndex];
 		
-		// If the neighbor is greater than the lowest found, map it to the lowest
+		// If the neighbor is greater than the lowest found, equate their blobs
 		if (neighbor != 0 && neighbor > lowestLabel) {
-			//labelImage[i - 1] = lowestLabel;
-			
-			// If the neighbor is already mapped to another, map that one to the lowest as well 
-			if (changeLabel[neighbor] != neighbor)
-				changeLabel[ changeLabel[neighbor] ] = lowestLabel;
-			
-			// Map the neighbor to the lowest
-			changeLabel[neighbor] = lowestLabel;
+			equivalences.union(neighbor, lowestLabel);
 		}
 	}
 
 	/**
-	 * Checks if the neighbor label is lower than the lowest yet found. If it is lower,
-	 * the previous is mapped to it and the lower is returned. Otherwise, the same
-	 * lowest yet found will be returned.
+	 * Checks if the neighbor label is lower than the lowest yet found. The
+	 * equivalence between them is recorded by <code>updateNeighbor()</code>.
 	 * 
 	 * @param format
 	 * @param neighbor The neighbor label
@@ -504,18 +713,229 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 	 */
 	private int checkNeighborLabel(VideoFormat format, int neighbor, int lowestLabelYet) {
 		if (neighbor != 0) {
-			if (lowestLabelYet == 0) {
-				lowestLabelYet = neighbor;
-			} else if (neighbor < lowestLabelYet) {
-				changeLabel[lowestLabelYet] = neighbor;
+			if (lowestLabelYet == 0 || neighbor < lowestLabelYet) {
 				lowestLabelYet = neighbor;
 			}
-				//changeLabel[p] = neighborLabel;
 		}
 		return lowestLabelYet;
 	}
 	
+	/**
+	 * <p>Labels the frame in horizontal strips in parallel, producing the same
+	 * label image and labels as <code>doLabeling()</code> followed by the
+	 * equivalence resolution.</p>
+	 * 
+	 * <p>Each strip is labeled on its own with strip-local labels, ignoring the row
+	 * above it. A pixel starts a new label in the sequential scan exactly when none of
+	 * its left and upper neighbors are set, so counting those per strip gives each
+	 * strip's offset into the sequential label numbering. Pixels on a strip's first
+	 * row that only join the strip above get extra labels past those. The
+	 * equivalences within strips and across the strip boundaries are then merged
+	 * into the frame's equivalences, where every blob resolves to its lowest (i.e.
+	 * its sequential) label, and finally each strip relabels its pixels in parallel.</p>
+	 * 
+	 * @return The total number of labels used (as for <code>doLabeling()</code>).
+	 */
+	private int doParallelLabeling(final byte[] bin, final byte[] bout, VideoFormat format,
+			RowBandExecutor executor, int stripCount) {
+		final int w = format.getSize().width;
+		final int h = format.getSize().height;
+		
+		if (strips.length < stripCount) {
+			LabelStrip[] grown = Arrays.copyOf(strips, stripCount);
+			for (int s = strips.length; s < stripCount; s++) {
+				grown[s] = new LabelStrip();
+			}
+			strips = grown;
+		}
+		
+		//// Label each strip with strip-local labels
+		executor.executeBands(h, stripCount, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				strips[band].label(bin, labelImage, w, fromRow, toRow);
+			}
+		});
+		
+		//// Number the strips' labels frame-wide
+		int nLabels = 0;
+		int nExtras = 0;
+		for (int s = 0; s < stripCount; s++) {
+			strips[s].offset = nLabels;
+			nLabels += strips[s].starts;
+		}
+		for (int s = 0; s < stripCount; s++) {
+			strips[s].extraOffset = nLabels + nExtras;
+			nExtras += strips[s].extras;
+		}
+		equivalences.reset(nLabels + nExtras);
+		
+		//// Merge the equivalences within each strip
+		for (int s = 0; s < stripCount; s++) {
+			LabelStrip strip = strips[s];
+			for (int l = 1; l <= strip.equivalences.getCount(); l++) {
+				int root = strip.equivalences.find(l);
+				if (root != l) {
+					equivalences.union(strip.frameLabel(l), strip.frameLabel(root));
+				}
+			}
+		}
+		
+		//// Merge the equivalences across the strip boundaries
+		for (int s = 1; s < stripCount; s++) {
+			LabelStrip strip = strips[s];
+			LabelStrip above = strips[s - 1];
+			if (strip.fromRow < 2) {
+				continue;	// the row above is never labeled
+			}
+			int i = strip.fromRow * w + 1;
+			for (int x = 1; x < w - 1; x++, i++) {
+				int label = labelImage[i];
+				if (label != 0) {
+					int frameLabel = strip.frameLabel(label);
+					if (labelImage[i - w - 1] != 0) {
+						equivalences.union(frameLabel, above.frameLabel(labelImage[i - w - 1]));
+					}
+					if (labelImage[i - w] != 0) {
+						equivalences.union(frameLabel, above.frameLabel(labelImage[i - w]));
+					}
+					if (labelImage[i - w + 1] != 0) {
+						equivalences.union(frameLabel, above.frameLabel(labelImage[i - w + 1]));
+					}
+				}
+			}
+		}
+		
+		//// Resolve every label; the extra labels always join a lower, sequential label
+		equivalences.flatten();
+		int[] finalLabels = equivalences.getFinalLabels();
+		for (int s = 0; s < stripCount; s++) {
+			strips[s].resolve(finalLabels);
+		}
+		
+		//// Relabel each strip
+		executor.executeBands(h, stripCount, new RowBandExecutor.Kernel() {
+			public void run(int band, int fromRow, int toRow) {
+				strips[band].relabel(labelImage, bout, w);
+			}
+		});
+		return nLabels;
+	}
+	
+	/**
+	 * Labeling state of one horizontal strip of the parallel labeling. Local labels
+	 * are numbered from 1 in the order they are created.
+	 */
+	private static class LabelStrip {
+		int fromRow;
+		int toRow;
+		/** Equivalences between the local labels. */
+		LabelEquivalences equivalences = new LabelEquivalences(256);
+		/** Frame-wide label of each local label; see <code>frameLabel()</code>. */
+		int[] ordinal = new int[256];
+		/** Number of local labels which start a label in the sequential scan. */
+		int starts;
+		/** Number of local labels on the first row joined only to the strip above. */
+		int extras;
+		/** Number of sequential labels in the strips above. */
+		int offset;
+		/** First frame-wide label of this strip's extra labels. */
+		int extraOffset;
+		
+		/** Labels the strip's pixels with local labels. */
+		void label(byte[] bin, int[] labelImage, int w, int fromRow, int toRow) {
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			equivalences.clear();
+			starts = 0;
+			extras = 0;
+			
+			int yStart = Math.max(fromRow, 1);
+			for (int y = yStart; y < toRow; y++) {
+				// The row above the strip belongs to another strip, unless it is the never-labeled first row
+				boolean firstRow = y == yStart && y > 1;
+				int i = y * w + 1;
+				for (int x = 1; x < w - 1; x++, i++) {
+					if (bin[i] == (byte) 255) {
+						int left = labelImage[i - 1];
+						int upperLeft = 0;
+						int upper = 0;
+						int upperRight = 0;
+						if (!firstRow) {
+							upperLeft = labelImage[i - w - 1];
+							upper = labelImage[i - w];
+							upperRight = labelImage[i - w + 1];
+						}
+						int lowest = lowestLabel(lowestLabel(left, upperLeft), lowestLabel(upper, upperRight));
+						if (lowest != 0) {
+							labelImage[i] = lowest;
+							if (left != 0) equivalences.union(left, lowest);
+							if (upperLeft != 0) equivalences.union(upperLeft, lowest);
+							if (upper != 0) equivalences.union(upper, lowest);
+							if (upperRight != 0) equivalences.union(upperRight, lowest);
+						} else if (firstRow && (
+								(x > 1 && bin[i - w - 1] == (byte) 255) ||
+								bin[i - w] == (byte) 255 ||
+								(x < w - 2 && bin[i - w + 1] == (byte) 255))) {
+							labelImage[i] = newLabel(-(++extras));
+						} else {
+							labelImage[i] = newLabel(++starts);
+						}
+					}
+				}
+			}
+		}
+		
+		private static int lowestLabel(int a, int b) {
+			if (a == 0 || (b != 0 && b < a)) {
+				return b;
+			}
+			return a;
+		}
+		
+		private int newLabel(int ordinalValue) {
+			int label = equivalences.newLabel();
+			if (label == ordinal.length) {
+				ordinal = Arrays.copyOf(ordinal, label * 2);
+			}
+			ordinal[label] = ordinalValue;
+			return label;
+		}
+		
+		/**
+		 * Gets the frame-wide label of a local label: the sequential scan's label
+		 * if it starts one, otherwise one past all of those.
+		 */
+		int frameLabel(int label) {
+			int o = ordinal[label];
+			return o > 0 ? offset + o : extraOffset - o;
+		}
+		
+		/** Replaces the frame-wide labels by the final labels, indexed by frame-wide label. */
+		void resolve(int[] finalLabels) {
+			for (int l = 1; l <= equivalences.getCount(); l++) {
+				ordinal[l] = finalLabels[frameLabel(l)];
+			}
+		}
+		
+		/** Replaces the strip's local labels by the final labels, as <code>resolveLabelEquivalences()</code> does. */
+		void relabel(int[] labelImage, byte[] bout, int w) {
+			for (int y = Math.max(fromRow, 1); y < toRow; y++) {
+				int i = y * w + 1;
+				for (int x = 1; x < w - 1; x++, i++) {
+					if (labelImage[i] != 0) {
+						int label = ordinal[labelImage[i]];
+						labelImage[i] = label;
+						if (label <= 255) {
+							bout[i] = (byte) label;
+						}
+					}
+				}
+			}
+		}
+	}
+	
 	protected void updateImage(byte[] bout, VideoFormat vformat) {
+		materializeLabelImage();
 		synchronized (displayImage) {			
 			//// Copy pixels to image
 			WritableRaster rast = displayImage.getRaster();
@@ -535,7 +955,18 @@ public class FourNeighborBlobDetector extends RgbVideoEffect {
 		}
 	}
 	
+	/** Draws the labels, as for a mask of bytes. */
+	@Override
+	protected void updateBitMaskImage(long[] lout, VideoFormat vformat) {
+		updateImage(null, vformat);
+	}
+	
+	/**
+	 * Gets the label image of the last frame, with each pixel's blob label, or 0
+	 * for none. Rows are from the bottom, as in the frame.
+	 */
 	public int[] getLastLabelImage() {
+		materializeLabelImage();
 		return labelImage;
 	}
 	public Dimension getLastLabelImageSize() {
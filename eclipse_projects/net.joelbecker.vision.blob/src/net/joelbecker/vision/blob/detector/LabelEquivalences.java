@@ -0,0 +1,191 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.detector;
+
+import java.util.Arrays;
+
+/**
+ * <p>Equivalences between blob labels, as a union-find forest with path
+ * compression and union by rank. Labels are numbered from 1 in the order they
+ * are created, and the capacity grows as needed, so any number of labels can be
+ * used. Only the labels actually used are reset for the next frame.</p>
+ * 
+ * <p>Each set of equivalent labels resolves to its lowest label, which keeps the
+ * final labels independent of the order equivalences are found in.</p>
+ * 
+ * <p>Subclasses may keep data per set, by the set's root label, and merge it in
+ * <code>merged()</code>.</p>
+ */
+class LabelEquivalences {
+
+	/** Parent of each label; a root is its own parent. */
+	private int[] parent;
+	/** Upper bound of the height of each root's tree. */
+	private byte[] rank;
+	/** Lowest label of each root's set; after <code>flatten()</code>, the final label of every label. */
+	private int[] lowest;
+	/** Number of labels used. */
+	private int count;
+	
+	/**
+	 * @param capacity Initial number of labels to make room for.
+	 */
+	public LabelEquivalences(int capacity) {
+		capacity = Math.max(capacity, 16);
+		parent = new int[capacity + 1];
+		rank = new byte[capacity + 1];
+		lowest = new int[capacity + 1];
+	}
+	
+	/** Forgets all labels. */
+	public void clear() {
+		count = 0;
+	}
+	
+	/**
+	 * Forgets all labels, and creates the given number of unrelated labels.
+	 * @param labels Number of labels, numbered from 1.
+	 */
+	public void reset(int labels) {
+		count = 0;
+		ensureCapacity(labels);
+		for (int label = 1; label <= labels; label++) {
+			parent[label] = label;
+			rank[label] = 0;
+			lowest[label] = label;
+		}
+		count = labels;
+	}
+	
+	/**
+	 * Makes room for the given number of labels in total.
+	 * @param labels Number of labels.
+	 */
+	public void ensureCapacity(int labels) {
+		if (labels >= parent.length) {
+			int capacity = Math.max(labels + 1, parent.length * 2);
+			parent = Arrays.copyOf(parent, capacity);
+			rank = Arrays.copyOf(rank, capacity);
+			lowest = Arrays.copyOf(lowest, capacity);
+		}
+	}
+	
+	/**
+	 * Creates a new label, equivalent to no other label yet.
+	 * @return The label, one higher than the last one.
+	 */
+	public int newLabel() {
+		int label = ++count;
+		if (label == parent.length) {
+			ensureCapacity(label);
+		}
+		parent[label] = label;
+		rank[label] = 0;
+		lowest[label] = label;
+		return label;
+	}
+	
+	/** Gets the number of labels, which is also the highest label. */
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * Finds the root of a label's set, compressing the path to it.
+	 * @param label A label.
+	 * @return The root label.
+	 */
+	public int find(int label) {
+		int root = label;
+		while (parent[root] != root) {
+			root = parent[root];
+		}
+		while (parent[label] != root) {
+			int next = parent[label];
+			parent[label] = root;
+			label = next;
+		}
+		return root;
+	}
+	
+	/**
+	 * Equates two labels.
+	 * @param a A label.
+	 * @param b Another label.
+	 */
+	public void union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a == b) {
+			return;
+		}
+		if (rank[a] < rank[b]) {
+			int t = a;
+			a = b;
+			b = t;
+		} else if (rank[a] == rank[b]) {
+			rank[a]++;
+		}
+		parent[b] = a;
+		if (lowest[b] < lowest[a]) {
+			lowest[a] = lowest[b];
+		}
+		merged(a, b);
+	}
+	
+	/**
+	 * Called when two sets are joined. Does nothing by default.
+	 * @param root Root label of the joined set
+	 * @param child Root label of the other set, which is now under root
+	 */
+	protected void merged(int root, int child) {
+	}
+	
+	/** Gets the number of labels there is room for without growing. */
+	protected int getCapacity() {
+		return parent.length - 1;
+	}
+	
+	/**
+	 * Gets the lowest label equivalent to a label.
+	 * @param label A label.
+	 */
+	public int resolve(int label) {
+		return lowest[find(label)];
+	}
+	
+	/**
+	 * Resolves every label to its lowest equivalent, for
+	 * <code>getFinalLabels()</code>. No more labels may be created or equated
+	 * afterwards, until <code>clear()</code> or <code>reset()</code>.
+	 */
+	public void flatten() {
+		for (int label = 1; label <= count; label++) {
+			// A non-root's own lowest is never read again, and roots are unchanged
+			lowest[label] = lowest[find(label)];
+		}
+	}
+	
+	/**
+	 * Gets the final label of each label, indexed by label, after
+	 * <code>flatten()</code>. The array may be longer than the number of labels.
+	 */
+	public int[] getFinalLabels() {
+		return lowest;
+	}
+}
@@ -0,0 +1,485 @@
+/******************************************************************************
+* Copyright (c) 2008-2010 Joel Becker. All Rights Reserved.
+* http://tech.joelbecker.net
+*
+*    This is free software; you can redistribute it and/or modify
+*    it under the terms of the GNU General Public License
+*    version 3, as published by the Free Software Foundation.
+*
+*    This is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU General Public License for more details.
+*
+*    You should have received a copy of the GNU General Public
+*    License along with this source file; if not, write to the Free Software
+*    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+******************************************************************************/
+package net.joelbecker.vision.blob.detector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.joelbecker.video.processing.BitMaskPlane;
+import net.joelbecker.video.processing.RegionOfInterest;
+import net.joelbecker.vision.blob.Blob;
+
+/**
+ * <p>Labels the blobs of a threshold image by runs of foreground pixels, for
+ * frames where only a small part of the image is foreground. Each row is
+ * scanned once for runs; the labeling, the blob bounds and pixel counts, and the
+ * label image all cost in proportion to the runs (or their pixels), not the
+ * image area.</p>
+ * 
+ * <p>The labels are the same as those of <code>FourNeighborBlobDetector</code>'s
+ * pixel scan: a run starts a new label exactly when its first pixel would, i.e.
+ * when no run on the row above touches its first pixel, and runs on adjacent rows
+ * are joined when they touch diagonally (8-neighborhood). Like the pixel scan, the
+ * first row and the first and last columns are never labeled. With a region of
+ * interest, only the pixels in its spans are scanned.</p>
+ * 
+ * <p>A frame which differs from the last one labeled only within some spans (the
+ * dirty tiles, see <code>DirtyTileTracker</code>) is labeled with
+ * <code>relabel()</code>: only those spans are scanned, and the runs elsewhere are
+ * taken from the last frame, joined to the new ones where they touch.</p>
+ */
+class RunLengthLabeler {
+
+	private int width = -1;
+	private int height = -1;
+	/** Number of runs. */
+	private int runCount;
+	/** First column of each run. */
+	private int[] runStart = new int[1024];
+	/** Last column of each run. */
+	private int[] runEnd = new int[1024];
+	/** Label of each run; final after <code>label()</code>. */
+	private int[] runLabel = new int[1024];
+	/** Index of the first run of each row; the entry after the last row is the run count. */
+	private int[] rowFirstRun = new int[0];
+	/** Index of the first run of the row runs are being found on. */
+	private int rowFirst;
+	
+	/** The runs of the frame before, while relabeling (the arrays are swapped with the above). */
+	private int[] oldRunStart = new int[1024];
+	private int[] oldRunEnd = new int[1024];
+	private int[] oldRunLabel = new int[1024];
+	private int[] oldRowFirstRun = new int[0];
+	
+	/** Gets the width of the last frame labeled, or -1 if none. */
+	public int getWidth() {
+		return width;
+	}
+	
+	/** Gets the number of runs in the last frame labeled. */
+	public int getRunCount() {
+		return runCount;
+	}
+	
+	/**
+	 * Gets the index of the first run of a row of the last frame labeled.
+	 * @param row A row, or the height for the number of runs
+	 */
+	public int getFirstRun(int row) {
+		return rowFirstRun[row];
+	}
+	
+	/** Gets the first column of a run. */
+	public int getRunStart(int run) {
+		return runStart[run];
+	}
+	
+	/** Gets the last column of a run. */
+	public int getRunEnd(int run) {
+		return runEnd[run];
+	}
+	
+	/** Gets the final label of a run. */
+	public int getRunLabel(int run) {
+		return runLabel[run];
+	}
+	
+	/**
+	 * Labels the runs of a threshold image.
+	 * @param bin Threshold image, 8 bits per pixel; foreground pixels are 255.
+	 * @param width Image width
+	 * @param height Image height
+	 * @param spans Region of interest, or null for the whole image
+	 * @param equivalences Labels to create and equate; must be cleared. They are
+	 * flattened afterwards, so their final labels apply.
+	 * @return The total number of labels used, which is also the highest label value used.
+	 */
+	public int label(byte[] bin, int width, int height, RegionOfInterest.Spans spans,
+			LabelEquivalences equivalences) {
+		return label(bin, width, height, spans, equivalences, null);
+	}
+	
+	/**
+	 * Labels the runs of a threshold image, accumulating the statistics of the
+	 * blobs as they are labeled (see <code>BlobStatistics.createBlobs()</code>).
+	 * @param bin Threshold image, 8 bits per pixel; foreground pixels are 255.
+	 * @param width Image width
+	 * @param height Image height
+	 * @param spans Region of interest, or null for the whole image
+	 * @param statistics Labels and statistics; must be cleared. They are
+	 * flattened afterwards, so their final labels apply.
+	 * @return The total number of labels used, which is also the highest label value used.
+	 */
+	public int label(byte[] bin, int width, int height, RegionOfInterest.Spans spans,
+			BlobStatistics statistics) {
+		return label(bin, width, height, spans, statistics, statistics);
+	}
+	
+	/**
+	 * Labels the runs of a threshold image given as a bit plane (see
+	 * <code>BitMaskPlane</code>). The runs are found a word at a time, so empty
+	 * parts of the image cost one test per 64 pixels.
+	 * @param plane Threshold image, 1 bit per pixel.
+	 * @param width Image width
+	 * @param height Image height
+	 * @param equivalences Labels to create and equate; must be cleared. They are
+	 * flattened afterwards, so their final labels apply.
+	 * @return The total number of labels used, which is also the highest label value used.
+	 */
+	public int label(long[] plane, int width, int height, LabelEquivalences equivalences) {
+		return label(plane, width, height, equivalences, null);
+	}
+	
+	/**
+	 * Like <code>label(long[], int, int, LabelEquivalences)</code>, accumulating
+	 * the statistics of the blobs as they are labeled.
+	 * @param plane Threshold image, 1 bit per pixel.
+	 * @param width Image width
+	 * @param height Image height
+	 * @param statistics Labels and statistics; must be cleared. They are
+	 * flattened afterwards, so their final labels apply.
+	 * @return The total number of labels used, which is also the highest label value used.
+	 */
+	public int label(long[] plane, int width, int height, BlobStatistics statistics) {
+		return label(plane, width, height, statistics, statistics);
+	}
+	
+	/**
+	 * Labels the runs of a threshold image which is the same as the last one
+	 * labeled, except within the dirty spans. Only those are scanned for runs.
+	 * @param bin Threshold image, 8 bits per pixel; foreground pixels are 255.
+	 * @param dirty The spans that may have changed, within the region of interest
+	 * the last image was labeled in (if any). The image must be the same size.
+	 * @param equivalences Labels to create and equate; must be cleared. They are
+	 * flattened afterwards, so their final labels apply.
+	 * @return The total number of labels used, which is also the highest label value used.
+	 */
+	public int relabel(byte[] bin, RegionOfInterest.Spans dirty, LabelEquivalences equivalences) {
+		findDirtyRuns(bin, dirty);
+		return labelRuns(equivalences, null);
+	}
+	
+	/**
+	 * Like <code>relabel(byte[], Spans, LabelEquivalences)</code>, accumulating
+	 * the statistics of the blobs as they are labeled.
+	 * @param bin Threshold image, 8 bits per pixel; foreground pixels are 255.
+	 * @param dirty The spans that may have changed (see above)
+	 * @param statistics Labels and statistics; must be cleared. They are
+	 * flattened afterwards, so their final labels apply.
+	 * @return The total number of labels used, which is also the highest label value used.
+	 */
+	public int relabel(byte[] bin, RegionOfInterest.Spans dirty, BlobStatistics statistics) {
+		findDirtyRuns(bin, dirty);
+		return labelRuns(statistics, statistics);
+	}
+	
+	private int label(byte[] bin, int width, int height, RegionOfInterest.Spans spans,
+			LabelEquivalences equivalences, BlobStatistics statistics) {
+		this.width = width;
+		this.height = height;
+		findRuns(bin, spans);
+		return labelRuns(equivalences, statistics);
+	}
+	
+	private int label(long[] plane, int width, int height,
+			LabelEquivalences equivalences, BlobStatistics statistics) {
+		this.width = width;
+		this.height = height;
+		findRuns(plane);
+		return labelRuns(equivalences, statistics);
+	}
+	
+	/** Labels the runs found, joining those touching on adjacent rows. */
+	private int labelRuns(LabelEquivalences equivalences, BlobStatistics statistics) {
+		int prevFirst = rowFirstRun[0];
+		for (int y = 1; y < height; y++) {
+			int first = rowFirstRun[y];
+			int last = rowFirstRun[y + 1];
+			
+			// Runs of the row above which may still touch runs of this row
+			int p = prevFirst;
+			for (int r = first; r < last; r++) {
+				int start = runStart[r];
+				int end = runEnd[r];
+				while (p < first && runEnd[p] < start - 1) {
+					p++;
+				}
+				
+				// A run above touching the first pixel gives its label, otherwise the run starts a new one
+				int label;
+				if (p < first && runStart[p] <= start + 1) {
+					label = runLabel[p];
+				} else {
+					label = equivalences.newLabel();
+				}
+				runLabel[r] = label;
+				if (statistics != null) {
+					statistics.addRun(label, y, start, end);
+				}
+				
+				// Join all the runs above touching this one
+				for (int q = p; q < first && runStart[q] <= end + 1; q++) {
+					equivalences.union(runLabel[q], label);
+				}
+			}
+			prevFirst = first;
+		}
+		
+		equivalences.flatten();
+		int[] finalLabels = equivalences.getFinalLabels();
+		for (int r = 0; r < runCount; r++) {
+			runLabel[r] = finalLabels[runLabel[r]];
+		}
+		return equivalences.getCount();
+	}
+	
+	/**
+	 * Finds the runs of foreground pixels on each row but the first, skipping the
+	 * first and last columns, and anything outside the spans if given.
+	 */
+	private void findRuns(byte[] bin, RegionOfInterest.Spans spans) {
+		if (rowFirstRun.length != height + 1) {
+			rowFirstRun = new int[height + 1];
+		}
+		runCount = 0;
+		rowFirstRun[0] = 0;
+		for (int y = 1; y < height; y++) {
+			rowFirstRun[y] = runCount;
+			rowFirst = runCount;
+			int i = y * width;
+			if (spans == null) {
+				findRuns(bin, i, 1, width - 1);
+			} else {
+				for (int s = spans.getFirstSpan(y); s < spans.getFirstSpan(y + 1); s++) {
+					findRuns(bin, i, Math.max(spans.getStart(s) - i, 1),
+							Math.min(spans.getEnd(s) - i, width - 1));
+				}
+			}
+		}
+		rowFirstRun[height] = runCount;
+	}
+	
+	/**
+	 * Finds the runs of foreground pixels of a bit plane like
+	 * <code>findRuns()</code>, from the lowest set and clear bits of its words.
+	 */
+	private void findRuns(long[] plane) {
+		if (rowFirstRun.length != height + 1) {
+			rowFirstRun = new int[height + 1];
+		}
+		int words = BitMaskPlane.getWordsPerRow(width);
+		runCount = 0;
+		rowFirstRun[0] = 0;
+		for (int y = 1; y < height; y++) {
+			rowFirstRun[y] = runCount;
+			rowFirst = runCount;
+			int rowWord = y * words;
+			int start = nextBit(plane, rowWord, words, 1, 0);
+			while (start < width - 1) {
+				int end = Math.min(nextBit(plane, rowWord, words, start, -1L), width - 1);
+				addRun(start, end - 1);
+				start = nextBit(plane, rowWord, words, end, 0);
+			}
+		}
+		rowFirstRun[height] = runCount;
+	}
+	
+	/**
+	 * Finds the next set (or clear) bit of a row of a bit plane.
+	 * @param rowWord Index of the row's first word
+	 * @param words Number of words per row
+	 * @param x Column to start at
+	 * @param invert 0 to find a set bit, -1 to find a clear one
+	 * @return The column of the bit, or the number of bits in the row if none
+	 */
+	private static int nextBit(long[] plane, int rowWord, int words, int x, long invert) {
+		int k = x >>> 6;
+		if (k >= words) {
+			return words << 6;
+		}
+		long bits = (plane[rowWord + k] ^ invert) & (-1L << x);
+		while (bits == 0) {
+			if (++k == words) {
+				return words << 6;
+			}
+			bits = plane[rowWord + k] ^ invert;
+		}
+		return (k << 6) + Long.numberOfTrailingZeros(bits);
+	}
+	
+	/**
+	 * Finds the runs of foreground pixels like <code>findRuns()</code>, within the
+	 * dirty spans only; elsewhere the runs of the last frame are kept, clipped to
+	 * the dirty spans and joined to the new runs they touch.
+	 */
+	private void findDirtyRuns(byte[] bin, RegionOfInterest.Spans dirty) {
+		int[] swap = oldRunStart;
+		oldRunStart = runStart;
+		runStart = swap;
+		swap = oldRunEnd;
+		oldRunEnd = runEnd;
+		runEnd = swap;
+		swap = oldRunLabel;
+		oldRunLabel = runLabel;
+		runLabel = swap;
+		swap = oldRowFirstRun;
+		oldRowFirstRun = rowFirstRun;
+		rowFirstRun = swap;
+		if (rowFirstRun.length != height + 1) {
+			rowFirstRun = new int[height + 1];
+		}
+		
+		runCount = 0;
+		rowFirstRun[0] = 0;
+		for (int y = 1; y < height; y++) {
+			rowFirstRun[y] = runCount;
+			rowFirst = runCount;
+			int i = y * width;
+			int old = oldRowFirstRun[y];
+			int oldLast = oldRowFirstRun[y + 1];
+			int cleanFrom = 1;	// First column not yet taken from either frame
+			for (int s = dirty.getFirstSpan(y); s < dirty.getFirstSpan(y + 1); s++) {
+				int fromX = Math.max(dirty.getStart(s) - i, 1);
+				int toX = Math.min(dirty.getEnd(s) - i, width - 1);
+				if (fromX >= toX) {
+					continue;
+				}
+				old = copyOldRuns(old, oldLast, cleanFrom, fromX);
+				findRuns(bin, i, fromX, toX);
+				cleanFrom = toX;
+			}
+			copyOldRuns(old, oldLast, cleanFrom, width - 1);
+		}
+		rowFirstRun[height] = runCount;
+	}
+	
+	/**
+	 * Adds the parts of the last frame's runs of a row between two columns.
+	 * @param old Index of the first old run which may reach the first column
+	 * @param oldLast Index after the last old run of the row
+	 * @return Index of the first old run which may reach past the last column
+	 */
+	private int copyOldRuns(int old, int oldLast, int fromX, int toX) {
+		while (old < oldLast && oldRunStart[old] < toX) {
+			int start = Math.max(oldRunStart[old], fromX);
+			int end = Math.min(oldRunEnd[old], toX - 1);
+			if (start <= end) {
+				addRun(start, end);
+			}
+			if (oldRunEnd[old] >= toX) {
+				break;	// It goes on past the last column
+			}
+			old++;
+		}
+		return old;
+	}
+	
+	/** Finds the runs of foreground pixels between two columns of a row. */
+	private void findRuns(byte[] bin, int i, int fromX, int toX) {
+		int x = fromX;
+		while (x < toX) {
+			if (bin[i + x] == (byte) 255) {
+				int start = x;
+				do {
+					x++;
+				} while (x < toX && bin[i + x] == (byte) 255);
+				addRun(start, x - 1);
+			} else {
+				x++;
+			}
+		}
+	}
+	
+	/**
+	 * Adds a run to the row runs are being found on, or extends the last run of
+	 * the row if it ends just before this one (pieces of a run of the last frame).
+	 */
+	private void addRun(int start, int end) {
+		if (runCount > rowFirst && runEnd[runCount - 1] == start - 1) {
+			runEnd[runCount - 1] = end;
+			return;
+		}
+		if (runCount == runStart.length) {
+			int capacity = runCount * 2;
+			runStart = Arrays.copyOf(runStart, capacity);
+			runEnd = Arrays.copyOf(runEnd, capacity);
+			runLabel = Arrays.copyOf(runLabel, capacity);
+		}
+		runStart[runCount] = start;
+		runEnd[runCount] = end;
+		runCount++;
+	}
+	
+	/**
+	 * Writes the final labels of the runs to a label image, and to the output for
+	 * labels up to 255, as <code>FourNeighborBlobDetector</code>'s pixel scan does.
+	 * @param labelImage Label image, cleared except for the runs of an earlier frame (see <code>clear()</code>)
+	 * @param bout Output image, 8 bits per pixel, or null to write only the label image
+	 */
+	public void paint(int[] labelImage, byte[] bout) {
+		for (int y = 1; y < height; y++) {
+			int i = y * width;
+			for (int r = rowFirstRun[y]; r < rowFirstRun[y + 1]; r++) {
+				int label = runLabel[r];
+				Arrays.fill(labelImage, i + runStart[r], i + runEnd[r] + 1, label);
+				if (bout != null && label <= 255) {
+					Arrays.fill(bout, i + runStart[r], i + runEnd[r] + 1, (byte) label);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Clears the runs of the last frame labeled from a label image painted by
+	 * <code>paint()</code>, which leaves it all 0.
+	 * @param labelImage Label image
+	 */
+	public void clear(int[] labelImage) {
+		for (int y = 1; y < height; y++) {
+			int i = y * width;
+			for (int r = rowFirstRun[y]; r < rowFirstRun[y + 1]; r++) {
+				Arrays.fill(labelImage, i + runStart[r], i + runEnd[r] + 1, 0);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the bounds and pixel counts of the blobs from the runs. The runs are
+	 * taken in raster order, so the bounds are the same as those found by scanning
+	 * the label image's pixels.
+	 * @param blobs Blobs by final label (label 1 is at index 0), with initial bounds of (width, height, -1, -1)
+	 */
+	public void addBounds(List<Blob> blobs) {
+		for (int y = 1; y < height; y++) {
+			for (int r = rowFirstRun[y]; r < rowFirstRun[y + 1]; r++) {
+				Blob blob = blobs.get(runLabel[r] - 1);
+				int start = runStart[r];
+				int end = runEnd[r];
+				blob.pixelCount += end - start + 1;
+				if (start < blob.bounds.x)
+					blob.bounds.x = start;
+				if (y < blob.bounds.y)
+					blob.bounds.y = y;
+				if (end > blob.bounds.x + blob.bounds.width)
+					blob.bounds.width = end - blob.bounds.x;
+				if (y > blob.bounds.y + blob.bounds.height)
+					blob.bounds.height = y - blob.bounds.y;
+			}
+		}
+	}
+}